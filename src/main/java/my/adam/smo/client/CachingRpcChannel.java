@@ -0,0 +1,250 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import my.adam.smo.common.CallKey;
+import my.adam.smo.common.ReferoRpcController;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * rpc channel that answers repeated calls of cached methods from responses of earlier calls with the same request,
+ * other calls (and streaming calls) go to wrapped channel. Response is fresh for time to live of its method,
+ * after that it is served stale for stale period while single call refreshes it in background, so caller
+ * waits for server only when response is missing or older than time to live and stale period together.
+ * <p/>
+ * Cached responses are shared, failed calls are not cached. Cache is bounded by estimated size of requests
+ * and responses, least recently used responses are evicted first. Callback of call answered from cache
+ * is run on thread that made the call.
+ */
+public class CachingRpcChannel implements RpcChannel {
+    /**
+     * estimated memory of entry besides request and response bytes
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final RpcChannel channel;
+    private final Map<String, Long> ttlMillis;
+    private final long staleMillis;
+    private final long maxBytes;
+    private final LinkedHashMap<CallKey, Entry> entries = new LinkedHashMap<CallKey, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * @param ttlMillis   time to live of responses by full name of cached method, 0 for responses that do not expire
+     * @param staleMillis how long after its time to live response is still served while it is refreshed,
+     *                    0 to wait for server as soon as response expires
+     * @param maxBytes    estimated size of all cached requests and responses
+     */
+    public CachingRpcChannel(RpcChannel channel, Map<String, Long> ttlMillis, long staleMillis, long maxBytes) {
+        this.channel = channel;
+        this.ttlMillis = new HashMap<String, Long>(ttlMillis);
+        this.staleMillis = staleMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void callMethod(final Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                           Message responsePrototype, final RpcCallback<Message> done) {
+        final Long ttl = ttlMillis.get(method.getFullName());
+        if (ttl == null || isStreaming(controller)) {
+            channel.callMethod(method, controller, request, responsePrototype, done);
+            return;
+        }
+
+        final CallKey key = new CallKey(method.getFullName(), request.toByteString());
+        long now = System.currentTimeMillis();
+        Entry entry;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && now >= entry.staleUntil) {
+                remove(key);
+                entry = null;
+            } else if (entry != null && now >= entry.expiresAt && !entry.refreshing) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            channel.callMethod(method, controller, request, responsePrototype, new RpcCallback<Message>() {
+                @Override
+                public void run(Message response) {
+                    if (response != null) {
+                        put(key, response, ttl);
+                    }
+                    done.run(response);
+                }
+            });
+            return;
+        }
+
+        if (now >= entry.expiresAt) {
+            staleHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        if (refresh) {
+            refresh(method, request, responsePrototype, key, entry, ttl);
+        }
+        done.run(entry.response);
+    }
+
+    private static boolean isStreaming(RpcController controller) {
+        return controller instanceof StreamWriter
+                || controller instanceof ReferoRpcController && ((ReferoRpcController) controller).getStreamCallback() != null;
+    }
+
+    /**
+     * calls server for new response of stale entry, entry stays served until it is replaced or its stale period ends
+     */
+    private void refresh(Descriptors.MethodDescriptor method, Message request, Message responsePrototype,
+                         final CallKey key, final Entry entry, final long ttl) {
+        channel.callMethod(method, new ReferoRpcController(), request, responsePrototype, new RpcCallback<Message>() {
+            @Override
+            public void run(Message response) {
+                if (response != null) {
+                    put(key, response, ttl);
+                    return;
+                }
+                refreshFailures.incrementAndGet();
+                synchronized (CachingRpcChannel.this) {
+                    entry.refreshing = false;
+                }
+            }
+        });
+    }
+
+    private synchronized void put(CallKey key, Message response, long ttl) {
+        long size = ENTRY_OVERHEAD + key.getMethod().length() + key.getArgument().size() + response.getSerializedSize();
+        if (size > maxBytes) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = ttl > 0 ? now + ttl : Long.MAX_VALUE;
+        long staleUntil = ttl > 0 ? expiresAt + Math.max(staleMillis, 0) : Long.MAX_VALUE;
+        remove(key);
+        entries.put(key, new Entry(response, size, expiresAt, staleUntil));
+        bytes += size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(CallKey key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    /**
+     * removes all cached responses
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated size of cached requests and responses
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return calls answered with expired response while it was refreshed
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "response cache of " + getSize() + " entries (" + getBytes() + " bytes): hits " + getHits()
+                + ", stale hits " + getStaleHits() + ", misses " + getMisses() + ", evictions " + getEvictions()
+                + ", failed refreshes " + getRefreshFailures();
+    }
+
+    private static final class Entry {
+        private final Message response;
+        private final long size;
+        private final long expiresAt;
+        private final long staleUntil;
+        /**
+         * guarded by channel, true while background call refreshes expired entry
+         */
+        private boolean refreshing;
+
+        Entry(Message response, long size, long expiresAt, long staleUntil) {
+            this.response = response;
+            this.size = size;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+}
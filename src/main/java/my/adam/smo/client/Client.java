@@ -2,9 +2,17 @@ package my.adam.smo.client;
 
 import com.google.protobuf.*;
 import my.adam.smo.common.AbstractCommunicator;
+import my.adam.smo.common.MethodConfig;
+import my.adam.smo.common.ReferoRpcController;
+import my.adam.smo.common.VirtualThreads;
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.StopWatch;
@@ -12,9 +20,15 @@ import org.springframework.util.StopWatch;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -43,21 +57,76 @@ import java.util.concurrent.atomic.AtomicReference;
  * THE SOFTWARE.
  */
 public abstract class Client extends AbstractCommunicator {
+    public static final String CALLBACK_MODE_IO = "io";
+    public static final String CALLBACK_MODE_VIRTUAL = "virtual";
+
     protected final ClientBootstrap bootstrap = new ClientBootstrap();
+    protected int workerCount;
+    private boolean channelFactorySet;
+    private ClientBootstrap localBootstrap;
     protected final AtomicLong seqNum = new AtomicLong(0);
 
+    private Timer timer;
+    private final Random random = new Random();
+
     @Value("${reconnect:false}")
     protected boolean reconnect;
     @Value("${reconnect_delay:100}")
     protected int reconnect_delay;
+    @Value("${reconnect_initial_delay_millis:100}")
+    protected int reconnectInitialDelayMillis;
+    @Value("${reconnect_jitter:0.2}")
+    protected double reconnectJitter;
+    @Value("${reconnect_queue_size:1024}")
+    protected int reconnectQueueSize;
 
     @Value("${blocking_method_call_timeout:100}")
     protected int blocking_method_call_timeout;
+    @Value("${call_timeout_millis:0}")
+    protected long callTimeoutMillis;
+    @Value("${call_method_timeouts:}")
+    protected String callMethodTimeouts;
+    @Value("${timer_tick_millis:10}")
+    protected int timerTickMillis;
+    private volatile Map<String, Long> methodTimeouts;
+
+    @Value("${client_cache_methods:}")
+    protected String clientCacheMethods;
+    @Value("${client_cache_stale_millis:0}")
+    protected long clientCacheStaleMillis;
+    @Value("${client_cache_max_bytes:16777216}")
+    protected long clientCacheMaxBytes;
+
+    @Value("${hedging_methods:}")
+    protected String hedgingMethods;
+    @Value("${hedging_delay_percentile:95}")
+    protected double hedgingDelayPercentile;
+    @Value("${hedging_initial_delay_millis:50}")
+    protected long hedgingInitialDelayMillis;
+    @Value("${hedging_budget_percent:10}")
+    protected double hedgingBudgetPercent;
+
+    @Value("${load_balancing_max_error_rate:0.5}")
+    protected double loadBalancingMaxErrorRate;
+    @Value("${load_balancing_latency_factor:5}")
+    protected double loadBalancingLatencyFactor;
+    @Value("${load_balancing_ejection_millis:10000}")
+    protected long loadBalancingEjectionMillis;
+    @Value("${load_balancing_max_ejected_percent:50}")
+    protected int loadBalancingMaxEjectedPercent;
+
+    @Value("${client_callback_mode:io}")
+    protected String callbackMode;
+    private ExecutorService callbackExecutor;
 
     protected ConcurrentHashMap<Long, RpcCallback<Message>> callbackMap = new ConcurrentHashMap<Long, RpcCallback<Message>>();
     protected ConcurrentHashMap<Long, Message> descriptorProtoMap = new ConcurrentHashMap<Long, Message>();
 
-    public BlockingRpcChannel blockingConnect(final InetSocketAddress sa) {
+    /**
+     * blocking call waits on latch only, so when it is made from virtual thread it just parks
+     * and does not hold carrier thread
+     */
+    public BlockingRpcChannel blockingConnect(final SocketAddress sa) {
         return new BlockingRpcChannel() {
             private int countDownCallTimesToRelease = 1;
             private RpcChannel rpc = connect(sa);
@@ -79,6 +148,14 @@ public abstract class Client extends AbstractCommunicator {
                     }
                 };
 
+                if (controller == null) {
+                    ReferoRpcController referoController = new ReferoRpcController();
+                    if (getCallTimeoutMillis(method, null) <= 0) {
+                        //call that is not answered before blocking timeout is evicted
+                        referoController.setTimeoutMillis(blocking_method_call_timeout * 1000L);
+                    }
+                    controller = referoController;
+                }
                 rpc.callMethod(method, controller, request, responsePrototype, done);
                 try {
                     boolean succeededBeforeTimeout = callbackLatch.await(blocking_method_call_timeout, TimeUnit.SECONDS);
@@ -89,6 +166,10 @@ public abstract class Client extends AbstractCommunicator {
                     getLogger().error("call failed", e);
                     stopWatch.stop();
                 }
+                if (result.get() == null) {
+                    throw new ServiceException("call failed for method:" + method.getFullName()
+                            + (controller.failed() ? ", " + controller.errorText() : ""));
+                }
 
                 stopWatch.stop();
                 getLogger().trace(stopWatch.shortSummary());
@@ -98,9 +179,187 @@ public abstract class Client extends AbstractCommunicator {
         };
     }
 
+    /**
+     * connects with channel factory of configured transport, factory is created on first connection,
+     * {@link LocalAddress} is connected over local transport to server in the same jvm
+     */
+    protected ChannelFuture connectChannel(SocketAddress sa) {
+        return getBootstrap(sa).connect(sa);
+    }
+
+    private synchronized ClientBootstrap getBootstrap(SocketAddress sa) {
+        if (sa instanceof LocalAddress) {
+            if (localBootstrap == null) {
+                localBootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+                localBootstrap.setPipelineFactory(bootstrap.getPipelineFactory());
+            }
+            return localBootstrap;
+        }
+        if (!channelFactorySet) {
+            bootstrap.setFactory(getTransport().newClientChannelFactory(workerCount));
+            channelFactorySet = true;
+        }
+        return bootstrap;
+    }
+
     public void disconnect() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.stop();
+                timer = null;
+            }
+            if (callbackExecutor != null) {
+                callbackExecutor.shutdown();
+                callbackExecutor = null;
+            }
+        }
+        releaseWriteBatchingScheduler();
         bootstrap.shutdown();
         bootstrap.releaseExternalResources();
+        synchronized (this) {
+            if (localBootstrap != null) {
+                localBootstrap.releaseExternalResources();
+                localBootstrap = null;
+            }
+        }
+    }
+
+    /**
+     * @return timer for reconnects and call timeouts, it ticks every timer_tick_millis
+     */
+    protected synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new HashedWheelTimer(timerTickMillis, TimeUnit.MILLISECONDS);
+        }
+        return timer;
+    }
+
+    /**
+     * @param timeoutMillis timeout of every call of method that does not set its own, 0 for no timeout
+     */
+    public void setMethodTimeout(Descriptors.MethodDescriptor method, long timeoutMillis) {
+        getMethodTimeouts().put(method.getFullName(), timeoutMillis);
+    }
+
+    /**
+     * @param controller controller of call, may be null
+     * @return timeout of call set on its controller, or configured for its method, or default one, 0 for no timeout
+     */
+    protected long getCallTimeoutMillis(Descriptors.MethodDescriptor method, RpcController controller) {
+        if (controller instanceof ReferoRpcController && ((ReferoRpcController) controller).getTimeoutMillis() > 0) {
+            return ((ReferoRpcController) controller).getTimeoutMillis();
+        }
+        Long methodTimeout = getMethodTimeouts().get(method.getFullName());
+        return methodTimeout != null ? methodTimeout : callTimeoutMillis;
+    }
+
+    /**
+     * timeouts of methods are configured as comma separated list of full method name and timeout pairs,
+     * for example my.package.Service.method:200
+     */
+    private Map<String, Long> getMethodTimeouts() {
+        Map<String, Long> timeouts = methodTimeouts;
+        if (timeouts == null) {
+            synchronized (this) {
+                if (methodTimeouts == null) {
+                    methodTimeouts = new ConcurrentHashMap<String, Long>(MethodConfig.parseValues(callMethodTimeouts));
+                }
+                timeouts = methodTimeouts;
+            }
+        }
+        return timeouts;
+    }
+
+    /**
+     * time to live (millis) of responses of methods is configured in client_cache_methods the same way
+     * as timeouts of methods, 0 for responses that do not expire
+     *
+     * @return channel that answers repeated calls of configured methods from cache, given channel
+     * when no method is configured
+     */
+    public RpcChannel cache(RpcChannel channel) {
+        Map<String, Long> ttlMillis = MethodConfig.parseValues(clientCacheMethods);
+        if (ttlMillis.isEmpty()) {
+            return channel;
+        }
+        return new CachingRpcChannel(channel, ttlMillis, clientCacheStaleMillis, clientCacheMaxBytes);
+    }
+
+    /**
+     * calls of idempotent methods listed in hedging_methods (comma separated full method names) are sent again
+     * to next replica when they are not answered within hedging_delay_percentile of latencies of their method
+     *
+     * @param replicas channels to replicas of the same server
+     * @return channel that spreads calls over replicas and hedges calls of idempotent methods
+     */
+    public HedgingRpcChannel hedge(List<? extends RpcChannel> replicas) {
+        return new HedgingRpcChannel(replicas, MethodConfig.parseNames(hedgingMethods), getTimer(), hedgingDelayPercentile,
+                hedgingInitialDelayMillis, hedgingBudgetPercent / 100);
+    }
+
+    /**
+     * @param endpoints addresses of servers that serve the same services
+     * @return channel that spreads calls over connections to endpoints and routes around slow or failing ones
+     */
+    public LoadBalancingRpcChannel balance(List<? extends SocketAddress> endpoints) {
+        List<RpcChannel> channels = new ArrayList<RpcChannel>();
+        for (SocketAddress endpoint : endpoints) {
+            channels.add(connect(endpoint));
+        }
+        return new LoadBalancingRpcChannel(channels, loadBalancingMaxErrorRate, loadBalancingLatencyFactor,
+                loadBalancingEjectionMillis, loadBalancingMaxEjectedPercent);
+    }
+
+    /**
+     * exponential backoff starting at initial delay and capped by reconnect_delay seconds,
+     * randomized by jitter so clients do not reconnect in lockstep
+     */
+    protected long getReconnectDelayMillis(int attempt) {
+        long maxDelay = reconnect_delay * 1000L;
+        long delay = reconnectInitialDelayMillis << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        double jitter = 1 - reconnectJitter + 2 * reconnectJitter * random.nextDouble();
+        return (long) (delay * jitter);
+    }
+
+    /**
+     * reports failed call to caller, callback is run with null as protobuf rpc expects
+     */
+    protected void failCall(RpcController controller, RpcCallback<Message> done, String reason) {
+        getLogger().debug(reason);
+        if (controller != null) {
+            controller.setFailed(reason);
+        }
+        runCallback(done, null);
+    }
+
+    /**
+     * runs callback of finished call on I/O thread, or on its own virtual thread in virtual callback mode
+     * so callbacks can block (for example make next blocking call) without stopping I/O
+     */
+    protected void runCallback(final RpcCallback<Message> callback, final Message parameter) {
+        if (CALLBACK_MODE_IO.equals(callbackMode)) {
+            callback.run(parameter);
+            return;
+        }
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.run(parameter);
+            }
+        });
+    }
+
+    private synchronized ExecutorService getCallbackExecutor() {
+        if (callbackExecutor == null) {
+            if (!CALLBACK_MODE_VIRTUAL.equals(callbackMode)) {
+                getLogger().warn("unknown callback mode " + callbackMode + ", using " + CALLBACK_MODE_VIRTUAL);
+            }
+            callbackExecutor = VirtualThreads.newThreadPerTaskExecutor();
+        }
+        return callbackExecutor;
     }
 
     public boolean standardExceptionHandling(ChannelHandlerContext ctx, ExceptionEvent e) {
@@ -115,5 +374,15 @@ public abstract class Client extends AbstractCommunicator {
 
     public abstract RpcChannel connect(final InetSocketAddress sa);
 
+    /**
+     * @param sa address of server, other than {@link InetSocketAddress} only if client supports it
+     */
+    public RpcChannel connect(SocketAddress sa) {
+        if (sa instanceof InetSocketAddress) {
+            return connect((InetSocketAddress) sa);
+        }
+        throw new IllegalArgumentException(getClass().getSimpleName() + " does not support address " + sa);
+    }
+
     public abstract Logger getLogger();
 }
@@ -4,25 +4,25 @@ import com.google.protobuf.*;
 import my.adam.smo.RPCommunication;
 import my.adam.smo.common.InjectLogger;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.base64.Base64;
-import org.jboss.netty.handler.codec.base64.Base64Dialect;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.jboss.netty.logging.InternalLogLevel;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StopWatch;
 
 import javax.inject.Inject;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The MIT License
@@ -51,12 +51,14 @@ import java.util.concurrent.Executors;
 public class HTTPClient extends Client {
     @InjectLogger
     private Logger logger;
+    /**
+     * timeouts of calls waiting for response, cancelled when response comes
+     */
+    final ConcurrentHashMap<Long, Timeout> timeouts = new ConcurrentHashMap<Long, Timeout>();
 
     @Inject
     public HTTPClient(@Value("${client_worker_threads:10}") int workerThreads) {
-        bootstrap.setFactory(new NioClientSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool(), workerThreads));
+        this.workerCount = workerThreads;
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
@@ -83,10 +85,8 @@ public class HTTPClient extends Client {
 
                         HttpResponse httpResponse = (HttpResponse) e.getMessage();
 
-                        ChannelBuffer cb = Base64.decode(httpResponse.getContent(), Base64Dialect.STANDARD);
-
-                        RPCommunication.Response response = RPCommunication.Response
-                                .parseFrom(CodedInputStream.newInstance(cb.copy(0, cb.readableBytes()).array()));
+                        RPCommunication.Response response = parseHttpContent(httpResponse.getContent(),
+                                RPCommunication.Response.PARSER);
                         logger.trace("received response:" + response);
 
                         //encryption
@@ -100,11 +100,22 @@ public class HTTPClient extends Client {
                             logger.trace("symmetric encryption enabled, encrypted request: " + response.toString());
                         }
 
-                        Message msg = descriptorProtoMap.remove(response.getRequestId());
+                        //removing callback claims the call, timeout claims it the same way
+                        long id = response.getRequestId();
+                        RpcCallback<Message> callback = callbackMap.remove(id);
+                        Message msg = descriptorProtoMap.remove(id);
+                        if (callback == null || msg == null) {
+                            logger.debug("response to call " + id + " came after it timed out");
+                            return;
+                        }
+                        Timeout timeout = timeouts.remove(id);
+                        if (timeout != null) {
+                            timeout.cancel();
+                        }
                         Message m = msg
                                 .getParserForType()
                                 .parseFrom(response.getResponse());
-                        callbackMap.remove(response.getRequestId()).run(m);
+                        runCallback(callback, m);
 
                         super.messageReceived(ctx, e);
                         stopWatch.stop();
@@ -129,14 +140,14 @@ public class HTTPClient extends Client {
     @Override
     public RpcChannel connect(final InetSocketAddress sa) {
         RpcChannel rpcChannel = new RpcChannel() {
-            private Channel c = bootstrap.connect(sa).awaitUninterruptibly().getChannel();
+            private Channel c = connectChannel(sa).awaitUninterruptibly().getChannel();
 
             @Override
-            public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request, Message responsePrototype, RpcCallback<Message> done) {
+            public void callMethod(final Descriptors.MethodDescriptor method, final RpcController controller, Message request, Message responsePrototype, final RpcCallback<Message> done) {
                 StopWatch stopWatch = new StopWatch("callMethod");
                 stopWatch.start();
 
-                long id = seqNum.addAndGet(1);
+                final long id = seqNum.addAndGet(1);
 
                 logger.trace("calling method: " + method.getFullName());
 
@@ -164,9 +175,13 @@ public class HTTPClient extends Client {
                     logger.trace("asymmetric encryption enabled, encrypted request: " + protoRequest.toString());
                 }
 
-                byte[] arr = protoRequest.toByteArray();
-
-                ChannelBuffer s = Base64.encode(ChannelBuffers.copiedBuffer(arr), Base64Dialect.STANDARD);
+                final ChannelBuffer s;
+                try {
+                    s = getHttpContent(protoRequest);
+                } catch (IOException e) {
+                    logger.error("unable to write to output stream", e);
+                    return;
+                }
 
                 httpRequest.setContent(s);
 
@@ -178,7 +193,32 @@ public class HTTPClient extends Client {
                 callbackMap.put(id, done);
                 descriptorProtoMap.put(id, responsePrototype);
 
-                c.write(httpRequest);
+                final long timeoutMillis = getCallTimeoutMillis(method, controller);
+                if (timeoutMillis > 0) {
+                    Timeout timeout = getTimer().newTimeout(new TimerTask() {
+                        @Override
+                        public void run(Timeout timeout) throws Exception {
+                            timeouts.remove(id, timeout);
+                            if (callbackMap.remove(id) != null) {
+                                descriptorProtoMap.remove(id);
+                                failCall(controller, done, "call of " + method.getFullName() + " timed out after "
+                                        + timeoutMillis + " ms");
+                            }
+                        }
+                    }, timeoutMillis, TimeUnit.MILLISECONDS);
+                    timeouts.put(id, timeout);
+                    if (timeout.isExpired()) {
+                        //short deadline passed before entry was put, task may not have found it
+                        timeouts.remove(id, timeout);
+                    }
+                }
+
+                c.write(httpRequest).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        bufferPool.release(s);
+                    }
+                });
                 logger.trace("request sent: " + protoRequest.toString());
 
                 stopWatch.stop();
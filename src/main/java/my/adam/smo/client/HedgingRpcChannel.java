@@ -0,0 +1,356 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import my.adam.smo.common.ReferoRpcController;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * rpc channel that spreads calls over replicas of server and hedges calls of idempotent methods: when call
+ * is not answered within hedging delay the same call is sent to next replica, first response answers call
+ * and the other call is canceled. Hedging delay of method is percentile of its recent latencies, so only
+ * slowest calls are hedged, until there are enough latencies initial delay is used. Latency of call is latency
+ * of its first call, when hedge answers first it is time first call took until then (it would take longer),
+ * so hedges that win do not lower hedging delay.
+ * <p/>
+ * Extra calls are limited by budget, every hedged method call adds budget ratio of call to budget and every
+ * hedge takes whole call from it, so hedges never add more than budget ratio of load (after short burst).
+ * Call fails when every call that was sent failed, failed call is not retried. Streaming calls are never hedged.
+ */
+public class HedgingRpcChannel implements RpcChannel {
+    private static final int LATENCY_SAMPLES = 256;
+    /**
+     * latencies needed before percentile is used instead of initial delay
+     */
+    private static final int MIN_LATENCY_SAMPLES = 16;
+    /**
+     * percentile is computed again after this many latencies
+     */
+    private static final int LATENCY_RECOMPUTE_INTERVAL = 16;
+    /**
+     * hedges that can be sent at once when budget was not used for a while
+     */
+    private static final double MAX_BUDGET = 10;
+
+    private final RpcChannel[] replicas;
+    private final Set<String> methods;
+    private final Timer timer;
+    private final double percentile;
+    private final long initialDelayMillis;
+    private final double budgetRatio;
+    private double budget = MAX_BUDGET;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final ConcurrentHashMap<String, Latencies> latencies = new ConcurrentHashMap<String, Latencies>();
+    private final AtomicLong hedgeableCalls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgesOverBudget = new AtomicLong();
+
+    /**
+     * @param replicas           channels to replicas of the same server
+     * @param methods            full names of idempotent methods, only their calls are hedged
+     * @param timer              timer that sends hedges, its tick limits precision of hedging delay
+     * @param percentile         percentile of latencies of method used as its hedging delay, for example 95
+     * @param initialDelayMillis hedging delay of method until there are enough latencies of it
+     * @param budgetRatio        hedges per hedgeable call, for example 0.1 for at most 10% more calls
+     */
+    public HedgingRpcChannel(List<? extends RpcChannel> replicas, Set<String> methods, Timer timer,
+                             double percentile, long initialDelayMillis, double budgetRatio) {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("no replicas");
+        }
+        this.replicas = replicas.toArray(new RpcChannel[replicas.size()]);
+        this.methods = Collections.unmodifiableSet(new HashSet<String>(methods));
+        this.timer = timer;
+        this.percentile = percentile;
+        this.initialDelayMillis = initialDelayMillis;
+        this.budgetRatio = budgetRatio;
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                           Message responsePrototype, RpcCallback<Message> done) {
+        int first = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+        if (replicas.length < 2 || !methods.contains(method.getFullName()) || isStreaming(controller)) {
+            replicas[first].callMethod(method, controller, request, responsePrototype, done);
+            return;
+        }
+        hedgeableCalls.incrementAndGet();
+        synchronized (this) {
+            budget = Math.min(budget + budgetRatio, MAX_BUDGET);
+        }
+        new HedgedCall(method, controller, request, responsePrototype, done, first).start();
+    }
+
+    private static boolean isStreaming(RpcController controller) {
+        return controller instanceof StreamWriter
+                || controller instanceof ReferoRpcController && ((ReferoRpcController) controller).getStreamCallback() != null;
+    }
+
+    private synchronized boolean takeBudget() {
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    private Latencies getLatencies(String method) {
+        Latencies methodLatencies = latencies.get(method);
+        if (methodLatencies == null) {
+            Latencies created = new Latencies();
+            methodLatencies = latencies.putIfAbsent(method, created);
+            if (methodLatencies == null) {
+                methodLatencies = created;
+            }
+        }
+        return methodLatencies;
+    }
+
+    /**
+     * @return current hedging delay of method
+     */
+    public long getHedgingDelayMillis(Descriptors.MethodDescriptor method) {
+        long delayNanos = getLatencies(method.getFullName()).delayNanos;
+        return delayNanos < 0 ? initialDelayMillis : Math.max(TimeUnit.NANOSECONDS.toMillis(delayNanos), 1);
+    }
+
+    public long getHedgeableCalls() {
+        return hedgeableCalls.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return calls answered by hedge before the first call
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return hedges that were not sent because budget was used up
+     */
+    public long getHedgesOverBudget() {
+        return hedgesOverBudget.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hedging over " + replicas.length + " replicas: " + getHedgeableCalls() + " hedgeable calls, "
+                + getHedges() + " hedges, " + getHedgeWins() + " won, " + getHedgesOverBudget() + " over budget";
+    }
+
+    /**
+     * recent latencies of successful calls of one method
+     */
+    private final class Latencies {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private int count;
+        private int index;
+        private volatile long delayNanos = -1;
+
+        synchronized void add(long nanos) {
+            samples[index] = nanos;
+            index = (index + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            if (count >= MIN_LATENCY_SAMPLES && index % LATENCY_RECOMPUTE_INTERVAL == 0) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                delayNanos = sorted[Math.min((int) (count * percentile / 100), count - 1)];
+            }
+        }
+    }
+
+    /**
+     * call and its hedge, first response or last failure answers it
+     */
+    private final class HedgedCall implements TimerTask {
+        private final Descriptors.MethodDescriptor method;
+        private final RpcController controller;
+        private final Message request;
+        private final Message responsePrototype;
+        private final RpcCallback<Message> done;
+        private final int first;
+
+        private final List<ReferoRpcController> attempts = new ArrayList<ReferoRpcController>(2);
+        private int pending;
+        private boolean hedgeDecided;
+        private boolean finished;
+        private String errorText;
+        private Timeout timeout;
+        private long startNanos;
+        private boolean firstFailed;
+
+        HedgedCall(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                   Message responsePrototype, RpcCallback<Message> done, int first) {
+            this.method = method;
+            this.controller = controller;
+            this.request = request;
+            this.responsePrototype = responsePrototype;
+            this.done = done;
+            this.first = first;
+        }
+
+        void start() {
+            synchronized (this) {
+                startNanos = System.nanoTime();
+                timeout = timer.newTimeout(this, getHedgingDelayMillis(method), TimeUnit.MILLISECONDS);
+            }
+            if (controller != null) {
+                controller.notifyOnCancel(new RpcCallback<Object>() {
+                    @Override
+                    public void run(Object parameter) {
+                        cancel();
+                    }
+                });
+            }
+            send(first, false);
+        }
+
+        /**
+         * hedging delay passed without response
+         */
+        @Override
+        public void run(Timeout timeout) {
+            synchronized (this) {
+                if (finished || hedgeDecided) {
+                    return;
+                }
+                hedgeDecided = true;
+            }
+            if (!takeBudget()) {
+                hedgesOverBudget.incrementAndGet();
+                return;
+            }
+            hedges.incrementAndGet();
+            send((first + 1) % replicas.length, true);
+        }
+
+        private void send(int replica, final boolean hedge) {
+            final ReferoRpcController attempt = new ReferoRpcController();
+            if (controller instanceof ReferoRpcController) {
+                attempt.setPriority(((ReferoRpcController) controller).getPriority());
+                attempt.setTimeoutMillis(((ReferoRpcController) controller).getTimeoutMillis());
+            }
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                attempts.add(attempt);
+                pending++;
+            }
+            replicas[replica].callMethod(method, attempt, request, responsePrototype, new RpcCallback<Message>() {
+                @Override
+                public void run(Message response) {
+                    completed(attempt, hedge, response);
+                }
+            });
+        }
+
+        private void completed(ReferoRpcController attempt, boolean hedge, Message response) {
+            List<ReferoRpcController> others;
+            boolean firstMeasured;
+            synchronized (this) {
+                pending--;
+                if (finished) {
+                    return;
+                }
+                if (response == null) {
+                    firstFailed |= !hedge;
+                    errorText = attempt.errorText();
+                    if (pending > 0) {
+                        //the other call can still answer
+                        return;
+                    }
+                    hedgeDecided = true;
+                }
+                finished = true;
+                firstMeasured = !firstFailed;
+                others = new ArrayList<ReferoRpcController>(attempts);
+            }
+            timeout.cancel();
+            for (ReferoRpcController other : others) {
+                if (other != attempt) {
+                    other.startCancel();
+                }
+            }
+
+            if (response != null) {
+                if (firstMeasured) {
+                    //first call answered now or it was still running when hedge answered
+                    getLatencies(method.getFullName()).add(System.nanoTime() - startNanos);
+                }
+                if (hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+            } else if (controller != null) {
+                controller.setFailed(errorText != null ? errorText : "call of " + method.getFullName() + " failed");
+            }
+            done.run(response);
+        }
+
+        /**
+         * caller canceled call
+         */
+        private void cancel() {
+            List<ReferoRpcController> canceled;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                canceled = new ArrayList<ReferoRpcController>(attempts);
+            }
+            timeout.cancel();
+            for (ReferoRpcController attempt : canceled) {
+                attempt.startCancel();
+            }
+            controller.setFailed("call of " + method.getFullName() + " canceled");
+            done.run(null);
+        }
+    }
+}
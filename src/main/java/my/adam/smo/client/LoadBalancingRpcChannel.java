@@ -0,0 +1,284 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import my.adam.smo.common.ReferoRpcController;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * rpc channel that spreads calls over endpoints with power of two choices: two random endpoints are compared and
+ * call goes to the one with lower latency multiplied by its calls waiting for response (and divided by its success
+ * rate, so endpoint that fails fast does not attract calls). Latency and error rate
+ * of endpoint are moving averages that weight last calls most (about last 10 calls).
+ * <p/>
+ * Endpoint whose error rate is over max error rate, or whose latency is over latency factor times median latency
+ * of endpoints, is ejected for ejection time and gets no calls, at most max ejected percent of endpoints
+ * is ejected at once. Endpoint comes back with its statistics cleared, endpoint ejected again right after it came
+ * back is ejected for longer (up to 8 ejection times). Streaming calls are balanced too,
+ * but they do not change latency and error rate of endpoint.
+ */
+public class LoadBalancingRpcChannel implements RpcChannel {
+    /**
+     * weight of last call in moving averages
+     */
+    private static final double WEIGHT = 0.1;
+    /**
+     * calls of endpoint needed before it can be ejected
+     */
+    private static final int MIN_CALLS = 20;
+    /**
+     * endpoint ejected again right after it came back is ejected for longer, up to this many ejection times
+     */
+    private static final int MAX_EJECTION_MULTIPLIER = 8;
+
+    private final Endpoint[] endpoints;
+    private final double maxErrorRate;
+    private final double latencyFactor;
+    private final long ejectionNanos;
+    private final int maxEjectedPercent;
+    private final Random random = new Random();
+    private final AtomicLong ejections = new AtomicLong();
+
+    /**
+     * @param channels          channels to endpoints that serve the same services
+     * @param maxErrorRate      endpoint with higher error rate (0 - 1) is ejected, 1 to never eject it for errors
+     * @param latencyFactor     endpoint with latency higher than this times median latency is ejected,
+     *                          0 to never eject it for latency
+     * @param ejectionMillis    how long ejected endpoint gets no calls
+     * @param maxEjectedPercent endpoints that can be ejected at once, in percent of all endpoints
+     */
+    public LoadBalancingRpcChannel(List<? extends RpcChannel> channels, double maxErrorRate, double latencyFactor,
+                                   long ejectionMillis, int maxEjectedPercent) {
+        if (channels.isEmpty()) {
+            throw new IllegalArgumentException("no endpoints");
+        }
+        endpoints = new Endpoint[channels.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(channels.get(i));
+        }
+        this.maxErrorRate = maxErrorRate;
+        this.latencyFactor = latencyFactor;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        this.maxEjectedPercent = maxEjectedPercent;
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                           Message responsePrototype, final RpcCallback<Message> done) {
+        final Endpoint endpoint = select();
+        final boolean streaming = controller instanceof StreamWriter || controller instanceof ReferoRpcController
+                && ((ReferoRpcController) controller).getStreamCallback() != null;
+        final long start = System.nanoTime();
+        endpoint.outstanding.incrementAndGet();
+        endpoint.channel.callMethod(method, controller, request, responsePrototype, new RpcCallback<Message>() {
+            @Override
+            public void run(Message response) {
+                endpoint.outstanding.decrementAndGet();
+                if (!streaming) {
+                    completed(endpoint, System.nanoTime() - start, response == null);
+                }
+                done.run(response);
+            }
+        });
+    }
+
+    private Endpoint select() {
+        if (endpoints.length == 1) {
+            return endpoints[0];
+        }
+        long now = System.nanoTime();
+        int i = random.nextInt(endpoints.length);
+        int j = random.nextInt(endpoints.length - 1);
+        if (j >= i) {
+            j++;
+        }
+        Endpoint a = endpoints[i];
+        Endpoint b = endpoints[j];
+        boolean aEjected = a.isEjected(now);
+        boolean bEjected = b.isEjected(now);
+        if (aEjected || bEjected) {
+            if (!aEjected) {
+                return a;
+            }
+            if (!bEjected) {
+                return b;
+            }
+            for (int k = 1; k < endpoints.length; k++) {
+                Endpoint endpoint = endpoints[(i + k) % endpoints.length];
+                if (!endpoint.isEjected(now)) {
+                    return endpoint;
+                }
+            }
+            return a;
+        }
+
+        //endpoint without latency yet is compared by waiting calls only
+        double aLatency = a.latency > 0 ? a.latency : b.latency;
+        double bLatency = b.latency > 0 ? b.latency : a.latency;
+        return getCost(a, aLatency) <= getCost(b, bLatency) ? a : b;
+    }
+
+    /**
+     * failing endpoint usually answers fast, so its cost is raised by its error rate
+     */
+    private static double getCost(Endpoint endpoint, double latency) {
+        return (latency + 1) * (endpoint.outstanding.get() + 1) / Math.max(1 - endpoint.errorRate, 0.01);
+    }
+
+    private void completed(Endpoint endpoint, long latencyNanos, boolean failed) {
+        double errorRate;
+        double latency;
+        synchronized (endpoint) {
+            endpoint.latency = endpoint.latency == 0 ? latencyNanos
+                    : endpoint.latency * (1 - WEIGHT) + latencyNanos * WEIGHT;
+            endpoint.errorRate = endpoint.errorRate * (1 - WEIGHT) + (failed ? WEIGHT : 0);
+            if (++endpoint.calls < MIN_CALLS) {
+                return;
+            }
+            errorRate = endpoint.errorRate;
+            latency = endpoint.latency;
+        }
+        if (errorRate > maxErrorRate || latencyFactor > 0 && latency > latencyFactor * getMedianLatency()) {
+            eject(endpoint);
+        } else {
+            synchronized (endpoint) {
+                endpoint.ejectionMultiplier = 0;
+            }
+        }
+    }
+
+    /**
+     * @return lower median of latencies of endpoints that are not ejected and have latency
+     */
+    private double getMedianLatency() {
+        long now = System.nanoTime();
+        double[] latencies = new double[endpoints.length];
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isEjected(now) && endpoint.latency > 0) {
+                latencies[count++] = endpoint.latency;
+            }
+        }
+        if (count == 0) {
+            return Double.MAX_VALUE;
+        }
+        Arrays.sort(latencies, 0, count);
+        return latencies[(count - 1) / 2];
+    }
+
+    private synchronized void eject(Endpoint endpoint) {
+        long now = System.nanoTime();
+        if (endpoint.isEjected(now)) {
+            return;
+        }
+        int ejected = 1;
+        for (Endpoint other : endpoints) {
+            if (other.isEjected(now)) {
+                ejected++;
+            }
+        }
+        if (ejected * 100 > maxEjectedPercent * endpoints.length) {
+            return;
+        }
+        int multiplier;
+        synchronized (endpoint) {
+            endpoint.latency = 0;
+            endpoint.errorRate = 0;
+            endpoint.calls = 0;
+            endpoint.ejectionMultiplier = Math.min(endpoint.ejectionMultiplier + 1, MAX_EJECTION_MULTIPLIER);
+            multiplier = endpoint.ejectionMultiplier;
+        }
+        endpoint.ejectedUntil = now + ejectionNanos * multiplier;
+        endpoint.ejected = true;
+        ejections.incrementAndGet();
+    }
+
+    /**
+     * @return number of endpoints that get calls now
+     */
+    public int getAvailableCount() {
+        long now = System.nanoTime();
+        int available = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isEjected(now)) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("load balancing over ").append(endpoints.length)
+                .append(" endpoints, ").append(getEjections()).append(" ejections:");
+        long now = System.nanoTime();
+        for (Endpoint endpoint : endpoints) {
+            sb.append(" [latency ").append((long) endpoint.latency / 1000).append(" us, error rate ")
+                    .append((float) endpoint.errorRate).append(", waiting ").append(endpoint.outstanding.get())
+                    .append(endpoint.isEjected(now) ? ", ejected]" : "]");
+        }
+        return sb.toString();
+    }
+
+    private static final class Endpoint {
+        private final RpcChannel channel;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        /**
+         * guarded by endpoint, read without lock for selection
+         */
+        private volatile double latency;
+        private volatile double errorRate;
+        private int calls;
+        /**
+         * ejections in row, endpoint that serves min calls after it came back starts from 0 again
+         */
+        private int ejectionMultiplier;
+        private volatile boolean ejected;
+        private volatile long ejectedUntil;
+
+        Endpoint(RpcChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isEjected(long now) {
+            return ejected && now - ejectedUntil < 0;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package my.adam.smo.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * calls of one connection that wait for response, keyed by request id that table assigns from its own sequence.
+ * Ids are consecutive so slot of id is its low bits, table behaves like ring indexed by sequence number
+ * and linear probing is needed only when old call is still pending when sequence wraps around.
+ * Keys are kept in primitive array, nothing is boxed.
+ */
+final class PendingCallTable<T> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private long nextId = 1;
+
+    PendingCallTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of calls expected to be pending at the same time
+     */
+    PendingCallTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return id assigned to value, never 0
+     */
+    synchronized long add(T value) {
+        long id = nextId++;
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length << 1);
+        }
+        insert(id, value);
+        size++;
+        return id;
+    }
+
+    /**
+     * @return value with given id or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T get(long id) {
+        for (int i = slot(id); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == id) {
+                return (T) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return value with given id or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T remove(long id) {
+        for (int i = slot(id); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == id) {
+                T value = (T) values[i];
+                delete(i);
+                size--;
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * removes every value
+     *
+     * @return removed values
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> removeAll() {
+        List<T> removed = new ArrayList<T>(size);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                removed.add((T) values[i]);
+                values[i] = null;
+            }
+        }
+        size = 0;
+        return removed;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private int slot(long id) {
+        return (int) id & mask;
+    }
+
+    private void insert(long id, Object value) {
+        int i = slot(id);
+        while (values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        values[i] = value;
+    }
+
+    /**
+     * empties slot and moves following entries of the same probe sequence back, so lookups never see a hole
+     */
+    private void delete(int hole) {
+        values[hole] = null;
+        for (int i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            boolean reachable = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+            if (!reachable) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                values[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
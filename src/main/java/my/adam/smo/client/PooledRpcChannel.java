@@ -0,0 +1,194 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.net.SocketAddress;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * rpc channel that spreads calls to one address over several connections, every call goes to connection
+ * with fewest calls waiting for response. New connection is opened in background when every connection
+ * has at least grow threshold pending calls, connections idle longer than idle timeout are closed
+ * until pool is back to its minimal size. Idle connections are looked for on timer of client
+ * while pool is bigger than its minimal size, so pool shrinks also when no calls are made.
+ */
+public class PooledRpcChannel implements RpcChannel {
+    private final SocketClient client;
+    private final SocketAddress sa;
+    private final int minSize;
+    private final int maxSize;
+    private final int growThreshold;
+    private final long idleTimeoutMillis;
+
+    private final CopyOnWriteArrayList<SocketClient.SocketRpcChannel> connections = new CopyOnWriteArrayList<SocketClient.SocketRpcChannel>();
+    private final AtomicInteger connecting = new AtomicInteger();
+    /**
+     * true while check for idle connections is scheduled on timer
+     */
+    private final AtomicBoolean shrinkScheduled = new AtomicBoolean();
+
+    public PooledRpcChannel(SocketClient client, SocketAddress sa, int minSize, int maxSize,
+                            int growThreshold, long idleTimeoutMillis) {
+        this.client = client;
+        this.sa = sa;
+        this.minSize = Math.max(minSize, 1);
+        this.maxSize = Math.max(maxSize, this.minSize);
+        this.growThreshold = growThreshold;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        for (int i = 0; i < this.minSize; i++) {
+            connections.add(client.openConnection(sa));
+        }
+    }
+
+    public int getSize() {
+        return connections.size();
+    }
+
+    public int getPendingCount() {
+        int sum = 0;
+        for (SocketClient.SocketRpcChannel connection : connections) {
+            sum += Math.max(connection.getPendingCount(), 0);
+        }
+        return sum;
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                           Message responsePrototype, RpcCallback<Message> done) {
+        while (true) {
+            SocketClient.SocketRpcChannel connection = select();
+            if (connection.tryReserve()) {
+                connection.send(method, controller, request, responsePrototype, done);
+                return;
+            }
+        }
+    }
+
+    private SocketClient.SocketRpcChannel select() {
+        SocketClient.SocketRpcChannel best = null;
+        SocketClient.SocketRpcChannel reconnecting = null;
+        for (SocketClient.SocketRpcChannel connection : connections) {
+            if (!connection.isOpen()) {
+                if (connection.isConnecting()) {
+                    reconnecting = connection;
+                } else if (connections.remove(connection)) {
+                    connection.close();
+                }
+                continue;
+            }
+            int pending = connection.getPendingCount();
+            if (pending >= 0 && (best == null || pending < best.getPendingCount())) {
+                best = connection;
+            }
+        }
+
+        if (best == null) {
+            //nothing open, call waits in queue of connection that is (re)connecting
+            if (reconnecting != null) {
+                return reconnecting;
+            }
+            SocketClient.SocketRpcChannel connection = client.openConnection(sa);
+            connections.add(connection);
+            return connection;
+        }
+
+        if (best.getPendingCount() >= growThreshold) {
+            grow();
+        }
+        return best;
+    }
+
+    private void grow() {
+        if (connections.size() + connecting.incrementAndGet() > maxSize) {
+            connecting.decrementAndGet();
+            return;
+        }
+        final SocketClient.SocketRpcChannel connection = client.newConnection(sa);
+        connection.start().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    connections.add(connection);
+                    client.getLogger().debug("connection pool to " + sa + " grown to " + connections.size());
+                    scheduleShrink();
+                } else {
+                    connection.close();
+                }
+                connecting.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * schedules check for idle connections four times per idle timeout, until pool is back to minimal size
+     */
+    private void scheduleShrink() {
+        if (!shrinkScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        client.getTimer().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                shrinkScheduled.set(false);
+                shrink();
+                if (connections.size() > minSize) {
+                    scheduleShrink();
+                }
+            }
+        }, Math.max(idleTimeoutMillis / 4, 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * closes one connection idle longer than idle timeout
+     */
+    private void shrink() {
+        if (connections.size() <= minSize) {
+            return;
+        }
+        long idleSince = System.currentTimeMillis() - idleTimeoutMillis;
+        for (SocketClient.SocketRpcChannel connection : connections) {
+            if (connection.getLastUsed() < idleSince && connection.retireIfIdle()) {
+                connections.remove(connection);
+                connection.close();
+                client.getLogger().debug("connection pool to " + sa + " shrunk to " + connections.size());
+                return;
+            }
+        }
+    }
+}
@@ -2,25 +2,38 @@ package my.adam.smo.client;
 
 import com.google.protobuf.*;
 import my.adam.smo.RPCommunication;
-import my.adam.smo.common.InjectLogger;
+import my.adam.smo.common.*;
+import my.adam.smo.compression.Compression;
+import my.adam.smo.compression.FrameCodec;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
-import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
-import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
-import org.jboss.netty.handler.codec.protobuf.ProtobufEncoder;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.logging.InternalLogLevel;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StopWatch;
 
 import javax.inject.Inject;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The MIT License
@@ -49,15 +62,53 @@ import java.util.concurrent.Executors;
 @Component
 public class SocketClient extends Client {
     private static final int MAX_FRAME_BYTES_LENGTH = Integer.MAX_VALUE;
+    /**
+     * ids of calls start at 1, so id 0 is used by request for method table, which also negotiates compression
+     */
+    private static final long METHOD_TABLE_REQUEST_ID = 0;
+    public static final String IN_FLIGHT_POLICY_BLOCK = "block";
+    public static final String IN_FLIGHT_POLICY_REJECT = "reject";
+    public static final String IN_FLIGHT_POLICY_QUEUE = "queue";
 
     @InjectLogger
     private Logger logger;
 
+    @Value("${connection_pool_min_size:1}")
+    private int connectionPoolMinSize;
+    @Value("${connection_pool_max_size:1}")
+    private int connectionPoolMaxSize;
+    @Value("${connection_pool_grow_threshold:64}")
+    private int connectionPoolGrowThreshold;
+    @Value("${connection_pool_idle_timeout:60}")
+    private int connectionPoolIdleTimeout;
+
+    @Value("${client_max_in_flight:0}")
+    private int maxInFlight;
+    @Value("${client_in_flight_policy:queue}")
+    private String inFlightPolicy;
+    @Value("${client_in_flight_queue_size:1024}")
+    private int inFlightQueueSize;
+
+    @Value("${method_ids_enabled:false}")
+    private boolean methodIdsEnabled;
+
+    @Value("${call_batching_enabled:false}")
+    private boolean callBatchingEnabled;
+    @Value("${call_batching_window_micros:100}")
+    private long callBatchingWindowMicros;
+    @Value("${call_batching_max_calls:64}")
+    private int callBatchingMaxCalls;
+
+    private final ConcurrentHashMap<SocketAddress, PooledRpcChannel> pools = new ConcurrentHashMap<SocketAddress, PooledRpcChannel>();
+    /**
+     * connections that are not closed, they are closed on disconnect so they do not try to reconnect
+     */
+    private final Set<SocketRpcChannel> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<SocketRpcChannel, Boolean>());
+
     @Inject
     public SocketClient(@Value("${client_worker_threads:10}") int workerThreads) {
-        bootstrap.setFactory(new NioClientSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool(), workerThreads));
+        this.workerCount = workerThreads;
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
@@ -71,36 +122,79 @@ public class SocketClient extends Client {
                     p.addLast("logger", new LoggingHandler(InternalLogLevel.DEBUG));
                 }
 
-                p.addLast("frameEncoder", new LengthFieldPrepender(4));//DownstreamHandler
-                p.addLast("protobufEncoder", new ProtobufEncoder());//DownstreamHandler
+                ChannelHandler writeBatcher = newWriteBatchingHandler();
+                if (writeBatcher != null) {
+                    p.addLast("writeBatcher", writeBatcher);
+                }
+
+                final Compression compression = getCompression();
+                p.addLast("frameEncoder", new EnvelopeEncoder(bufferPool, compression));//DownstreamHandler
 
-                p.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES_LENGTH, 0, 4, 0, 4));//UpstreamHandler
-                p.addLast("protobufDecoder", new ProtobufDecoder(RPCommunication.Response.getDefaultInstance()));//UpstreamHandler
+                p.addLast("frameDecoder", newFrameDecoder(MAX_FRAME_BYTES_LENGTH));//UpstreamHandler
+                p.addLast("envelopeDecoder", new EnvelopeDecoder(bufferPool, RPCommunication.Response.getDefaultInstance(),
+                        RPCommunication.Response.RESPONSE_FIELD_NUMBER, compression));//UpstreamHandler
                 p.addLast("handler", new SimpleChannelUpstreamHandler() {
                     @Override
                     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
                         StopWatch stopWatch = new StopWatch("messageReceived");
                         stopWatch.start();
 
-                        RPCommunication.Response response = (RPCommunication.Response) e.getMessage();
+                        InboundEnvelope envelope = (InboundEnvelope) e.getMessage();
+                        RPCommunication.Response response = (RPCommunication.Response) envelope.getHeader();
                         logger.trace("received response:" + response);
 
-                        //encryption
-                        if (enableAsymmetricEncryption) {
-                            response = getAsymDecryptedResponse(response);
-                            logger.trace("asymmetric encryption enabled, encrypted request: " + response.toString());
+                        SocketRpcChannel connection = (SocketRpcChannel) e.getChannel().getAttachment();
+                        if (response.hasBatch()) {
+                            //responses to batched calls, batch response has no request id of its own
+                            envelope.release();
+                            for (RPCommunication.Response batched : response.getBatch().getResponseList()) {
+                                byte[] payload = batched.getResponse().toByteArray();
+                                InboundEnvelope batchedEnvelope = new InboundEnvelope(
+                                        batched.toBuilder().clearResponse().build(),
+                                        bufferPool, ChannelBuffers.EMPTY_BUFFER, payload, 0, payload.length);
+                                if (connection != null) {
+                                    connection.received(batchedEnvelope);
+                                }
+                            }
+                            return;
                         }
-
-                        if (enableSymmetricEncryption) {
-                            response = getDecryptedResponse(response);
-                            logger.trace("symmetric encryption enabled, encrypted request: " + response.toString());
+                        if (response.getRequestId() == METHOD_TABLE_REQUEST_ID) {
+                            RPCommunication.MethodTable table = (RPCommunication.MethodTable) envelope
+                                    .parsePayload(RPCommunication.MethodTable.getDefaultInstance());
+                            envelope.release();
+                            if (response.hasCompression() && compression != null) {
+                                FrameCodec codec = compression.get(response.getCompression());
+                                ((EnvelopeEncoder) ctx.getPipeline().get("frameEncoder")).setCodec(codec);
+                                logger.debug("compressing frames with " + codec);
+                            }
+                            if (connection != null && methodIdsEnabled) {
+                                connection.setMethodTable(table);
+                            }
+                            return;
                         }
-
-                        Message msg = descriptorProtoMap.remove(response.getRequestId());
-                        Message m = msg
-                                .getParserForType()
-                                .parseFrom(response.getResponse());
-                        callbackMap.remove(response.getRequestId()).run(m);
+                        if (response.hasStreamCredit()) {
+                            envelope.release();
+                            PendingCall call = connection == null ? null : connection.calls.get(response.getRequestId());
+                            if (call != null && call.upload != null) {
+                                call.upload.grant(response.getStreamCredit());
+                            }
+                            return;
+                        }
+                        if (response.getStreamMessage()) {
+                            PendingCall call = connection == null ? null : connection.calls.get(response.getRequestId());
+                            if (call == null || call.isFinished()) {
+                                logger.debug("message of stream " + response.getRequestId() + " came after call finished");
+                                envelope.release();
+                                return;
+                            }
+                            connection.streamMessage(call, parseResponse(envelope, response, call.responsePrototype));
+                            return;
+                        }
+                        if (connection == null) {
+                            envelope.release();
+                            return;
+                        }
+                        connection.received(envelope);
 
                         super.messageReceived(ctx, e);
                         stopWatch.stop();
@@ -121,65 +215,899 @@ public class SocketClient extends Client {
         });
     }
 
+    /**
+     * parses payload of response and releases envelope
+     */
+    private Message parseResponse(InboundEnvelope envelope, RPCommunication.Response response, Message prototype)
+            throws IOException {
+        try {
+            if (!isEncryptionEnabled()) {
+                return envelope.parsePayload(prototype);
+            }
+            response = response.toBuilder().setResponse(envelope.getPayload()).build();
+
+            //encryption
+            if (enableAsymmetricEncryption) {
+                response = getAsymDecryptedResponse(response);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("asymmetric encryption enabled, encrypted request: " + response.toString());
+                }
+            }
+
+            if (enableSymmetricEncryption) {
+                response = getDecryptedResponse(response);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("symmetric encryption enabled, encrypted request: " + response.toString());
+                }
+            }
+
+            return prototype
+                    .getParserForType()
+                    .parseFrom(response.getResponse());
+        } finally {
+            envelope.release();
+        }
+    }
+
     @Override
     public RpcChannel connect(final InetSocketAddress sa) {
-        RpcChannel rpcChannel = new RpcChannel() {
-            private Channel c = bootstrap.connect(sa).awaitUninterruptibly().getChannel();
+        return connect((SocketAddress) sa);
+    }
 
-            @Override
-            public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request, Message responsePrototype, RpcCallback<Message> done) {
-                StopWatch stopWatch = new StopWatch("callMethod");
-                stopWatch.start();
+    /**
+     * @param sa address of server, {@link org.jboss.netty.channel.local.LocalAddress} connects to server
+     *           started in the same jvm
+     */
+    @Override
+    public RpcChannel connect(SocketAddress sa) {
+        if (connectionPoolMaxSize > 1) {
+            PooledRpcChannel pool = pools.get(sa);
+            if (pool == null) {
+                PooledRpcChannel newPool = new PooledRpcChannel(this, sa, connectionPoolMinSize, connectionPoolMaxSize,
+                        connectionPoolGrowThreshold, connectionPoolIdleTimeout * 1000L);
+                pool = pools.putIfAbsent(sa, newPool);
+                if (pool == null) {
+                    pool = newPool;
+                }
+            }
+            logger.trace("connected to address: " + sa.toString() + " with connection pool");
+            return pool;
+        }
+
+        RpcChannel rpcChannel = openConnection(sa);
+        logger.trace("connecting to address: " + sa.toString());
+        return rpcChannel;
+    }
+
+    /**
+     * creates connection and starts connecting in background, calls made before it is connected are queued
+     */
+    SocketRpcChannel openConnection(SocketAddress sa) {
+        SocketRpcChannel connection = newConnection(sa);
+        connection.start();
+        return connection;
+    }
+
+    SocketRpcChannel newConnection(SocketAddress sa) {
+        SocketRpcChannel connection = new SocketRpcChannel(sa);
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * closes every connection, calls waiting for response fail and lost connections are not reconnected
+     */
+    @Override
+    public void disconnect() {
+        pools.clear();
+        for (SocketRpcChannel connection : connections) {
+            connection.close();
+        }
+        super.disconnect();
+    }
+
+    @Override
+    protected ChannelFuture connectChannel(SocketAddress sa) {
+        bootstrap.setOption("bufferFactory", bufferPool);
+        bootstrap.setOption("tcpNoDelay", tcpNoDelay);
+        bootstrap.setOption("writeBufferHighWaterMark", writeBufferHighWaterMark);
+        bootstrap.setOption("writeBufferLowWaterMark", writeBufferLowWaterMark);
+        return super.connectChannel(sa);
+    }
+
+    /**
+     * rpc channel over single connection, counts calls that are waiting for response.
+     * Connection is (re)established in background, when it is lost and reconnect is enabled next attempt
+     * is scheduled with exponential backoff, calls made meanwhile wait in bounded queue
+     * or fail immediately when queue is full or reconnect is disabled, caller thread never waits for connection.
+     * <p/>
+     * When number of calls in flight is limited, call over limit waits for free slot in bounded queue,
+     * fails immediately or blocks caller depending on policy. Calls in flight fail when connection is lost.
+     * <p/>
+     * Call with timeout fails when it is not answered in time wherever it waits, every call finishes exactly once
+     * (answered, failed or timed out) and whoever finishes it removes it from table and queues.
+     * <p/>
+     * Right after connecting method table of server is requested, once it arrives calls carry only id of method
+     * instead of service and method name.
+     * <p/>
+     * Streaming call stays in table until its last response, every message of its stream is passed
+     * to stream callback of its controller and consumed messages are granted back to server in batches.
+     * Call with {@link StreamWriter} as controller writes messages of its stream under its request id
+     * as server grants them.
+     * <p/>
+     * With call batching ordinary calls made within batching window are sent together in one batch request.
+     */
+    class SocketRpcChannel implements RpcChannel {
+        private final SocketAddress sa;
+        private volatile Channel c;
+        /**
+         * -1 means that connection was retired and can not be used for new calls
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private final ArrayDeque<PendingCall> queue = new ArrayDeque<PendingCall>();
+        private boolean connecting;
+        private int attempt;
+        private volatile boolean closed;
+        private StreamKey streamKey;
+
+        /**
+         * null when calls in flight are not limited
+         */
+        private final Semaphore inFlightPermits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        private final ArrayDeque<PendingCall> waiting = new ArrayDeque<PendingCall>();
+        /**
+         * calls written to connection, keyed by request id of this connection
+         */
+        private final PendingCallTable<PendingCall> calls = new PendingCallTable<PendingCall>();
+        /**
+         * calls waiting for batch to be sent and their requests, guarded by batchCalls
+         */
+        private final List<PendingCall> batchCalls = new ArrayList<PendingCall>();
+        private final List<RPCommunication.Request> batchRequests = new ArrayList<RPCommunication.Request>();
+        /**
+         * connection that calls of batch were registered for, guarded by batchCalls
+         */
+        private Channel batchChannel;
+        /**
+         * ids of methods by full method name, null until server sends method table
+         */
+        private volatile Map<String, Integer> methodIds;
+
+        SocketRpcChannel(SocketAddress sa) {
+            this.sa = sa;
+        }
+
+        public int getPendingCount() {
+            return pending.get();
+        }
+
+        public long getLastUsed() {
+            return lastUsed;
+        }
+
+        public boolean isOpen() {
+            Channel channel = c;
+            return channel != null && channel.isOpen();
+        }
+
+        /**
+         * @return true if connection attempt is in progress or scheduled
+         */
+        public synchronized boolean isConnecting() {
+            return connecting;
+        }
+
+        /**
+         * @return false if connection was retired
+         */
+        public boolean tryReserve() {
+            while (true) {
+                int current = pending.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (pending.compareAndSet(current, current + 1)) {
+                    lastUsed = System.currentTimeMillis();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if there were no pending calls and connection is retired
+         */
+        public boolean retireIfIdle() {
+            return pending.compareAndSet(0, -1);
+        }
+
+        /**
+         * @return future of first connection attempt
+         */
+        public ChannelFuture start() {
+            synchronized (this) {
+                connecting = true;
+            }
+            return connectAttempt();
+        }
+
+        public void close() {
+            connections.remove(this);
+            List<PendingCall> failed;
+            synchronized (this) {
+                closed = true;
+                connecting = false;
+                failed = new ArrayList<PendingCall>(queue);
+                queue.clear();
+                failed.addAll(waiting);
+                waiting.clear();
+            }
+            if (c != null) {
+                c.close();
+            }
+            failAll(failed, "connection to " + sa + " closed");
+        }
+
+        private ChannelFuture connectAttempt() {
+            ChannelFuture future = connectChannel(sa);
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        connected(future.getChannel());
+                    } else {
+                        connectFailed(future.getCause());
+                    }
+                }
+            });
+            return future;
+        }
+
+        private void connected(Channel channel) {
+            List<PendingCall> queued;
+            synchronized (this) {
+                if (closed) {
+                    channel.close();
+                    return;
+                }
+                c = channel;
+                channel.setAttachment(this);
+                methodIds = null;
+                connecting = false;
+                attempt = 0;
+                queued = new ArrayList<PendingCall>(queue);
+                queue.clear();
+            }
+            logger.debug("connected to " + sa);
+            channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    disconnected();
+                }
+            });
+            Compression compression = getCompression();
+            if (methodIdsEnabled || compression != null) {
+                RPCommunication.Request.Builder handshake = RPCommunication.Request.newBuilder()
+                        .setRequestId(METHOD_TABLE_REQUEST_ID)
+                        .setDescribeMethods(true);
+                if (compression != null) {
+                    handshake.addAllCompression(compression.getNames());
+                }
+                channel.write(handshake.build());
+            }
+            for (PendingCall call : queued) {
+                write(call);
+            }
+        }
+
+        void setMethodTable(RPCommunication.MethodTable table) {
+            Map<String, Integer> ids = new HashMap<String, Integer>();
+            for (int i = 0; i < table.getMethodCount(); i++) {
+                ids.put(table.getMethod(i), i);
+            }
+            methodIds = ids;
+            logger.debug("got " + ids.size() + " method ids from " + sa);
+        }
+
+        private void connectFailed(Throwable cause) {
+            logger.debug("connecting to " + sa + " failed: " + cause);
+            if (reconnect) {
+                scheduleReconnect();
+                return;
+            }
+            List<PendingCall> failed;
+            synchronized (this) {
+                connecting = false;
+                failed = new ArrayList<PendingCall>(queue);
+                queue.clear();
+            }
+            failAll(failed, "could not connect to " + sa);
+        }
+
+        private void disconnected() {
+            logger.debug("channel closed " + sa);
+            for (PendingCall call : calls.removeAll()) {
+                fail(call, "connection to " + sa + " lost, call of " + call.method.getFullName() + " failed");
+            }
+            if (reconnect && !closed) {
+                scheduleReconnect();
+            }
+        }
 
-                long id = seqNum.addAndGet(1);
-
-                logger.trace("calling method: " + method.getFullName());
-
-                //infinit reconnection loop
-                while (reconnect && !c.isOpen()) {
-                    logger.debug("channel closed " + sa);
-                    logger.debug("trying to reconnect");
-                    c.disconnect().awaitUninterruptibly();
-                    c.unbind().awaitUninterruptibly();
-                    c = bootstrap.connect(sa).awaitUninterruptibly().getChannel();
-                    try {
-                        Thread.sleep(reconnect_delay * 1000);
-                    } catch (InterruptedException e) {
-                        logger.error("error while sleeping", e);
+        private void scheduleReconnect() {
+            long delay;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                connecting = true;
+                delay = getReconnectDelayMillis(attempt++);
+            }
+            logger.debug("trying to reconnect to " + sa + " in " + delay + " ms");
+            getTimer().newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    if (!closed) {
+                        connectAttempt();
                     }
                 }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
 
-                RPCommunication.Request protoRequest = RPCommunication.Request.newBuilder().setServiceName(method.getService().getFullName())
-                        .setMethodName(method.getName())
-                        .setMethodArgument(request.toByteString())
-                        .setRequestId(id)
+        @Override
+        public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request, Message responsePrototype, RpcCallback<Message> done) {
+            pending.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+            send(method, controller, request, responsePrototype, done);
+        }
+
+        /**
+         * sends request reserved by {@link #tryReserve()}
+         */
+        public void send(Descriptors.MethodDescriptor method, RpcController controller, Message request, Message responsePrototype, RpcCallback<Message> done) {
+            final PendingCall call = new PendingCall(method, controller, request, responsePrototype, done, streamWindow);
+            final long timeoutMillis = getCallTimeoutMillis(method, controller);
+            if (timeoutMillis > 0) {
+                call.timeout = getTimer().newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        expire(call, timeoutMillis);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            if (inFlightPermits == null || acquire(call)) {
+                dispatch(call);
+            }
+        }
+
+        private void expire(PendingCall call, long timeoutMillis) {
+            if (!call.finish()) {
+                return;
+            }
+            synchronized (this) {
+                queue.remove(call);
+                waiting.remove(call);
+            }
+            if (call.id != 0) {
+                calls.remove(call.id);
+            }
+            finished(call);
+            failCall(call.controller, call.done, "call of " + call.method.getFullName() + " to " + sa
+                    + " timed out after " + timeoutMillis + " ms");
+        }
+
+        /**
+         * takes slot for call, call that does not get it is queued or failed
+         *
+         * @return true if call can be sent now
+         */
+        private boolean acquire(PendingCall call) {
+            if (inFlightPermits.tryAcquire()) {
+                return takePermit(call);
+            }
+
+            if (IN_FLIGHT_POLICY_REJECT.equals(inFlightPolicy)) {
+                fail(call, "too many calls in flight to " + sa + ", call of " + call.method.getFullName() + " rejected");
+                return false;
+            }
+
+            if (IN_FLIGHT_POLICY_BLOCK.equals(inFlightPolicy)) {
+                try {
+                    if (inFlightPermits.tryAcquire(blocking_method_call_timeout, TimeUnit.SECONDS)) {
+                        return takePermit(call);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                fail(call, "timed out waiting for free slot to " + sa + ", call of " + call.method.getFullName() + " failed");
+                return false;
+            }
+
+            boolean queued = false;
+            synchronized (this) {
+                if (!closed && waiting.size() < inFlightQueueSize) {
+                    waiting.add(call);
+                    queued = true;
+                }
+            }
+            if (!queued) {
+                fail(call, "too many calls waiting for " + sa + ", call of " + call.method.getFullName() + " rejected");
+                return false;
+            }
+            //slot could be freed before call was queued
+            drainWaiting();
+            return false;
+        }
+
+        private void drainWaiting() {
+            while (true) {
+                PendingCall call;
+                synchronized (this) {
+                    if (waiting.isEmpty() || !inFlightPermits.tryAcquire()) {
+                        return;
+                    }
+                    call = waiting.poll();
+                }
+                if (takePermit(call)) {
+                    dispatch(call);
+                }
+            }
+        }
+
+        /**
+         * gives acquired slot to call, slot is released right away when call already timed out
+         *
+         * @return true if call can be sent
+         */
+        private boolean takePermit(PendingCall call) {
+            call.permit.set(true);
+            if (call.isFinished()) {
+                releasePermit(call);
+                return false;
+            }
+            return true;
+        }
+
+        private void releasePermit(PendingCall call) {
+            if (call.permit.compareAndSet(true, false)) {
+                inFlightPermits.release();
+                drainWaiting();
+            }
+        }
+
+        private void dispatch(PendingCall call) {
+            if (call.isFinished()) {
+                return;
+            }
+            boolean open;
+            //checked under the same lock connected() takes queue with, call queued after that would never be sent
+            synchronized (this) {
+                open = isOpen();
+                if (!open && !closed && (connecting || reconnect) && queue.size() < reconnectQueueSize) {
+                    queue.add(call);
+                    return;
+                }
+            }
+            if (open) {
+                write(call);
+                return;
+            }
+            fail(call, "not connected to " + sa + ", call of " + call.method.getFullName() + " rejected");
+        }
+
+        private void write(final PendingCall call) {
+            StopWatch stopWatch = new StopWatch("callMethod");
+            stopWatch.start();
+
+            final long id = calls.add(call);
+            call.id = id;
+            if (call.isFinished()) {
+                //timed out while it was being written
+                calls.remove(id);
+                return;
+            }
+
+            logger.trace("calling method: " + call.method.getFullName());
+
+            RPCommunication.Request.Builder requestBuilder = RPCommunication.Request.newBuilder().setRequestId(id);
+            Map<String, Integer> ids = methodIds;
+            Integer methodId = ids == null ? null : ids.get(call.method.getFullName());
+            if (methodId != null) {
+                requestBuilder.setMethodId(methodId);
+            } else {
+                requestBuilder.setServiceName(call.method.getService().getFullName())
+                        .setMethodName(call.method.getName());
+            }
+            if (call.controller instanceof ReferoRpcController
+                    && ((ReferoRpcController) call.controller).getPriority() != 0) {
+                requestBuilder.setPriority(((ReferoRpcController) call.controller).getPriority());
+            }
+            if (call.stream != null) {
+                requestBuilder.setStreamWindow(call.streamWindow);
+            }
+            if (call.upload != null) {
+                requestBuilder.setClientStream(true);
+            }
+            RPCommunication.Request protoRequest = requestBuilder.build();
+
+            logger.trace("request built: " + call.request.toString());
+
+            Object outbound = encodeRequest(protoRequest, call.request);
+            if (callBatchingEnabled && call.stream == null && call.upload == null) {
+                batch(call, outbound instanceof RPCommunication.Request ? (RPCommunication.Request) outbound
+                        : protoRequest.toBuilder().setMethodArgument(call.request.toByteString()).build(), c);
+                cancelOnRequest(call);
+                stopWatch.stop();
+                logger.trace(stopWatch.shortSummary());
+                return;
+            }
+
+            Channel channel = c;
+            channel.write(outbound).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess() && calls.remove(id) != null) {
+                        fail(call, "sending call of " + call.method.getFullName() + " failed: " + future.getCause());
+                    }
+                }
+            });
+            logger.trace("request sent: " + protoRequest.toString());
+            if (call.stream != null) {
+                call.stream.setStreamCreditSink(new RpcCallback<Integer>() {
+                    @Override
+                    public void run(Integer count) {
+                        grant(call, count);
+                    }
+                });
+            }
+            if (call.upload != null) {
+                call.upload.bind(new RpcCallback<Message>() {
+                    @Override
+                    public void run(Message message) {
+                        writeStreamMessage(call, message);
+                    }
+                });
+            }
+            cancelOnRequest(call);
+
+            stopWatch.stop();
+            logger.trace(stopWatch.shortSummary());
+        }
+
+        /**
+         * cancels call when its controller is canceled, server ignores cancel of ordinary call,
+         * but client stops waiting for its response
+         */
+        private void cancelOnRequest(final PendingCall call) {
+            if (call.controller instanceof ReferoRpcController) {
+                ((ReferoRpcController) call.controller).notifyOnCancel(new RpcCallback<Object>() {
+                    @Override
+                    public void run(Object parameter) {
+                        cancel(call);
+                    }
+                });
+            }
+        }
+
+        /**
+         * adds call to batch that is sent when window passes or batch is full
+         */
+        private void batch(PendingCall call, RPCommunication.Request request, Channel channel) {
+            boolean first;
+            boolean full;
+            List<PendingCall> stale = null;
+            synchronized (batchCalls) {
+                if (!batchCalls.isEmpty() && batchChannel != channel) {
+                    stale = new ArrayList<PendingCall>(batchCalls);
+                    batchCalls.clear();
+                    batchRequests.clear();
+                }
+                first = batchCalls.isEmpty();
+                if (first) {
+                    batchChannel = channel;
+                }
+                batchCalls.add(call);
+                batchRequests.add(request);
+                full = batchCalls.size() >= callBatchingMaxCalls;
+            }
+            if (stale != null) {
+                failReplaced(stale);
+            }
+            if (full) {
+                flushBatch();
+            } else if (first) {
+                getWriteBatchingScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushBatch();
+                    }
+                }, callBatchingWindowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        /**
+         * sends calls collected in batch, single call is sent in its own frame
+         */
+        private void flushBatch() {
+            final List<PendingCall> batched;
+            Object outbound;
+            Channel channel;
+            synchronized (batchCalls) {
+                if (batchCalls.isEmpty()) {
+                    return;
+                }
+                channel = batchChannel;
+                batchChannel = null;
+                batched = new ArrayList<PendingCall>(batchCalls);
+                outbound = batchCalls.size() == 1 ? batchRequests.get(0) : RPCommunication.Request.newBuilder()
+                        .setBatch(RPCommunication.BatchRequest.newBuilder().addAllRequest(batchRequests))
                         .build();
+                batchCalls.clear();
+                batchRequests.clear();
+            }
+            if (channel == null || channel != c) {
+                //connection was replaced, its calls must not be replayed on the new one
+                failReplaced(batched);
+                return;
+            }
+            channel.write(outbound).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        return;
+                    }
+                    for (PendingCall call : batched) {
+                        if (calls.remove(call.id) != null) {
+                            fail(call, "sending call of " + call.method.getFullName() + " failed: " + future.getCause());
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * fails batched calls of connection that was lost before batch was sent, request ids are never reused,
+         * so removing them can not remove call of the new connection
+         */
+        private void failReplaced(List<PendingCall> batched) {
+            for (PendingCall call : batched) {
+                calls.remove(call.id);
+                fail(call, "connection to " + sa + " lost before call of " + call.method.getFullName() + " was sent");
+            }
+        }
 
-                logger.trace("request built: " + request.toString());
+        /**
+         * @return request with payload, encrypted when encryption is enabled
+         */
+        private Object encodeRequest(RPCommunication.Request protoRequest, Message payload) {
+            return encodeRequest(protoRequest, payload, null);
+        }
 
-                if (enableSymmetricEncryption) {
-                    protoRequest = getEncryptedRequest(protoRequest);
+        /**
+         * @param key key of asymmetric encryption shared by messages of stream, null for key of request's own
+         */
+        private Object encodeRequest(RPCommunication.Request protoRequest, Message payload, StreamKey key) {
+            if (!isEncryptionEnabled()) {
+                return new OutboundEnvelope(protoRequest, RPCommunication.Request.METHODARGUMENT_FIELD_NUMBER, payload);
+            }
+            protoRequest = protoRequest.toBuilder().setMethodArgument(payload.toByteString()).build();
+
+            if (enableSymmetricEncryption) {
+                protoRequest = getEncryptedRequest(protoRequest);
+                if (logger.isTraceEnabled()) {
                     logger.trace("symmetric encryption enabled, encrypted request: " + protoRequest.toString());
                 }
+            }
 
-                if (enableAsymmetricEncryption) {
-                    protoRequest = getAsymEncryptedRequest(protoRequest);
+            if (enableAsymmetricEncryption) {
+                protoRequest = key == null
+                        ? getAsymEncryptedRequest(protoRequest) : getAsymEncryptedRequest(protoRequest, key);
+                if (logger.isTraceEnabled()) {
                     logger.trace("asymmetric encryption enabled, encrypted request: " + protoRequest.toString());
                 }
+            }
+            return protoRequest;
+        }
 
+        /**
+         * @return key shared by messages of streams of this connection, null without asymmetric encryption
+         */
+        private synchronized StreamKey getStreamKey() {
+            if (streamKey == null && enableAsymmetricEncryption) {
+                streamKey = newStreamKey();
+            }
+            return streamKey;
+        }
 
-                callbackMap.put(id, done);
-                descriptorProtoMap.put(id, responsePrototype);
+        /**
+         * writes next message of client stream, null ends the stream
+         */
+        private void writeStreamMessage(PendingCall call, Message message) {
+            Channel channel = c;
+            if (channel == null || call.isFinished()) {
+                return;
+            }
+            RPCommunication.Request.Builder header = RPCommunication.Request.newBuilder().setRequestId(call.id);
+            if (message == null) {
+                channel.write(header.setEndOfStream(true).build());
+            } else {
+                channel.write(encodeRequest(header.setStreamMessage(true).build(), message, getStreamKey()));
+            }
+        }
 
-                c.write(protoRequest);
-                logger.trace("request sent: " + protoRequest.toString());
+        /**
+         * passes message of stream to stream callback, on I/O thread so messages are never reordered
+         */
+        void streamMessage(PendingCall call, Message message) {
+            call.stream.getStreamCallback().run(message);
+            if (!call.stream.isManualStreamCredit()) {
+                grant(call, 1);
+            }
+        }
 
-                stopWatch.stop();
-                logger.trace(stopWatch.shortSummary());
+        /**
+         * grants server messages consumed from stream, credit is sent when half of window was consumed
+         */
+        private void grant(PendingCall call, int count) {
+            int credit;
+            synchronized (call) {
+                call.consumed += count;
+                if (call.consumed < Math.max(call.streamWindow / 2, 1)) {
+                    return;
+                }
+                credit = call.consumed;
+                call.consumed = 0;
             }
-        };
-        logger.trace("connected to address: " + sa.toString());
-        return rpcChannel;
+            Channel channel = c;
+            if (channel != null && !call.isFinished()) {
+                channel.write(RPCommunication.Request.newBuilder()
+                        .setRequestId(call.id)
+                        .setStreamCredit(credit)
+                        .build());
+            }
+        }
+
+        /**
+         * fails streaming call canceled by caller and tells server to stop sending its messages
+         */
+        private void cancel(PendingCall call) {
+            if (!call.finish()) {
+                return;
+            }
+            calls.remove(call.id);
+            Channel channel = c;
+            if (channel != null) {
+                channel.write(RPCommunication.Request.newBuilder()
+                        .setRequestId(call.id)
+                        .setCancel(true)
+                        .build());
+            }
+            finished(call);
+            failCall(call.controller, call.done, "call of " + call.method.getFullName() + " canceled");
+        }
+
+        /**
+         * finishes call answered by response in envelope, envelope is released
+         */
+        void received(InboundEnvelope envelope) throws IOException {
+            RPCommunication.Response response = (RPCommunication.Response) envelope.getHeader();
+            PendingCall call = calls.remove(response.getRequestId());
+            if (call == null) {
+                logger.debug("response to call " + response.getRequestId() + " came after it timed out");
+                envelope.release();
+                return;
+            }
+            if (response.hasException()) {
+                envelope.release();
+                fail(call, response.getException());
+                return;
+            }
+            answered(call, parseResponse(envelope, response, call.responsePrototype));
+        }
+
+        /**
+         * finishes call with response, callback is run by {@link #runCallback}
+         */
+        void answered(PendingCall call, Message response) {
+            if (call.finish()) {
+                finished(call);
+                runCallback(call.done, response);
+            }
+        }
+
+        private void fail(PendingCall call, String reason) {
+            if (call.finish()) {
+                finished(call);
+                failCall(call.controller, call.done, reason);
+            }
+        }
+
+        /**
+         * releases what is held by call finished by caller
+         */
+        private void finished(PendingCall call) {
+            if (call.upload != null) {
+                call.upload.finished();
+            }
+            pending.decrementAndGet();
+            if (inFlightPermits != null) {
+                releasePermit(call);
+            }
+        }
+
+        private void failAll(List<PendingCall> calls, String reason) {
+            for (PendingCall call : calls) {
+                fail(call, reason);
+            }
+        }
+    }
+
+    private static class PendingCall {
+        private final Descriptors.MethodDescriptor method;
+        private final RpcController controller;
+        private final Message request;
+        private final Message responsePrototype;
+        private final RpcCallback<Message> done;
+        /**
+         * controller of streaming call, null for ordinary call
+         */
+        private final ReferoRpcController stream;
+        private final int streamWindow;
+        /**
+         * controller of call that streams its request, null for ordinary call
+         */
+        private final StreamWriter<?> upload;
+        /**
+         * messages of stream consumed since credit was last sent
+         */
+        private int consumed;
+        /**
+         * true while call holds slot of limited number of calls in flight
+         */
+        private final AtomicBoolean permit = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile Timeout timeout;
+        /**
+         * id of request, 0 until it is written
+         */
+        private volatile long id;
+
+        PendingCall(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                    Message responsePrototype, RpcCallback<Message> done, int defaultStreamWindow) {
+            this.method = method;
+            this.controller = controller;
+            this.request = request;
+            this.responsePrototype = responsePrototype;
+            this.done = done;
+            if (controller instanceof ReferoRpcController
+                    && ((ReferoRpcController) controller).getStreamCallback() != null) {
+                stream = (ReferoRpcController) controller;
+                streamWindow = stream.getStreamWindow() > 0 ? stream.getStreamWindow() : defaultStreamWindow;
+            } else {
+                stream = null;
+                streamWindow = 0;
+            }
+            upload = controller instanceof StreamWriter ? (StreamWriter<?>) controller : null;
+        }
+
+        /**
+         * @return true if call was finished by caller and not before
+         */
+        boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            return true;
+        }
+
+        boolean isFinished() {
+            return finished.get();
+        }
     }
 
     @Override
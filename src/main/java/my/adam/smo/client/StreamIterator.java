@@ -0,0 +1,128 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import my.adam.smo.common.ReferoRpcController;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * consumes stream of streaming call as iterator, server is granted next message only when caller takes one,
+ * so at most window messages wait in memory:
+ * <pre>
+ * StreamIterator&lt;Result&gt; results = new StreamIterator&lt;Result&gt;(16);
+ * stub.export(results.getController(), request, results);
+ * while (results.hasNext()) {
+ *     Result result = results.next();
+ * }
+ * </pre>
+ * {@link #hasNext()} blocks until next message or end of call, it must not be called on I/O thread.
+ * When call fails iteration ends with {@link IllegalStateException}.
+ */
+public class StreamIterator<T extends Message> implements Iterator<T>, RpcCallback<T> {
+    private static final Object END = new Object();
+
+    private final ReferoRpcController controller = new ReferoRpcController();
+    private final LinkedBlockingQueue<Object> messages = new LinkedBlockingQueue<Object>();
+    private Object next;
+    private volatile T result;
+
+    /**
+     * @param window messages server can send ahead of consumer, 0 uses stream_window
+     */
+    public StreamIterator(int window) {
+        controller.setStreamWindow(window);
+        controller.setManualStreamCredit(true);
+        controller.setStreamCallback(new RpcCallback<Message>() {
+            @Override
+            public void run(Message message) {
+                messages.add(message);
+            }
+        });
+    }
+
+    /**
+     * @return controller that has to be passed with call, cancel it to stop stream early
+     */
+    public ReferoRpcController getController() {
+        return controller;
+    }
+
+    /**
+     * done callback of call, ends iteration
+     */
+    @Override
+    public void run(T result) {
+        this.result = result;
+        messages.add(END);
+    }
+
+    /**
+     * @return response that ended the call, valid after iteration ended
+     */
+    public T getResult() {
+        return result;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = messages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for message of stream", e);
+            }
+        }
+        if (next != END) {
+            return true;
+        }
+        if (controller.failed()) {
+            throw new IllegalStateException(controller.errorText());
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T message = (T) next;
+        next = null;
+        controller.requestMessages(1);
+        return message;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,154 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import my.adam.smo.common.ReferoRpcController;
+import org.jboss.netty.util.internal.DeadLockProofWorker;
+
+import java.util.ArrayDeque;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * controller of call that streams its request (socket client only), request of call is the first message
+ * of stream and rest of them is written after call was made:
+ * <pre>
+ * StreamWriter&lt;Chunk&gt; upload = new StreamWriter&lt;Chunk&gt;();
+ * stub.ingest(upload, firstChunk, done);
+ * for (Chunk chunk : chunks) {
+ *     if (!upload.write(chunk)) {
+ *         break; //call already finished, done callback tells why
+ *     }
+ * }
+ * upload.close();
+ * </pre>
+ * Client sends only as many messages as server granted (credit), {@link #write(Message)} waits for credit,
+ * except on I/O thread where it can not wait, so messages over credit are queued there.
+ * Call ends with single response of server, which can come before stream is closed.
+ */
+public class StreamWriter<T extends Message> extends ReferoRpcController {
+    private final ArrayDeque<Message> queued = new ArrayDeque<Message>();
+    private RpcCallback<Message> sink;
+    private int credits;
+    private boolean closed;
+    private boolean ended;
+    private boolean finished;
+
+    /**
+     * writes next message of stream, waits until server grants credit for it
+     *
+     * @return false if message was not sent because call already finished (answered, failed or canceled)
+     */
+    public boolean write(T message) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("stream already closed");
+            }
+            if (finished) {
+                return false;
+            }
+            if (sink != null && credits > 0 && queued.isEmpty()) {
+                credits--;
+                sink.run(message);
+                return true;
+            }
+            if (DeadLockProofWorker.PARENT.get() != null) {
+                queued.add(message);
+                return true;
+            }
+            try {
+                while (!finished && (sink == null || credits == 0 || !queued.isEmpty())) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (finished) {
+                return false;
+            }
+            credits--;
+            sink.run(message);
+            return true;
+        }
+    }
+
+    /**
+     * ends stream, server gets end of stream after queued messages
+     */
+    public synchronized void close() {
+        closed = true;
+        end();
+    }
+
+    private void end() {
+        if (closed && !ended && !finished && sink != null && queued.isEmpty()) {
+            ended = true;
+            sink.run(null);
+        }
+    }
+
+    /**
+     * used by client when call was sent, sink writes messages of stream and end of stream (null)
+     */
+    synchronized void bind(RpcCallback<Message> sink) {
+        this.sink = sink;
+        end();
+        notifyAll();
+    }
+
+    /**
+     * server granted more messages, queued messages are sent first
+     */
+    synchronized void grant(int count) {
+        credits += count;
+        while (!finished && credits > 0 && !queued.isEmpty()) {
+            credits--;
+            sink.run(queued.poll());
+        }
+        end();
+        notifyAll();
+    }
+
+    /**
+     * call finished, messages that were not sent are dropped
+     */
+    synchronized void finished() {
+        finished = true;
+        queued.clear();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        queued.clear();
+        sink = null;
+        credits = 0;
+        closed = false;
+        ended = false;
+        finished = false;
+    }
+}
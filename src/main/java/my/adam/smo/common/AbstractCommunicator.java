@@ -1,11 +1,34 @@
 package my.adam.smo.common;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
 import my.adam.smo.RPCommunication;
+import my.adam.smo.compression.Compression;
+import my.adam.smo.transport.SharedMemoryTransport;
+import my.adam.smo.transport.Transport;
+import my.adam.smo.transport.Transports;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.base64.Base64Dialect;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The MIT License
@@ -32,10 +55,13 @@ import java.security.SecureRandom;
  */
 public abstract class AbstractCommunicator {
     protected static final int MAX_CONTENT_LENGTH = Integer.MAX_VALUE;
+    private static final int MAX_STREAM_KEYS = 256;
     @Autowired
     private SymmetricEncryptionBox symmetricEncryptionBox;
     @Autowired
     private AsymmetricEncryptionBox asymmetricEncryptionBox;
+    @Autowired
+    protected BufferPool bufferPool;
 
     private SecureRandom secureRandom = new SecureRandom();
 
@@ -47,6 +73,162 @@ public abstract class AbstractCommunicator {
     @Value("${enable_asymmetric_encryption:false}")
     protected boolean enableAsymmetricEncryption;
 
+    @Value("${transport:nio}")
+    protected String transport;
+    @Value("${transport_boss_threads:1}")
+    protected int transportBossThreads;
+    @Value("${tcp_no_delay:false}")
+    protected boolean tcpNoDelay;
+    @Value("${write_buffer_high_water_mark:65536}")
+    protected int writeBufferHighWaterMark;
+    @Value("${write_buffer_low_water_mark:32768}")
+    protected int writeBufferLowWaterMark;
+    @Value("${shm_directory:}")
+    protected String shmDirectory;
+    @Value("${shm_ring_size:1048576}")
+    protected int shmRingSize;
+    @Value("${shm_wait_strategy:park}")
+    protected String shmWaitStrategy;
+    @Value("${shm_park_max_micros:1000}")
+    protected long shmParkMaxMicros;
+
+    @Value("${write_batching_enabled:false}")
+    protected boolean writeBatchingEnabled;
+    @Value("${write_batching_window_micros:0}")
+    protected long writeBatchingWindowMicros;
+    @Value("${write_batching_max_bytes:65536}")
+    protected int writeBatchingMaxBytes;
+
+    @Value("${compression:none}")
+    protected String compressionCodecs;
+    @Value("${compression_min_bytes:512}")
+    protected int compressionMinBytes;
+    @Value("${compression_deflate_level:1}")
+    protected int compressionDeflateLevel;
+    @Value("${compression_dictionary:}")
+    protected String compressionDictionary;
+
+    @Value("${stream_window:64}")
+    protected int streamWindow;
+
+    @Value("${frame_spill_threshold:0}")
+    protected int frameSpillThreshold;
+    @Value("${frame_spill_directory:}")
+    protected String frameSpillDirectory;
+
+    /**
+     * aes keys of streams decrypted lately, private key decryption is done once per stream key not per message
+     */
+    private final Map<ByteString, byte[]> streamKeys = Collections.synchronizedMap(
+            new LinkedHashMap<ByteString, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteString, byte[]> eldest) {
+                    return size() > MAX_STREAM_KEYS;
+                }
+            });
+    private ScheduledExecutorService writeBatchingScheduler;
+    private Compression compression;
+    private boolean compressionCreated;
+
+    /**
+     * @return true if payload have to be processed as bytes before sending or after receiving
+     */
+    public boolean isEncryptionEnabled() {
+        return enableSymmetricEncryption || enableAsymmetricEncryption;
+    }
+
+    public Transport getTransport() {
+        if (SharedMemoryTransport.NAME.equals(transport)) {
+            File directory = shmDirectory.isEmpty()
+                    ? new File(System.getProperty("java.io.tmpdir"), "refero-shm") : new File(shmDirectory);
+            return new SharedMemoryTransport(directory, shmRingSize, shmWaitStrategy, shmParkMaxMicros);
+        }
+        return Transports.forName(transport);
+    }
+
+    /**
+     * @return handler that coalesces frames written to one channel, or null when write batching is disabled
+     */
+    public ChannelHandler newWriteBatchingHandler() {
+        if (!writeBatchingEnabled) {
+            return null;
+        }
+        ScheduledExecutorService scheduler = null;
+        if (writeBatchingWindowMicros > 0) {
+            scheduler = getWriteBatchingScheduler();
+        }
+        return new WriteBatchingHandler(writeBatchingMaxBytes, writeBatchingWindowMicros, scheduler);
+    }
+
+    /**
+     * @return decoder of length prefixed frames, frames of at least frame_spill_threshold bytes
+     * are received into memory mapped files
+     */
+    public LengthPrefixedFrameDecoder newFrameDecoder(int maxFrameLength) {
+        File directory = frameSpillDirectory.isEmpty()
+                ? new File(System.getProperty("java.io.tmpdir")) : new File(frameSpillDirectory);
+        return new LengthPrefixedFrameDecoder(bufferPool, maxFrameLength, frameSpillThreshold, directory);
+    }
+
+    /**
+     * @return compression offered (client) or accepted (server) on socket connections, null when it is disabled,
+     * encrypted payload does not compress, so compression is never used together with encryption
+     */
+    public synchronized Compression getCompression() {
+        if (!compressionCreated) {
+            compressionCreated = true;
+            if (!isEncryptionEnabled()) {
+                byte[] dictionary = compressionDictionary.isEmpty() ? null : readDictionary(compressionDictionary);
+                compression = Compression.create(compressionCodecs, compressionMinBytes, compressionDeflateLevel,
+                        dictionary);
+            }
+        }
+        return compression;
+    }
+
+    private static byte[] readDictionary(String path) {
+        File file = new File(path);
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] dictionary = new byte[(int) file.length()];
+                in.readFully(dictionary);
+                return dictionary;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("can not read compression dictionary " + path, e);
+        }
+    }
+
+    /**
+     * @return single daemon thread for delayed flushes of batches
+     */
+    protected synchronized ScheduledExecutorService getWriteBatchingScheduler() {
+        if (writeBatchingScheduler == null) {
+            writeBatchingScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "write-batching-" + AbstractCommunicator.this.getClass().getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writeBatchingScheduler;
+    }
+
+    /**
+     * stops thread of delayed flushes, flushes already scheduled are still run
+     */
+    protected synchronized void releaseWriteBatchingScheduler() {
+        if (writeBatchingScheduler != null) {
+            writeBatchingScheduler.shutdown();
+            writeBatchingScheduler = null;
+        }
+    }
+
     public RPCommunication.Response getDecryptedResponse(RPCommunication.Response response) {
         byte[] encryptedResponse = response.getResponse().toByteArray();
         ByteString plainTextResponse = ByteString
@@ -81,8 +263,7 @@ public abstract class AbstractCommunicator {
     }
 
     public RPCommunication.Response getAsymDecryptedResponse(RPCommunication.Response response) {
-        byte[] encryptedAesKey = response.getSecret().toByteArray();
-        byte[] aesKey = asymmetricEncryptionBox.decrypt(encryptedAesKey);
+        byte[] aesKey = decryptSecret(response.getSecret(), response.getStreamMessage());
         byte[] encryptedResponse = response.getResponse().toByteArray();
         ByteString plainTextResponse = ByteString
                 .copyFrom(symmetricEncryptionBox.decrypt(encryptedResponse, aesKey));
@@ -91,22 +272,22 @@ public abstract class AbstractCommunicator {
     }
 
     public RPCommunication.Response getAsymEncryptedResponse(RPCommunication.Response response) {
-        byte[] aesKey = new byte[32];
-        secureRandom.nextBytes(aesKey);
+        return getAsymEncryptedResponse(response, newStreamKey());
+    }
+
+    public RPCommunication.Response getAsymEncryptedResponse(RPCommunication.Response response, StreamKey key) {
         byte[] plainTextResponse = response.getResponse().toByteArray();
         ByteString encryptedResponse = ByteString
-                .copyFrom(symmetricEncryptionBox.encrypt(plainTextResponse, aesKey));
-        byte[] encryptedAesKey = asymmetricEncryptionBox.encrypt(aesKey);
+                .copyFrom(symmetricEncryptionBox.encrypt(plainTextResponse, key.aesKey));
         response = response.toBuilder()
                 .setResponse(encryptedResponse)
-                .setSecret(ByteString.copyFrom(encryptedAesKey))
+                .setSecret(key.secret)
                 .build();
         return response;
     }
 
     public RPCommunication.Request getAsymDecryptedRequest(RPCommunication.Request request) {
-        byte[] encryptedAesKey = request.getSecret().toByteArray();
-        byte[] aesKey = asymmetricEncryptionBox.decrypt(encryptedAesKey);
+        byte[] aesKey = decryptSecret(request.getSecret(), request.getStreamMessage());
 
         byte[] encryptedRequest = request.getMethodArgument().toByteArray();
         ByteString plainTextRequest = ByteString
@@ -116,18 +297,88 @@ public abstract class AbstractCommunicator {
     }
 
     public RPCommunication.Request getAsymEncryptedRequest(RPCommunication.Request request) {
-        byte[] aesKey = new byte[32];
-        secureRandom.nextBytes(aesKey);
+        return getAsymEncryptedRequest(request, newStreamKey());
+    }
+
+    public RPCommunication.Request getAsymEncryptedRequest(RPCommunication.Request request, StreamKey key) {
         byte[] plainTextRequest = request.getMethodArgument().toByteArray();
         ByteString encryptedRequest = ByteString
-                .copyFrom(symmetricEncryptionBox.encrypt(plainTextRequest, aesKey));
-        byte[] encryptedAesKey = asymmetricEncryptionBox.encrypt(aesKey);
+                .copyFrom(symmetricEncryptionBox.encrypt(plainTextRequest, key.aesKey));
         request = request.toBuilder()
                 .setMethodArgument(encryptedRequest)
-                .setSecret(ByteString.copyFrom(encryptedAesKey))
+                .setSecret(key.secret)
                 .build();
         return request;
     }
 
+    /**
+     * @return new aes key encrypted with public key, every call gets its own one,
+     * messages of streams of one connection share one
+     */
+    public StreamKey newStreamKey() {
+        byte[] aesKey = new byte[32];
+        secureRandom.nextBytes(aesKey);
+        return new StreamKey(aesKey, ByteString.copyFrom(asymmetricEncryptionBox.encrypt(aesKey)));
+    }
+
+    /**
+     * @param streamMessage true if secret came with message of stream, its key is remembered because
+     *                      following messages of the connection come with the same secret
+     * @return aes key decrypted from secret with private key
+     */
+    private byte[] decryptSecret(ByteString secret, boolean streamMessage) {
+        byte[] aesKey = streamMessage ? streamKeys.get(secret) : null;
+        if (aesKey == null) {
+            aesKey = asymmetricEncryptionBox.decrypt(secret.toByteArray());
+            if (streamMessage) {
+                streamKeys.put(secret, aesKey);
+            }
+        }
+        return aesKey;
+    }
+
+    /**
+     * serializes message and encodes it as base64 http content,
+     * returned buffer comes from pool and should be released when written
+     */
+    public ChannelBuffer getHttpContent(MessageLite message) throws IOException {
+        ChannelBuffer serialized = bufferPool.acquire(message.getSerializedSize());
+        try {
+            new OutboundEnvelope(message).writeTo(serialized);
+            return Base64.encode(serialized, Base64Dialect.STANDARD, bufferPool);
+        } finally {
+            bufferPool.release(serialized);
+        }
+    }
+
+    /**
+     * decodes base64 http content and parses message from it without intermediate copy
+     */
+    public <T> T parseHttpContent(ChannelBuffer content, Parser<T> parser) throws InvalidProtocolBufferException {
+        ChannelBuffer decoded = Base64.decode(content, Base64Dialect.STANDARD, bufferPool);
+        try {
+            if (decoded.hasArray()) {
+                return parser.parseFrom(decoded.array(), decoded.arrayOffset() + decoded.readerIndex(),
+                        decoded.readableBytes());
+            }
+            CodedInputStream in = CodedInputStream.newInstance(new ChannelBufferInputStream(decoded));
+            in.setSizeLimit(Integer.MAX_VALUE);
+            return parser.parseFrom(in);
+        } finally {
+            bufferPool.release(decoded);
+        }
+    }
 
+    /**
+     * aes key of asymmetric encryption together with its copy encrypted with public key (secret)
+     */
+    public static final class StreamKey {
+        private final byte[] aesKey;
+        private final ByteString secret;
+
+        private StreamKey(byte[] aesKey, ByteString secret) {
+            this.aesKey = aesKey;
+            this.secret = secret;
+        }
+    }
 }
@@ -0,0 +1,292 @@
+package my.adam.smo.common;
+
+import org.jboss.netty.buffer.*;
+import org.jboss.netty.channel.Channel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * buffer factory that reuses buffers with short and known lifetime (frames, http bodies),
+ * buffers are grouped in power of two size classes, every thread have its own cache and buffers
+ * released above its limit go to cache shared by all threads.
+ * <p/>
+ * netty 3 buffers are not reference counted, so only buffers passed to {@link #release(ChannelBuffer)}
+ * by its last user are reused, buffers never released are simply garbage collected
+ */
+@Component
+public class BufferPool implements ChannelBufferFactory {
+    private static final int MIN_CAPACITY_SHIFT = 6;
+
+    @Value("${buffer_pool_enabled:false}")
+    private boolean enabled;
+    @Value("${buffer_pool_direct:false}")
+    private boolean direct;
+    @Value("${buffer_pool_max_pooled_capacity:65536}")
+    private int maxPooledCapacity;
+    @Value("${buffer_pool_thread_cache_size:64}")
+    private int threadCacheSize;
+    @Value("${buffer_pool_shared_cache_size:1024}")
+    private int sharedCacheSize;
+
+    private int sizeClassCount;
+    private ConcurrentLinkedQueue<PooledBuffer>[] sharedCache;
+    private AtomicInteger[] sharedCacheCount;
+    private ThreadLocal<ArrayDeque<PooledBuffer>[]> threadCache;
+
+    public BufferPool() {
+    }
+
+    /**
+     * pool configured without spring, it is initialized already
+     */
+    public BufferPool(boolean enabled, boolean direct, int maxPooledCapacity, int threadCacheSize,
+                      int sharedCacheSize) {
+        this.enabled = enabled;
+        this.direct = direct;
+        this.maxPooledCapacity = maxPooledCapacity;
+        this.threadCacheSize = threadCacheSize;
+        this.sharedCacheSize = sharedCacheSize;
+        init();
+    }
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    public void init() {
+        sizeClassCount = Math.max(sizeClass(maxPooledCapacity) + 1, 1);
+        sharedCache = (ConcurrentLinkedQueue<PooledBuffer>[]) new ConcurrentLinkedQueue<?>[sizeClassCount];
+        sharedCacheCount = new AtomicInteger[sizeClassCount];
+        for (int i = 0; i < sizeClassCount; i++) {
+            sharedCache[i] = new ConcurrentLinkedQueue<PooledBuffer>();
+            sharedCacheCount[i] = new AtomicInteger();
+        }
+        threadCache = new ThreadLocal<ArrayDeque<PooledBuffer>[]>() {
+            @Override
+            protected ArrayDeque<PooledBuffer>[] initialValue() {
+                ArrayDeque<PooledBuffer>[] cache = (ArrayDeque<PooledBuffer>[]) new ArrayDeque<?>[sizeClassCount];
+                for (int i = 0; i < sizeClassCount; i++) {
+                    cache[i] = new ArrayDeque<PooledBuffer>();
+                }
+                return cache;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * channels with pool as buffer factory copy written buffers to socket and read into buffers from pool,
+     * on other channels (local) written buffer itself is passed to receiver, so it can not be reused by sender
+     */
+    public boolean isFactoryOf(Channel channel) {
+        return channel.getConfig().getBufferFactory() == this;
+    }
+
+    /**
+     * @return empty buffer with at least given capacity, capacity may be bigger than requested
+     */
+    public ChannelBuffer acquire(int capacity) {
+        if (!enabled || capacity > maxPooledCapacity) {
+            return allocate(capacity);
+        }
+
+        int sizeClass = sizeClass(capacity);
+        PooledBuffer buffer = threadCache.get()[sizeClass].poll();
+        if (buffer == null) {
+            buffer = sharedCache[sizeClass].poll();
+            if (buffer != null) {
+                sharedCacheCount[sizeClass].decrementAndGet();
+            }
+        }
+        if (buffer == null) {
+            buffer = newPooledBuffer(sizeClass);
+        }
+
+        buffer.setReleased(false);
+        ChannelBuffer channelBuffer = (ChannelBuffer) buffer;
+        channelBuffer.clear();
+        return channelBuffer;
+    }
+
+    /**
+     * returns buffer (or buffer underlying its slice) to pool, caller have to be the last user of buffer,
+     * buffers that did not came from pool are ignored, except spilled frames which are unmapped
+     */
+    public void release(ChannelBuffer buffer) {
+        while (!(buffer instanceof PooledBuffer) && buffer instanceof WrappedChannelBuffer) {
+            buffer = ((WrappedChannelBuffer) buffer).unwrap();
+        }
+        if (buffer instanceof SpilledFrameBuffer) {
+            ((SpilledFrameBuffer) buffer).unmap();
+            return;
+        }
+        if (!(buffer instanceof PooledBuffer)) {
+            return;
+        }
+
+        PooledBuffer pooled = (PooledBuffer) buffer;
+        if (pooled.isReleased()) {
+            return;
+        }
+        pooled.setReleased(true);
+
+        int sizeClass = pooled.getSizeClass();
+        ArrayDeque<PooledBuffer> local = threadCache.get()[sizeClass];
+        if (local.size() < threadCacheSize) {
+            local.push(pooled);
+        } else if (sharedCacheCount[sizeClass].incrementAndGet() <= sharedCacheSize) {
+            sharedCache[sizeClass].offer(pooled);
+        } else {
+            sharedCacheCount[sizeClass].decrementAndGet();
+        }
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(int capacity) {
+        return acquire(capacity);
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(ByteOrder endianness, int capacity) {
+        if (endianness != ByteOrder.BIG_ENDIAN) {
+            return ChannelBuffers.buffer(endianness, capacity);
+        }
+        return acquire(capacity);
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(byte[] array, int offset, int length) {
+        return getBuffer(ByteOrder.BIG_ENDIAN, array, offset, length);
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(ByteOrder endianness, byte[] array, int offset, int length) {
+        ChannelBuffer buffer = getBuffer(endianness, length);
+        buffer.writeBytes(array, offset, length);
+        return buffer;
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(ByteBuffer nioBuffer) {
+        ChannelBuffer buffer = getBuffer(nioBuffer.order(), nioBuffer.remaining());
+        buffer.writeBytes(nioBuffer.duplicate());
+        return buffer;
+    }
+
+    @Override
+    public ByteOrder getDefaultOrder() {
+        return ByteOrder.BIG_ENDIAN;
+    }
+
+    private ChannelBuffer allocate(int capacity) {
+        if (direct) {
+            return ChannelBuffers.directBuffer(capacity);
+        }
+        return ChannelBuffers.buffer(capacity);
+    }
+
+    private PooledBuffer newPooledBuffer(int sizeClass) {
+        int capacity = 1 << (sizeClass + MIN_CAPACITY_SHIFT);
+        if (direct) {
+            return new PooledDirectBuffer(ByteBuffer.allocateDirect(capacity), sizeClass);
+        }
+        return new PooledHeapBuffer(capacity, sizeClass);
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= 1 << MIN_CAPACITY_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CAPACITY_SHIFT;
+    }
+
+    private interface PooledBuffer {
+        int getSizeClass();
+
+        boolean isReleased();
+
+        void setReleased(boolean released);
+    }
+
+    private static class PooledHeapBuffer extends BigEndianHeapChannelBuffer implements PooledBuffer {
+        private final int sizeClass;
+        private volatile boolean released;
+
+        PooledHeapBuffer(int capacity, int sizeClass) {
+            super(capacity);
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public int getSizeClass() {
+            return sizeClass;
+        }
+
+        @Override
+        public boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        public void setReleased(boolean released) {
+            this.released = released;
+        }
+    }
+
+    private static class PooledDirectBuffer extends ByteBufferBackedChannelBuffer implements PooledBuffer {
+        private final int sizeClass;
+        private volatile boolean released;
+
+        PooledDirectBuffer(ByteBuffer buffer, int sizeClass) {
+            super(buffer);
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public int getSizeClass() {
+            return sizeClass;
+        }
+
+        @Override
+        public boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        public void setReleased(boolean released) {
+            this.released = released;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * call of method with serialized argument, calls with equal keys have the same response when method is idempotent
+ */
+public final class CallKey {
+    private final String method;
+    private final ByteString argument;
+    private final int hash;
+
+    /**
+     * @param method   full name of method
+     * @param argument serialized request
+     */
+    public CallKey(String method, ByteString argument) {
+        this.method = method;
+        this.argument = argument;
+        this.hash = 31 * method.hashCode() + argument.hashCode();
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public ByteString getArgument() {
+        return argument;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CallKey)) {
+            return false;
+        }
+        CallKey other = (CallKey) o;
+        return hash == other.hash && method.equals(other.method) && argument.equals(other.argument);
+    }
+
+    @Override
+    public String toString() {
+        return method + "(" + argument.size() + " bytes)";
+    }
+}
@@ -27,6 +27,9 @@ import com.google.protobuf.RpcController;
  * THE SOFTWARE.
  */
 public class DummyRpcController implements RpcController {
+    private volatile boolean failed;
+    private volatile String errorText;
+
     @Override
     public void reset() {
         //To change body of implemented methods use File | Settings | File Templates.
@@ -34,12 +37,12 @@ public class DummyRpcController implements RpcController {
 
     @Override
     public boolean failed() {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+        return failed;
     }
 
     @Override
     public String errorText() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return errorText;
     }
 
     @Override
@@ -47,9 +50,13 @@ public class DummyRpcController implements RpcController {
         //To change body of implemented methods use File | Settings | File Templates.
     }
 
+    /**
+     * reason is sent to client when call ends without response
+     */
     @Override
     public void setFailed(String reason) {
-        //To change body of implemented methods use File | Settings | File Templates.
+        errorText = reason;
+        failed = true;
     }
 
     @Override
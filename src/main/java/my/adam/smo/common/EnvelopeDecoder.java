@@ -0,0 +1,182 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import my.adam.smo.compression.Compression;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import java.io.IOException;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * replaces ProtobufDecoder, parses envelope header from frame (without length prefix) and only remembers
+ * where payload field is, so payload is parsed once directly from frame instead of copied into ByteString first.
+ * Frame that is not backed by array ({@link SpilledFrameBuffer}) is not copied, only its header is read.
+ */
+public class EnvelopeDecoder extends OneToOneDecoder {
+    private final BufferPool bufferPool;
+    private final MessageLite prototype;
+    private final int payloadTag;
+    private final Compression compression;
+
+    /**
+     * @param bufferPool         pool to which frame is returned when envelope is released
+     * @param prototype          envelope prototype (Request or Response)
+     * @param payloadFieldNumber number of bytes field in envelope that carries payload
+     */
+    public EnvelopeDecoder(BufferPool bufferPool, MessageLite prototype, int payloadFieldNumber) {
+        this(bufferPool, prototype, payloadFieldNumber, null);
+    }
+
+    /**
+     * @param compression compression accepted from peer, null for none
+     */
+    public EnvelopeDecoder(BufferPool bufferPool, MessageLite prototype, int payloadFieldNumber,
+                           Compression compression) {
+        this.bufferPool = bufferPool;
+        this.compression = compression;
+        this.prototype = prototype;
+        //same as package private WireFormat.makeTag
+        this.payloadTag = (payloadFieldNumber << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        if (!(msg instanceof ChannelBuffer)) {
+            return msg;
+        }
+
+        ChannelBuffer buf = (ChannelBuffer) msg;
+        if (Compression.isCompressed(buf)) {
+            buf = decompress(buf);
+        }
+        if (!buf.hasArray()) {
+            return decode(buf);
+        }
+        return decode(buf, buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+    }
+
+    /**
+     * decodes envelope from frame that is not backed by array, payload is skipped without reading it
+     */
+    private InboundEnvelope decode(ChannelBuffer source) throws IOException {
+        int start = source.readerIndex();
+        int length = source.readableBytes();
+        int payloadStart = length;
+        int payloadEnd = length;
+        int payloadLength = 0;
+
+        int base = 0;
+        CodedInputStream in = newInput(source, start, length);
+        while (true) {
+            int fieldStart = base + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == payloadTag) {
+                payloadLength = in.readRawVarint32();
+                payloadStart = fieldStart;
+                payloadEnd = base + in.getTotalBytesRead() + payloadLength;
+                if (payloadLength < 0 || payloadEnd > length) {
+                    throw new IOException("payload of " + payloadLength + " bytes does not fit into frame");
+                }
+                //continue after payload with new stream, skipping it would read it through
+                base = payloadEnd;
+                in = newInput(source, start + base, length - base);
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+
+        //header is everything around payload field
+        byte[] header = new byte[payloadStart + length - payloadEnd];
+        source.getBytes(start, header, 0, payloadStart);
+        source.getBytes(start + payloadEnd, header, payloadStart, length - payloadEnd);
+        return new InboundEnvelope(prototype.newBuilderForType().mergeFrom(header).build(), bufferPool, source,
+                start + payloadEnd - payloadLength, payloadLength);
+    }
+
+    private static CodedInputStream newInput(ChannelBuffer source, int index, int length) {
+        CodedInputStream in = CodedInputStream.newInstance(new ChannelBufferInputStream(source.slice(index, length)));
+        in.setSizeLimit(Integer.MAX_VALUE);
+        return in;
+    }
+
+    /**
+     * @return decompressed frame from pool, compressed frame is returned to pool
+     */
+    private ChannelBuffer decompress(ChannelBuffer compressed) throws IOException {
+        if (compression == null) {
+            throw new IOException("received compressed frame, but compression is not enabled");
+        }
+        ChannelBuffer frame = bufferPool.acquire(Compression.getDecompressedLength(compressed));
+        try {
+            compression.decompress(compressed, frame);
+        } catch (IOException e) {
+            bufferPool.release(frame);
+            throw e;
+        }
+        bufferPool.release(compressed);
+        return frame;
+    }
+
+    public InboundEnvelope decode(ChannelBuffer source, byte[] frame, int offset, int length) throws Exception {
+        CodedInputStream in = CodedInputStream.newInstance(frame, offset, length);
+        int payloadStart = length;
+        int payloadEnd = length;
+        int payloadLength = 0;
+
+        while (true) {
+            int fieldStart = in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == payloadTag) {
+                payloadLength = in.readRawVarint32();
+                payloadStart = fieldStart;
+                in.skipRawBytes(payloadLength);
+                payloadEnd = in.getTotalBytesRead();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+
+        //header is everything around payload field
+        MessageLite.Builder header = prototype.newBuilderForType()
+                .mergeFrom(frame, offset, payloadStart)
+                .mergeFrom(frame, offset + payloadEnd, length - payloadEnd);
+
+        return new InboundEnvelope(header.build(), bufferPool, source, frame,
+                offset + payloadEnd - payloadLength, payloadLength);
+    }
+}
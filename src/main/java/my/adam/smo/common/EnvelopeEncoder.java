@@ -0,0 +1,130 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.MessageLite;
+import my.adam.smo.compression.Compression;
+import my.adam.smo.compression.FrameCodec;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * replaces LengthFieldPrepender and ProtobufEncoder, length prefix, envelope header and payload
+ * are serialized straight into one pooled frame buffer which is returned to pool when write completes
+ */
+public class EnvelopeEncoder extends SimpleChannelDownstreamHandler {
+    public static final int LENGTH_FIELD_LENGTH = 4;
+
+    private final BufferPool bufferPool;
+    private final Compression compression;
+    private volatile FrameCodec codec;
+
+    public EnvelopeEncoder(BufferPool bufferPool) {
+        this(bufferPool, null);
+    }
+
+    /**
+     * @param compression compression of channel, frames are compressed after codec is negotiated, null for none
+     */
+    public EnvelopeEncoder(BufferPool bufferPool, Compression compression) {
+        this.bufferPool = bufferPool;
+        this.compression = compression;
+    }
+
+    /**
+     * @param codec codec negotiated with peer, used for frames written after this call, null turns compression off
+     */
+    public void setCodec(FrameCodec codec) {
+        this.codec = compression == null ? null : codec;
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        OutboundEnvelope envelope;
+        if (msg instanceof OutboundEnvelope) {
+            envelope = (OutboundEnvelope) msg;
+        } else if (msg instanceof MessageLite) {
+            envelope = new OutboundEnvelope((MessageLite) msg);
+        } else {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        boolean pooled = bufferPool.isFactoryOf(e.getChannel());
+        final ChannelBuffer frame = encode(envelope, pooled);
+        if (pooled) {
+            e.getFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    bufferPool.release(frame);
+                }
+            });
+        }
+        Channels.write(ctx, e.getFuture(), frame, e.getRemoteAddress());
+    }
+
+    private ChannelBuffer encode(OutboundEnvelope envelope, boolean pooled) throws Exception {
+        int size = envelope.getSerializedSize();
+        ChannelBuffer frame = pooled
+                ? bufferPool.acquire(LENGTH_FIELD_LENGTH + size)
+                : ChannelBuffers.buffer(LENGTH_FIELD_LENGTH + size);
+        frame.writeInt(size);
+
+        envelope.writeTo(frame);
+
+        FrameCodec frameCodec = codec;
+        if (frameCodec != null && size >= compression.getMinBytes()) {
+            return compress(frameCodec, frame, size, pooled);
+        }
+        return frame;
+    }
+
+    /**
+     * @return compressed frame, or given frame when compression does not make it shorter
+     */
+    private ChannelBuffer compress(FrameCodec frameCodec, ChannelBuffer frame, int size, boolean pooled) {
+        ChannelBuffer compressed = pooled
+                ? bufferPool.acquire(LENGTH_FIELD_LENGTH + size)
+                : ChannelBuffers.buffer(LENGTH_FIELD_LENGTH + size);
+        compressed.writerIndex(LENGTH_FIELD_LENGTH);
+        frame.readerIndex(LENGTH_FIELD_LENGTH);
+        boolean shrunk = compression.compress(frameCodec, frame, compressed);
+        frame.readerIndex(0);
+        if (!shrunk) {
+            if (pooled) {
+                bufferPool.release(compressed);
+            }
+            return frame;
+        }
+
+        compressed.setInt(0, compressed.readableBytes() - LENGTH_FIELD_LENGTH);
+        if (pooled) {
+            bufferPool.release(frame);
+        }
+        return compressed;
+    }
+}
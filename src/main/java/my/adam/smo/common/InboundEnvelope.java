@@ -0,0 +1,115 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * decoded envelope (Request or Response), payload is not copied out of received frame
+ * but parsed straight from it when its type is known
+ */
+public class InboundEnvelope {
+    private final MessageLite header;
+    private final BufferPool bufferPool;
+    private final ChannelBuffer source;
+    /**
+     * null when frame is not backed by array, payload offset is index in source then
+     */
+    private final byte[] frame;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+    public InboundEnvelope(MessageLite header, BufferPool bufferPool, ChannelBuffer source,
+                           byte[] frame, int payloadOffset, int payloadLength) {
+        this.header = header;
+        this.bufferPool = bufferPool;
+        this.source = source;
+        this.frame = frame;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * @param payloadIndex index of payload in source, which is not backed by array (spilled frame)
+     */
+    public InboundEnvelope(MessageLite header, BufferPool bufferPool, ChannelBuffer source,
+                           int payloadIndex, int payloadLength) {
+        this(header, bufferPool, source, null, payloadIndex, payloadLength);
+    }
+
+    /**
+     * @return envelope with all fields except payload
+     */
+    public MessageLite getHeader() {
+        return header;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * payload of frame that is not backed by array is copied to heap first, protobuf can parse only arrays
+     * without copying every bytes field once more
+     */
+    public Message parsePayload(Message prototype) throws InvalidProtocolBufferException {
+        if (source instanceof SpilledFrameBuffer) {
+            //spilled frame is parsed straight from its mapping, it is too big to be copied to heap
+            CodedInputStream input = CodedInputStream.newInstance(
+                    new ChannelBufferInputStream(source.slice(payloadOffset, payloadLength)));
+            input.setSizeLimit(payloadLength);
+            return prototype.getParserForType().parseFrom(input);
+        }
+        if (frame == null) {
+            byte[] payload = new byte[payloadLength];
+            source.getBytes(payloadOffset, payload);
+            return prototype.getParserForType().parseFrom(payload);
+        }
+        return prototype.getParserForType().parseFrom(frame, payloadOffset, payloadLength);
+    }
+
+    /**
+     * @return copy of payload bytes, for cases when payload have to be processed as bytes (decryption)
+     */
+    public ByteString getPayload() {
+        if (frame == null) {
+            return ByteString.copyFrom(source.toByteBuffer(payloadOffset, payloadLength));
+        }
+        return ByteString.copyFrom(frame, payloadOffset, payloadLength);
+    }
+
+    /**
+     * returns frame to pool, payload can not be read after release
+     */
+    public void release() {
+        bufferPool.release(source);
+    }
+}
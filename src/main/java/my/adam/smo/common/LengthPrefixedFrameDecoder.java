@@ -0,0 +1,120 @@
+package my.adam.smo.common;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+import java.io.File;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * replaces LengthFieldBasedFrameDecoder, instead of accumulating received chunks, frame buffer of exact size
+ * is taken from pool as soon as length prefix is read and chunks are copied into it as they arrive.
+ * Received chunks are released to pool after copying when pool is buffer factory of channel.
+ * <p/>
+ * Frames of at least spill threshold bytes are received into {@link SpilledFrameBuffer} (memory mapped temporary
+ * file) instead, so big messages do not need heap until their payload is parsed.
+ */
+public class LengthPrefixedFrameDecoder extends SimpleChannelUpstreamHandler {
+    private final BufferPool bufferPool;
+    private final int maxFrameLength;
+    private final int spillThreshold;
+    private final File spillDirectory;
+
+    private final ChannelBuffer lengthField = ChannelBuffers.buffer(EnvelopeEncoder.LENGTH_FIELD_LENGTH);
+    private ChannelBuffer frame;
+    private int frameLength;
+
+    public LengthPrefixedFrameDecoder(BufferPool bufferPool, int maxFrameLength) {
+        this(bufferPool, maxFrameLength, 0, null);
+    }
+
+    /**
+     * @param spillThreshold frames at least this long are received into memory mapped file, 0 for never
+     * @param spillDirectory directory of memory mapped files
+     */
+    public LengthPrefixedFrameDecoder(BufferPool bufferPool, int maxFrameLength, int spillThreshold,
+                                      File spillDirectory) {
+        this.bufferPool = bufferPool;
+        this.maxFrameLength = maxFrameLength;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        ChannelBuffer in = (ChannelBuffer) e.getMessage();
+        try {
+            while (in.readable()) {
+                if (frame == null) {
+                    lengthField.writeBytes(in, Math.min(lengthField.writableBytes(), in.readableBytes()));
+                    if (lengthField.writable()) {
+                        return;
+                    }
+                    frameLength = lengthField.readInt();
+                    lengthField.clear();
+                    if (frameLength < 0 || frameLength > maxFrameLength) {
+                        throw new TooLongFrameException("frame length " + frameLength
+                                + " exceeds " + maxFrameLength);
+                    }
+                    frame = spillThreshold > 0 && frameLength >= spillThreshold
+                            ? SpilledFrameBuffer.create(spillDirectory, frameLength)
+                            : bufferPool.acquire(frameLength);
+                }
+
+                frame.writeBytes(in, Math.min(frameLength - frame.readableBytes(), in.readableBytes()));
+                if (frame.readableBytes() == frameLength) {
+                    ChannelBuffer completeFrame = frame;
+                    frame = null;
+                    Channels.fireMessageReceived(ctx, completeFrame, e.getRemoteAddress());
+                }
+            }
+        } finally {
+            if (bufferPool.isFactoryOf(e.getChannel())) {
+                bufferPool.release(in);
+            }
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (frame != null) {
+            bufferPool.release(frame);
+            frame = null;
+        }
+        super.channelClosed(ctx, e);
+    }
+}
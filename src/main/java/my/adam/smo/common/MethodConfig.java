@@ -0,0 +1,85 @@
+package my.adam.smo.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * parses lists of methods in configuration, the same syntax is used on server and client
+ */
+public final class MethodConfig {
+    private MethodConfig() {
+    }
+
+    /**
+     * @param list comma separated full method names, for example my.package.Service.Method,my.package.Service.Other
+     * @return listed names, empty when list is null or empty
+     */
+    public static Set<String> parseNames(String list) {
+        Set<String> names = new HashSet<String>();
+        if (list == null) {
+            return names;
+        }
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param list comma separated full method name and value pairs, for example my.package.Service.Method:200
+     * @return values by method name, empty when list is null or empty
+     * @throws IllegalArgumentException when entry has no value or value is not a number
+     */
+    public static Map<String, Long> parseValues(String list) {
+        if (list == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> values = new HashMap<String, Long>();
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("expected method:value, got " + entry);
+            }
+            try {
+                values.put(entry.substring(0, separator).trim(), Long.parseLong(entry.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("expected method:value, got " + entry);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,105 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+
+import java.io.IOException;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * envelope (Request or Response) waiting to be written, payload message is not converted to bytes
+ * before encoding but written directly after the header into the outbound frame
+ */
+public class OutboundEnvelope {
+    private final MessageLite header;
+    private final int payloadFieldNumber;
+    private final MessageLite payload;
+
+    public OutboundEnvelope(MessageLite header) {
+        this(header, 0, null);
+    }
+
+    /**
+     * @param header             envelope without payload field set
+     * @param payloadFieldNumber number of bytes field in envelope that carries payload
+     * @param payload            message written as value of payload field
+     */
+    public OutboundEnvelope(MessageLite header, int payloadFieldNumber, MessageLite payload) {
+        this.header = header;
+        this.payloadFieldNumber = payloadFieldNumber;
+        this.payload = payload;
+    }
+
+    public MessageLite getHeader() {
+        return header;
+    }
+
+    /**
+     * @return message written as value of payload field, null for envelope without payload
+     */
+    public MessageLite getPayload() {
+        return payload;
+    }
+
+    public int getSerializedSize() {
+        int size = header.getSerializedSize();
+        if (payload != null) {
+            size += CodedOutputStream.computeMessageSize(payloadFieldNumber, payload);
+        }
+        return size;
+    }
+
+    /**
+     * message field is written with same wire type as bytes field, so on the other side
+     * it is readable as ordinary envelope
+     */
+    public void writeTo(CodedOutputStream out) throws IOException {
+        header.writeTo(out);
+        if (payload != null) {
+            out.writeMessage(payloadFieldNumber, payload);
+        }
+    }
+
+    /**
+     * appends serialized envelope to buffer, buffer have to have enough writable bytes
+     */
+    public void writeTo(ChannelBuffer buffer) throws IOException {
+        int size = getSerializedSize();
+        if (buffer.hasArray()) {
+            CodedOutputStream out = CodedOutputStream
+                    .newInstance(buffer.array(), buffer.arrayOffset() + buffer.writerIndex(), size);
+            writeTo(out);
+            out.checkNoSpaceLeft();
+            buffer.writerIndex(buffer.writerIndex() + size);
+        } else {
+            CodedOutputStream out = CodedOutputStream.newInstance(new ChannelBufferOutputStream(buffer));
+            writeTo(out);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * controller that keeps state of a call, client marks call as failed before running callback with null.
+ * Priority set before call is sent with request, server with priority scheduling runs requests
+ * with higher priority first.
+ * Timeout set before call overrides timeout configured for method, call fails when it is not answered in time.
+ * <p/>
+ * Stream callback set before call makes it streaming call (socket client only), server sends sequence of messages
+ * of method response type, callback runs on I/O thread for each of them and call ends with done callback.
+ * Server sends only messages granted by client, window is granted when call is made and every consumed message
+ * is granted again, unless consumer grants them itself with {@link #requestMessages(int)}.
+ * Canceling streaming call stops server from sending more messages.
+ */
+public class ReferoRpcController implements RpcController {
+    private volatile boolean failed;
+    private volatile String errorText;
+    private volatile boolean canceled;
+    private volatile int priority;
+    private volatile long timeoutMillis;
+    private volatile RpcCallback<Message> streamCallback;
+    private volatile int streamWindow;
+    private volatile boolean manualStreamCredit;
+    private RpcCallback<Integer> streamCreditSink;
+    private int requestedMessages;
+    private final List<RpcCallback<Object>> cancelCallbacks = new ArrayList<RpcCallback<Object>>();
+
+    @Override
+    public synchronized void reset() {
+        failed = false;
+        errorText = null;
+        canceled = false;
+        priority = 0;
+        timeoutMillis = 0;
+        streamCallback = null;
+        streamWindow = 0;
+        manualStreamCredit = false;
+        streamCreditSink = null;
+        requestedMessages = 0;
+        cancelCallbacks.clear();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority above 0 for interactive calls, below 0 for bulk calls, 0 (default) for others
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis time from call to response after which call fails, 0 (default) uses timeout of method
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public RpcCallback<Message> getStreamCallback() {
+        return streamCallback;
+    }
+
+    /**
+     * @param streamCallback run for every message of stream, should not block as it runs on I/O thread
+     */
+    public void setStreamCallback(RpcCallback<Message> streamCallback) {
+        this.streamCallback = streamCallback;
+    }
+
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    /**
+     * @param streamWindow messages server can send before client grants more, 0 (default) uses stream_window
+     */
+    public void setStreamWindow(int streamWindow) {
+        this.streamWindow = streamWindow;
+    }
+
+    public boolean isManualStreamCredit() {
+        return manualStreamCredit;
+    }
+
+    /**
+     * @param manualStreamCredit true if consumer grants messages with {@link #requestMessages(int)}
+     *                           instead of client granting every message after stream callback returns
+     */
+    public void setManualStreamCredit(boolean manualStreamCredit) {
+        this.manualStreamCredit = manualStreamCredit;
+    }
+
+    /**
+     * grants server more messages of stream
+     */
+    public void requestMessages(int count) {
+        RpcCallback<Integer> sink;
+        synchronized (this) {
+            sink = streamCreditSink;
+            if (sink == null) {
+                requestedMessages += count;
+                return;
+            }
+        }
+        sink.run(count);
+    }
+
+    /**
+     * used by client when streaming call is sent, messages requested before are passed to sink right away
+     */
+    public void setStreamCreditSink(RpcCallback<Integer> sink) {
+        int requested;
+        synchronized (this) {
+            streamCreditSink = sink;
+            requested = requestedMessages;
+            requestedMessages = 0;
+        }
+        if (requested > 0) {
+            sink.run(requested);
+        }
+    }
+
+    @Override
+    public boolean failed() {
+        return failed;
+    }
+
+    @Override
+    public String errorText() {
+        return errorText;
+    }
+
+    @Override
+    public void startCancel() {
+        List<RpcCallback<Object>> callbacks;
+        synchronized (this) {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            callbacks = new ArrayList<RpcCallback<Object>>(cancelCallbacks);
+        }
+        for (RpcCallback<Object> callback : callbacks) {
+            callback.run(null);
+        }
+    }
+
+    @Override
+    public void setFailed(String reason) {
+        errorText = reason;
+        failed = true;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public void notifyOnCancel(RpcCallback<Object> callback) {
+        synchronized (this) {
+            if (!canceled) {
+                cancelCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run(null);
+    }
+}
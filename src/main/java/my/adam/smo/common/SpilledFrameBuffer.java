@@ -0,0 +1,124 @@
+package my.adam.smo.common;
+
+import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * frame buffer backed by memory mapped temporary file, used for frames too big to be kept on heap.
+ * File is removed right after it is mapped, so it never outlives the buffer, and mapping is dropped
+ * when buffer is released to {@link BufferPool}.
+ */
+public class SpilledFrameBuffer extends ByteBufferBackedChannelBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(SpilledFrameBuffer.class);
+    private static volatile boolean unmapFailureLogged;
+
+    private final MappedByteBuffer map;
+    private boolean unmapped;
+
+    private SpilledFrameBuffer(MappedByteBuffer map) {
+        super(map);
+        this.map = map;
+        clear();
+    }
+
+    /**
+     * @return empty buffer with given capacity in new file in directory
+     */
+    public static SpilledFrameBuffer create(File directory, int capacity) throws IOException {
+        File file = File.createTempFile("frame", ".spill", directory);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(capacity);
+                return new SpilledFrameBuffer(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if (!file.delete()) {
+                //mapped file can not be removed on some systems
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * drops mapping right away instead of waiting for garbage collector, buffer can not be read after it
+     *
+     * @return false when mapping could not be dropped and stays until buffer is collected
+     */
+    synchronized boolean unmap() {
+        if (unmapped) {
+            return true;
+        }
+        unmapped = true;
+        try {
+            clean(map);
+            return true;
+        } catch (Exception e) {
+            if (!unmapFailureLogged) {
+                unmapFailureLogged = true;
+                logger.warn("can not unmap spilled frames, their mappings are dropped when they are collected", e);
+            } else {
+                logger.debug("can not unmap spilled frame", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * java 9+ hides cleaner of direct buffer, but lets Unsafe run it, older versions have only the cleaner
+     */
+    private static void clean(MappedByteBuffer map) throws Exception {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner;
+        try {
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            Method cleanerMethod = map.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(map);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return;
+        }
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), map);
+    }
+}
@@ -0,0 +1,201 @@
+package my.adam.smo.common;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * gathers frames written to channel and writes them with one gathering write.
+ * Frames written by I/O thread while it processes received data are written when processing ends,
+ * frames written by other threads are written by task scheduled after first of them
+ * (executed by I/O thread or after configured window), batch is written immediately when it reaches byte limit.
+ * <p/>
+ * Only one thread writes at a time and it keeps writing until nothing is pending, so events keep their order
+ * and no lock is held while writing (blocking transports may block in write).
+ */
+public class WriteBatchingHandler implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+    private final int maxBytes;
+    private final long windowMicros;
+    private final ScheduledExecutorService scheduler;
+
+    private final List<ChannelEvent> pending = new ArrayList<ChannelEvent>();
+    private int pendingBytes;
+    private boolean flushScheduled;
+    private boolean flushing;
+    private volatile Thread readingThread;
+
+    /**
+     * @param maxBytes     batch size after which batch is written without waiting
+     * @param windowMicros time after first write when batch is written, 0 means as soon as I/O thread is free
+     * @param scheduler    scheduler for window, not used when window is 0
+     */
+    public WriteBatchingHandler(int maxBytes, long windowMicros, ScheduledExecutorService scheduler) {
+        this.maxBytes = maxBytes;
+        this.windowMicros = windowMicros;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (!(e instanceof MessageEvent)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        readingThread = Thread.currentThread();
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            readingThread = null;
+            flush(ctx);
+        }
+    }
+
+    @Override
+    public void handleDownstream(final ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        boolean write = isWrite(e);
+        boolean flushNow = false;
+        boolean scheduleFlush = false;
+        synchronized (this) {
+            if (!write && pending.isEmpty() && !flushing) {
+                flushNow = true;
+            } else {
+                //pending frames have to go before close or anything else
+                pending.add(e);
+                if (!write) {
+                    flushNow = true;
+                } else {
+                    pendingBytes += ((ChannelBuffer) ((MessageEvent) e).getMessage()).readableBytes();
+                    if (pendingBytes >= maxBytes) {
+                        flushNow = true;
+                    } else if (readingThread != Thread.currentThread() && !flushScheduled) {
+                        flushScheduled = true;
+                        scheduleFlush = true;
+                    }
+                }
+                e = null;
+            }
+        }
+
+        if (e != null) {
+            ctx.sendDownstream(e);
+        } else if (flushNow) {
+            flush(ctx);
+        } else if (scheduleFlush) {
+            Runnable flushTask = new Runnable() {
+                @Override
+                public void run() {
+                    flush(ctx);
+                }
+            };
+            if (windowMicros > 0) {
+                try {
+                    scheduler.schedule(flushTask, windowMicros, TimeUnit.MICROSECONDS);
+                } catch (RejectedExecutionException ex) {
+                    //communicator was stopped, nothing delays writes any more
+                    flush(ctx);
+                }
+            } else {
+                ctx.getPipeline().execute(flushTask);
+            }
+        }
+    }
+
+    private void flush(ChannelHandlerContext ctx) {
+        while (true) {
+            ChannelEvent[] events;
+            synchronized (this) {
+                flushScheduled = false;
+                if (flushing || pending.isEmpty()) {
+                    return;
+                }
+                flushing = true;
+                events = pending.toArray(new ChannelEvent[pending.size()]);
+                pending.clear();
+                pendingBytes = 0;
+            }
+
+            try {
+                int batchStart = 0;
+                for (int i = 0; i < events.length; i++) {
+                    if (!isWrite(events[i])) {
+                        write(ctx, events, batchStart, i);
+                        ctx.sendDownstream(events[i]);
+                        batchStart = i + 1;
+                    }
+                }
+                write(ctx, events, batchStart, events.length);
+            } finally {
+                synchronized (this) {
+                    flushing = false;
+                }
+            }
+        }
+    }
+
+    private void write(ChannelHandlerContext ctx, ChannelEvent[] events, int from, int to) {
+        if (to - from == 0) {
+            return;
+        }
+        if (to - from == 1) {
+            ctx.sendDownstream(events[from]);
+            return;
+        }
+
+        final MessageEvent[] writes = new MessageEvent[to - from];
+        ChannelBuffer[] frames = new ChannelBuffer[writes.length];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = (MessageEvent) events[from + i];
+            frames[i] = (ChannelBuffer) writes[i].getMessage();
+        }
+
+        ChannelFuture batchFuture = Channels.future(ctx.getChannel());
+        batchFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (MessageEvent write : writes) {
+                    if (future.isSuccess()) {
+                        write.getFuture().setSuccess();
+                    } else {
+                        write.getFuture().setFailure(future.getCause());
+                    }
+                }
+            }
+        });
+        Channels.write(ctx, batchFuture, ChannelBuffers.wrappedBuffer(true, frames), writes[0].getRemoteAddress());
+    }
+
+    private static boolean isWrite(ChannelEvent e) {
+        return e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer;
+    }
+}
@@ -0,0 +1,315 @@
+package my.adam.smo.compression;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * codecs that communicator offers (client) or accepts (server) in order of preference, compresses
+ * and decompresses frame bodies and collects statistics.
+ * <p/>
+ * Compressed frame body starts with byte 0 (protobuf tag can not be 0, so it is never first byte of envelope),
+ * followed by id of codec, length of data before compression (4 bytes) and compressed data.
+ * Frame is sent compressed only when it is at least min bytes long and compression makes it shorter.
+ */
+public class Compression {
+    public static final String NONE = "none";
+    public static final byte MARKER = 0;
+    public static final int HEADER_LENGTH = 6;
+
+    private final List<FrameCodec> codecs;
+    private final FrameCodec[] codecsById = new FrameCodec[256];
+    private final List<String> names;
+    private final int minBytes;
+
+    private final AtomicLong framesCompressed = new AtomicLong();
+    private final AtomicLong framesNotShrunk = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong framesDecompressed = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    /**
+     * @param codecs   codecs in order of preference
+     * @param minBytes frames shorter than this are not compressed
+     */
+    public Compression(List<FrameCodec> codecs, int minBytes) {
+        this.codecs = new ArrayList<FrameCodec>(codecs);
+        List<String> codecNames = new ArrayList<String>();
+        for (FrameCodec codec : codecs) {
+            codecsById[codec.getId()] = codec;
+            codecNames.add(codec.getName());
+        }
+        this.names = Collections.unmodifiableList(codecNames);
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * @param names      comma separated names of algorithms ({@link DeflateCodec#NAME}, {@link Lz4Codec#NAME})
+     *                   in order of preference, {@link #NONE} or empty for no compression
+     * @param dictionary dictionary for all algorithms, null for none, codecs with dictionary are preferred
+     *                   and codecs without it are kept for peers that do not have the same dictionary
+     * @return compression with given algorithms, null when there are none
+     */
+    public static Compression create(String names, int minBytes, int deflateLevel, byte[] dictionary) {
+        List<FrameCodec> withDictionary = new ArrayList<FrameCodec>();
+        List<FrameCodec> plain = new ArrayList<FrameCodec>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || NONE.equals(name)) {
+                continue;
+            }
+            if (DeflateCodec.NAME.equals(name)) {
+                if (dictionary != null) {
+                    withDictionary.add(new DeflateCodec(deflateLevel, dictionary));
+                }
+                plain.add(new DeflateCodec(deflateLevel, null));
+            } else if (Lz4Codec.NAME.equals(name)) {
+                if (dictionary != null) {
+                    withDictionary.add(new Lz4Codec(dictionary));
+                }
+                plain.add(new Lz4Codec(null));
+            } else {
+                throw new IllegalArgumentException("unknown compression " + name);
+            }
+        }
+        if (plain.isEmpty()) {
+            return null;
+        }
+        withDictionary.addAll(plain);
+        return new Compression(withDictionary, minBytes);
+    }
+
+    static String getDictionaryId(byte[] dictionary) {
+        CRC32 crc = new CRC32();
+        crc.update(dictionary);
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @return names of codecs in order of preference
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @param offered names of codecs offered by client in its order of preference
+     * @return first offered codec that is accepted, null if there is none
+     */
+    public FrameCodec choose(List<String> offered) {
+        for (String name : offered) {
+            FrameCodec codec = get(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return codec with given name, null if there is none
+     */
+    public FrameCodec get(String name) {
+        for (FrameCodec codec : codecs) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * @return true if frame body is compressed
+     */
+    public static boolean isCompressed(ChannelBuffer body) {
+        return body.readable() && body.getByte(body.readerIndex()) == MARKER;
+    }
+
+    /**
+     * writes compressed frame body to destination, destination has to have room for body as long as source
+     *
+     * @param src body of frame, its readable bytes are compressed
+     * @return false if compressed body would not be shorter, nothing is written then
+     */
+    public boolean compress(FrameCodec codec, ChannelBuffer src, ChannelBuffer dst) {
+        long start = System.nanoTime();
+        int length = src.readableBytes();
+        byte[] in;
+        int inOffset;
+        if (src.hasArray()) {
+            in = src.array();
+            inOffset = src.arrayOffset() + src.readerIndex();
+        } else {
+            in = new byte[length];
+            src.getBytes(src.readerIndex(), in);
+            inOffset = 0;
+        }
+
+        int maxLength = length - HEADER_LENGTH;
+        int compressed = -1;
+        if (maxLength > 0) {
+            int headerIndex = dst.writerIndex();
+            if (dst.hasArray() && dst.writableBytes() >= length) {
+                compressed = codec.compress(in, inOffset, length,
+                        dst.array(), dst.arrayOffset() + headerIndex + HEADER_LENGTH, maxLength);
+                if (compressed >= 0) {
+                    dst.writerIndex(headerIndex + HEADER_LENGTH + compressed);
+                }
+            } else {
+                byte[] out = new byte[maxLength];
+                compressed = codec.compress(in, inOffset, length, out, 0, maxLength);
+                if (compressed >= 0) {
+                    dst.writerIndex(headerIndex + HEADER_LENGTH);
+                    dst.writeBytes(out, 0, compressed);
+                }
+            }
+            if (compressed >= 0) {
+                dst.setByte(headerIndex, MARKER);
+                dst.setByte(headerIndex + 1, codec.getId());
+                dst.setInt(headerIndex + 2, length);
+            }
+        }
+
+        compressionNanos.addAndGet(System.nanoTime() - start);
+        if (compressed < 0) {
+            framesNotShrunk.incrementAndGet();
+            return false;
+        }
+        framesCompressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(length);
+        bytesAfterCompression.addAndGet(HEADER_LENGTH + compressed);
+        return true;
+    }
+
+    /**
+     * @return length of body before compression
+     */
+    public static int getDecompressedLength(ChannelBuffer body) {
+        return body.getInt(body.readerIndex() + 2);
+    }
+
+    /**
+     * writes decompressed frame body to destination, destination has to have room for whole body
+     *
+     * @param src compressed body of frame
+     */
+    public void decompress(ChannelBuffer src, ChannelBuffer dst) throws IOException {
+        long start = System.nanoTime();
+        int id = src.getUnsignedByte(src.readerIndex() + 1);
+        FrameCodec codec = codecsById[id];
+        if (codec == null) {
+            throw new IOException("frame compressed with unknown codec " + id);
+        }
+        int length = getDecompressedLength(src);
+        if (length < 0) {
+            throw new IOException("compressed frame with negative length " + length);
+        }
+        int compressedLength = src.readableBytes() - HEADER_LENGTH;
+        byte[] in;
+        int inOffset;
+        if (src.hasArray()) {
+            in = src.array();
+            inOffset = src.arrayOffset() + src.readerIndex() + HEADER_LENGTH;
+        } else {
+            in = new byte[compressedLength];
+            src.getBytes(src.readerIndex() + HEADER_LENGTH, in);
+            inOffset = 0;
+        }
+
+        if (dst.hasArray() && dst.writableBytes() >= length) {
+            codec.decompress(in, inOffset, compressedLength, dst.array(), dst.arrayOffset() + dst.writerIndex(), length);
+            dst.writerIndex(dst.writerIndex() + length);
+        } else {
+            byte[] out = new byte[length];
+            codec.decompress(in, inOffset, compressedLength, out, 0, length);
+            dst.writeBytes(out);
+        }
+        framesDecompressed.incrementAndGet();
+        decompressionNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    public long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    /**
+     * @return frames that were not sent compressed because compression would not make them shorter
+     */
+    public long getFramesNotShrunk() {
+        return framesNotShrunk.get();
+    }
+
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.get();
+    }
+
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.get();
+    }
+
+    /**
+     * @return size of compressed frames divided by their size before compression
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+        return before == 0 ? 1 : (double) bytesAfterCompression.get() / before;
+    }
+
+    /**
+     * @return time spent compressing, including frames that were not shrunk
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    public long getFramesDecompressed() {
+        return framesDecompressed.get();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "compression " + names + ": compressed " + getFramesCompressed() + " frames, not shrunk "
+                + getFramesNotShrunk() + ", ratio " + getCompressionRatio() + ", compression "
+                + getCompressionNanos() / 1000000 + " ms, decompressed " + getFramesDecompressed() + " frames in "
+                + getDecompressionNanos() / 1000000 + " ms";
+    }
+}
@@ -0,0 +1,108 @@
+package my.adam.smo.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * raw deflate (no zlib header and checksum, frame is already checked by transport), every thread
+ * reuses its own deflater and inflater because creating them is expensive
+ */
+public class DeflateCodec extends FrameCodec {
+    public static final String NAME = "deflate";
+    static final int ID = 1;
+
+    private final byte[] dictionary;
+    private final ThreadLocal<Deflater> deflater;
+    private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * @param level      deflate level, 1 is fastest, 9 compresses best
+     * @param dictionary preset dictionary, null for none
+     */
+    public DeflateCodec(final int level, byte[] dictionary) {
+        super(ID, NAME, dictionary);
+        this.dictionary = dictionary;
+        this.deflater = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level, true);
+            }
+        };
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength) {
+        Deflater d = deflater.get();
+        d.reset();
+        if (dictionary != null) {
+            d.setDictionary(dictionary);
+        }
+        d.setInput(src, srcOffset, srcLength);
+        d.finish();
+        int length = 0;
+        while (!d.finished()) {
+            if (length >= maxLength) {
+                return -1;
+            }
+            length += d.deflate(dst, dstOffset + length, maxLength - length);
+        }
+        return length < maxLength ? length : -1;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+            throws IOException {
+        Inflater i = inflater.get();
+        i.reset();
+        if (dictionary != null) {
+            i.setDictionary(dictionary);
+        }
+        i.setInput(src, srcOffset, srcLength);
+        try {
+            int length = 0;
+            while (length < dstLength) {
+                int inflated = i.inflate(dst, dstOffset + length, dstLength - length);
+                if (inflated == 0 && (i.finished() || i.needsInput() || i.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != dstLength || !i.finished()) {
+                throw new IOException("corrupted deflate frame, expected " + dstLength + " bytes, got " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted deflate frame", e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package my.adam.smo.compression;
+
+import java.io.IOException;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * compression algorithm of frames, instances are shared by all channels and have to be thread safe
+ */
+public abstract class FrameCodec {
+    /**
+     * id of codec with dictionary has this bit set
+     */
+    static final int DICTIONARY_FLAG = 0x80;
+
+    private final int id;
+    private final String name;
+
+    /**
+     * @param id         id written in compressed frame, below 128
+     * @param name       name used in negotiation
+     * @param dictionary dictionary used by codec, null for none
+     */
+    protected FrameCodec(int id, String name, byte[] dictionary) {
+        this.id = dictionary == null ? id : id | DICTIONARY_FLAG;
+        this.name = dictionary == null ? name : name + "/" + Compression.getDictionaryId(dictionary);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return name of algorithm, followed by id of dictionary when codec uses one, so peers agree
+     * on codec only when they have the same dictionary
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param maxLength length that compressed data must not reach
+     * @return length of compressed data written to destination, or -1 when it would not be shorter than maxLength
+     */
+    public abstract int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength);
+
+    /**
+     * @param dstLength length of data before compression, destination has to have room for it
+     * @throws IOException when data is corrupted
+     */
+    public abstract void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+            throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,301 @@
+package my.adam.smo.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * LZ4 block format, fast greedy compressor with single hash table and decompressor that checks every bound.
+ * Dictionary works as history before data, so matches can refer to it (same as LZ4_compress_usingDict).
+ */
+public class Lz4Codec extends FrameCodec {
+    public static final String NAME = "lz4";
+    static final int ID = 2;
+
+    private static final int MIN_MATCH = 4;
+    /**
+     * last match has to start at least this many bytes before end of input
+     */
+    private static final int MF_LIMIT = 12;
+    /**
+     * last bytes of input are always literals
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+    private static final int RUN_MASK = 15;
+    private static final int ML_MASK = 15;
+    /**
+     * biggest window kept by thread, window for bigger frame is allocated for that frame only
+     */
+    private static final int MAX_RETAINED_WINDOW = 256 * 1024;
+
+    private final byte[] dictionary;
+
+    /**
+     * hash table and buffer for dictionary followed by data, reused by thread
+     */
+    private final ThreadLocal<int[]> hashTable = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+    private final ThreadLocal<byte[]> window = new ThreadLocal<byte[]>();
+
+    /**
+     * @param dictionary data similar to compressed messages, only its last 64KB are used, null for none
+     */
+    public Lz4Codec(byte[] dictionary) {
+        super(ID, NAME, dictionary);
+        this.dictionary = dictionary == null || dictionary.length <= MAX_DISTANCE ? dictionary
+                : Arrays.copyOfRange(dictionary, dictionary.length - MAX_DISTANCE, dictionary.length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength) {
+        if (dictionary == null) {
+            return compress(src, srcOffset, srcOffset, srcOffset + srcLength, dst, dstOffset, dstOffset + maxLength);
+        }
+        byte[] in = getWindow(dictionary.length + srcLength);
+        System.arraycopy(dictionary, 0, in, 0, dictionary.length);
+        System.arraycopy(src, srcOffset, in, dictionary.length, srcLength);
+        return compress(in, 0, dictionary.length, dictionary.length + srcLength, dst, dstOffset, dstOffset + maxLength);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+            throws IOException {
+        if (dictionary == null) {
+            decompress(src, srcOffset, srcOffset + srcLength, dst, dstOffset, dstOffset, dstOffset + dstLength);
+            return;
+        }
+        byte[] out = getWindow(dictionary.length + dstLength);
+        System.arraycopy(dictionary, 0, out, 0, dictionary.length);
+        decompress(src, srcOffset, srcOffset + srcLength, out, 0, dictionary.length, dictionary.length + dstLength);
+        System.arraycopy(out, dictionary.length, dst, dstOffset, dstLength);
+    }
+
+    private byte[] getWindow(int length) {
+        if (length > MAX_RETAINED_WINDOW) {
+            return new byte[length];
+        }
+        byte[] buffer = window.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, 1024)];
+            window.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * @param historyStart start of dictionary, equal to start when there is none
+     * @param start        first byte to compress
+     * @param end          end of data
+     * @param dstLimit     output must end before this index
+     * @return compressed length or -1 when output reaches limit
+     */
+    private int compress(byte[] in, int historyStart, int start, int end, byte[] dst, int dstStart, int dstLimit) {
+        int[] table = hashTable.get();
+        Arrays.fill(table, -1);
+        for (int p = Math.max(historyStart, start - MAX_DISTANCE); p + MIN_MATCH <= start; p++) {
+            table[hash(readInt(in, p))] = p;
+        }
+
+        int op = dstStart;
+        int anchor = start;
+        int ip = start;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int searchCount = 1 << SKIP_TRIGGER;
+
+        while (ip < mfLimit) {
+            int sequence = readInt(in, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(in, ref) != sequence) {
+                ip += searchCount++ >>> SKIP_TRIGGER;
+                continue;
+            }
+            searchCount = 1 << SKIP_TRIGGER;
+
+            while (ip > anchor && ref > historyStart && in[ip - 1] == in[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && in[ref + matchLength] == in[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(in, anchor, ip - anchor, ip - ref, matchLength, dst, op, dstLimit);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLength;
+            anchor = ip;
+            if (ip - 2 < mfLimit) {
+                table[hash(readInt(in, ip - 2))] = ip - 2;
+            }
+        }
+
+        op = writeLastLiterals(in, anchor, end - anchor, dst, op, dstLimit);
+        return op < 0 ? -1 : op - dstStart;
+    }
+
+    private static int writeSequence(byte[] in, int literalStart, int literalLength, int offset, int matchLength,
+                                     byte[] dst, int op, int dstLimit) {
+        int extra = matchLength - MIN_MATCH;
+        if (op + 1 + literalLength / 255 + 1 + literalLength + 2 + extra / 255 + 1 >= dstLimit) {
+            return -1;
+        }
+        int token = op++;
+        op = writeLiterals(in, literalStart, literalLength, dst, token, op);
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        if (extra >= ML_MASK) {
+            dst[token] |= ML_MASK;
+            op = writeLength(extra - ML_MASK, dst, op);
+        } else {
+            dst[token] |= extra;
+        }
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] in, int literalStart, int literalLength, byte[] dst, int op,
+                                         int dstLimit) {
+        if (op + 1 + literalLength / 255 + 1 + literalLength >= dstLimit) {
+            return -1;
+        }
+        int token = op++;
+        return writeLiterals(in, literalStart, literalLength, dst, token, op);
+    }
+
+    private static int writeLiterals(byte[] in, int literalStart, int literalLength, byte[] dst, int token, int op) {
+        if (literalLength >= RUN_MASK) {
+            dst[token] = (byte) (RUN_MASK << 4);
+            op = writeLength(literalLength - RUN_MASK, dst, op);
+        } else {
+            dst[token] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(in, literalStart, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * @param historyStart start of dictionary in output, matches can not refer before it
+     */
+    private static void decompress(byte[] src, int ip, int srcEnd, byte[] dst, int historyStart, int op, int dstEnd)
+            throws IOException {
+        while (true) {
+            if (ip >= srcEnd) {
+                throw new IOException("corrupted lz4 frame, unexpected end of input");
+            }
+            int token = src[ip++] & 0xff;
+
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IOException("corrupted lz4 frame, unexpected end of input");
+                    }
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw new IOException("corrupted lz4 frame, literals out of bounds");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw new IOException("corrupted lz4 frame, unexpected end of input");
+            }
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            int ref = op - offset;
+            if (offset == 0 || ref < historyStart) {
+                throw new IOException("corrupted lz4 frame, offset " + offset + " out of bounds");
+            }
+
+            int matchLength = token & ML_MASK;
+            if (matchLength == ML_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IOException("corrupted lz4 frame, unexpected end of input");
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new IOException("corrupted lz4 frame, match out of bounds");
+            }
+
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                //overlapping match repeats last bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != dstEnd) {
+            throw new IOException("corrupted lz4 frame, expected " + (dstEnd - historyStart) + " bytes");
+        }
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,217 @@
+package my.adam.smo.server;
+
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * counts requests that were received but not answered yet and stops reading from channel when there are too many
+ * of them on this channel or on all channels together, reading is resumed when count drops to half of limit.
+ * Reading is also stopped while channel is not writable (write buffer is above its high water mark),
+ * so client that does not read responses can not make server buffer them without limit.
+ * <p/>
+ * Requests that were already read when reading stops are still passed on.
+ * <p/>
+ * Every message written to channel is counted as response to one request, request that ends without response
+ * has to be counted with {@link #requestDropped(Channel)}.
+ */
+@ChannelHandler.Sharable
+public class BackpressureHandler extends SimpleChannelHandler {
+    private static final Logger logger = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    private final int maxChannelPending;
+    private final int maxTotalPending;
+
+    private final AtomicInteger totalPending = new AtomicInteger();
+    private volatile boolean totalOverLimit;
+    private final ChannelGroup channels = new DefaultChannelGroup();
+
+    /**
+     * @param maxChannelPending requests pending on one channel after which reading from it stops, 0 for no limit
+     * @param maxTotalPending   requests pending on all channels after which reading from all of them stops,
+     *                          0 for no limit
+     */
+    public BackpressureHandler(int maxChannelPending, int maxTotalPending) {
+        this.maxChannelPending = maxChannelPending;
+        this.maxTotalPending = maxTotalPending;
+    }
+
+    public int getTotalPending() {
+        return totalPending.get();
+    }
+
+    private static class ChannelState {
+        private int pending;
+        private boolean overLimit;
+        private boolean suspended;
+    }
+
+    private ChannelState getState(ChannelHandlerContext ctx) {
+        synchronized (ctx) {
+            ChannelState state = (ChannelState) ctx.getAttachment();
+            if (state == null) {
+                state = new ChannelState();
+                ctx.setAttachment(state);
+            }
+            return state;
+        }
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (maxTotalPending > 0) {
+            channels.add(e.getChannel());
+        }
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        ChannelState state = getState(ctx);
+        synchronized (state) {
+            state.pending++;
+            if (maxChannelPending > 0 && state.pending >= maxChannelPending) {
+                state.overLimit = true;
+            }
+        }
+        if (maxTotalPending > 0 && totalPending.incrementAndGet() >= maxTotalPending && !totalOverLimit) {
+            totalOverLimit = true;
+            logger.debug("too many pending requests, reading from all channels suspended");
+        }
+        update(e.getChannel(), state);
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        finished(ctx, e.getChannel());
+        super.writeRequested(ctx, e);
+    }
+
+    /**
+     * counts request received from channel that ends without response (it calls unknown method, its call failed
+     * before it could be answered...)
+     */
+    public void requestDropped(Channel channel) {
+        ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+        if (ctx != null) {
+            finished(ctx, channel);
+        }
+    }
+
+    private void finished(ChannelHandlerContext ctx, Channel channel) {
+        ChannelState state = getState(ctx);
+        boolean answered = false;
+        synchronized (state) {
+            if (state.pending > 0) {
+                state.pending--;
+                answered = true;
+                if (state.overLimit && state.pending <= maxChannelPending / 2) {
+                    state.overLimit = false;
+                }
+            }
+        }
+        if (answered) {
+            requestsAnswered(1);
+            update(channel, state);
+        }
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        update(e.getChannel(), getState(ctx));
+        super.channelInterestChanged(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ChannelState state = getState(ctx);
+        int unanswered;
+        synchronized (state) {
+            unanswered = state.pending;
+            state.pending = 0;
+        }
+        requestsAnswered(unanswered);
+        super.channelClosed(ctx, e);
+    }
+
+    private void requestsAnswered(int count) {
+        if (maxTotalPending <= 0 || count == 0) {
+            return;
+        }
+        int total = totalPending.addAndGet(-count);
+        if (totalOverLimit && total <= maxTotalPending / 2) {
+            totalOverLimit = false;
+            logger.debug("pending requests drained, reading from all channels resumed");
+            for (Channel channel : channels) {
+                ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+                if (ctx != null) {
+                    update(channel, getState(ctx));
+                }
+            }
+        }
+    }
+
+    /**
+     * suspends or resumes reading from channel, reading is resumed only if it was suspended by this handler.
+     * Readability is changed on I/O thread of channel, setReadable from other thread is applied later by I/O thread,
+     * so it could override newer change (reading would never be resumed)
+     */
+    private void update(final Channel channel, final ChannelState state) {
+        synchronized (state) {
+            boolean suspend = state.overLimit || totalOverLimit || !channel.isWritable();
+            if (suspend ? state.suspended && !channel.isReadable() : !state.suspended) {
+                return;
+            }
+        }
+        channel.getPipeline().execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(channel, state);
+            }
+        });
+    }
+
+    private void apply(Channel channel, ChannelState state) {
+        synchronized (state) {
+            boolean suspend = state.overLimit || totalOverLimit || !channel.isWritable();
+            if (suspend) {
+                if (channel.isReadable()) {
+                    channel.setReadable(false);
+                }
+                state.suspended = true;
+            } else if (state.suspended) {
+                state.suspended = false;
+                channel.setReadable(true);
+            }
+        }
+    }
+}
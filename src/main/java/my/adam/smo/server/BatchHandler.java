@@ -0,0 +1,123 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.MessageLite;
+import my.adam.smo.RPCommunication;
+import my.adam.smo.common.BufferPool;
+import my.adam.smo.common.InboundEnvelope;
+import my.adam.smo.common.OutboundEnvelope;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * splits batch request into its calls and passes each of them on as if it came in its own frame, so they are
+ * dispatched (in parallel when there is dispatch pool) and counted by handlers closer to the end of pipeline
+ * like any other call. Responses to calls of batch are held back and written together in single frame
+ * when the last of them is written.
+ * <p/>
+ * Handler keeps state of one channel, streaming calls are never sent in batch.
+ */
+public class BatchHandler extends SimpleChannelHandler {
+    private final BufferPool bufferPool;
+    private final ConcurrentHashMap<Long, Batch> batches = new ConcurrentHashMap<Long, Batch>();
+
+    public BatchHandler(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof InboundEnvelope)
+                || !((RPCommunication.Request) ((InboundEnvelope) e.getMessage()).getHeader()).hasBatch()) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        InboundEnvelope envelope = (InboundEnvelope) e.getMessage();
+        RPCommunication.BatchRequest requests = ((RPCommunication.Request) envelope.getHeader()).getBatch();
+        envelope.release();
+
+        Batch batch = new Batch(requests.getRequestCount());
+        for (RPCommunication.Request request : requests.getRequestList()) {
+            batches.put(request.getRequestId(), batch);
+        }
+        for (RPCommunication.Request request : requests.getRequestList()) {
+            byte[] payload = request.getMethodArgument().toByteArray();
+            Channels.fireMessageReceived(ctx, new InboundEnvelope(request.toBuilder().clearMethodArgument().build(),
+                    bufferPool, ChannelBuffers.EMPTY_BUFFER, payload, 0, payload.length), e.getRemoteAddress());
+        }
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        MessageLite header = e.getMessage() instanceof OutboundEnvelope
+                ? ((OutboundEnvelope) e.getMessage()).getHeader() : e.getMessage() instanceof MessageLite
+                ? (MessageLite) e.getMessage() : null;
+        Batch batch = header instanceof RPCommunication.Response
+                ? batches.remove(((RPCommunication.Response) header).getRequestId()) : null;
+        if (batch == null) {
+            super.writeRequested(ctx, e);
+            return;
+        }
+
+        RPCommunication.Response response = (RPCommunication.Response) header;
+        if (e.getMessage() instanceof OutboundEnvelope && ((OutboundEnvelope) e.getMessage()).getPayload() != null) {
+            response = response.toBuilder()
+                    .setResponse(((OutboundEnvelope) e.getMessage()).getPayload().toByteString())
+                    .build();
+        }
+        RPCommunication.BatchResponse responses = batch.add(response);
+        if (responses == null) {
+            e.getFuture().setSuccess();
+            return;
+        }
+        Channels.write(ctx, e.getFuture(), RPCommunication.Response.newBuilder().setBatch(responses).build());
+    }
+
+    /**
+     * responses collected for calls of one batch request
+     */
+    private static final class Batch {
+        private final RPCommunication.BatchResponse.Builder responses = RPCommunication.BatchResponse.newBuilder();
+        private int remaining;
+
+        Batch(int calls) {
+            this.remaining = calls;
+        }
+
+        /**
+         * @return all responses when this was the last one, null otherwise
+         */
+        synchronized RPCommunication.BatchResponse add(RPCommunication.Response response) {
+            responses.addResponse(response);
+            return --remaining == 0 ? responses.build() : null;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import my.adam.smo.common.CallKey;
+import my.adam.smo.common.MethodConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * single flight for calls of idempotent methods, call that comes while call of the same method with the same
+ * serialized argument is executed is not executed again, it waits for the running one and gets its response
+ * (or its failure). Only calls that overlap are joined, nothing is kept after call ends.
+ */
+public class CallCoalescer {
+    private final Set<String> methods;
+    private final ConcurrentHashMap<CallKey, Flight> flights = new ConcurrentHashMap<CallKey, Flight>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    /**
+     * @param methods full names of coalesced methods
+     */
+    public CallCoalescer(Set<String> methods) {
+        this.methods = Collections.unmodifiableSet(new HashSet<String>(methods));
+    }
+
+    /**
+     * @param methods comma separated full method names
+     * @return coalescer of given methods, null when there are none
+     */
+    public static CallCoalescer create(String methods) {
+        Set<String> names = MethodConfig.parseNames(methods);
+        return names.isEmpty() ? null : new CallCoalescer(names);
+    }
+
+    /**
+     * @param method full name of method
+     */
+    public boolean isCoalesced(String method) {
+        return methods.contains(method);
+    }
+
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    /**
+     * @param controller controller of call, it is failed with error of executed call when that one fails
+     * @param done       callback of call
+     * @return callback that has to be passed to service when this call has to be executed, it answers also
+     * calls that join it meanwhile, null when call joined running one and must not be executed
+     */
+    public RpcCallback<Message> join(String method, ByteString argument, RpcController controller,
+                                     RpcCallback<Message> done) {
+        final CallKey key = new CallKey(method, argument);
+        while (true) {
+            Flight running = flights.get(key);
+            if (running == null) {
+                final Flight flight = new Flight(controller, done);
+                if (flights.putIfAbsent(key, flight) != null) {
+                    continue;
+                }
+                executed.incrementAndGet();
+                return new RpcCallback<Message>() {
+                    @Override
+                    public void run(Message response) {
+                        flights.remove(key, flight);
+                        flight.land(response);
+                    }
+                };
+            }
+            if (running.board(controller, done)) {
+                joined.incrementAndGet();
+                return null;
+            }
+            //flight just landed, it is removed right after
+            flights.remove(key, running);
+        }
+    }
+
+    /**
+     * @return calls that were executed
+     */
+    public long getExecutedCalls() {
+        return executed.get();
+    }
+
+    /**
+     * @return calls answered with response of call that was executed at the same time
+     */
+    public long getJoinedCalls() {
+        return joined.get();
+    }
+
+    @Override
+    public String toString() {
+        return "coalescing " + methods + ": executed " + getExecutedCalls() + " calls, joined " + getJoinedCalls();
+    }
+
+    /**
+     * executed call and calls that wait for its response
+     */
+    private static final class Flight {
+        private final RpcController controller;
+        private final List<RpcController> controllers = new ArrayList<RpcController>();
+        private final List<RpcCallback<Message>> callbacks = new ArrayList<RpcCallback<Message>>();
+        private boolean landed;
+
+        Flight(RpcController controller, RpcCallback<Message> done) {
+            this.controller = controller;
+            controllers.add(controller);
+            callbacks.add(done);
+        }
+
+        synchronized boolean board(RpcController controller, RpcCallback<Message> done) {
+            if (landed) {
+                return false;
+            }
+            controllers.add(controller);
+            callbacks.add(done);
+            return true;
+        }
+
+        void land(Message response) {
+            synchronized (this) {
+                landed = true;
+            }
+            RuntimeException failure = null;
+            for (int i = 0; i < callbacks.size(); i++) {
+                RpcController waiting = controllers.get(i);
+                if (response == null && waiting != controller && controller.failed()) {
+                    waiting.setFailed(controller.errorText());
+                }
+                try {
+                    callbacks.get(i).run(response);
+                } catch (RuntimeException e) {
+                    //the rest of calls is still answered
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package my.adam.smo.server;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * executor that keeps events of one channel in order, events of different channels run in parallel.
+ * Works on top of any executor, unlike netty OrderedMemoryAwareThreadPoolExecutor which is its own pool.
+ */
+public class ChannelOrderedExecutor implements Executor, ExternalResourceReleasable {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelOrderedExecutor.class);
+
+    private final Executor executor;
+    private final ChannelLocal<ChildExecutor> children = new ChannelLocal<ChildExecutor>(true);
+
+    public ChannelOrderedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!(task instanceof ChannelEventRunnable)) {
+            executor.execute(task);
+            return;
+        }
+
+        Channel channel = ((ChannelEventRunnable) task).getEvent().getChannel();
+        ChildExecutor child = children.get(channel);
+        if (child == null) {
+            child = new ChildExecutor();
+            ChildExecutor existing = children.setIfAbsent(channel, child);
+            if (existing != null) {
+                child = existing;
+            }
+        }
+        child.execute(task);
+    }
+
+    @Override
+    public void releaseExternalResources() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * runs tasks of one channel one by one, at most one thread of underlying executor is used at a time
+     */
+    private class ChildExecutor implements Runnable {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean running;
+
+        void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            running = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("channel task failed", e);
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    //task threw error, waiting tasks are taken over by new run so channel does not stall
+                    boolean waiting;
+                    synchronized (this) {
+                        waiting = !tasks.isEmpty();
+                        running = waiting;
+                    }
+                    if (waiting) {
+                        executor.execute(this);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -5,11 +5,7 @@ import my.adam.smo.RPCommunication;
 import my.adam.smo.common.DummyRpcController;
 import my.adam.smo.common.InjectLogger;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.base64.Base64;
-import org.jboss.netty.handler.codec.base64.Base64Dialect;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
@@ -22,9 +18,8 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.StopWatch;
 
 import javax.inject.Inject;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The MIT License
@@ -56,10 +51,7 @@ public class HTTPServer extends Server {
 
     @Inject
     public HTTPServer(@Value("${server_worker_threads:10}") int workerCount) {
-        bootstrap.setFactory(new NioServerSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool(),
-                workerCount));
+        this.workerCount = workerCount;
 
         ChannelPipelineFactory pipelineFactory = new ChannelPipelineFactory() {
             @Override
@@ -76,6 +68,17 @@ public class HTTPServer extends Server {
                 p.addLast("chunkedWriter", new ChunkedWriteHandler());
                 p.addLast("compressor", new HttpContentCompressor());
 
+                ChannelHandler backpressure = getBackpressureHandler();
+                if (backpressure != null) {
+                    p.addLast("backpressure", backpressure);
+                }
+
+                ChannelHandler dispatcher = getDispatchHandler();
+                if (dispatcher != null) {
+                    p.addLast("dispatcher", dispatcher);
+                }
+                final ResponseCache cache = getResponseCache();
+                final CallCoalescer coalescer = getCallCoalescer();
                 p.addLast("handler", new SimpleChannelUpstreamHandler() {
                     @Override
                     public void messageReceived(ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
@@ -83,95 +86,112 @@ public class HTTPServer extends Server {
                         stopWatch.start();
 
                         final DefaultHttpRequest httpRequest = (DefaultHttpRequest) e.getMessage();
-                        ChannelBuffer cb = Base64.decode(httpRequest.getContent(), Base64Dialect.STANDARD);
+                        final RPCommunication.Request protoRequest;
+                        final Service service;
+                        final Descriptors.MethodDescriptor methodToCall;
+                        final Message methodArguments;
+                        try {
+                            RPCommunication.Request request = parseHttpContent(httpRequest.getContent(),
+                                    RPCommunication.Request.PARSER);
+                            logger.trace("received request:" + request.toString());
 
-                        RPCommunication.Request request = RPCommunication.Request.parseFrom(cb.copy(0, cb.readableBytes()).array());
-                        logger.trace("received request:" + request.toString());
-
-                        if (enableAsymmetricEncryption) {
-                            request = getAsymDecryptedRequest(request);
-                            logger.trace("asymmetric encryption enabled, decrypted request: " + request.toString());
-                        }
+                            if (enableAsymmetricEncryption) {
+                                request = getAsymDecryptedRequest(request);
+                                logger.trace("asymmetric encryption enabled, decrypted request: " + request.toString());
+                            }
 
-                        if (enableSymmetricEncryption) {
-                            request = getDecryptedRequest(request);
-                            logger.trace("symmetric encryption enabled, decrypted request: " + request.toString());
-                        }
+                            if (enableSymmetricEncryption) {
+                                request = getDecryptedRequest(request);
+                                logger.trace("symmetric encryption enabled, decrypted request: " + request.toString());
+                            }
 
-                        final RPCommunication.Request protoRequest = request;
+                            protoRequest = request;
+                            service = serviceMap.get(request.getServiceName());
 
-                        RpcController dummyController = new DummyRpcController();
-                        Service service = serviceMap.get(request.getServiceName());
+                            logger.trace("got service: " + service + " for name " + request.getServiceName());
 
-                        logger.trace("got service: " + service + " for name " + request.getServiceName());
+                            methodToCall = service == null ? null : service
+                                    .getDescriptorForType()
+                                    .findMethodByName(request.getMethodName());
 
-                        Descriptors.MethodDescriptor methodToCall = service
-                                .getDescriptorForType()
-                                .findMethodByName(request.getMethodName());
+                            logger.trace("got method: " + methodToCall + " for name " + request.getMethodName());
+                            if (methodToCall == null) {
+                                logger.warn("request " + request.getRequestId() + " calls unknown method "
+                                        + request.getServiceName() + "." + request.getMethodName());
+                                requestDropped(e.getChannel());
+                                return;
+                            }
 
-                        logger.trace("got method: " + methodToCall + " for name " + request.getMethodName());
+                            methodArguments = service
+                                    .getRequestPrototype(methodToCall)
+                                    .newBuilderForType()
+                                    .mergeFrom(request.getMethodArgument())
+                                    .build();
+                        } catch (IOException ex) {
+                            logger.warn("malformed request", ex);
+                            requestDropped(e.getChannel());
+                            return;
+                        } catch (RuntimeException ex) {
+                            //request that can not be decrypted is not answered
+                            requestDropped(e.getChannel());
+                            throw ex;
+                        }
 
-                        Message methodArguments = service
-                                .getRequestPrototype(methodToCall)
-                                .newBuilderForType()
-                                .mergeFrom(request.getMethodArgument())
-                                .build();
+                        final String methodName = methodToCall.getFullName();
+                        final boolean cached = cache != null && cache.isCached(methodName);
+                        if (cached) {
+                            ByteString response = cache.get(methodName, protoRequest.getMethodArgument());
+                            if (response != null) {
+                                logger.trace("response of " + methodName + " found in cache");
+                                writeResponse(e.getChannel(), protoRequest.getRequestId(), response);
+                                return;
+                            }
+                        }
 
                         logger.trace("get method arguments from request " + methodArguments.toString());
 
+                        RpcController dummyController = new DummyRpcController();
+                        final AtomicBoolean answered = new AtomicBoolean();
                         RpcCallback<Message> callback = new RpcCallback<Message>() {
                             @Override
                             public void run(Message parameter) {
-                                HttpResponse httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-
-                                ByteArrayOutputStream paramOutputStream = new ByteArrayOutputStream();
-                                CodedOutputStream paramCodedOutputStream = CodedOutputStream.newInstance(paramOutputStream);
-                                try {
-                                    parameter.writeTo(paramCodedOutputStream);
-                                    paramCodedOutputStream.flush();
-                                } catch (IOException e1) {
-                                    logger.error("failed to write to output stream");
+                                if (answered.getAndSet(true)) {
+                                    logger.warn("call " + protoRequest.getRequestId() + " of " + methodName
+                                            + " already answered");
+                                    return;
                                 }
-
-                                RPCommunication.Response response = RPCommunication.Response
-                                        .newBuilder()
-                                        .setResponse(ByteString.copyFrom(paramOutputStream.toByteArray()))
-                                        .setRequestId(protoRequest.getRequestId())
-                                        .build();
-
-                                if (enableSymmetricEncryption) {
-                                    response = getEncryptedResponse(response);
-                                    logger.trace("symmetric encryption enabled, encrypted response: " + response.toString());
-                                }
-
-                                if (enableAsymmetricEncryption) {
-                                    response = getAsymEncryptedResponse(response);
-                                    logger.trace("asymmetric encryption enabled, encrypted response: " + response.toString());
+                                if (parameter == null) {
+                                    //http response has no room for error
+                                    logger.warn("call " + protoRequest.getRequestId() + " of " + methodName
+                                            + " failed without response");
+                                    requestDropped(e.getChannel());
+                                    return;
                                 }
-
-                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                                CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(outputStream);
-                                try {
-                                    response.writeTo(codedOutputStream);
-                                    codedOutputStream.flush();
-                                } catch (IOException e1) {
-                                    logger.error("unable to write to output stream", e1);
+                                ByteString response = parameter.toByteString();
+                                if (cached) {
+                                    cache.put(methodName, protoRequest.getMethodArgument(), response);
                                 }
-
-                                byte[] arr = outputStream.toByteArray();
-
-                                ChannelBuffer resp = Base64.encode(ChannelBuffers.copiedBuffer(arr), Base64Dialect.STANDARD);
-
-                                httpResponse.setContent(resp);
-                                httpResponse.addHeader(HttpHeaders.Names.CONTENT_LENGTH, resp.readableBytes());
-                                httpResponse.addHeader(HttpHeaders.Names.CONTENT_TYPE, HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
-
-                                e.getChannel().write(httpResponse);
-                                logger.trace("finishing call, httpResponse sent");
+                                writeResponse(e.getChannel(), protoRequest.getRequestId(), response);
                             }
                         };
+                        if (coalescer != null && coalescer.isCoalesced(methodName)) {
+                            callback = coalescer.join(methodName, protoRequest.getMethodArgument(), dummyController,
+                                    callback);
+                            if (callback == null) {
+                                logger.trace("call " + protoRequest.getRequestId() + " joined running call of "
+                                        + methodName);
+                                return;
+                            }
+                        }
                         logger.trace("calling " + methodToCall.getFullName());
-                        service.callMethod(methodToCall, dummyController, methodArguments, callback);
+                        try {
+                            service.callMethod(methodToCall, dummyController, methodArguments, callback);
+                        } catch (RuntimeException ex) {
+                            //calls that joined this one are still answered
+                            logger.error("call of " + methodName + " failed", ex);
+                            dummyController.setFailed("call of " + methodName + " failed: " + ex);
+                            callback.run(null);
+                        }
                         stopWatch.stop();
                         logger.trace(stopWatch.shortSummary());
                     }
@@ -189,6 +209,50 @@ public class HTTPServer extends Server {
         bootstrap.setPipelineFactory(pipelineFactory);
     }
 
+    /**
+     * @param payload serialized response message
+     */
+    private void writeResponse(Channel channel, long requestId, ByteString payload) {
+        HttpResponse httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+        RPCommunication.Response response = RPCommunication.Response
+                .newBuilder()
+                .setResponse(payload)
+                .setRequestId(requestId)
+                .build();
+
+        if (enableSymmetricEncryption) {
+            response = getEncryptedResponse(response);
+            logger.trace("symmetric encryption enabled, encrypted response: " + response.toString());
+        }
+
+        if (enableAsymmetricEncryption) {
+            response = getAsymEncryptedResponse(response);
+            logger.trace("asymmetric encryption enabled, encrypted response: " + response.toString());
+        }
+
+        final ChannelBuffer resp;
+        try {
+            resp = getHttpContent(response);
+        } catch (IOException e) {
+            logger.error("unable to write to output stream", e);
+            requestDropped(channel);
+            return;
+        }
+
+        httpResponse.setContent(resp);
+        httpResponse.addHeader(HttpHeaders.Names.CONTENT_LENGTH, resp.readableBytes());
+        httpResponse.addHeader(HttpHeaders.Names.CONTENT_TYPE, HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
+
+        channel.write(httpResponse).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                bufferPool.release(resp);
+            }
+        });
+        logger.trace("finishing call, httpResponse sent");
+    }
+
     @Override
     public Logger getLogger() {
         return logger;
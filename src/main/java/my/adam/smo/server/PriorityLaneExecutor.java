@@ -0,0 +1,187 @@
+package my.adam.smo.server;
+
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * executor that keeps waiting tasks in separate queue per lane and runs at most concurrency tasks at a time
+ * on underlying executor, next task is taken from lane chosen by scheduling policy instead of in arrival order.
+ * Strict policy always takes task from first (most important) non empty lane, weighted policy takes from each
+ * non empty lane as many tasks in a row as its weight allows before moving to next, so less important
+ * lanes are slowed down but never starve.
+ */
+public abstract class PriorityLaneExecutor implements Executor, ExternalResourceReleasable {
+    private static final Logger logger = LoggerFactory.getLogger(PriorityLaneExecutor.class);
+
+    private final Executor executor;
+    private final int concurrency;
+    private final int[] weights;
+
+    private final ArrayDeque<Runnable>[] lanes;
+    private final int[] credits;
+    private int running;
+
+    /**
+     * @param executor    executor that runs tasks
+     * @param concurrency number of tasks that can run at the same time, usually thread count of executor
+     * @param laneCount   number of lanes
+     * @param weights     weight of every lane (most important first), null for strict priority
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLaneExecutor(Executor executor, int concurrency, int laneCount, int[] weights) {
+        if (weights != null && weights.length != laneCount) {
+            throw new IllegalArgumentException("expected " + laneCount + " weights, got " + weights.length);
+        }
+        this.executor = executor;
+        this.concurrency = Math.max(concurrency, 1);
+        this.lanes = (ArrayDeque<Runnable>[]) new ArrayDeque<?>[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ArrayDeque<Runnable>();
+        }
+        if (weights != null) {
+            this.weights = new int[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                this.weights[i] = Math.max(weights[i], 1);
+            }
+            this.credits = this.weights.clone();
+        } else {
+            this.weights = null;
+            this.credits = null;
+        }
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return lane of task, 0 is the most important one
+     */
+    protected abstract int getLane(Runnable task);
+
+    @Override
+    public void execute(Runnable task) {
+        int lane = Math.min(Math.max(getLane(task), 0), lanes.length - 1);
+        synchronized (this) {
+            lanes[lane].add(task);
+            if (running >= concurrency) {
+                return;
+            }
+            running++;
+        }
+        startDrain();
+    }
+
+    private void startDrain() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = next();
+                    if (task == null) {
+                        running--;
+                        drained = true;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("task failed", e);
+                }
+            }
+        } finally {
+            if (!drained) {
+                //task threw error, waiting tasks are taken over by new drain so lane does not stall
+                boolean waiting;
+                synchronized (this) {
+                    waiting = hasWaiting();
+                    if (!waiting) {
+                        running--;
+                    }
+                }
+                if (waiting) {
+                    startDrain();
+                }
+            }
+        }
+    }
+
+    private boolean hasWaiting() {
+        for (ArrayDeque<Runnable> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Runnable next() {
+        if (weights == null) {
+            for (ArrayDeque<Runnable> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    return lane.poll();
+                }
+            }
+            return null;
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (credits[i] > 0 && !lanes[i].isEmpty()) {
+                    credits[i]--;
+                    return lanes[i].poll();
+                }
+            }
+            //every waiting lane used its credits, next round
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+        return null;
+    }
+
+    @Override
+    public void releaseExternalResources() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.ByteString;
+import my.adam.smo.common.CallKey;
+import my.adam.smo.common.MethodConfig;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * serialized responses of idempotent methods keyed by method and serialized argument, so repeated call
+ * is answered without calling service and without serializing response again.
+ * <p/>
+ * Size is bounded with W-TinyLFU: new entries go to small LRU window, entry pushed out of window gets into main
+ * LRU only when it was requested more often than entry that main would evict for it. Frequencies are estimated
+ * by count-min sketch of 4 bit counters that are halved from time to time, so old popularity fades.
+ */
+public class ResponseCache {
+    private final Map<String, Long> ttlMillis;
+    private final Map<String, Stats> stats;
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final LinkedHashMap<CallKey, Entry> window = new LinkedHashMap<CallKey, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<CallKey, Entry> main = new LinkedHashMap<CallKey, Entry>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    /**
+     * @param ttlMillis  time to live of responses by full name of cached method, 0 for responses that do not expire
+     * @param maxEntries maximum number of responses of all methods together
+     */
+    public ResponseCache(Map<String, Long> ttlMillis, int maxEntries) {
+        this.ttlMillis = new HashMap<String, Long>(ttlMillis);
+        Map<String, Stats> methodStats = new HashMap<String, Stats>();
+        for (String method : ttlMillis.keySet()) {
+            methodStats.put(method, new Stats());
+        }
+        this.stats = Collections.unmodifiableMap(methodStats);
+        this.windowCapacity = Math.max(1, maxEntries / 100);
+        this.mainCapacity = Math.max(1, maxEntries - windowCapacity);
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * @param methods comma separated full method name and time to live (millis) pairs,
+     *                for example my.package.Service.Method:60000, 0 for responses that do not expire
+     * @return cache of given methods, null when there are none
+     */
+    public static ResponseCache create(String methods, int maxEntries) {
+        Map<String, Long> ttlMillis = MethodConfig.parseValues(methods);
+        return ttlMillis.isEmpty() || maxEntries <= 0 ? null : new ResponseCache(ttlMillis, maxEntries);
+    }
+
+    /**
+     * @param method full name of method
+     */
+    public boolean isCached(String method) {
+        return ttlMillis.containsKey(method);
+    }
+
+    /**
+     * @return serialized response to method called with argument, null if it is not cached or it expired
+     */
+    public ByteString get(String method, ByteString argument) {
+        CallKey key = new CallKey(method, argument);
+        Stats methodStats = stats.get(method);
+        synchronized (this) {
+            sketch.increment(key.hashCode());
+            LinkedHashMap<CallKey, Entry> map = window;
+            Entry entry = map.get(key);
+            if (entry == null) {
+                map = main;
+                entry = map.get(key);
+            }
+            if (entry != null && entry.expiresAt != 0 && entry.expiresAt <= System.currentTimeMillis()) {
+                map.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                methodStats.misses.incrementAndGet();
+                return null;
+            }
+            methodStats.hits.incrementAndGet();
+            return entry.response;
+        }
+    }
+
+    /**
+     * caches serialized response to method called with argument
+     */
+    public void put(String method, ByteString argument, ByteString response) {
+        CallKey key = new CallKey(method, argument);
+        long ttl = ttlMillis.get(method);
+        Entry entry = new Entry(response, ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+        synchronized (this) {
+            if (main.containsKey(key)) {
+                main.put(key, entry);
+                return;
+            }
+            window.put(key, entry);
+            if (window.size() <= windowCapacity) {
+                return;
+            }
+
+            Iterator<Map.Entry<CallKey, Entry>> eldest = window.entrySet().iterator();
+            Map.Entry<CallKey, Entry> candidate = eldest.next();
+            eldest.remove();
+            if (main.size() < mainCapacity) {
+                main.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+
+            Iterator<Map.Entry<CallKey, Entry>> mainEldest = main.entrySet().iterator();
+            CallKey victim = mainEldest.next().getKey();
+            if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.hashCode())) {
+                mainEldest.remove();
+                main.put(candidate.getKey(), candidate.getValue());
+                stats.get(victim.getMethod()).evictions.incrementAndGet();
+            } else {
+                stats.get(candidate.getKey().getMethod()).evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    /**
+     * @return counters by full name of cached method
+     */
+    public Map<String, Stats> getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "response cache of " + size() + " entries " + stats;
+    }
+
+    /**
+     * counters of one cached method
+     */
+    public static final class Stats {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * @return responses removed or not admitted because cache was full, expired ones are not counted
+         */
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        @Override
+        public String toString() {
+            return "hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions();
+        }
+    }
+
+    private static final class Entry {
+        private final ByteString response;
+        /**
+         * 0 for entry that does not expire
+         */
+        private final long expiresAt;
+
+        Entry(ByteString response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * count-min sketch with 4 rows of saturating 4 bit counters (kept in bytes for simplicity),
+     * all counters are halved after 10 increments per entry of cache
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maxEntries - 1)) << 1;
+            this.counters = new byte[DEPTH * width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * Math.max(16, maxEntries);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
@@ -1,18 +1,44 @@
 package my.adam.smo.server;
 
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
 import com.google.protobuf.Service;
+import my.adam.smo.RPCommunication;
 import my.adam.smo.common.AbstractCommunicator;
+import my.adam.smo.common.InboundEnvelope;
+import my.adam.smo.common.VirtualThreads;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.ObjectSizeEstimator;
 import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 
 import javax.crypto.BadPaddingException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The MIT License
@@ -39,12 +65,78 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public abstract class Server extends AbstractCommunicator {
     protected final ServerBootstrap bootstrap = new ServerBootstrap();
+    public static final String DISPATCH_MODE_IO = "io";
+    public static final String DISPATCH_MODE_FIXED = "fixed";
+    public static final String DISPATCH_MODE_FORK_JOIN = "forkjoin";
+    public static final String DISPATCH_MODE_BOUNDED = "bounded";
+    public static final String DISPATCH_MODE_VIRTUAL = "virtual";
+    public static final String PRIORITY_SCHEDULING_NONE = "none";
+    public static final String PRIORITY_SCHEDULING_STRICT = "strict";
+    public static final String PRIORITY_SCHEDULING_WEIGHTED = "weighted";
+    /**
+     * lanes of requests with priority above 0, equal to 0 (not set) and below 0
+     */
+    private static final int PRIORITY_LANE_COUNT = 3;
+
     protected ConcurrentHashMap<String, Service> serviceMap = new ConcurrentHashMap<String, Service>();
+    /**
+     * registered methods indexed by their id, methods are only appended so ids stay valid for connected clients
+     */
+    private volatile RegisteredMethod[] methods = new RegisteredMethod[0];
+    /**
+     * registered methods by full name, for requests that carry names instead of id
+     */
+    private final ConcurrentHashMap<String, RegisteredMethod> methodsByName =
+            new ConcurrentHashMap<String, RegisteredMethod>();
+    private volatile RPCommunication.MethodTable methodTable = RPCommunication.MethodTable.getDefaultInstance();
     protected static final int MAX_FRAME_BYTES_LENGTH = Integer.MAX_VALUE;
 
+    protected int workerCount;
+    private boolean channelFactorySet;
+    private final ChannelGroup boundChannels = new DefaultChannelGroup();
+    private ServerBootstrap localBootstrap;
+
+    @Value("${server_dispatch_mode:io}")
+    protected String dispatchMode;
+    @Value("${server_dispatch_threads:16}")
+    protected int dispatchThreads;
+    @Value("${server_dispatch_ordered:false}")
+    protected boolean dispatchOrdered;
+    @Value("${server_dispatch_max_channel_memory:1048576}")
+    protected long dispatchMaxChannelMemory;
+    @Value("${server_dispatch_max_total_memory:67108864}")
+    protected long dispatchMaxTotalMemory;
+    @Value("${server_priority_scheduling:none}")
+    protected String priorityScheduling;
+    @Value("${server_priority_weights:8,4,1}")
+    protected String priorityWeights;
+    @Value("${server_max_channel_pending_requests:0}")
+    protected int maxChannelPendingRequests;
+    @Value("${server_max_total_pending_requests:0}")
+    protected int maxTotalPendingRequests;
+    @Value("${response_cache_methods:}")
+    protected String responseCacheMethods;
+    @Value("${response_cache_max_entries:10000}")
+    protected int responseCacheMaxEntries;
+    @Value("${server_coalesce_methods:}")
+    protected String coalesceMethods;
+
+    private ExecutionHandler dispatchHandler;
+    private BackpressureHandler backpressureHandler;
+    private ResponseCache responseCache;
+    private boolean responseCacheCreated;
+    private CallCoalescer callCoalescer;
+    private boolean callCoalescerCreated;
+
+    /**
+     * @param sa address to listen on, {@link LocalAddress} makes server reachable in the same jvm
+     *           over local transport that skips network stack
+     */
     public Server start(SocketAddress sa) {
+        bootstrap.setOption("child.writeBufferHighWaterMark", writeBufferHighWaterMark);
+        bootstrap.setOption("child.writeBufferLowWaterMark", writeBufferLowWaterMark);
         try {
-            bootstrap.bind(sa);
+            boundChannels.add(getBootstrap(sa).bind(sa));
             getLogger().trace("server started on " + sa.toString());
         } catch (ChannelException e) {
             getLogger().error("error while starting server ", e);
@@ -52,18 +144,271 @@ public abstract class Server extends AbstractCommunicator {
         return this;
     }
 
+    /**
+     * closes bound channels before releasing threads, blocking transports (oio) do not close them on release
+     */
     public void stop() {
+        boundChannels.close().awaitUninterruptibly();
         bootstrap.releaseExternalResources();
+        synchronized (this) {
+            if (localBootstrap != null) {
+                localBootstrap.releaseExternalResources();
+                localBootstrap = null;
+            }
+            if (dispatchHandler != null) {
+                dispatchHandler.releaseExternalResources();
+                dispatchHandler = null;
+            }
+        }
+        releaseWriteBatchingScheduler();
         getLogger().debug("server stoped");
     }
 
-    public Server register(Service service) {
+    private synchronized ServerBootstrap getBootstrap(SocketAddress sa) {
+        if (sa instanceof LocalAddress) {
+            if (localBootstrap == null) {
+                localBootstrap = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+                localBootstrap.setPipelineFactory(bootstrap.getPipelineFactory());
+            }
+            return localBootstrap;
+        }
+        if (!channelFactorySet) {
+            bootstrap.setFactory(getTransport().newServerChannelFactory(transportBossThreads, workerCount));
+            channelFactorySet = true;
+        }
+        return bootstrap;
+    }
+
+    /**
+     * @return handler that moves decoded requests from I/O threads to dispatch executor,
+     * or null when services are called on I/O threads
+     */
+    protected synchronized ChannelHandler getDispatchHandler() {
+        if (DISPATCH_MODE_IO.equals(dispatchMode)) {
+            return null;
+        }
+        if (dispatchHandler == null) {
+            dispatchHandler = new ExecutionHandler(newDispatchExecutor());
+            getLogger().debug("dispatching requests with " + dispatchMode + " executor, ordered " + dispatchOrdered);
+        }
+        return dispatchHandler;
+    }
+
+    /**
+     * @return handler that stops reading from channels when too many requests wait for response,
+     * or null when number of pending requests is not limited
+     */
+    protected synchronized ChannelHandler getBackpressureHandler() {
+        if (maxChannelPendingRequests <= 0 && maxTotalPendingRequests <= 0) {
+            return null;
+        }
+        if (backpressureHandler == null) {
+            backpressureHandler = new BackpressureHandler(maxChannelPendingRequests, maxTotalPendingRequests);
+        }
+        return backpressureHandler;
+    }
+
+    /**
+     * counts request received from channel that ends without response, so it does not hold its channel
+     * suspended by backpressure
+     */
+    protected void requestDropped(Channel channel) {
+        BackpressureHandler backpressure = (BackpressureHandler) getBackpressureHandler();
+        if (backpressure != null) {
+            backpressure.requestDropped(channel);
+        }
+    }
+
+    /**
+     * @return cache of responses of methods listed in response_cache_methods, null when there are none
+     */
+    public synchronized ResponseCache getResponseCache() {
+        if (!responseCacheCreated) {
+            responseCache = ResponseCache.create(responseCacheMethods, responseCacheMaxEntries);
+            responseCacheCreated = true;
+            if (responseCache != null) {
+                getLogger().debug("caching responses of " + responseCache.getStats().keySet());
+            }
+        }
+        return responseCache;
+    }
+
+    /**
+     * @return single flight of methods listed in server_coalesce_methods, null when there are none
+     */
+    public synchronized CallCoalescer getCallCoalescer() {
+        if (!callCoalescerCreated) {
+            callCoalescer = CallCoalescer.create(coalesceMethods);
+            callCoalescerCreated = true;
+            if (callCoalescer != null) {
+                getLogger().debug("coalescing concurrent calls of " + callCoalescer.getMethods());
+            }
+        }
+        return callCoalescer;
+    }
+
+    private Executor newDispatchExecutor() {
+        if (DISPATCH_MODE_BOUNDED.equals(dispatchMode)) {
+            ObjectSizeEstimator estimator = new DefaultObjectSizeEstimator() {
+                @Override
+                public int estimateSize(Object o) {
+                    if (o instanceof ChannelEventRunnable
+                            && ((ChannelEventRunnable) o).getEvent() instanceof MessageEvent) {
+                        Object message = ((MessageEvent) ((ChannelEventRunnable) o).getEvent()).getMessage();
+                        if (message instanceof InboundEnvelope) {
+                            return ((InboundEnvelope) message).getPayloadLength() + 64;
+                        }
+                        if (message instanceof HttpMessage) {
+                            return ((HttpMessage) message).getContent().readableBytes() + 64;
+                        }
+                    }
+                    return super.estimateSize(o);
+                }
+            };
+            if (dispatchOrdered) {
+                return new OrderedMemoryAwareThreadPoolExecutor(dispatchThreads, dispatchMaxChannelMemory,
+                        dispatchMaxTotalMemory, 30, TimeUnit.SECONDS, estimator, Executors.defaultThreadFactory());
+            }
+            return new MemoryAwareThreadPoolExecutor(dispatchThreads, dispatchMaxChannelMemory,
+                    dispatchMaxTotalMemory, 30, TimeUnit.SECONDS, estimator, Executors.defaultThreadFactory());
+        }
+
+        Executor executor;
+        if (DISPATCH_MODE_FORK_JOIN.equals(dispatchMode)) {
+            executor = newForkJoinPool();
+        } else if (DISPATCH_MODE_VIRTUAL.equals(dispatchMode)) {
+            executor = VirtualThreads.newThreadPerTaskExecutor();
+        } else {
+            if (!DISPATCH_MODE_FIXED.equals(dispatchMode)) {
+                getLogger().warn("unknown dispatch mode " + dispatchMode + ", using " + DISPATCH_MODE_FIXED);
+            }
+            executor = Executors.newFixedThreadPool(dispatchThreads);
+        }
+        if (dispatchOrdered) {
+            if (!PRIORITY_SCHEDULING_NONE.equals(priorityScheduling)) {
+                getLogger().warn("priority scheduling is not used with ordered dispatch");
+            }
+            return new ChannelOrderedExecutor(executor);
+        }
+        return newPriorityLaneExecutor(executor);
+    }
+
+    /**
+     * @return executor that queues requests in lanes by their priority, or given executor when scheduling is off
+     */
+    private Executor newPriorityLaneExecutor(Executor executor) {
+        int[] weights = null;
+        if (PRIORITY_SCHEDULING_WEIGHTED.equals(priorityScheduling)) {
+            String[] split = priorityWeights.split(",");
+            weights = new int[split.length];
+            for (int i = 0; i < split.length; i++) {
+                weights[i] = Integer.parseInt(split[i].trim());
+            }
+        } else if (!PRIORITY_SCHEDULING_STRICT.equals(priorityScheduling)) {
+            if (!PRIORITY_SCHEDULING_NONE.equals(priorityScheduling)) {
+                getLogger().warn("unknown priority scheduling " + priorityScheduling + ", using " + PRIORITY_SCHEDULING_NONE);
+            }
+            return executor;
+        }
+
+        return new PriorityLaneExecutor(executor, dispatchThreads, PRIORITY_LANE_COUNT, weights) {
+            @Override
+            protected int getLane(Runnable task) {
+                if (task instanceof ChannelEventRunnable
+                        && ((ChannelEventRunnable) task).getEvent() instanceof MessageEvent) {
+                    int priority = getPriority(((MessageEvent) ((ChannelEventRunnable) task).getEvent()).getMessage());
+                    return priority > 0 ? 0 : priority == 0 ? 1 : 2;
+                }
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * @return priority of received message, 0 when message has none
+     */
+    protected int getPriority(Object message) {
+        if (message instanceof InboundEnvelope
+                && ((InboundEnvelope) message).getHeader() instanceof RPCommunication.Request) {
+            return ((RPCommunication.Request) ((InboundEnvelope) message).getHeader()).getPriority();
+        }
+        return 0;
+    }
+
+    /**
+     * fork join pool is part of java 7, on older runtime fixed pool is used
+     */
+    private Executor newForkJoinPool() {
+        try {
+            return (Executor) Class.forName("java.util.concurrent.ForkJoinPool")
+                    .getConstructor(int.class)
+                    .newInstance(dispatchThreads);
+        } catch (Exception e) {
+            getLogger().warn("fork join pool is not available, using " + DISPATCH_MODE_FIXED, e);
+            return Executors.newFixedThreadPool(dispatchThreads);
+        }
+    }
+
+    public synchronized Server register(Service service) {
         serviceMap.put(service.getDescriptorForType().getFullName(), service);
+
+        List<RegisteredMethod> registered = new ArrayList<RegisteredMethod>(Arrays.asList(methods));
+        RPCommunication.MethodTable.Builder table = methodTable.toBuilder();
+        for (Descriptors.MethodDescriptor method : service.getDescriptorForType().getMethods()) {
+            RegisteredMethod registeredMethod = new RegisteredMethod(service, method);
+            methodsByName.put(method.getFullName(), registeredMethod);
+            int id = table.getMethodList().indexOf(method.getFullName());
+            if (id >= 0) {
+                registered.set(id, registeredMethod);
+            } else {
+                registered.add(registeredMethod);
+                table.addMethod(method.getFullName());
+            }
+        }
+        methods = registered.toArray(new RegisteredMethod[registered.size()]);
+        methodTable = table.build();
         getLogger().trace("service " + service.getClass().toString()
                 + " registered with name " + service.getDescriptorForType().getFullName());
         return this;
     }
 
+    /**
+     * @return names of registered methods, id of method is its index
+     */
+    public RPCommunication.MethodTable getMethodTable() {
+        return methodTable;
+    }
+
+    /**
+     * @return method with given id, null if there is no such method
+     */
+    protected RegisteredMethod getMethod(int id) {
+        RegisteredMethod[] registered = methods;
+        return id >= 0 && id < registered.length ? registered[id] : null;
+    }
+
+    /**
+     * @return method with given name, null if there is no such method
+     */
+    protected RegisteredMethod getMethod(String serviceName, String methodName) {
+        return methodsByName.get(serviceName + "." + methodName);
+    }
+
+    /**
+     * method of registered service with everything needed to call it
+     */
+    protected static final class RegisteredMethod {
+        public final Service service;
+        public final Descriptors.MethodDescriptor method;
+        public final Message requestPrototype;
+
+        RegisteredMethod(Service service, Descriptors.MethodDescriptor method) {
+            this.service = service;
+            this.method = method;
+            this.requestPrototype = service.getRequestPrototype(method);
+        }
+    }
+
     /**
      * @param e
      * @return true if exception was handled, false otherwise
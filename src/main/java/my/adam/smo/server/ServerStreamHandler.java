@@ -0,0 +1,182 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.Message;
+import my.adam.smo.RPCommunication;
+import my.adam.smo.common.InboundEnvelope;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * streams of one channel, creates controller for every streaming call and handles credit, cancel
+ * and client stream requests on I/O thread, before dispatcher, so they are never stuck behind producer
+ * that waits for credit or service that waits for next message.
+ * <p/>
+ * Messages of stream and credits are written from this handler, so handlers closer to the end of pipeline
+ * ({@link BackpressureHandler}) see only the request and the last response of streaming call.
+ */
+public abstract class ServerStreamHandler extends SimpleChannelUpstreamHandler {
+    private final ConcurrentHashMap<Long, StreamingRpcController> streams = new ConcurrentHashMap<Long, StreamingRpcController>();
+    private final int window;
+    private volatile ChannelHandlerContext ctx;
+
+    /**
+     * @param window messages of client stream that client can send before server grants more
+     */
+    protected ServerStreamHandler(int window) {
+        this.window = window;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        this.ctx = ctx;
+        if (e.getMessage() instanceof InboundEnvelope
+                && ((InboundEnvelope) e.getMessage()).getHeader() instanceof RPCommunication.Request) {
+            InboundEnvelope envelope = (InboundEnvelope) e.getMessage();
+            RPCommunication.Request request = (RPCommunication.Request) envelope.getHeader();
+            if (request.hasStreamCredit() || request.getCancel()) {
+                envelope.release();
+                StreamingRpcController stream = streams.get(request.getRequestId());
+                if (stream == null) {
+                    return;
+                }
+                if (request.getCancel()) {
+                    streams.remove(request.getRequestId());
+                    stream.cancel();
+                } else {
+                    stream.grant(request.getStreamCredit());
+                }
+                return;
+            }
+            if (request.getStreamMessage() || request.getEndOfStream()) {
+                StreamingRpcController stream = streams.get(request.getRequestId());
+                if (stream == null || !stream.isRequestStream()) {
+                    envelope.release();
+                    return;
+                }
+                if (request.getStreamMessage()) {
+                    stream.received(decode(request, envelope, stream.getRequestPrototype()));
+                } else {
+                    envelope.release();
+                    stream.receivedAll();
+                }
+                return;
+            }
+            Message requestPrototype = request.getClientStream() ? getRequestPrototype(request) : null;
+            if (request.hasStreamWindow() || requestPrototype != null) {
+                streams.put(request.getRequestId(), new StreamingRpcController(this, request.getRequestId(),
+                        request.hasStreamWindow() ? request.getStreamWindow() : -1, requestPrototype, window,
+                        Thread.currentThread()));
+                if (requestPrototype != null) {
+                    writeCredit(request.getRequestId(), window);
+                }
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * @return controller of streaming call, null if call is not streaming
+     */
+    public StreamingRpcController get(long requestId) {
+        return streams.get(requestId);
+    }
+
+    /**
+     * ends stream of call, last response is written after messages waiting for credit,
+     * it is not written at all when call was canceled
+     */
+    public void finish(long requestId, Runnable lastResponse) {
+        StreamingRpcController stream = streams.get(requestId);
+        if (stream == null) {
+            lastResponse.run();
+        } else {
+            stream.finish(lastResponse);
+        }
+    }
+
+    void remove(long requestId) {
+        streams.remove(requestId);
+    }
+
+    void write(long requestId, Message message) {
+        RPCommunication.Response header = RPCommunication.Response.newBuilder()
+                .setRequestId(requestId)
+                .setStreamMessage(true)
+                .build();
+        Channels.write(ctx, Channels.future(ctx.getChannel()), encode(header, message));
+    }
+
+    void dropped(long requestId) {
+        dropped(ctx.getChannel(), requestId);
+    }
+
+    void writeCredit(long requestId, int credit) {
+        RPCommunication.Response header = RPCommunication.Response.newBuilder()
+                .setRequestId(requestId)
+                .setStreamCredit(credit)
+                .build();
+        Channels.write(ctx, Channels.future(ctx.getChannel()), header);
+    }
+
+    /**
+     * @return frame with response header and message as its payload
+     */
+    protected abstract Object encode(RPCommunication.Response header, Message message);
+
+    /**
+     * @return message of client stream parsed from payload of envelope, envelope is released
+     */
+    protected abstract Message decode(RPCommunication.Request header, InboundEnvelope envelope, Message prototype)
+            throws Exception;
+
+    /**
+     * @return prototype of request of called method, null if method is unknown
+     */
+    protected abstract Message getRequestPrototype(RPCommunication.Request request);
+
+    /**
+     * request of call ends without response, call was canceled before service answered it
+     */
+    protected abstract void dropped(Channel channel, long requestId);
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        for (Long requestId : streams.keySet()) {
+            StreamingRpcController stream = streams.remove(requestId);
+            if (stream != null) {
+                stream.cancel();
+            }
+        }
+        super.channelClosed(ctx, e);
+    }
+}
@@ -2,14 +2,10 @@ package my.adam.smo.server;
 
 import com.google.protobuf.*;
 import my.adam.smo.RPCommunication;
-import my.adam.smo.common.DummyRpcController;
-import my.adam.smo.common.InjectLogger;
+import my.adam.smo.common.*;
+import my.adam.smo.compression.Compression;
+import my.adam.smo.compression.FrameCodec;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
-import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
-import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
-import org.jboss.netty.handler.codec.protobuf.ProtobufEncoder;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.logging.InternalLogLevel;
 import org.jboss.netty.logging.InternalLoggerFactory;
@@ -20,7 +16,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.StopWatch;
 
 import javax.inject.Inject;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The MIT License
@@ -52,10 +50,7 @@ public class SocketServer extends Server {
 
     @Inject
     public SocketServer(@Value("${server_worker_threads:10}") int workerCount) {
-        bootstrap.setFactory(new NioServerSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool(),
-                workerCount));
+        this.workerCount = workerCount;
 
         ChannelPipelineFactory pipelineFactory = new ChannelPipelineFactory() {
             @Override
@@ -66,78 +61,206 @@ public class SocketServer extends Server {
                     p.addLast("logger", new LoggingHandler(InternalLogLevel.DEBUG));
                 }
 
-                p.addLast("frameEncoder", new LengthFieldPrepender(4));//DownstreamHandler
-                p.addLast("protobufEncoder", new ProtobufEncoder());//DownstreamHandler
+                ChannelHandler writeBatcher = newWriteBatchingHandler();
+                if (writeBatcher != null) {
+                    p.addLast("writeBatcher", writeBatcher);
+                }
+
+                final Compression compression = getCompression();
+                p.addLast("frameEncoder", new EnvelopeEncoder(bufferPool, compression));//DownstreamHandler
+
+                p.addLast("frameDecoder", newFrameDecoder(MAX_FRAME_BYTES_LENGTH));//UpstreamHandler
+                p.addLast("envelopeDecoder", new EnvelopeDecoder(bufferPool, RPCommunication.Request.getDefaultInstance(),
+                        RPCommunication.Request.METHODARGUMENT_FIELD_NUMBER, compression));//UpstreamHandler
+                final ServerStreamHandler streams = new ServerStreamHandler(streamWindow) {
+                    private StreamKey streamKey;
+
+                    @Override
+                    protected Object encode(RPCommunication.Response header, Message message) {
+                        return encodeResponse(header, message, getStreamKey());
+                    }
+
+                    /**
+                     * @return key shared by messages of streams of this connection, null without asymmetric encryption
+                     */
+                    private synchronized StreamKey getStreamKey() {
+                        if (streamKey == null && enableAsymmetricEncryption) {
+                            streamKey = newStreamKey();
+                        }
+                        return streamKey;
+                    }
 
-                p.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES_LENGTH, 0, 4, 0, 4));//UpstreamHandler
-                p.addLast("protobufDecoder", new ProtobufDecoder(RPCommunication.Request.getDefaultInstance()));//UpstreamHandler
+                    @Override
+                    protected Message decode(RPCommunication.Request header, InboundEnvelope envelope,
+                                             Message prototype) throws Exception {
+                        return parseRequest(envelope, header, prototype);
+                    }
+
+                    @Override
+                    protected Message getRequestPrototype(RPCommunication.Request request) {
+                        RegisteredMethod registeredMethod = findMethod(request);
+                        return registeredMethod == null ? null : registeredMethod.requestPrototype;
+                    }
+
+                    @Override
+                    protected void dropped(Channel channel, long requestId) {
+                        logger.trace("call " + requestId + " canceled before it was answered");
+                        requestDropped(channel);
+                    }
+                };
+                p.addLast("streams", streams);//UpstreamHandler
+                p.addLast("batch", new BatchHandler(bufferPool));
+                ChannelHandler backpressure = getBackpressureHandler();
+                if (backpressure != null) {
+                    p.addLast("backpressure", backpressure);
+                }
+                ChannelHandler dispatcher = getDispatchHandler();
+                if (dispatcher != null) {
+                    p.addLast("dispatcher", dispatcher);
+                }
+                final ResponseCache cache = getResponseCache();
+                final CallCoalescer coalescer = getCallCoalescer();
                 p.addLast("handler", new SimpleChannelUpstreamHandler() {
                     @Override
                     public void messageReceived(ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
                         StopWatch stopWatch = new StopWatch("messageReceived");
                         stopWatch.start();
 
-                        RPCommunication.Request request = (RPCommunication.Request) e.getMessage();
+                        InboundEnvelope envelope = (InboundEnvelope) e.getMessage();
+                        RPCommunication.Request request = (RPCommunication.Request) envelope.getHeader();
                         logger.trace("received request:" + request.toString());
 
-                        if (enableAsymmetricEncryption) {
-                            request = getAsymDecryptedRequest(request);
-                            logger.trace("asymmetric encryption enabled, decrypted request: " + request.toString());
+                        if (request.getDescribeMethods()) {
+                            envelope.release();
+                            RPCommunication.Response.Builder handshake = RPCommunication.Response.newBuilder()
+                                    .setRequestId(request.getRequestId());
+                            FrameCodec codec = compression == null ? null : compression.choose(request.getCompressionList());
+                            if (codec != null) {
+                                handshake.setCompression(codec.getName());
+                            }
+                            e.getChannel().write(new OutboundEnvelope(handshake.build(),
+                                    RPCommunication.Response.RESPONSE_FIELD_NUMBER, getMethodTable()));
+                            //response to handshake is not compressed, client can not know codec before it
+                            ((EnvelopeEncoder) ctx.getPipeline().get("frameEncoder")).setCodec(codec);
+                            logger.trace("compressing frames with " + codec);
+                            return;
                         }
 
-                        if (enableSymmetricEncryption) {
-                            request = getDecryptedRequest(request);
-                            logger.trace("symmetric encryption enabled, decrypted request: " + request.toString());
+                        RegisteredMethod registeredMethod = findMethod(request);
+                        if (registeredMethod == null) {
+                            envelope.release();
+                            String reason = "unknown method " + (request.hasMethodId() ? "id " + request.getMethodId()
+                                    : request.getServiceName() + "." + request.getMethodName());
+                            logger.warn("request " + request.getRequestId() + " calls " + reason);
+                            //every request is answered, call of batch is awaited by the rest of it
+                            writeException(e.getChannel(), streams, request.getRequestId(), reason);
+                            return;
                         }
+                        Service service = registeredMethod.service;
+                        Descriptors.MethodDescriptor methodToCall = registeredMethod.method;
+                        final long requestId = request.getRequestId();
+                        final StreamingRpcController stream = streams.get(requestId);
 
-                        final RPCommunication.Request protoRequest = request;
-
-                        RpcController dummyController = new DummyRpcController();
-                        Service service = serviceMap.get(request.getServiceName());
-
-                        logger.trace("got service: " + service + " for name " + request.getServiceName());
-
-                        Descriptors.MethodDescriptor methodToCall = service
-                                .getDescriptorForType()
-                                .findMethodByName(request.getMethodName());
-
-                        logger.trace("got method: " + methodToCall + " for name " + request.getMethodName());
-
-                        Message methodArguments = service
-                                .getRequestPrototype(methodToCall)
-                                .newBuilderForType()
-                                .mergeFrom(request.getMethodArgument())
-                                .build();
+                        final boolean cached = stream == null && cache != null
+                                && cache.isCached(methodToCall.getFullName());
+                        boolean coalesced = stream == null && coalescer != null
+                                && coalescer.isCoalesced(methodToCall.getFullName());
+                        final ByteString argument;
+                        Message methodArguments;
+                        try {
+                            if (cached || coalesced) {
+                                argument = readRequest(envelope, request);
+                                ByteString response = cached ? cache.get(methodToCall.getFullName(), argument) : null;
+                                if (response != null) {
+                                    logger.trace("response of " + methodToCall.getFullName() + " found in cache");
+                                    e.getChannel().write(encodeResponse(RPCommunication.Response.newBuilder()
+                                            .setRequestId(requestId)
+                                            .setResponse(response)
+                                            .build()));
+                                    return;
+                                }
+                                methodArguments = registeredMethod.requestPrototype
+                                        .newBuilderForType()
+                                        .mergeFrom(argument)
+                                        .build();
+                            } else {
+                                argument = null;
+                                methodArguments = parseRequest(envelope, request, registeredMethod.requestPrototype);
+                            }
+                        } catch (IOException ex) {
+                            logger.warn("request " + requestId + " has malformed argument", ex);
+                            writeException(e.getChannel(), streams, requestId,
+                                    "malformed argument of " + methodToCall.getFullName() + ": " + ex.getMessage());
+                            return;
+                        } catch (RuntimeException ex) {
+                            //request that can not be decrypted, it is still answered
+                            writeException(e.getChannel(), streams, requestId,
+                                    "unable to read argument of " + methodToCall.getFullName());
+                            throw ex;
+                        }
 
                         logger.trace("get method arguments from request " + methodArguments.toString());
 
+                        final RpcController controller = stream != null ? stream : new DummyRpcController();
+                        final Descriptors.MethodDescriptor method = methodToCall;
+
+                        final AtomicBoolean answered = new AtomicBoolean();
                         RpcCallback<Message> callback = new RpcCallback<Message>() {
                             @Override
                             public void run(Message parameter) {
-                                RPCommunication.Response response = RPCommunication
+                                if (answered.getAndSet(true)) {
+                                    logger.warn("call " + requestId + " of " + method.getFullName()
+                                            + " already answered");
+                                    return;
+                                }
+                                RPCommunication.Response.Builder response = RPCommunication
                                         .Response
                                         .newBuilder()
-                                        .setResponse(parameter.toByteString())
-                                        .setRequestId(protoRequest.getRequestId())
-                                        .build();
-
-                                //encryption
-                                if (enableSymmetricEncryption) {
-                                    response = getEncryptedResponse(response);
-                                    logger.trace("symmetric encryption enabled, encrypted response: " + response.toString());
+                                        .setRequestId(requestId);
+                                if (parameter == null) {
+                                    response.setException(controller.failed() && controller.errorText() != null
+                                            ? controller.errorText() : "call of " + method.getFullName() + " failed");
                                 }
 
-                                if (enableAsymmetricEncryption) {
-                                    response = getAsymEncryptedResponse(response);
-                                    logger.trace("asymmetric encryption enabled, encrypted response: " + response.toString());
+                                final Object outbound;
+                                if (cached && parameter != null) {
+                                    ByteString bytes = parameter.toByteString();
+                                    cache.put(method.getFullName(), argument, bytes);
+                                    outbound = encodeResponse(response.setResponse(bytes).build());
+                                } else {
+                                    outbound = encodeResponse(response.build(), parameter);
+                                }
+                                Runnable write = new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        e.getChannel().write(outbound);
+                                        logger.trace("finishing call, response sent");
+                                    }
+                                };
+                                if (stream != null) {
+                                    //canceled stream is already removed from handler, but its response is dropped
+                                    stream.finish(write);
+                                } else {
+                                    write.run();
                                 }
-
-                                e.getChannel().write(response);
-                                logger.trace("finishing call, response sent");
                             }
                         };
+                        if (coalesced) {
+                            callback = coalescer.join(methodToCall.getFullName(), argument, controller, callback);
+                            if (callback == null) {
+                                logger.trace("call " + requestId + " joined running call of " + methodToCall.getFullName());
+                                return;
+                            }
+                        }
                         logger.trace("calling " + methodToCall.getFullName());
-                        service.callMethod(methodToCall, dummyController, methodArguments, callback);
+                        try {
+                            service.callMethod(methodToCall, controller, methodArguments, callback);
+                        } catch (RuntimeException ex) {
+                            //call is answered, calls that joined it too
+                            logger.error("call of " + methodToCall.getFullName() + " failed", ex);
+                            controller.setFailed("call of " + methodToCall.getFullName() + " failed: " + ex);
+                            callback.run(null);
+                        }
                         stopWatch.stop();
                         logger.trace(stopWatch.shortSummary());
                     }
@@ -155,6 +278,139 @@ public class SocketServer extends Server {
         bootstrap.setPipelineFactory(pipelineFactory);
     }
 
+    /**
+     * answers request that is not called with exception, after messages of its stream if it has one
+     */
+    private void writeException(final Channel channel, ServerStreamHandler streams, long requestId, String reason) {
+        final Object response = encodeResponse(RPCommunication.Response.newBuilder()
+                .setRequestId(requestId)
+                .setException(reason)
+                .build(), null);
+        streams.finish(requestId, new Runnable() {
+            @Override
+            public void run() {
+                channel.write(response);
+            }
+        });
+    }
+
+    /**
+     * @return method called by request, by id or by name, null if it is not registered
+     */
+    private RegisteredMethod findMethod(RPCommunication.Request request) {
+        if (request.hasMethodId()) {
+            return getMethod(request.getMethodId());
+        }
+        RegisteredMethod method = getMethod(request.getServiceName(), request.getMethodName());
+        logger.trace("got method: " + (method == null ? null : method.method) + " for name "
+                + request.getServiceName() + "." + request.getMethodName());
+        return method;
+    }
+
+    /**
+     * parses payload of request and releases envelope
+     */
+    private Message parseRequest(InboundEnvelope envelope, RPCommunication.Request request, Message prototype)
+            throws IOException {
+        if (!isEncryptionEnabled()) {
+            try {
+                return envelope.parsePayload(prototype);
+            } finally {
+                envelope.release();
+            }
+        }
+        return prototype
+                .newBuilderForType()
+                .mergeFrom(readRequest(envelope, request))
+                .build();
+    }
+
+    /**
+     * @return serialized (decrypted) payload of request, envelope is released
+     */
+    private ByteString readRequest(InboundEnvelope envelope, RPCommunication.Request request) {
+        try {
+            if (!isEncryptionEnabled()) {
+                return envelope.getPayload();
+            }
+            request = request.toBuilder().setMethodArgument(envelope.getPayload()).build();
+
+            if (enableAsymmetricEncryption) {
+                request = getAsymDecryptedRequest(request);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("asymmetric encryption enabled, decrypted request: " + request.toString());
+                }
+            }
+
+            if (enableSymmetricEncryption) {
+                request = getDecryptedRequest(request);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("symmetric encryption enabled, decrypted request: " + request.toString());
+                }
+            }
+            return request.getMethodArgument();
+        } finally {
+            envelope.release();
+        }
+    }
+
+    /**
+     * @param payload response message, null for response without payload (failed call)
+     * @return frame with payload, encrypted when encryption is enabled
+     */
+    private Object encodeResponse(RPCommunication.Response response, Message payload) {
+        return encodeResponse(response, payload, null);
+    }
+
+    /**
+     * @param key key of asymmetric encryption shared by messages of stream, null for key of response's own
+     */
+    private Object encodeResponse(RPCommunication.Response response, Message payload, StreamKey key) {
+        if (!isEncryptionEnabled()) {
+            return new OutboundEnvelope(response, RPCommunication.Response.RESPONSE_FIELD_NUMBER, payload);
+        }
+        if (payload == null) {
+            return response;
+        }
+        return encryptResponse(response.toBuilder().setResponse(payload.toByteString()).build(), key);
+    }
+
+    /**
+     * @param response response with already serialized payload
+     * @return response encrypted when encryption is enabled, every response is encrypted with its own key
+     * (asymmetric encryption), so only payload can be reused
+     */
+    private RPCommunication.Response encodeResponse(RPCommunication.Response response) {
+        return encryptResponse(response, null);
+    }
+
+    /**
+     * @param key key of asymmetric encryption shared by messages of stream, null for key of response's own
+     */
+    private RPCommunication.Response encryptResponse(RPCommunication.Response response, StreamKey key) {
+        if (enableSymmetricEncryption) {
+            response = getEncryptedResponse(response);
+            if (logger.isTraceEnabled()) {
+                logger.trace("symmetric encryption enabled, encrypted response: " + response.toString());
+            }
+        }
+
+        if (enableAsymmetricEncryption) {
+            response = key == null ? getAsymEncryptedResponse(response) : getAsymEncryptedResponse(response, key);
+            if (logger.isTraceEnabled()) {
+                logger.trace("asymmetric encryption enabled, encrypted response: " + response.toString());
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public Server start(SocketAddress sa) {
+        bootstrap.setOption("child.bufferFactory", bufferPool);
+        bootstrap.setOption("child.tcpNoDelay", tcpNoDelay);
+        return super.start(sa);
+    }
+
     @Override
     public Logger getLogger() {
         return logger;
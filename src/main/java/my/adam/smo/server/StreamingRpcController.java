@@ -0,0 +1,440 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import org.jboss.netty.util.internal.DeadLockProofWorker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * controller of call that streams its response or its request, service gets it instead of ordinary controller
+ * when client made streaming call, so service that supports streaming checks controller type:
+ * <pre>
+ * if (controller instanceof StreamingRpcController &amp;&amp; ((StreamingRpcController) controller).isResponseStream()) {
+ *     StreamingRpcController stream = (StreamingRpcController) controller;
+ *     for (Result result : results) {
+ *         if (!stream.send(result)) {
+ *             return; //client canceled or disconnected
+ *         }
+ *     }
+ * }
+ * done.run(lastResult);
+ * </pre>
+ * Messages are of method response type, call (and stream) ends when done callback is run, done with null
+ * ends it with error taken from {@link #setFailed(String)}. Call canceled before done callback is run is not
+ * answered anymore, so service can return without running it (done callback run later is ignored).
+ * <p/>
+ * Server sends only as many messages as client granted (credit), {@link #send(Message)} waits for credit,
+ * except on I/O thread (server_dispatch_mode=io) where it can not wait, so messages over credit are queued there.
+ * Producer that runs on I/O thread and wants to keep memory constant sends while {@link #isReady()}
+ * and continues from {@link #notifyOnReady(Runnable)}.
+ * <p/>
+ * Client stream ({@link #isRequestStream()}) is sequence of messages of method request type, request of call
+ * is the first of them. Service takes the rest with {@link #receive()} or gets them in
+ * {@link #setMessageCallback(RpcCallback)} and runs done callback after the last one. Client sends only window
+ * of messages that were not consumed yet, so service that consumes slowly holds at most window of them in memory.
+ */
+public class StreamingRpcController implements RpcController {
+    private final ServerStreamHandler streams;
+    private final long requestId;
+    private final Thread ioThread;
+    private final boolean responseStream;
+    private final Message requestPrototype;
+    private final int window;
+
+    private int credits;
+    private final ArrayDeque<Message> queued = new ArrayDeque<Message>();
+    private Runnable lastResponse;
+    private boolean finished;
+    private boolean canceled;
+    private volatile boolean failed;
+    private volatile String errorText;
+    private final List<RpcCallback<Object>> cancelCallbacks = new ArrayList<RpcCallback<Object>>();
+    private final List<Runnable> readyCallbacks = new ArrayList<Runnable>();
+
+    private final ArrayDeque<Message> received = new ArrayDeque<Message>();
+    private boolean receivedAll;
+    private boolean endDelivered;
+    private RpcCallback<Message> messageCallback;
+    private boolean delivering;
+    private int consumed;
+
+    /**
+     * @param credits          messages that can be sent before client grants more, negative if client does not
+     *                         expect stream of responses
+     * @param requestPrototype prototype of messages of client stream, null if client does not stream
+     * @param window           messages of client stream granted at once
+     * @param ioThread         thread that reads channel of call, it delivers credit so it can never wait for it
+     */
+    StreamingRpcController(ServerStreamHandler streams, long requestId, int credits, Message requestPrototype,
+                           int window, Thread ioThread) {
+        this.streams = streams;
+        this.requestId = requestId;
+        this.responseStream = credits >= 0;
+        this.credits = Math.max(credits, 0);
+        this.requestPrototype = requestPrototype;
+        this.window = window;
+        this.ioThread = ioThread;
+    }
+
+    /**
+     * @return true if client expects stream of responses
+     */
+    public boolean isResponseStream() {
+        return responseStream;
+    }
+
+    /**
+     * @return true if client sends stream of requests
+     */
+    public boolean isRequestStream() {
+        return requestPrototype != null;
+    }
+
+    /**
+     * sends message of stream, waits until client grants credit for it
+     *
+     * @return false if message was not sent because call was canceled, connection lost or call already finished
+     */
+    public boolean send(Message message) {
+        if (!responseStream) {
+            throw new IllegalStateException("client of call " + requestId + " does not expect stream of responses");
+        }
+        synchronized (this) {
+            if (canceled || finished) {
+                return false;
+            }
+            if (queued.isEmpty() && credits > 0) {
+                credits--;
+                streams.write(requestId, message);
+                return true;
+            }
+            if (!canWait()) {
+                queued.add(message);
+                return true;
+            }
+            try {
+                while (!canceled && (credits == 0 || !queued.isEmpty())) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (canceled) {
+                return false;
+            }
+            credits--;
+            streams.write(requestId, message);
+            return true;
+        }
+    }
+
+    private boolean canWait() {
+        return Thread.currentThread() != ioThread && DeadLockProofWorker.PARENT.get() == null;
+    }
+
+    /**
+     * @return true if next message can be sent without waiting or queueing
+     */
+    public synchronized boolean isReady() {
+        return !canceled && !finished && credits > 0 && queued.isEmpty();
+    }
+
+    /**
+     * @param callback run once when next message can be sent without waiting, right away if it can be sent now
+     */
+    public void notifyOnReady(Runnable callback) {
+        synchronized (this) {
+            if (!isReady()) {
+                readyCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * client granted more messages, queued messages are sent first
+     */
+    void grant(int count) {
+        List<Runnable> ready;
+        synchronized (this) {
+            credits += count;
+            while (credits > 0 && !queued.isEmpty()) {
+                credits--;
+                streams.write(requestId, queued.poll());
+            }
+            if (queued.isEmpty() && lastResponse != null) {
+                streams.remove(requestId);
+                lastResponse.run();
+                lastResponse = null;
+            }
+            notifyAll();
+            if (!isReady() || readyCallbacks.isEmpty()) {
+                return;
+            }
+            ready = new ArrayList<Runnable>(readyCallbacks);
+            readyCallbacks.clear();
+        }
+        for (Runnable callback : ready) {
+            callback.run();
+        }
+    }
+
+    /**
+     * ends stream, last response is written after queued messages, stream stays in handler until then
+     */
+    void finish(Runnable response) {
+        synchronized (this) {
+            if (canceled) {
+                //request was already counted as dropped when call was canceled
+                return;
+            }
+            finished = true;
+            readyCallbacks.clear();
+            if (!queued.isEmpty()) {
+                lastResponse = response;
+                return;
+            }
+        }
+        streams.remove(requestId);
+        response.run();
+    }
+
+    /**
+     * client canceled call or connection was lost, messages that were not sent or not consumed are dropped
+     */
+    void cancel() {
+        List<RpcCallback<Object>> callbacks;
+        boolean dropped;
+        synchronized (this) {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            dropped = !finished;
+            queued.clear();
+            received.clear();
+            receivedAll = true;
+            readyCallbacks.clear();
+            if (lastResponse != null) {
+                //call is answered, so it is not counted as pending anymore
+                lastResponse.run();
+                lastResponse = null;
+            }
+            notifyAll();
+            callbacks = new ArrayList<RpcCallback<Object>>(cancelCallbacks);
+        }
+        if (dropped) {
+            //call will not be answered, done callback run after cancel is ignored
+            streams.dropped(requestId);
+        }
+        for (RpcCallback<Object> callback : callbacks) {
+            callback.run(null);
+        }
+        deliver();
+    }
+
+    /**
+     * takes next message of client stream, waits until it comes, can not be used together with message callback
+     *
+     * @return next message, null after the last one or when call was canceled
+     */
+    public Message receive() {
+        Message message;
+        synchronized (this) {
+            checkRequestStream();
+            if (messageCallback != null) {
+                throw new IllegalStateException("messages of call " + requestId + " are passed to callback");
+            }
+            try {
+                while (received.isEmpty() && !receivedAll) {
+                    if (!canWait()) {
+                        throw new IllegalStateException("can not wait for message on I/O thread, use message callback");
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            message = received.poll();
+        }
+        if (message != null) {
+            consumed();
+        }
+        return message;
+    }
+
+    /**
+     * @param callback run for every message of client stream in order and with null after the last one
+     *                 (or when call was canceled), on I/O thread or on thread that sets it when messages
+     *                 came before, message is granted again to client when callback returns
+     */
+    public void setMessageCallback(RpcCallback<Message> callback) {
+        synchronized (this) {
+            checkRequestStream();
+            messageCallback = callback;
+        }
+        deliver();
+    }
+
+    private void checkRequestStream() {
+        if (requestPrototype == null) {
+            throw new IllegalStateException("client of call " + requestId + " does not stream requests");
+        }
+    }
+
+    Message getRequestPrototype() {
+        return requestPrototype;
+    }
+
+    /**
+     * next message of client stream came
+     */
+    void received(Message message) {
+        synchronized (this) {
+            if (receivedAll) {
+                return;
+            }
+            received.add(message);
+            notifyAll();
+        }
+        deliver();
+    }
+
+    /**
+     * client sent all messages of its stream
+     */
+    void receivedAll() {
+        synchronized (this) {
+            receivedAll = true;
+            notifyAll();
+        }
+        deliver();
+    }
+
+    /**
+     * passes received messages to callback, one thread at a time so they are never reordered
+     */
+    private void deliver() {
+        while (true) {
+            RpcCallback<Message> callback;
+            Message message;
+            synchronized (this) {
+                if (messageCallback == null || delivering) {
+                    return;
+                }
+                if (!received.isEmpty()) {
+                    message = received.poll();
+                } else if (receivedAll && !endDelivered) {
+                    endDelivered = true;
+                    message = null;
+                } else {
+                    return;
+                }
+                callback = messageCallback;
+                delivering = true;
+            }
+            try {
+                callback.run(message);
+            } finally {
+                synchronized (this) {
+                    delivering = false;
+                }
+            }
+            if (message != null) {
+                consumed();
+            }
+        }
+    }
+
+    /**
+     * grants consumed messages again to client, credit is sent when half of window was consumed
+     */
+    private void consumed() {
+        int credit;
+        synchronized (this) {
+            consumed++;
+            if (receivedAll || consumed < Math.max(window / 2, 1)) {
+                return;
+            }
+            credit = consumed;
+            consumed = 0;
+        }
+        streams.writeCredit(requestId, credit);
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("controller of server call can not be reset");
+    }
+
+    @Override
+    public boolean failed() {
+        return failed;
+    }
+
+    @Override
+    public String errorText() {
+        return errorText;
+    }
+
+    /**
+     * cancelation is started by client, server can only end stream
+     */
+    @Override
+    public void startCancel() {
+        throw new UnsupportedOperationException("server can not cancel call");
+    }
+
+    @Override
+    public void setFailed(String reason) {
+        errorText = reason;
+        failed = true;
+    }
+
+    @Override
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public void notifyOnCancel(RpcCallback<Object> callback) {
+        synchronized (this) {
+            if (!canceled) {
+                cancelCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run(null);
+    }
+}
@@ -0,0 +1,324 @@
+package my.adam.smo.transport;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jboss.netty.channel.Channels.*;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * connection over shared memory file, one thread of channel factory executor serves it while it is open:
+ * it reads received bytes and passes them to pipeline, writes what did not fit into full ring
+ * and waits with wait strategy of transport when there is nothing to do.
+ * Writes are copied to ring by writing thread and never wait for free space.
+ */
+final class SharedMemoryChannel extends AbstractChannel {
+    private static final int MAX_READ_BYTES = 65536;
+
+    private static final int ST_OPEN = 0;
+    private static final int ST_CONNECTED = 1;
+    private static final int ST_CLOSED = -1;
+    private final AtomicInteger state = new AtomicInteger(ST_OPEN);
+
+    private final SharedMemoryTransport transport;
+    private final Executor executor;
+    private final ChannelConfig config = new DefaultChannelConfig();
+
+    private final Queue<MessageEvent> writeQueue = new ConcurrentLinkedQueue<MessageEvent>();
+    private MessageEvent currentWrite;
+    private ChannelBuffer currentBuffer;
+
+    private volatile SharedMemoryFile file;
+    private volatile SocketAddress localAddress;
+    private volatile SocketAddress remoteAddress;
+
+    /**
+     * client channel, connected by {@link #connect(SocketAddress, ChannelFuture)}
+     */
+    SharedMemoryChannel(ChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink,
+                        SharedMemoryTransport transport, Executor executor) {
+        super(null, factory, pipeline, sink);
+        this.transport = transport;
+        this.executor = executor;
+        init();
+    }
+
+    /**
+     * server side of connection created by client
+     */
+    SharedMemoryChannel(SharedMemoryServerChannel parent, ChannelPipeline pipeline, ChannelSink sink,
+                        SharedMemoryTransport transport, Executor executor, SharedMemoryFile file) {
+        super(parent, parent.getFactory(), pipeline, sink);
+        this.transport = transport;
+        this.executor = executor;
+        this.file = file;
+        this.localAddress = parent.getLocalAddress();
+        this.remoteAddress = new InetSocketAddress(0);
+        init();
+    }
+
+    private void init() {
+        getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                state.set(ST_CLOSED);
+            }
+        });
+        fireChannelOpen(this);
+    }
+
+    @Override
+    public ChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return state.get() >= ST_OPEN;
+    }
+
+    @Override
+    public boolean isBound() {
+        return state.get() == ST_CONNECTED;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return state.get() == ST_CONNECTED;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    protected boolean setClosed() {
+        return super.setClosed();
+    }
+
+    @Override
+    protected void setInterestOpsNow(int interestOps) {
+        super.setInterestOpsNow(interestOps);
+    }
+
+    void connect(SocketAddress remoteAddress, ChannelFuture future) {
+        File directory = transport.getDirectory(remoteAddress);
+        if (!SharedMemoryServerChannel.isListening(directory)) {
+            future.setFailure(new ConnectException("connection refused: " + remoteAddress));
+            closeNow(succeededFuture(this));
+            return;
+        }
+
+        try {
+            file = SharedMemoryFile.create(directory, transport.getRingCapacity());
+        } catch (IOException e) {
+            future.setFailure(e);
+            fireExceptionCaught(this, e);
+            closeNow(succeededFuture(this));
+            return;
+        }
+        this.localAddress = new InetSocketAddress(0);
+        this.remoteAddress = remoteAddress;
+        start(future);
+    }
+
+    /**
+     * starts serving connection, client channel is connected when server accepts it
+     *
+     * @param connectFuture future of client connect, null for accepted channel
+     */
+    void start(final ChannelFuture connectFuture) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (connectFuture == null || awaitAccepted(connectFuture)) {
+                        serve();
+                    }
+                } catch (Throwable t) {
+                    fireExceptionCaught(SharedMemoryChannel.this, t);
+                    closeNow(succeededFuture(SharedMemoryChannel.this));
+                }
+            }
+        });
+    }
+
+    private boolean awaitAccepted(ChannelFuture connectFuture) {
+        long deadline = System.currentTimeMillis() + config.getConnectTimeoutMillis();
+        int idleCount = 0;
+        while (!file.isAccepted()) {
+            if (!isOpen()) {
+                connectFuture.setFailure(new ClosedChannelException());
+                return false;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                ConnectException e = new ConnectException("connection timed out: " + remoteAddress);
+                connectFuture.setFailure(e);
+                fireExceptionCaught(this, e);
+                closeNow(succeededFuture(this));
+                return false;
+            }
+            transport.idle(idleCount++);
+        }
+        return setConnected(connectFuture);
+    }
+
+    boolean setConnected(ChannelFuture future) {
+        if (!state.compareAndSet(ST_OPEN, ST_CONNECTED)) {
+            future.setFailure(new ClosedChannelException());
+            return false;
+        }
+        future.setSuccess();
+        fireChannelBound(this, localAddress);
+        fireChannelConnected(this, remoteAddress);
+        return true;
+    }
+
+    private void serve() {
+        SharedMemoryRing in = file.getIn();
+        int idleCount = 0;
+        while (isOpen()) {
+            boolean busy = flush();
+            if (isReadable()) {
+                ChannelBuffer received = in.read(config.getBufferFactory(), MAX_READ_BYTES);
+                if (received != null) {
+                    busy = true;
+                    fireMessageReceived(this, received);
+                }
+            }
+
+            if (busy) {
+                idleCount = 0;
+            } else if (file.isPeerClosed() && (in.isEmpty() || !isReadable())) {
+                closeNow(succeededFuture(this));
+            } else {
+                transport.idle(idleCount++);
+            }
+        }
+    }
+
+    void write(MessageEvent e) {
+        if (!isOpen()) {
+            e.getFuture().setFailure(new ClosedChannelException());
+            return;
+        }
+        writeQueue.offer(e);
+        if (isConnected()) {
+            flush();
+        } else if (!isOpen()) {
+            failWrites();
+        }
+    }
+
+    /**
+     * copies queued writes to ring until it is full
+     *
+     * @return true if anything was written
+     */
+    private boolean flush() {
+        int written = 0;
+        synchronized (writeQueue) {
+            while (true) {
+                if (currentWrite == null) {
+                    currentWrite = writeQueue.poll();
+                    if (currentWrite == null) {
+                        break;
+                    }
+                    currentBuffer = ((ChannelBuffer) currentWrite.getMessage()).duplicate();
+                }
+
+                written += file.getOut().write(currentBuffer);
+                if (currentBuffer.readable()) {
+                    break;
+                }
+
+                MessageEvent done = currentWrite;
+                currentWrite = null;
+                currentBuffer = null;
+                done.getFuture().setSuccess();
+            }
+        }
+        if (written > 0) {
+            fireWriteComplete(this, written);
+        }
+        return written > 0;
+    }
+
+    void closeNow(ChannelFuture future) {
+        boolean connected = isConnected();
+        if (!setClosed()) {
+            future.setSuccess();
+            return;
+        }
+
+        if (file != null) {
+            file.close();
+            if (getParent() != null) {
+                ((SharedMemoryServerChannel) getParent()).remove(file);
+            }
+        }
+        failWrites();
+
+        future.setSuccess();
+        if (connected) {
+            fireChannelDisconnected(this);
+            fireChannelUnbound(this);
+        }
+        fireChannelClosed(this);
+    }
+
+    private void failWrites() {
+        synchronized (writeQueue) {
+            ClosedChannelException cause = new ClosedChannelException();
+            if (currentWrite != null) {
+                currentWrite.getFuture().setFailure(cause);
+                currentWrite = null;
+                currentBuffer = null;
+            }
+            MessageEvent e;
+            while ((e = writeQueue.poll()) != null) {
+                e.getFuture().setFailure(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package my.adam.smo.transport;
+
+import org.jboss.netty.channel.*;
+
+import java.net.SocketAddress;
+
+import static org.jboss.netty.channel.Channels.fireChannelInterestChanged;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * executes requests of shared memory server and client channels
+ */
+final class SharedMemoryChannelSink extends AbstractChannelSink {
+
+    @Override
+    public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) throws Exception {
+        Channel channel = e.getChannel();
+        if (channel instanceof SharedMemoryServerChannel) {
+            serverEventSunk((SharedMemoryServerChannel) channel, e);
+        } else if (e instanceof MessageEvent) {
+            ((SharedMemoryChannel) channel).write((MessageEvent) e);
+        } else if (e instanceof ChannelStateEvent) {
+            channelEventSunk((SharedMemoryChannel) channel, (ChannelStateEvent) e);
+        }
+    }
+
+    private void serverEventSunk(SharedMemoryServerChannel channel, ChannelEvent e) {
+        if (!(e instanceof ChannelStateEvent)) {
+            return;
+        }
+        ChannelStateEvent event = (ChannelStateEvent) e;
+        ChannelFuture future = event.getFuture();
+        Object value = event.getValue();
+        switch (event.getState()) {
+            case OPEN:
+                if (Boolean.FALSE.equals(value)) {
+                    channel.closeNow(future);
+                }
+                break;
+            case BOUND:
+                if (value != null) {
+                    channel.bind((SocketAddress) value, future);
+                } else {
+                    channel.closeNow(future);
+                }
+                break;
+            default:
+                future.setSuccess();
+        }
+    }
+
+    private void channelEventSunk(SharedMemoryChannel channel, ChannelStateEvent event) {
+        ChannelFuture future = event.getFuture();
+        Object value = event.getValue();
+        switch (event.getState()) {
+            case OPEN:
+                if (Boolean.FALSE.equals(value)) {
+                    channel.closeNow(future);
+                }
+                break;
+            case BOUND:
+                if (value == null) {
+                    channel.closeNow(future);
+                } else {
+                    //local address has no meaning for shared memory
+                    future.setSuccess();
+                }
+                break;
+            case CONNECTED:
+                if (value != null) {
+                    channel.connect((SocketAddress) value, future);
+                } else {
+                    channel.closeNow(future);
+                }
+                break;
+            case INTEREST_OPS:
+                channel.setInterestOpsNow((Integer) value);
+                future.setSuccess();
+                fireChannelInterestChanged(channel);
+                break;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package my.adam.smo.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * memory mapped file of one shared memory connection, header with connection state is followed by ring
+ * for data sent by client and ring for data sent by server. Client creates file under temporary name
+ * and renames it when it is ready, so server never sees file that is not initialized.
+ */
+final class SharedMemoryFile {
+    static final String SUFFIX = ".ring";
+
+    private static final int ACCEPTED_OFFSET = 0;
+    private static final int CLIENT_CLOSED_OFFSET = 8;
+    private static final int SERVER_CLOSED_OFFSET = 16;
+    private static final int CAPACITY_OFFSET = 24;
+    private static final int HEADER_SIZE = 128;
+
+    private final File file;
+    private final ByteBuffer header;
+    private final boolean client;
+    private final SharedMemoryRing in;
+    private final SharedMemoryRing out;
+    private volatile int fence;
+
+    private SharedMemoryFile(File file, MappedByteBuffer map, int capacity, boolean client) {
+        this.file = file;
+        this.header = map.duplicate().order(ByteOrder.nativeOrder());
+        this.client = client;
+
+        SharedMemoryRing clientRing = new SharedMemoryRing(this, map, HEADER_SIZE, capacity);
+        SharedMemoryRing serverRing = new SharedMemoryRing(this, map, HEADER_SIZE + SharedMemoryRing.size(capacity),
+                capacity);
+        this.in = client ? serverRing : clientRing;
+        this.out = client ? clientRing : serverRing;
+    }
+
+    /**
+     * creates client side of new connection in directory of server
+     */
+    static SharedMemoryFile create(File directory, int capacity) throws IOException {
+        File tmp = File.createTempFile("connection", ".tmp", directory);
+        MappedByteBuffer map = map(tmp, HEADER_SIZE + 2 * SharedMemoryRing.size(capacity));
+        map.putInt(CAPACITY_OFFSET, capacity);
+        map.force();
+
+        String name = tmp.getName();
+        File file = new File(directory, name.substring(0, name.length() - ".tmp".length()) + SUFFIX);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("unable to create " + file);
+        }
+        return new SharedMemoryFile(file, map, capacity, true);
+    }
+
+    /**
+     * opens server side of connection created by client
+     */
+    static SharedMemoryFile open(File file) throws IOException {
+        MappedByteBuffer map = map(file, (int) file.length());
+        return new SharedMemoryFile(file, map, map.getInt(CAPACITY_OFFSET), false);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * keeps accesses of mapped memory on their side, so peer process sees data before position that publishes it.
+     * Java 7 has no fence outside of internal api, volatile store followed by volatile load of the same field
+     * is compiled to full fence by hotspot. Field belongs to one connection, so other connections do not contend on it.
+     */
+    void fence() {
+        fence = 0;
+        int ignored = fence;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    SharedMemoryRing getIn() {
+        return in;
+    }
+
+    SharedMemoryRing getOut() {
+        return out;
+    }
+
+    boolean isAccepted() {
+        boolean accepted = header.getLong(ACCEPTED_OFFSET) != 0;
+        fence();
+        return accepted;
+    }
+
+    void setAccepted() {
+        fence();
+        header.putLong(ACCEPTED_OFFSET, 1);
+    }
+
+    /**
+     * @return true when peer closed its side, everything it wrote before is visible in ring
+     */
+    boolean isPeerClosed() {
+        boolean closed = header.getLong(client ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET) != 0;
+        fence();
+        return closed;
+    }
+
+    /**
+     * marks this side as closed, file is removed, peer still can read what was already written
+     */
+    void close() {
+        fence();
+        header.putLong(client ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET, 1);
+        file.delete();
+    }
+}
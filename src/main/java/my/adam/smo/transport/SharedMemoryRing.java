@@ -0,0 +1,130 @@
+package my.adam.smo.transport;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * single producer single consumer byte ring in memory mapped file, producer and consumer can live in different
+ * processes. Producer publishes written bytes with store of tail position after fence, consumer frees space with
+ * store of head position after fence, positions only grow and are kept on separate cache lines.
+ */
+final class SharedMemoryRing {
+    static final int HEADER_SIZE = 128;
+    private static final int HEAD_OFFSET = 0;
+    private static final int TAIL_OFFSET = 64;
+
+    private final SharedMemoryFile file;
+    private final ByteBuffer positions;
+    private final int headIndex;
+    private final int tailIndex;
+    private final ChannelBuffer data;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * @param capacity size of data part, power of two
+     */
+    SharedMemoryRing(SharedMemoryFile file, MappedByteBuffer map, int offset, int capacity) {
+        this.file = file;
+        //positions are aligned, so absolute get and put of long in native order is single access
+        this.positions = map.duplicate().order(ByteOrder.nativeOrder());
+        this.headIndex = offset + HEAD_OFFSET;
+        this.tailIndex = offset + TAIL_OFFSET;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+
+        ByteBuffer slice = map.duplicate();
+        slice.position(offset + HEADER_SIZE);
+        slice.limit(offset + HEADER_SIZE + capacity);
+        this.data = ChannelBuffers.wrappedBuffer(slice.slice());
+    }
+
+    static int size(int capacity) {
+        return HEADER_SIZE + capacity;
+    }
+
+    /**
+     * copies as many readable bytes of source as fit into ring, never waits
+     *
+     * @return number of bytes written, source reader index is moved by the same number
+     */
+    int write(ChannelBuffer src) {
+        long tail = positions.getLong(tailIndex);
+        long head = positions.getLong(headIndex);
+        //bytes are not written before consumer freed their space
+        file.fence();
+        int length = Math.min(capacity - (int) (tail - head), src.readableBytes());
+        if (length <= 0) {
+            return 0;
+        }
+
+        int index = (int) tail & mask;
+        int first = Math.min(length, capacity - index);
+        data.setBytes(index, src, src.readerIndex(), first);
+        if (length > first) {
+            data.setBytes(0, src, src.readerIndex() + first, length - first);
+        }
+        src.skipBytes(length);
+        file.fence();
+        positions.putLong(tailIndex, tail + length);
+        return length;
+    }
+
+    /**
+     * @return buffer from given factory with at most max bytes taken from ring, null when ring is empty
+     */
+    ChannelBuffer read(ChannelBufferFactory factory, int max) {
+        long head = positions.getLong(headIndex);
+        long tail = positions.getLong(tailIndex);
+        //bytes are not read before producer published them
+        file.fence();
+        int length = Math.min((int) (tail - head), max);
+        if (length <= 0) {
+            return null;
+        }
+
+        ChannelBuffer dst = factory.getBuffer(length);
+        int index = (int) head & mask;
+        int first = Math.min(length, capacity - index);
+        dst.writeBytes(data, index, first);
+        if (length > first) {
+            dst.writeBytes(data, 0, length - first);
+        }
+        file.fence();
+        positions.putLong(headIndex, head + length);
+        return dst;
+    }
+
+    boolean isEmpty() {
+        return positions.getLong(tailIndex) == positions.getLong(headIndex);
+    }
+}
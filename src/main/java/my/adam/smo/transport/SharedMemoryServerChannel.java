@@ -0,0 +1,264 @@
+package my.adam.smo.transport;
+
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.jboss.netty.channel.Channels.*;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * listens in directory of bound address, directory is locked while server is bound so clients
+ * (and other servers) know it is in use. Connection files created by clients are accepted by one thread
+ * of channel factory executor that looks for new files every millisecond.
+ */
+final class SharedMemoryServerChannel extends AbstractServerChannel {
+    private static final String LOCK_FILE = "server.lock";
+    private static final long ACCEPT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /**
+     * directories bound in this jvm, lock of other file descriptor to the same file can not be tested because
+     * closing it would release lock held by server
+     */
+    private static final Set<File> BOUND = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final SharedMemoryTransport transport;
+    private final Executor executor;
+    private final ChannelGroup channels;
+    private final ChannelConfig config = new DefaultServerChannelConfig();
+    private final Set<String> accepted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile SocketAddress localAddress;
+    private volatile File directory;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    SharedMemoryServerChannel(ChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink,
+                              SharedMemoryTransport transport, Executor executor, ChannelGroup channels) {
+        super(factory, pipeline, sink);
+        this.transport = transport;
+        this.executor = executor;
+        this.channels = channels;
+        fireChannelOpen(this);
+    }
+
+    @Override
+    public ChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isBound() {
+        return isOpen() && directory != null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    /**
+     * @return true if some server holds lock of directory
+     */
+    static boolean isListening(File directory) {
+        if (BOUND.contains(directory.getAbsoluteFile())) {
+            return true;
+        }
+        File lockFile = new File(directory, LOCK_FILE);
+        if (!lockFile.exists()) {
+            return false;
+        }
+        try {
+            FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    return true;
+                }
+                lock.release();
+                return false;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void bind(SocketAddress localAddress, ChannelFuture future) {
+        File directory = transport.getDirectory(localAddress);
+        boolean claimed = false;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("unable to create directory " + directory);
+            }
+            if (!BOUND.add(directory.getAbsoluteFile())) {
+                throw new ChannelException("address already in use: " + localAddress);
+            }
+            claimed = true;
+            synchronized (this) {
+                lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+                try {
+                    lock = lockChannel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    lock = null;
+                }
+                if (lock == null) {
+                    throw new ChannelException("address already in use: " + localAddress);
+                }
+            }
+        } catch (Exception e) {
+            if (claimed) {
+                //directory is free for next bind in this jvm
+                synchronized (this) {
+                    if (lockChannel != null) {
+                        try {
+                            lockChannel.close();
+                        } catch (IOException closeFailure) {
+                            //lock was not taken, nothing is held by channel
+                        }
+                        lockChannel = null;
+                    }
+                }
+                BOUND.remove(directory.getAbsoluteFile());
+            }
+            future.setFailure(e);
+            fireExceptionCaught(this, e);
+            return;
+        }
+
+        //files left by clients of previous server
+        for (File stale : listConnections(directory)) {
+            stale.delete();
+        }
+
+        this.localAddress = localAddress;
+        this.directory = directory;
+        future.setSuccess();
+        fireChannelBound(this, localAddress);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (isBound()) {
+                    for (File file : listConnections(SharedMemoryServerChannel.this.directory)) {
+                        if (accepted.add(file.getName())) {
+                            accept(file);
+                        }
+                    }
+                    LockSupport.parkNanos(ACCEPT_INTERVAL_NANOS);
+                }
+            }
+        });
+    }
+
+    private void accept(File file) {
+        SharedMemoryFile connection;
+        ChannelPipeline pipeline;
+        try {
+            connection = SharedMemoryFile.open(file);
+            pipeline = getConfig().getPipelineFactory().getPipeline();
+        } catch (Exception e) {
+            accepted.remove(file.getName());
+            fireExceptionCaught(this, e);
+            return;
+        }
+
+        SharedMemoryChannel channel = new SharedMemoryChannel(this, pipeline, getPipeline().getSink(),
+                transport, executor, connection);
+        channels.add(channel);
+        connection.setAccepted();
+        if (channel.setConnected(succeededFuture(channel))) {
+            channel.start(null);
+        }
+    }
+
+    void remove(SharedMemoryFile connection) {
+        accepted.remove(connection.getFile().getName());
+    }
+
+    private static File[] listConnections(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SharedMemoryFile.SUFFIX);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    void closeNow(ChannelFuture future) {
+        boolean bound = isBound();
+        if (!setClosed()) {
+            future.setSuccess();
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                if (lock != null) {
+                    lock.release();
+                    lockChannel.close();
+                }
+            } catch (IOException e) {
+                fireExceptionCaught(this, e);
+            }
+            lock = null;
+            lockChannel = null;
+        }
+        if (bound) {
+            BOUND.remove(directory.getAbsoluteFile());
+        }
+        future.setSuccess();
+        if (bound) {
+            fireChannelUnbound(this);
+        }
+        fireChannelClosed(this);
+    }
+
+    @Override
+    protected boolean setClosed() {
+        return super.setClosed();
+    }
+}
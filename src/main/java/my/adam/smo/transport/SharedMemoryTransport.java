@@ -0,0 +1,170 @@
+package my.adam.smo.transport;
+
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * connections between processes on the same host over memory mapped files, every connection has
+ * single producer single consumer ring for each direction and is served by its own thread that
+ * only parks (default) or busy spins (then parks) while there is nothing to do, spinning thread keeps
+ * one processor busy for every connection, even idle one, until it parks.
+ * Server bound to port listens in directory named by port under shared memory directory, client connects to
+ * directory of port it is connecting to (host is ignored), so socket configuration works unchanged.
+ * Thread counts are not used as every connection has its own thread.
+ */
+public class SharedMemoryTransport implements Transport {
+    public static final String NAME = "shm";
+    public static final String WAIT_SPIN = "spin";
+    public static final String WAIT_PARK = "park";
+
+    private static final int SPIN_TRIES = 10000;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_MIN_NANOS = 1000;
+    /**
+     * busy spinning thread would only take processor from thread it waits for
+     */
+    private static final boolean SINGLE_PROCESSOR = Runtime.getRuntime().availableProcessors() == 1;
+
+    private final File directory;
+    private final int ringCapacity;
+    private final boolean spin;
+    private final long parkMaxNanos;
+
+    public SharedMemoryTransport() {
+        this(new File(System.getProperty("java.io.tmpdir"), "refero-shm"), 1 << 20, WAIT_PARK, 1000);
+    }
+
+    /**
+     * @param directory     directory with directories of bound ports, /dev/shm on linux keeps files in memory only
+     * @param ringCapacity  bytes of each ring, rounded up to power of two
+     * @param waitStrategy  {@link #WAIT_SPIN} or {@link #WAIT_PARK}
+     * @param parkMaxMicros longest park of idle connection thread
+     */
+    public SharedMemoryTransport(File directory, int ringCapacity, String waitStrategy, long parkMaxMicros) {
+        if (!WAIT_SPIN.equals(waitStrategy) && !WAIT_PARK.equals(waitStrategy)) {
+            throw new IllegalArgumentException("unknown wait strategy " + waitStrategy);
+        }
+        this.directory = directory;
+        this.ringCapacity = ringCapacity <= 1 ? 1 : Integer.highestOneBit(ringCapacity - 1) << 1;
+        this.spin = WAIT_SPIN.equals(waitStrategy);
+        this.parkMaxNanos = Math.max(TimeUnit.MICROSECONDS.toNanos(parkMaxMicros), PARK_MIN_NANOS);
+    }
+
+    @Override
+    public ServerChannelFactory newServerChannelFactory(int bossCount, int workerCount) {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final ChannelGroup channels = new DefaultChannelGroup();
+        final ChannelSink sink = new SharedMemoryChannelSink();
+        return new ServerChannelFactory() {
+            @Override
+            public ServerChannel newChannel(ChannelPipeline pipeline) {
+                SharedMemoryServerChannel channel = new SharedMemoryServerChannel(this, pipeline, sink,
+                        SharedMemoryTransport.this, executor, channels);
+                channels.add(channel);
+                return channel;
+            }
+
+            @Override
+            public void shutdown() {
+                channels.close().awaitUninterruptibly();
+                executor.shutdown();
+            }
+
+            @Override
+            public void releaseExternalResources() {
+                shutdown();
+            }
+        };
+    }
+
+    @Override
+    public ChannelFactory newClientChannelFactory(int workerCount) {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final ChannelGroup channels = new DefaultChannelGroup();
+        final ChannelSink sink = new SharedMemoryChannelSink();
+        return new ChannelFactory() {
+            @Override
+            public Channel newChannel(ChannelPipeline pipeline) {
+                SharedMemoryChannel channel = new SharedMemoryChannel(this, pipeline, sink,
+                        SharedMemoryTransport.this, executor);
+                channels.add(channel);
+                return channel;
+            }
+
+            @Override
+            public void shutdown() {
+                channels.close().awaitUninterruptibly();
+                executor.shutdown();
+            }
+
+            @Override
+            public void releaseExternalResources() {
+                shutdown();
+            }
+        };
+    }
+
+    File getDirectory(SocketAddress sa) {
+        if (!(sa instanceof InetSocketAddress)) {
+            throw new IllegalArgumentException("shared memory transport needs port of InetSocketAddress, got " + sa);
+        }
+        return new File(directory, String.valueOf(((InetSocketAddress) sa).getPort()));
+    }
+
+    int getRingCapacity() {
+        return ringCapacity;
+    }
+
+    /**
+     * waits before next check of connection that had nothing to do for given number of checks
+     */
+    void idle(int idleCount) {
+        if (spin) {
+            if (idleCount < SPIN_TRIES) {
+                if (SINGLE_PROCESSOR) {
+                    Thread.yield();
+                }
+                return;
+            }
+            if (idleCount < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+                return;
+            }
+            idleCount -= SPIN_TRIES + YIELD_TRIES;
+        }
+        LockSupport.parkNanos(Math.min(PARK_MIN_NANOS << Math.min(idleCount, 20), parkMaxNanos));
+    }
+}
@@ -0,0 +1,61 @@
+package my.adam.smo.transport;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * resolves transport configured by name
+ */
+public final class Transports {
+    private Transports() {
+    }
+
+    /**
+     * @param name name of built in transport ({@code nio}, {@code oio}, {@code shm}) or class name of {@link Transport}
+     */
+    public static Transport forName(String name) {
+        if (NioTransport.NAME.equals(name)) {
+            return new NioTransport();
+        }
+        if (OioTransport.NAME.equals(name)) {
+            return new OioTransport();
+        }
+        if (SharedMemoryTransport.NAME.equals(name)) {
+            return new SharedMemoryTransport();
+        }
+        try {
+            Object transport = Class.forName(name).newInstance();
+            if (!(transport instanceof Transport)) {
+                throw new IllegalArgumentException(name + " does not implement " + Transport.class.getName());
+            }
+            return (Transport) transport;
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("unknown transport " + name, e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("unable to create transport " + name, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("unable to create transport " + name, e);
+        }
+    }
+}
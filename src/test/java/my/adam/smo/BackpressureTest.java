@@ -0,0 +1,198 @@
+package my.adam.smo;
+
+import com.google.protobuf.*;
+import junit.framework.Assert;
+import my.adam.smo.client.HTTPClient;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.HTTPServer;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class BackpressureTest {
+    private static final int MAX_PENDING = 4;
+    private static final int CALLS = 10 * MAX_PENDING;
+
+    private SocketServer socketServer;
+    private HTTPServer httpServer;
+    private RpcChannel socketChannel;
+    private RpcChannel httpChannel;
+
+    @Before
+    public void init() {
+        //not set in app.properties, so system property is used
+        System.setProperty("server_max_channel_pending_requests", String.valueOf(MAX_PENDING));
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+
+        socketServer = serverContext.getBean(SocketServer.class);
+        httpServer = serverContext.getBean(HTTPServer.class);
+        SocketClient socketClient = clientContext.getBean(SocketClient.class);
+        HTTPClient httpClient = clientContext.getBean(HTTPClient.class);
+
+        Service service = TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        throw new IllegalStateException("service failure");
+                    }
+                });
+        socketServer.register(service);
+        httpServer.register(service);
+        socketServer.start(new InetSocketAddress(8092));
+        httpServer.start(new InetSocketAddress(8093));
+
+        socketChannel = socketClient.connect(new InetSocketAddress(8092));
+        httpChannel = httpClient.connect(new InetSocketAddress(8093));
+    }
+
+    @After
+    public void tearDown() {
+        socketServer.stop();
+        httpServer.stop();
+        System.clearProperty("server_max_channel_pending_requests");
+    }
+
+    @Test
+    public void unknownMethodCallsDoNotSuspendChannel() throws Exception {
+        // given
+        TestServices.UnregisteredTestService unregistered = TestServices.UnregisteredTestService.newStub(socketChannel);
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(1).setOperand2(2).build();
+        final CountDownLatch answered = new CountDownLatch(CALLS);
+        final AtomicInteger failed = new AtomicInteger();
+
+        // when
+        for (int i = 0; i < CALLS; i++) {
+            final DummyRpcController controller = new DummyRpcController();
+            unregistered.doGoodJob(controller, in, new RpcCallback<TestServices.Out>() {
+                @Override
+                public void run(TestServices.Out parameter) {
+                    if (parameter == null && controller.failed()) {
+                        failed.incrementAndGet();
+                    }
+                    answered.countDown();
+                }
+            });
+        }
+
+        // then
+        Assert.assertTrue("unknown method calls not answered", answered.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(CALLS, failed.get());
+        assertChannelReadable();
+    }
+
+    @Test
+    public void failedCallsDoNotSuspendChannel() throws Exception {
+        // given
+        TestServices.NewUsefullTestService service = TestServices.NewUsefullTestService.newStub(socketChannel);
+        TestServices.HighWeightRequest in = TestServices.HighWeightRequest.newBuilder().setLoad(1).build();
+        final CountDownLatch answered = new CountDownLatch(CALLS);
+
+        // when
+        for (int i = 0; i < CALLS; i++) {
+            service.doHighWeightGoodJob(new DummyRpcController(), in,
+                    new RpcCallback<TestServices.HighWeightResponse>() {
+                        @Override
+                        public void run(TestServices.HighWeightResponse parameter) {
+                            Assert.assertNull(parameter);
+                            answered.countDown();
+                        }
+                    });
+        }
+
+        // then
+        Assert.assertTrue("failed calls not answered", answered.await(10, TimeUnit.SECONDS));
+        assertChannelReadable();
+    }
+
+    @Test
+    public void malformedHttpRequestsDoNotSuspendChannel() throws Exception {
+        // given
+        Descriptors.MethodDescriptor doGoodJob = TestServices.NewUsefullTestService.getDescriptor()
+                .findMethodByName("DoGoodJob");
+        //misses required operand2 of argument, so server can not build it
+        TestServices.In malformed = TestServices.In.newBuilder().setOperand1(1).buildPartial();
+
+        // when
+        for (int i = 0; i < CALLS; i++) {
+            httpChannel.callMethod(doGoodJob, new DummyRpcController(), malformed,
+                    TestServices.Out.getDefaultInstance(), new RpcCallback<Message>() {
+                        @Override
+                        public void run(Message parameter) {
+                        }
+                    });
+        }
+
+        // then
+        assertChannelReadable(httpChannel);
+    }
+
+    private void assertChannelReadable() throws InterruptedException {
+        assertChannelReadable(socketChannel);
+    }
+
+    /**
+     * calls made on the same channel as the ones before are still answered
+     */
+    private void assertChannelReadable(RpcChannel channel) throws InterruptedException {
+        TestServices.NewUsefullTestService service = TestServices.NewUsefullTestService.newStub(channel);
+        final CountDownLatch answered = new CountDownLatch(CALLS);
+        final AtomicInteger correct = new AtomicInteger();
+        for (int i = 0; i < CALLS; i++) {
+            final int operand = i;
+            TestServices.In in = TestServices.In.newBuilder().setOperand1(operand).setOperand2(2).build();
+            service.doGoodJob(new DummyRpcController(), in, new RpcCallback<TestServices.Out>() {
+                @Override
+                public void run(TestServices.Out parameter) {
+                    if (parameter != null && parameter.getResult() == operand + 2) {
+                        correct.incrementAndGet();
+                    }
+                    answered.countDown();
+                }
+            });
+        }
+        Assert.assertTrue("channel suspended", answered.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(CALLS, correct.get());
+    }
+}
@@ -0,0 +1,165 @@
+package my.adam.smo;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.ReferoRpcController;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class BatchingTest {
+    private static final int CALLS = 1000;
+
+    private SocketServer socketServer;
+    private RpcChannel socketChannel;
+
+    @Before
+    public void init() {
+        //not set in app.properties, so system property is used
+        System.setProperty("call_batching_enabled", "true");
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+
+        socketServer = serverContext.getBean(SocketServer.class);
+        SocketClient socketClient = clientContext.getBean(SocketClient.class);
+
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        if (request.getOperand1() % 100 == 7) {
+                            controller.setFailed("failed " + request.getOperand1());
+                            done.run(null);
+                            return;
+                        }
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        throw new IllegalStateException("service failure");
+                    }
+                }));
+        socketServer.start(new InetSocketAddress(8095));
+
+        socketChannel = socketClient.connect(new InetSocketAddress(8095));
+    }
+
+    @After
+    public void tearDown() {
+        socketServer.stop();
+        System.clearProperty("call_batching_enabled");
+    }
+
+    @Test
+    public void batchedCallsGetTheirOwnResponses() throws InterruptedException {
+        // given
+        TestServices.NewUsefullTestService service = TestServices.NewUsefullTestService.newStub(socketChannel);
+        final CountDownLatch answered = new CountDownLatch(CALLS);
+        final AtomicInteger correct = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        // when
+        for (int i = 0; i < CALLS; i++) {
+            final int operand = i;
+            final ReferoRpcController controller = new ReferoRpcController();
+            TestServices.In in = TestServices.In.newBuilder().setOperand1(operand).setOperand2(3).build();
+            service.doGoodJob(controller, in, new RpcCallback<TestServices.Out>() {
+                @Override
+                public void run(TestServices.Out parameter) {
+                    if (parameter == null && ("failed " + operand).equals(controller.errorText())) {
+                        failed.incrementAndGet();
+                    } else if (parameter != null && parameter.getResult() == operand + 3) {
+                        correct.incrementAndGet();
+                    }
+                    answered.countDown();
+                }
+            });
+        }
+
+        // then
+        Assert.assertTrue("batched calls not answered", answered.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(CALLS / 100, failed.get());
+        Assert.assertEquals(CALLS - CALLS / 100, correct.get());
+    }
+
+    @Test
+    public void unansweredCallsDoNotHoldBatchBack() throws InterruptedException {
+        // given
+        TestServices.NewUsefullTestService service = TestServices.NewUsefullTestService.newStub(socketChannel);
+        TestServices.UnregisteredTestService unregistered = TestServices.UnregisteredTestService.newStub(socketChannel);
+        final CountDownLatch answered = new CountDownLatch(3 * CALLS / 10);
+        final AtomicInteger correct = new AtomicInteger();
+
+        // when
+        //unknown method, failing service and good calls are batched together
+        for (int i = 0; i < CALLS / 10; i++) {
+            final int operand = i * 100;
+            TestServices.In in = TestServices.In.newBuilder().setOperand1(operand).setOperand2(3).build();
+            unregistered.doGoodJob(new ReferoRpcController(), in, BatchingTest.<TestServices.Out>countDown(answered));
+            service.doHighWeightGoodJob(new ReferoRpcController(),
+                    TestServices.HighWeightRequest.newBuilder().setLoad(1).build(),
+                    BatchingTest.<TestServices.HighWeightResponse>countDown(answered));
+            service.doGoodJob(new ReferoRpcController(), in, new RpcCallback<TestServices.Out>() {
+                @Override
+                public void run(TestServices.Out parameter) {
+                    if (parameter != null && parameter.getResult() == operand + 3) {
+                        correct.incrementAndGet();
+                    }
+                    answered.countDown();
+                }
+            });
+        }
+
+        // then
+        Assert.assertTrue("batched calls not answered", answered.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(CALLS / 10, correct.get());
+    }
+
+    private static <T> RpcCallback<T> countDown(final CountDownLatch answered) {
+        return new RpcCallback<T>() {
+            @Override
+            public void run(T parameter) {
+                answered.countDown();
+            }
+        };
+    }
+}
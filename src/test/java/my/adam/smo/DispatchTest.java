@@ -0,0 +1,253 @@
+package my.adam.smo;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.common.VirtualThreads;
+import my.adam.smo.server.Server;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class DispatchTest {
+    private static final int CALLS = 500;
+    /**
+     * request with this operand1 waits until request of other connection arrives
+     */
+    private static final int BLOCKING = -1;
+
+    private final ConcurrentHashMap<Integer, List<Integer>> received = new ConcurrentHashMap<Integer, List<Integer>>();
+    private final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger virtualThreads = new AtomicInteger();
+    private final CountDownLatch otherConnectionArrived = new CountDownLatch(1);
+
+    private SocketServer socketServer;
+    private SocketClient firstClient;
+    private SocketClient secondClient;
+    private RpcChannel firstChannel;
+    private RpcChannel secondChannel;
+
+    @After
+    public void tearDown() {
+        firstClient.disconnect();
+        secondClient.disconnect();
+        socketServer.stop();
+        System.clearProperty("server_dispatch_mode");
+        System.clearProperty("server_dispatch_ordered");
+    }
+
+    @Test
+    public void fixedModeCallsServicesOffIoThreads() throws InterruptedException {
+        assertDispatchedOffIoThreads(Server.DISPATCH_MODE_FIXED);
+    }
+
+    @Test
+    public void forkJoinModeCallsServicesOffIoThreads() throws InterruptedException {
+        assertDispatchedOffIoThreads(Server.DISPATCH_MODE_FORK_JOIN);
+    }
+
+    @Test
+    public void boundedModeCallsServicesOffIoThreads() throws InterruptedException {
+        assertDispatchedOffIoThreads(Server.DISPATCH_MODE_BOUNDED);
+    }
+
+    @Test
+    public void virtualModeCallsServicesOffIoThreads() throws InterruptedException {
+        assertDispatchedOffIoThreads(Server.DISPATCH_MODE_VIRTUAL);
+        Assert.assertEquals(VirtualThreads.isSupported(), virtualThreads.get() == 2 * CALLS);
+    }
+
+    @Test
+    public void ioModeCallsServicesOnIoThreads() throws InterruptedException {
+        // given
+        start(Server.DISPATCH_MODE_IO, false);
+
+        // when
+        callAll(firstChannel, 1, 0, 10);
+
+        // then
+        for (String thread : threads) {
+            Assert.assertTrue(thread, thread.startsWith("New I/O"));
+        }
+    }
+
+    @Test
+    public void orderedDispatchKeepsRequestsOfConnectionInOrder() throws InterruptedException {
+        // given
+        start(Server.DISPATCH_MODE_FIXED, true);
+
+        // when
+        CountDownLatch answered = new CountDownLatch(2 * CALLS);
+        call(firstChannel, 1, 0, CALLS, answered);
+        call(secondChannel, 2, 0, CALLS, answered);
+
+        // then
+        Assert.assertTrue("calls not answered", answered.await(20, TimeUnit.SECONDS));
+        for (int connection = 1; connection <= 2; connection++) {
+            List<Integer> order = received.get(connection);
+            Assert.assertEquals(CALLS, order.size());
+            for (int i = 0; i < CALLS; i++) {
+                Assert.assertEquals(Integer.valueOf(i), order.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void orderedDispatchRunsConnectionsConcurrently() throws InterruptedException {
+        // given
+        start(Server.DISPATCH_MODE_FIXED, true);
+        CountDownLatch blockingAnswered = new CountDownLatch(1);
+        call(firstChannel, 1, BLOCKING, 1, blockingAnswered);
+
+        // when
+        callAll(secondChannel, 2, 0, 1);
+
+        // then
+        Assert.assertTrue("connections were serialized", blockingAnswered.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unorderedDispatchDoesNotHoldConnectionBehindSlowRequest() throws InterruptedException {
+        // given
+        start(Server.DISPATCH_MODE_FIXED, false);
+        CountDownLatch blockingAnswered = new CountDownLatch(1);
+        call(firstChannel, 1, BLOCKING, 1, blockingAnswered);
+
+        // when
+        callAll(firstChannel, 1, 0, 10);
+
+        // then
+        Assert.assertEquals(1, blockingAnswered.getCount());
+        callAll(secondChannel, 2, 0, 1);
+        Assert.assertTrue("blocking call not answered", blockingAnswered.await(10, TimeUnit.SECONDS));
+    }
+
+    private void assertDispatchedOffIoThreads(String mode) throws InterruptedException {
+        // given
+        start(mode, false);
+
+        // when
+        CountDownLatch answered = new CountDownLatch(2 * CALLS);
+        call(firstChannel, 1, 0, CALLS, answered);
+        call(secondChannel, 2, 0, CALLS, answered);
+
+        // then
+        Assert.assertTrue("calls not answered", answered.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(CALLS, received.get(1).size());
+        Assert.assertEquals(CALLS, received.get(2).size());
+        for (String thread : threads) {
+            Assert.assertFalse(thread, thread.startsWith("New I/O"));
+        }
+    }
+
+    private void start(String mode, boolean ordered) {
+        //not set in app.properties, so system properties are used
+        System.setProperty("server_dispatch_mode", mode);
+        System.setProperty("server_dispatch_ordered", String.valueOf(ordered));
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+        firstClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+        secondClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+
+        socketServer = serverContext.getBean(SocketServer.class);
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        threads.add(Thread.currentThread().getName());
+                        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+                            virtualThreads.incrementAndGet();
+                        }
+                        int connection = request.getOperand2();
+                        if (connection != 1) {
+                            otherConnectionArrived.countDown();
+                        }
+                        if (request.getOperand1() == BLOCKING) {
+                            try {
+                                otherConnectionArrived.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        } else {
+                            received.putIfAbsent(connection, Collections.synchronizedList(new ArrayList<Integer>()));
+                            received.get(connection).add(request.getOperand1());
+                        }
+                        done.run(TestServices.Out.newBuilder().setResult(request.getOperand1()).build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(null);
+                    }
+                }));
+        socketServer.start(new InetSocketAddress(8104));
+
+        firstChannel = firstClient.connect(new InetSocketAddress(8104));
+        secondChannel = secondClient.connect(new InetSocketAddress(8104));
+    }
+
+    private static void callAll(RpcChannel channel, int connection, int first, int count) throws InterruptedException {
+        CountDownLatch answered = new CountDownLatch(count);
+        call(channel, connection, first, count, answered);
+        Assert.assertTrue("calls not answered", answered.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param connection number of connection the service records request under
+     * @param first      operand1 of first request, next ones get following numbers
+     */
+    private static void call(RpcChannel channel, int connection, int first, int count, final CountDownLatch answered) {
+        TestServices.NewUsefullTestService.Stub service = TestServices.NewUsefullTestService.newStub(channel);
+        for (int i = 0; i < count; i++) {
+            service.doGoodJob(new DummyRpcController(),
+                    TestServices.In.newBuilder().setOperand1(first + i).setOperand2(connection).build(),
+                    new RpcCallback<TestServices.Out>() {
+                        @Override
+                        public void run(TestServices.Out parameter) {
+                            if (parameter != null) {
+                                answered.countDown();
+                            }
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package my.adam.smo;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import junit.framework.Assert;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.SocketServer;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class LocalTransportTest {
+    private final LocalAddress address = new LocalAddress("refero-local-test");
+
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+    private SocketClient tcpClient;
+
+    @Before
+    public void init() {
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+        socketServer = serverContext.getBean(SocketServer.class);
+        socketClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+        tcpClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        if (request.getOperand1() < 0) {
+                            controller.setFailed("negative operand");
+                            done.run(null);
+                            return;
+                        }
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(TestServices.HighWeightResponse.newBuilder()
+                                .setResponse(request.getRequest())
+                                .build());
+                    }
+                }));
+        //only local address is bound, tcp test binds its own port
+        socketServer.start(address);
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        tcpClient.disconnect();
+        socketServer.stop();
+    }
+
+    @Test
+    public void callsOverLocalAddressAreAnswered() throws ServiceException {
+        // given
+        BlockingRpcChannel channel = socketClient.blockingConnect(address);
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(1).setOperand2(2).build();
+
+        // when
+        int result = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in).getResult();
+
+        // then
+        Assert.assertEquals(3, result);
+    }
+
+    @Test
+    public void highPayloadIsEchoedOverLocalAddress() throws ServiceException {
+        // given
+        BlockingRpcChannel channel = socketClient.blockingConnect(address);
+        ByteString payload = ByteString.copyFrom(ServerCorrectnessTest.getMegaBytes(5 * 1024));
+        TestServices.HighWeightRequest in = TestServices.HighWeightRequest.newBuilder()
+                .setRequest(payload)
+                .setLoad(0)
+                .build();
+
+        // when
+        ByteString response = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doHighWeightGoodJob(new DummyRpcController(), in).getResponse();
+
+        // then
+        Assert.assertEquals(payload, response);
+    }
+
+    @Test
+    public void failedCallIsReportedOverLocalAddress() {
+        // given
+        BlockingRpcChannel channel = socketClient.blockingConnect(address);
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(-1).setOperand2(2).build();
+
+        // when
+        try {
+            TestServices.NewUsefullTestService.newBlockingStub(channel).doGoodJob(new DummyRpcController(), in);
+            Assert.fail("failed call returned result");
+        } catch (ServiceException e) {
+            // then
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("negative operand"));
+        }
+    }
+
+    @Test
+    public void serverAnswersLocalAndTcpClientsAtOnce() throws ServiceException {
+        // given
+        socketServer.start(new InetSocketAddress(8105));
+        BlockingRpcChannel localChannel = socketClient.blockingConnect(address);
+        BlockingRpcChannel tcpChannel = tcpClient.blockingConnect(new InetSocketAddress(8105));
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(2).setOperand2(3).build();
+
+        // when
+        int localResult = TestServices.NewUsefullTestService.newBlockingStub(localChannel)
+                .doGoodJob(new DummyRpcController(), in).getResult();
+        int tcpResult = TestServices.NewUsefullTestService.newBlockingStub(tcpChannel)
+                .doGoodJob(new DummyRpcController(), in).getResult();
+
+        // then
+        Assert.assertEquals(5, localResult);
+        Assert.assertEquals(5, tcpResult);
+    }
+}
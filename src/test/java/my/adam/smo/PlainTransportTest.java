@@ -0,0 +1,162 @@
+package my.adam.smo;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import com.google.protobuf.ServiceException;
+import junit.framework.Assert;
+import my.adam.smo.client.HTTPClient;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.HTTPServer;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class PlainTransportTest {
+    private HTTPServer httpServer;
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+    private BlockingRpcChannel httpChannel;
+    private BlockingRpcChannel socketChannel;
+
+    @Before
+    public void init() {
+        //other tests run with encryption from app.properties, payload is copied and processed as bytes there
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("PlainContext.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("PlainContext.xml");
+
+        httpServer = serverContext.getBean(HTTPServer.class);
+        socketServer = serverContext.getBean(SocketServer.class);
+        HTTPClient httpClient = clientContext.getBean(HTTPClient.class);
+        socketClient = clientContext.getBean(SocketClient.class);
+
+        Service service = TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        if (request.getOperand1() < 0) {
+                            controller.setFailed("negative operand");
+                            done.run(null);
+                            return;
+                        }
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(TestServices.HighWeightResponse.newBuilder()
+                                .setResponse(request.getRequest())
+                                .build());
+                    }
+                });
+
+        httpServer.register(service);
+        socketServer.register(service);
+
+        httpServer.start(new InetSocketAddress(8097));
+        socketServer.start(new InetSocketAddress(8098));
+
+        httpChannel = httpClient.blockingConnect(new InetSocketAddress(8097));
+        socketChannel = socketClient.blockingConnect(new InetSocketAddress(8098));
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        httpServer.stop();
+        socketServer.stop();
+    }
+
+    @Test
+    public void encryptionIsOff() {
+        Assert.assertFalse(socketServer.isEncryptionEnabled());
+        Assert.assertFalse(socketClient.isEncryptionEnabled());
+    }
+
+    @Test
+    public void callsAreAnswered() throws ServiceException {
+        // given
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(1).setOperand2(2).build();
+
+        // when
+        int httpResult = TestServices.NewUsefullTestService.newBlockingStub(httpChannel)
+                .doGoodJob(new DummyRpcController(), in).getResult();
+        int socketResult = TestServices.NewUsefullTestService.newBlockingStub(socketChannel)
+                .doGoodJob(new DummyRpcController(), in).getResult();
+
+        // then
+        Assert.assertEquals(3, httpResult);
+        Assert.assertEquals(3, socketResult);
+    }
+
+    @Test
+    public void highPayloadIsEchoedUnchanged() throws ServiceException {
+        // given
+        ByteString payload = ByteString.copyFrom(ServerCorrectnessTest.getMegaBytes(5 * 1024));
+        TestServices.HighWeightRequest in = TestServices.HighWeightRequest.newBuilder()
+                .setRequest(payload)
+                .setLoad(0)
+                .build();
+
+        // when
+        ByteString httpResponse = TestServices.NewUsefullTestService.newBlockingStub(httpChannel)
+                .doHighWeightGoodJob(new DummyRpcController(), in).getResponse();
+        ByteString socketResponse = TestServices.NewUsefullTestService.newBlockingStub(socketChannel)
+                .doHighWeightGoodJob(new DummyRpcController(), in).getResponse();
+
+        // then
+        Assert.assertEquals(payload, httpResponse);
+        Assert.assertEquals(payload, socketResponse);
+    }
+
+    @Test
+    public void failedCallIsReported() {
+        // given
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(-1).setOperand2(2).build();
+
+        // when
+        try {
+            TestServices.NewUsefullTestService.newBlockingStub(socketChannel)
+                    .doGoodJob(new DummyRpcController(), in);
+            Assert.fail("failed call returned result");
+        } catch (ServiceException e) {
+            // then
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("negative operand"));
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package my.adam.smo;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.client.StreamIterator;
+import my.adam.smo.client.StreamWriter;
+import my.adam.smo.common.ReferoRpcController;
+import my.adam.smo.server.SocketServer;
+import my.adam.smo.server.StreamingRpcController;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class StreamingTest {
+    private static final int WINDOW = 8;
+    private static final int MAX_PENDING = 4;
+
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicBoolean serverCanceled = new AtomicBoolean();
+    private final ExecutorService senders = Executors.newCachedThreadPool();
+
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+    private TestServices.NewUsefullTestService service;
+
+    @Before
+    public void init() {
+        System.setProperty("server_max_channel_pending_requests", String.valueOf(MAX_PENDING));
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+
+        socketServer = serverContext.getBean(SocketServer.class);
+        socketClient = clientContext.getBean(SocketClient.class);
+
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    /**
+                     * streams load messages numbered in first byte from its own thread, so it waits for credits,
+                     * fails at end when request is not empty. Takes client stream sleeping load millis
+                     * on every message and answers with number of messages and their bytes
+                     */
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller,
+                                                    final TestServices.HighWeightRequest request,
+                                                    final RpcCallback<TestServices.HighWeightResponse> done) {
+                        final StreamingRpcController stream = (StreamingRpcController) controller;
+                        stream.notifyOnCancel(new RpcCallback<Object>() {
+                            @Override
+                            public void run(Object parameter) {
+                                serverCanceled.set(true);
+                            }
+                        });
+                        senders.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (stream.isRequestStream()) {
+                                    receive(stream, request, done);
+                                } else {
+                                    send(stream, request, done);
+                                }
+                            }
+                        });
+                    }
+                }));
+        socketServer.start(new InetSocketAddress(8094));
+
+        RpcChannel socketChannel = socketClient.connect(new InetSocketAddress(8094));
+        service = TestServices.NewUsefullTestService.newStub(socketChannel);
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        socketServer.stop();
+        senders.shutdownNow();
+        System.clearProperty("server_max_channel_pending_requests");
+    }
+
+    private void send(StreamingRpcController stream, TestServices.HighWeightRequest request,
+                      RpcCallback<TestServices.HighWeightResponse> done) {
+        byte[] chunk = new byte[1000];
+        for (int i = 0; i < request.getLoad(); i++) {
+            chunk[0] = (byte) i;
+            if (!stream.send(TestServices.HighWeightResponse.newBuilder()
+                    .setResponse(ByteString.copyFrom(chunk)).build())) {
+                return; //client canceled, call is not answered
+            }
+            sent.incrementAndGet();
+        }
+        if (!request.getRequest().isEmpty()) {
+            stream.setFailed("failed after " + request.getLoad() + " messages");
+            done.run(null);
+            return;
+        }
+        done.run(TestServices.HighWeightResponse.newBuilder()
+                .setResponse(ByteString.copyFromUtf8("end")).build());
+    }
+
+    private void receive(StreamingRpcController stream, TestServices.HighWeightRequest first,
+                         RpcCallback<TestServices.HighWeightResponse> done) {
+        long bytes = 0;
+        TestServices.HighWeightRequest request = first;
+        while (request != null) {
+            received.incrementAndGet();
+            bytes += request.getRequest().size();
+            try {
+                Thread.sleep(first.getLoad());
+            } catch (InterruptedException e) {
+                return;
+            }
+            request = (TestServices.HighWeightRequest) stream.receive();
+        }
+        if (stream.isCanceled()) {
+            done.run(null);
+            return;
+        }
+        done.run(TestServices.HighWeightResponse.newBuilder()
+                .setResponse(ByteString.copyFromUtf8(received.get() + "/" + bytes)).build());
+    }
+
+    @Test
+    public void streamedResponsesArriveInOrder() throws InterruptedException {
+        // given
+        int load = 2000;
+        final AtomicInteger streamed = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicReference<TestServices.HighWeightResponse> result =
+                new AtomicReference<TestServices.HighWeightResponse>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        ReferoRpcController controller = new ReferoRpcController();
+        controller.setStreamCallback(new RpcCallback<Message>() {
+            @Override
+            public void run(Message message) {
+                byte number = ((TestServices.HighWeightResponse) message).getResponse().byteAt(0);
+                if (number != (byte) streamed.getAndIncrement()) {
+                    outOfOrder.incrementAndGet();
+                }
+            }
+        });
+
+        // when
+        service.doHighWeightGoodJob(controller, TestServices.HighWeightRequest.newBuilder().setLoad(load).build(),
+                new RpcCallback<TestServices.HighWeightResponse>() {
+                    @Override
+                    public void run(TestServices.HighWeightResponse parameter) {
+                        result.set(parameter);
+                        finished.countDown();
+                    }
+                });
+
+        // then
+        Assert.assertTrue("stream not finished", finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(load, streamed.get());
+        Assert.assertEquals(0, outOfOrder.get());
+        Assert.assertEquals("end", result.get().getResponse().toStringUtf8());
+    }
+
+    @Test
+    public void slowReaderHoldsServerBack() throws InterruptedException {
+        // given
+        int load = 200;
+        StreamIterator<TestServices.HighWeightResponse> stream =
+                new StreamIterator<TestServices.HighWeightResponse>(WINDOW);
+
+        // when
+        service.doHighWeightGoodJob(stream.getController(),
+                TestServices.HighWeightRequest.newBuilder().setLoad(load).build(), stream);
+        int received = 0;
+        int maxAhead = 0;
+        while (stream.hasNext()) {
+            Assert.assertEquals((byte) received, stream.next().getResponse().byteAt(0));
+            received++;
+            if (received % 50 == 0) {
+                Thread.sleep(100);
+                maxAhead = Math.max(maxAhead, sent.get() - received);
+            }
+        }
+
+        // then
+        Assert.assertEquals(load, received);
+        Assert.assertEquals("end", stream.getResult().getResponse().toStringUtf8());
+        Assert.assertTrue("server was " + maxAhead + " messages ahead", maxAhead <= WINDOW);
+    }
+
+    @Test
+    public void failureAfterMessagesEndsStream() {
+        // given
+        StreamIterator<TestServices.HighWeightResponse> stream =
+                new StreamIterator<TestServices.HighWeightResponse>(0);
+
+        // when
+        service.doHighWeightGoodJob(stream.getController(), TestServices.HighWeightRequest.newBuilder()
+                .setLoad(10).setRequest(ByteString.copyFromUtf8("fail")).build(), stream);
+        int received = 0;
+        try {
+            while (stream.hasNext()) {
+                stream.next();
+                received++;
+            }
+            Assert.fail("failure of stream was lost");
+        } catch (IllegalStateException e) {
+            // then
+            Assert.assertEquals("failed after 10 messages", e.getMessage());
+        }
+        Assert.assertEquals(10, received);
+    }
+
+    @Test
+    public void canceledStreamStopsServer() throws InterruptedException {
+        // given
+        StreamIterator<TestServices.HighWeightResponse> stream =
+                new StreamIterator<TestServices.HighWeightResponse>(4);
+        service.doHighWeightGoodJob(stream.getController(),
+                TestServices.HighWeightRequest.newBuilder().setLoad(1000000).build(), stream);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(stream.hasNext());
+            stream.next();
+        }
+
+        // when
+        stream.getController().startCancel();
+
+        // then
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!serverCanceled.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(serverCanceled.get());
+        Assert.assertTrue(sent.get() < 1000);
+    }
+
+    @Test
+    public void canceledStreamsDoNotBlockChannel() throws InterruptedException {
+        // given
+        for (int i = 0; i < MAX_PENDING * 3; i++) {
+            serverCanceled.set(false);
+            StreamIterator<TestServices.HighWeightResponse> stream =
+                    new StreamIterator<TestServices.HighWeightResponse>(4);
+            service.doHighWeightGoodJob(stream.getController(),
+                    TestServices.HighWeightRequest.newBuilder().setLoad(1000000).build(), stream);
+            Assert.assertTrue(stream.hasNext());
+            stream.next();
+            stream.getController().startCancel();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!serverCanceled.get() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("stream " + i + " not canceled", serverCanceled.get());
+        }
+        final CountDownLatch answered = new CountDownLatch(1);
+
+        // when
+        service.doGoodJob(new ReferoRpcController(), TestServices.In.newBuilder()
+                .setOperand1(1).setOperand2(2).build(), new RpcCallback<TestServices.Out>() {
+            @Override
+            public void run(TestServices.Out parameter) {
+                if (parameter != null && parameter.getResult() == 3) {
+                    answered.countDown();
+                }
+            }
+        });
+
+        // then
+        Assert.assertTrue("channel stopped serving after canceled streams", answered.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void streamedRequestsAreAllReceived() throws InterruptedException {
+        // given
+        int messages = 1000;
+        ResultCallback result = new ResultCallback();
+        StreamWriter<TestServices.HighWeightRequest> upload = new StreamWriter<TestServices.HighWeightRequest>();
+        byte[] chunk = new byte[1000];
+
+        // when
+        service.doHighWeightGoodJob(upload, TestServices.HighWeightRequest.newBuilder()
+                .setLoad(0).setRequest(ByteString.copyFrom(chunk)).build(), result);
+        for (int i = 1; i < messages; i++) {
+            chunk[0] = (byte) i;
+            Assert.assertTrue(upload.write(TestServices.HighWeightRequest.newBuilder()
+                    .setLoad(0).setRequest(ByteString.copyFrom(chunk)).build()));
+        }
+        upload.close();
+
+        // then
+        Assert.assertTrue("upload not answered", result.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(messages + "/" + messages * chunk.length,
+                result.response.get().getResponse().toStringUtf8());
+    }
+
+    @Test
+    public void slowServerHoldsWriterBack() throws InterruptedException {
+        // given
+        int messages = 200;
+        ResultCallback result = new ResultCallback();
+        StreamWriter<TestServices.HighWeightRequest> upload = new StreamWriter<TestServices.HighWeightRequest>();
+        TestServices.HighWeightRequest request = TestServices.HighWeightRequest.newBuilder().setLoad(2).build();
+
+        // when
+        service.doHighWeightGoodJob(upload, request, result);
+        int maxAhead = 0;
+        for (int i = 1; i < messages; i++) {
+            Assert.assertTrue(upload.write(request));
+            maxAhead = Math.max(maxAhead, i + 1 - received.get());
+        }
+        upload.close();
+
+        // then
+        Assert.assertTrue("upload not answered", result.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(messages + "/0", result.response.get().getResponse().toStringUtf8());
+        //stream_window is 64 by default
+        Assert.assertTrue("client was " + maxAhead + " messages ahead", maxAhead <= 64 + 1);
+    }
+
+    @Test
+    public void canceledUploadEndsCall() throws InterruptedException {
+        // given
+        ResultCallback result = new ResultCallback();
+        StreamWriter<TestServices.HighWeightRequest> upload = new StreamWriter<TestServices.HighWeightRequest>();
+        TestServices.HighWeightRequest request = TestServices.HighWeightRequest.newBuilder().setLoad(1).build();
+        service.doHighWeightGoodJob(upload, request, result);
+        for (int i = 0; i < 100; i++) {
+            upload.write(request);
+        }
+
+        // when
+        upload.startCancel();
+
+        // then
+        Assert.assertTrue("canceled upload not answered", result.finished.await(5, TimeUnit.SECONDS));
+        Assert.assertNull(result.response.get());
+        Assert.assertFalse(upload.write(request));
+    }
+
+    private static class ResultCallback implements RpcCallback<TestServices.HighWeightResponse> {
+        private final AtomicReference<TestServices.HighWeightResponse> response =
+                new AtomicReference<TestServices.HighWeightResponse>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        @Override
+        public void run(TestServices.HighWeightResponse parameter) {
+            response.set(parameter);
+            finished.countDown();
+        }
+    }
+}
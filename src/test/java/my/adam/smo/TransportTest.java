@@ -0,0 +1,271 @@
+package my.adam.smo;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import com.google.protobuf.ServiceException;
+import junit.framework.Assert;
+import my.adam.smo.client.HTTPClient;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.HTTPServer;
+import my.adam.smo.server.SocketServer;
+import my.adam.smo.transport.NioTransport;
+import my.adam.smo.transport.OioTransport;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ServerChannelFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class TransportTest {
+    private static final int SOCKET_PORT = 8106;
+    private static final int HTTP_PORT = 8107;
+
+    private final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private SocketServer socketServer;
+    private HTTPServer httpServer;
+    private SocketClient socketClient;
+    private HTTPClient httpClient;
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        httpClient.disconnect();
+        socketServer.stop();
+        httpServer.stop();
+        System.clearProperty("transport");
+        System.clearProperty("write_batching_enabled");
+        CountingTransport.serverFactories.set(0);
+        CountingTransport.clientFactories.set(0);
+    }
+
+    @Test
+    public void socketCallsAreAnsweredOverOio() throws ServiceException {
+        // given
+        start(OioTransport.NAME);
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(SOCKET_PORT));
+
+        // when
+        int result = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in(1, 2)).getResult();
+
+        // then
+        Assert.assertEquals(3, result);
+        for (String thread : threads) {
+            Assert.assertTrue(thread, thread.startsWith("Old I/O"));
+        }
+    }
+
+    @Test
+    public void httpCallsAreAnsweredOverOio() throws ServiceException {
+        // given
+        start(OioTransport.NAME);
+        BlockingRpcChannel channel = httpClient.blockingConnect(new InetSocketAddress(HTTP_PORT));
+
+        // when
+        int result = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in(3, 4)).getResult();
+
+        // then
+        Assert.assertEquals(7, result);
+    }
+
+    @Test
+    public void concurrentCallsWithLargePayloadAreAnsweredOverOioWithWriteBatching() throws InterruptedException {
+        // given
+        //oio writes block, batches are written while reader of the same connection keeps receiving
+        System.setProperty("write_batching_enabled", "true");
+        start(OioTransport.NAME);
+        TestServices.NewUsefullTestService.Stub service = TestServices.NewUsefullTestService
+                .newStub(socketClient.connect(new InetSocketAddress(SOCKET_PORT)));
+        ByteString payload = ByteString.copyFrom(ServerCorrectnessTest.getMegaBytes(256));
+        int calls = 50;
+        final CountDownLatch answered = new CountDownLatch(calls);
+        final List<ByteString> responses = Collections.synchronizedList(new ArrayList<ByteString>());
+
+        // when
+        for (int i = 0; i < calls; i++) {
+            service.doHighWeightGoodJob(new DummyRpcController(), TestServices.HighWeightRequest.newBuilder()
+                    .setRequest(payload)
+                    .setLoad(0)
+                    .build(), new RpcCallback<TestServices.HighWeightResponse>() {
+                @Override
+                public void run(TestServices.HighWeightResponse parameter) {
+                    if (parameter != null) {
+                        responses.add(parameter.getResponse());
+                    }
+                    answered.countDown();
+                }
+            });
+        }
+
+        // then
+        Assert.assertTrue("calls not answered", answered.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(calls, responses.size());
+        for (ByteString response : responses) {
+            Assert.assertEquals(payload, response);
+        }
+    }
+
+    @Test
+    public void serverStoppedOnOioReleasesItsPort() throws ServiceException {
+        // given
+        start(OioTransport.NAME);
+        socketServer.stop();
+
+        // when
+        socketServer = newContext().getBean(SocketServer.class);
+        socketServer.register(newService());
+        socketServer.start(new InetSocketAddress(SOCKET_PORT));
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(SOCKET_PORT));
+
+        // then
+        Assert.assertEquals(5, TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in(2, 3)).getResult());
+    }
+
+    @Test
+    public void transportIsLoadedByClassName() throws ServiceException {
+        // given
+        start(CountingTransport.class.getName());
+        BlockingRpcChannel socketChannel = socketClient.blockingConnect(new InetSocketAddress(SOCKET_PORT));
+        BlockingRpcChannel httpChannel = httpClient.blockingConnect(new InetSocketAddress(HTTP_PORT));
+
+        // when
+        int socketResult = TestServices.NewUsefullTestService.newBlockingStub(socketChannel)
+                .doGoodJob(new DummyRpcController(), in(1, 1)).getResult();
+        int httpResult = TestServices.NewUsefullTestService.newBlockingStub(httpChannel)
+                .doGoodJob(new DummyRpcController(), in(2, 2)).getResult();
+
+        // then
+        Assert.assertEquals(2, socketResult);
+        Assert.assertEquals(4, httpResult);
+        Assert.assertEquals(2, CountingTransport.serverFactories.get());
+        Assert.assertEquals(2, CountingTransport.clientFactories.get());
+    }
+
+    @Test
+    public void unknownTransportIsRejected() {
+        // given
+        System.setProperty("transport", "my.adam.smo.NoSuchTransport");
+        socketServer = newContext().getBean(SocketServer.class);
+
+        // when
+        try {
+            socketServer.start(new InetSocketAddress(SOCKET_PORT));
+            Assert.fail("server started with unknown transport");
+        } catch (IllegalArgumentException e) {
+            // then
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("unknown transport"));
+        } finally {
+            httpServer = newContext().getBean(HTTPServer.class);
+            socketClient = newContext().getBean(SocketClient.class);
+            httpClient = newContext().getBean(HTTPClient.class);
+        }
+    }
+
+    private void start(String transport) {
+        //not set in app.properties, so system properties are used
+        System.setProperty("transport", transport);
+        ApplicationContext serverContext = newContext();
+        ApplicationContext clientContext = newContext();
+        socketServer = serverContext.getBean(SocketServer.class);
+        httpServer = serverContext.getBean(HTTPServer.class);
+        socketClient = clientContext.getBean(SocketClient.class);
+        httpClient = clientContext.getBean(HTTPClient.class);
+
+        Service service = newService();
+        socketServer.register(service);
+        httpServer.register(service);
+        socketServer.start(new InetSocketAddress(SOCKET_PORT));
+        httpServer.start(new InetSocketAddress(HTTP_PORT));
+    }
+
+    private static ApplicationContext newContext() {
+        return new ClassPathXmlApplicationContext("Context.xml");
+    }
+
+    private Service newService() {
+        return TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        threads.add(Thread.currentThread().getName());
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(TestServices.HighWeightResponse.newBuilder()
+                                .setResponse(request.getRequest())
+                                .build());
+                    }
+                });
+    }
+
+    private static TestServices.In in(int operand1, int operand2) {
+        return TestServices.In.newBuilder().setOperand1(operand1).setOperand2(operand2).build();
+    }
+
+    /**
+     * nio transport that counts created factories, loaded by its class name
+     */
+    public static class CountingTransport extends NioTransport {
+        static final AtomicInteger serverFactories = new AtomicInteger();
+        static final AtomicInteger clientFactories = new AtomicInteger();
+
+        @Override
+        public ServerChannelFactory newServerChannelFactory(int bossCount, int workerCount) {
+            serverFactories.incrementAndGet();
+            return super.newServerChannelFactory(bossCount, workerCount);
+        }
+
+        @Override
+        public ChannelFactory newClientChannelFactory(int workerCount) {
+            clientFactories.incrementAndGet();
+            return super.newClientChannelFactory(workerCount);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.ReferoRpcController;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class CachingRpcChannelTest {
+    private static final Descriptors.MethodDescriptor METHOD =
+            TestServices.NewUsefullTestService.getDescriptor().findMethodByName("DoGoodJob");
+
+    private ServerChannel server = new ServerChannel();
+
+    @Test
+    public void repeatedCallIsAnsweredFromCache() {
+        // given
+        CachingRpcChannel cache = new CachingRpcChannel(server, ttl(0), 0, 1 << 20);
+
+        // when
+        int first = call(cache, 1);
+        int repeated = call(cache, 1);
+        int other = call(cache, 2);
+
+        // then
+        Assert.assertEquals(first, repeated);
+        Assert.assertTrue(first != other);
+        Assert.assertEquals(2, server.calls);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void failedCallIsNotCached() {
+        // given
+        CachingRpcChannel cache = new CachingRpcChannel(server, ttl(0), 0, 1 << 20);
+        server.failing = true;
+
+        // when
+        Assert.assertNull(call(cache, 1));
+        server.failing = false;
+
+        // then
+        Assert.assertNotNull(call(cache, 1));
+        Assert.assertEquals(2, server.calls);
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void staleResponseIsServedWhileSingleCallRefreshesIt() throws InterruptedException {
+        // given
+        CachingRpcChannel cache = new CachingRpcChannel(server, ttl(50), 10000, 1 << 20);
+        int first = call(cache, 1);
+        Thread.sleep(100);
+        server.deferred = true;
+
+        // when
+        int stale = call(cache, 1);
+        int staleAgain = call(cache, 1);
+        server.answerDeferred();
+        int refreshed = call(cache, 1);
+
+        // then
+        Assert.assertEquals(first, stale);
+        Assert.assertEquals(first, staleAgain);
+        Assert.assertTrue(first != refreshed);
+        Assert.assertEquals(2, server.calls);
+        Assert.assertEquals(2, cache.getStaleHits());
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleResponse() throws InterruptedException {
+        // given
+        CachingRpcChannel cache = new CachingRpcChannel(server, ttl(50), 10000, 1 << 20);
+        int first = call(cache, 1);
+        Thread.sleep(100);
+        server.failing = true;
+
+        // when
+        int stale = call(cache, 1);
+        server.failing = false;
+        int staleAgain = call(cache, 1);
+
+        // then
+        Assert.assertEquals(first, stale);
+        Assert.assertEquals(first, staleAgain);
+        Assert.assertEquals(1, cache.getRefreshFailures());
+        //second stale call refreshed again
+        Assert.assertEquals(3, server.calls);
+        Assert.assertTrue(first != call(cache, 1));
+    }
+
+    @Test
+    public void responseIsNotServedAfterStalePeriod() throws InterruptedException {
+        // given
+        CachingRpcChannel cache = new CachingRpcChannel(server, ttl(50), 50, 1 << 20);
+        int first = call(cache, 1);
+        Thread.sleep(150);
+
+        // when
+        int expired = call(cache, 1);
+
+        // then
+        Assert.assertTrue(first != expired);
+        Assert.assertEquals(2, server.calls);
+        Assert.assertEquals(0, cache.getStaleHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedResponsesAreEvicted() {
+        // given
+        CachingRpcChannel cache = new CachingRpcChannel(server, ttl(0), 0, 1000);
+        int kept = call(cache, 0);
+
+        // when
+        for (int i = 1; i < 100; i++) {
+            call(cache, i);
+            //recently used response stays
+            Assert.assertEquals(kept, (int) call(cache, 0));
+        }
+
+        // then
+        Assert.assertTrue(cache.getBytes() <= 1000);
+        Assert.assertTrue(cache.getEvictions() > 80);
+        Assert.assertEquals(100, server.calls);
+        Assert.assertEquals(server.calls, call(cache, 99).intValue());
+    }
+
+    private static Map<String, Long> ttl(long millis) {
+        Map<String, Long> ttl = new HashMap<String, Long>();
+        ttl.put(METHOD.getFullName(), millis);
+        return ttl;
+    }
+
+    /**
+     * @return result of synchronously answered call, null when it failed
+     */
+    private static Integer call(RpcChannel channel, int operand) {
+        final AtomicReference<Integer> result = new AtomicReference<Integer>();
+        TestServices.In in = TestServices.In.newBuilder().setOperand1(operand).setOperand2(0).build();
+        channel.callMethod(METHOD, new ReferoRpcController(), in, TestServices.Out.getDefaultInstance(),
+                new RpcCallback<Message>() {
+                    @Override
+                    public void run(Message parameter) {
+                        if (parameter != null) {
+                            result.set(((TestServices.Out) parameter).getResult());
+                        }
+                    }
+                });
+        return result.get();
+    }
+
+    /**
+     * answers every call with number of calls it got so far
+     */
+    private static class ServerChannel implements RpcChannel {
+        private int calls;
+        private boolean failing;
+        private boolean deferred;
+        private final List<Runnable> pending = new ArrayList<Runnable>();
+
+        @Override
+        public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                               Message responsePrototype, final RpcCallback<Message> done) {
+            calls++;
+            final Message response = failing ? null : TestServices.Out.newBuilder().setResult(calls).build();
+            if (failing) {
+                controller.setFailed("failure");
+            }
+            Runnable answer = new Runnable() {
+                @Override
+                public void run() {
+                    done.run(response);
+                }
+            };
+            if (deferred) {
+                pending.add(answer);
+            } else {
+                answer.run();
+            }
+        }
+
+        void answerDeferred() {
+            deferred = false;
+            for (Runnable answer : pending) {
+                answer.run();
+            }
+            pending.clear();
+        }
+    }
+}
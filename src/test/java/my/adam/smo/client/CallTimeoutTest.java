@@ -0,0 +1,260 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.common.ReferoRpcController;
+import my.adam.smo.server.HTTPServer;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class CallTimeoutTest {
+    private final List<RpcCallback<TestServices.Out>> held =
+            Collections.synchronizedList(new ArrayList<RpcCallback<TestServices.Out>>());
+
+    private HTTPServer httpServer;
+    private SocketServer socketServer;
+    private HTTPClient httpClient;
+    private SocketClient socketClient;
+    private RpcChannel httpChannel;
+    private RpcChannel socketChannel;
+
+    @Before
+    public void init() {
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+
+        httpServer = serverContext.getBean(HTTPServer.class);
+        socketServer = serverContext.getBean(SocketServer.class);
+        httpClient = clientContext.getBean(HTTPClient.class);
+        socketClient = clientContext.getBean(SocketClient.class);
+
+        Service service = TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        if (request.getOperand1() == 0) {
+                            done.run(TestServices.Out.newBuilder().setResult(request.getOperand2()).build());
+                            return;
+                        }
+                        //answered when test releases it, or never
+                        held.add(done);
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(null);
+                    }
+                });
+        httpServer.register(service);
+        socketServer.register(service);
+
+        httpServer.start(new InetSocketAddress(8102));
+        socketServer.start(new InetSocketAddress(8103));
+
+        httpChannel = httpClient.connect(new InetSocketAddress(8102));
+        socketChannel = socketClient.connect(new InetSocketAddress(8103));
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        httpClient.disconnect();
+        httpServer.stop();
+        socketServer.stop();
+    }
+
+    @Test
+    public void socketCallFailsAfterControllerTimeout() throws InterruptedException {
+        assertTimesOut(socketChannel);
+    }
+
+    @Test
+    public void httpCallFailsAfterControllerTimeout() throws InterruptedException {
+        assertTimesOut(httpChannel);
+    }
+
+    @Test
+    public void socketCallAnsweredInTimeIsNotFailed() throws InterruptedException {
+        assertAnsweredInTime(socketChannel);
+    }
+
+    @Test
+    public void httpCallAnsweredInTimeIsNotFailed() throws InterruptedException {
+        assertAnsweredInTime(httpChannel);
+    }
+
+    @Test
+    public void socketResponseAfterTimeoutIsIgnored() throws InterruptedException {
+        assertLateResponseIgnored(socketChannel);
+    }
+
+    @Test
+    public void httpResponseAfterTimeoutIsIgnored() throws InterruptedException {
+        assertLateResponseIgnored(httpChannel);
+    }
+
+    @Test
+    public void methodTimeoutAppliesToCallsWithoutOwnTimeout() throws InterruptedException {
+        // given
+        socketClient.setMethodTimeout(TestServices.NewUsefullTestService.getDescriptor()
+                .findMethodByName("DoGoodJob"), 200);
+        DummyRpcController controller = new DummyRpcController();
+        Result result = new Result();
+
+        // when
+        call(socketChannel, controller, 1, result);
+
+        // then
+        Assert.assertTrue("call not failed", result.done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(controller.failed());
+        Assert.assertTrue(controller.errorText(), controller.errorText().contains("timed out after 200 ms"));
+    }
+
+    @Test
+    public void httpCallsWithShortDeadlineLeaveNoTimeoutBehind() throws InterruptedException {
+        // given
+        int calls = 200;
+        List<Result> results = new ArrayList<Result>();
+
+        // when
+        for (int i = 0; i < calls; i++) {
+            ReferoRpcController controller = new ReferoRpcController();
+            controller.setTimeoutMillis(1);
+            Result result = new Result();
+            results.add(result);
+            call(httpChannel, controller, 1, result);
+        }
+
+        // then
+        for (Result result : results) {
+            Assert.assertTrue("call not failed", result.done.await(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(0, httpClient.timeouts.size());
+    }
+
+    private void assertTimesOut(RpcChannel channel) throws InterruptedException {
+        // given
+        ReferoRpcController controller = new ReferoRpcController();
+        controller.setTimeoutMillis(200);
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+
+        // when
+        call(channel, controller, 1, result);
+
+        // then
+        Assert.assertTrue("call not failed", result.done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+        Assert.assertTrue(controller.failed());
+        Assert.assertTrue(controller.errorText(), controller.errorText().contains("timed out after 200 ms"));
+        Assert.assertNull(result.response);
+    }
+
+    private void assertAnsweredInTime(RpcChannel channel) throws InterruptedException {
+        // given
+        ReferoRpcController controller = new ReferoRpcController();
+        controller.setTimeoutMillis(300);
+        Result result = new Result();
+
+        // when
+        call(channel, controller, 0, result);
+        Assert.assertTrue("call not answered", result.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(600);
+
+        // then
+        Assert.assertFalse(controller.failed());
+        Assert.assertEquals(1, result.calls.get());
+        Assert.assertEquals(7, result.response.getResult());
+    }
+
+    private void assertLateResponseIgnored(RpcChannel channel) throws InterruptedException {
+        // given
+        ReferoRpcController controller = new ReferoRpcController();
+        controller.setTimeoutMillis(100);
+        Result result = new Result();
+        call(channel, controller, 1, result);
+        Assert.assertTrue("call not failed", result.done.await(5, TimeUnit.SECONDS));
+
+        // when
+        awaitHeld(1);
+        held.get(0).run(TestServices.Out.newBuilder().setResult(1).build());
+        Thread.sleep(300);
+
+        // then
+        Assert.assertEquals(1, result.calls.get());
+        Assert.assertNull(result.response);
+        Assert.assertTrue(controller.failed());
+    }
+
+    private void awaitHeld(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (held.size() < count) {
+            Assert.assertTrue("call not received", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @param operand1 0 for call answered right away, other for call answered only when test releases it
+     */
+    private static void call(RpcChannel channel, RpcController controller, int operand1, final Result result) {
+        TestServices.NewUsefullTestService.newStub(channel).doGoodJob(controller,
+                TestServices.In.newBuilder().setOperand1(operand1).setOperand2(7).build(),
+                new RpcCallback<TestServices.Out>() {
+                    @Override
+                    public void run(TestServices.Out parameter) {
+                        result.response = parameter;
+                        result.calls.incrementAndGet();
+                        result.done.countDown();
+                    }
+                });
+    }
+
+    private static class Result {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        volatile TestServices.Out response;
+    }
+}
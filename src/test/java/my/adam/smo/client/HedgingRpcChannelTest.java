@@ -0,0 +1,259 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.ReferoRpcController;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class HedgingRpcChannelTest {
+    private static final Descriptors.MethodDescriptor HEDGED =
+            TestServices.NewUsefullTestService.getDescriptor().findMethodByName("DoGoodJob");
+    private static final Descriptors.MethodDescriptor NOT_HEDGED =
+            TestServices.NewUsefullTestService.getDescriptor().findMethodByName("DoHighWeightGoodJob");
+    private static final Message RESPONSE = TestServices.Out.newBuilder().setResult(3).build();
+
+    private Replica first = new Replica();
+    private Replica second = new Replica();
+    private ManualTimer timer = new ManualTimer();
+    private HedgingRpcChannel channel = new HedgingRpcChannel(Arrays.asList(first, second),
+            new HashSet<String>(Collections.singleton(HEDGED.getFullName())), timer, 95, 50, 0.1);
+
+    @Test
+    public void hedgeAnswersCallAndCancelsFirstCall() {
+        // given
+        List<Message> responses = new ArrayList<Message>();
+        channel.callMethod(HEDGED, new ReferoRpcController(), TestServices.In.getDefaultInstance(),
+                TestServices.Out.getDefaultInstance(), collect(responses));
+        Assert.assertEquals(1, first.calls.size());
+
+        // when
+        timer.expireAll();
+        second.answer(0, RESPONSE);
+        first.answer(0, RESPONSE);
+
+        // then
+        Assert.assertEquals(Collections.singletonList(RESPONSE), responses);
+        Assert.assertTrue(first.calls.get(0).controller.isCanceled());
+        Assert.assertEquals(1, channel.getHedges());
+        Assert.assertEquals(1, channel.getHedgeWins());
+    }
+
+    @Test
+    public void callFailsWhenEveryAttemptFailed() {
+        // given
+        List<Message> responses = new ArrayList<Message>();
+        ReferoRpcController controller = new ReferoRpcController();
+        channel.callMethod(HEDGED, controller, TestServices.In.getDefaultInstance(),
+                TestServices.Out.getDefaultInstance(), collect(responses));
+        timer.expireAll();
+
+        // when
+        first.answer(0, null);
+        Assert.assertTrue(responses.isEmpty());
+        second.answer(0, null);
+
+        // then
+        Assert.assertEquals(1, responses.size());
+        Assert.assertNull(responses.get(0));
+        Assert.assertTrue(controller.failed());
+    }
+
+    @Test
+    public void hedgesStopWhenBudgetIsUsedUp() {
+        // given
+        //unused budget allows burst of 10 hedges, every call adds tenth of hedge
+        int calls = 100;
+
+        // when
+        for (int i = 0; i < calls; i++) {
+            channel.callMethod(HEDGED, new ReferoRpcController(), TestServices.In.getDefaultInstance(),
+                    TestServices.Out.getDefaultInstance(), collect(new ArrayList<Message>()));
+        }
+        timer.expireAll();
+
+        // then
+        Assert.assertEquals(calls, channel.getHedgeableCalls());
+        Assert.assertEquals(10, channel.getHedges());
+        Assert.assertEquals(calls - 10, channel.getHedgesOverBudget());
+        Assert.assertEquals(calls + 10, first.calls.size() + second.calls.size());
+
+        // when
+        for (int i = 0; i < 25; i++) {
+            channel.callMethod(HEDGED, new ReferoRpcController(), TestServices.In.getDefaultInstance(),
+                    TestServices.Out.getDefaultInstance(), collect(new ArrayList<Message>()));
+        }
+        timer.expireAll();
+
+        // then
+        Assert.assertEquals(12, channel.getHedges());
+    }
+
+    @Test
+    public void otherMethodsAreNotHedged() {
+        // given
+        List<Message> responses = new ArrayList<Message>();
+
+        // when
+        channel.callMethod(NOT_HEDGED, new ReferoRpcController(), TestServices.HighWeightRequest.getDefaultInstance(),
+                TestServices.HighWeightResponse.getDefaultInstance(), collect(responses));
+
+        // then
+        Assert.assertTrue(timer.tasks.isEmpty());
+        Assert.assertEquals(1, first.calls.size() + second.calls.size());
+        Assert.assertEquals(0, channel.getHedgeableCalls());
+    }
+
+    private static RpcCallback<Message> collect(final List<Message> responses) {
+        return new RpcCallback<Message>() {
+            @Override
+            public void run(Message parameter) {
+                responses.add(parameter);
+            }
+        };
+    }
+
+    /**
+     * replica that answers calls only when test tells it to
+     */
+    private static class Replica implements RpcChannel {
+        private final List<Call> calls = new ArrayList<Call>();
+
+        @Override
+        public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                               Message responsePrototype, RpcCallback<Message> done) {
+            calls.add(new Call((ReferoRpcController) controller, done));
+        }
+
+        void answer(int call, Message response) {
+            if (response == null) {
+                calls.get(call).controller.setFailed("failure");
+            }
+            calls.get(call).done.run(response);
+        }
+    }
+
+    private static class Call {
+        private final ReferoRpcController controller;
+        private final RpcCallback<Message> done;
+
+        Call(ReferoRpcController controller, RpcCallback<Message> done) {
+            this.controller = controller;
+            this.done = done;
+        }
+    }
+
+    /**
+     * timer whose timeouts expire only when test tells it to
+     */
+    private static class ManualTimer implements Timer {
+        private final List<ManualTimeout> tasks = new ArrayList<ManualTimeout>();
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            ManualTimeout timeout = new ManualTimeout(this, task);
+            tasks.add(timeout);
+            return timeout;
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+
+        void expireAll() {
+            List<ManualTimeout> expiring = new ArrayList<ManualTimeout>(tasks);
+            tasks.clear();
+            for (ManualTimeout timeout : expiring) {
+                timeout.expire();
+            }
+        }
+    }
+
+    private static class ManualTimeout implements Timeout {
+        private final Timer timer;
+        private final TimerTask task;
+        private boolean expired;
+        private boolean cancelled;
+
+        ManualTimeout(Timer timer, TimerTask task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        void expire() {
+            if (cancelled) {
+                return;
+            }
+            expired = true;
+            try {
+                task.run(this);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Timer getTimer() {
+            return timer;
+        }
+
+        @Override
+        public TimerTask getTask() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.ReferoRpcController;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class LoadBalancingRpcChannelTest {
+    private static final Descriptors.MethodDescriptor METHOD =
+            TestServices.NewUsefullTestService.getDescriptor().findMethodByName("DoGoodJob");
+    private static final long EJECTION_MILLIS = 200;
+
+    private Endpoint failing = new Endpoint(true);
+    //healthy endpoints keep calls waiting, so failing one is still selected sometimes
+    private Endpoint healthy = new Endpoint(false);
+    private Endpoint other = new Endpoint(false);
+    private LoadBalancingRpcChannel channel = new LoadBalancingRpcChannel(Arrays.asList(failing, healthy, other),
+            0.5, 0, EJECTION_MILLIS, 50);
+
+    @Test
+    public void failingEndpointIsEjectedAndComesBack() throws InterruptedException {
+        // given
+        call(1000);
+        Assert.assertEquals(1, channel.getEjections());
+        Assert.assertEquals(2, channel.getAvailableCount());
+        Assert.assertTrue(failing.calls >= 20);
+
+        // when
+        failing.calls = 0;
+        call(100);
+
+        // then
+        Assert.assertEquals(0, failing.calls);
+
+        // when
+        failing.failing = false;
+        Thread.sleep(EJECTION_MILLIS + 100);
+        call(100);
+
+        // then
+        Assert.assertTrue(failing.calls > 0);
+        Assert.assertEquals(3, channel.getAvailableCount());
+        Assert.assertEquals(1, channel.getEjections());
+    }
+
+    @Test
+    public void atMostMaxEjectedPercentOfEndpointsIsEjected() {
+        // given
+        other.failing = true;
+
+        // when
+        call(3000);
+
+        // then
+        Assert.assertEquals(1, channel.getEjections());
+        Assert.assertEquals(2, channel.getAvailableCount());
+    }
+
+    @Test
+    public void callsAreAnsweredByEndpoint() {
+        // given
+        healthy.holding = false;
+        other.holding = false;
+        final List<Message> responses = new ArrayList<Message>();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            channel.callMethod(METHOD, new ReferoRpcController(), TestServices.In.getDefaultInstance(),
+                    TestServices.Out.getDefaultInstance(), new RpcCallback<Message>() {
+                        @Override
+                        public void run(Message parameter) {
+                            responses.add(parameter);
+                        }
+                    });
+        }
+
+        // then
+        Assert.assertEquals(100, responses.size());
+        Assert.assertEquals(100, failing.calls + healthy.calls + other.calls);
+    }
+
+    private void call(int calls) {
+        for (int i = 0; i < calls; i++) {
+            channel.callMethod(METHOD, new ReferoRpcController(), TestServices.In.getDefaultInstance(),
+                    TestServices.Out.getDefaultInstance(), new RpcCallback<Message>() {
+                        @Override
+                        public void run(Message parameter) {
+                        }
+                    });
+        }
+    }
+
+    /**
+     * endpoint that fails calls at once, answers them at once or never answers them
+     */
+    private static class Endpoint implements RpcChannel {
+        private int calls;
+        private boolean failing;
+        private boolean holding = true;
+
+        Endpoint(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                               Message responsePrototype, RpcCallback<Message> done) {
+            calls++;
+            if (failing) {
+                controller.setFailed("failure");
+                done.run(null);
+            } else if (!holding) {
+                done.run(TestServices.Out.getDefaultInstance());
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package my.adam.smo.client;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class PendingCallTableTest {
+    private static final int CAPACITY = 16;
+
+    @Test
+    public void oldCallCollidesWithNewIds() {
+        // given
+        PendingCallTable<String> table = new PendingCallTable<String>();
+        long old = table.add("old");
+
+        // when
+        //sequence wraps around table many times while old call is pending
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            long id = table.add("call " + i);
+            Assert.assertEquals("call " + i, table.get(id));
+            Assert.assertEquals("call " + i, table.remove(id));
+        }
+
+        // then
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals("old", table.get(old));
+        Assert.assertEquals("old", table.remove(old));
+        Assert.assertNull(table.remove(old));
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void removalKeepsCollidingCallsReachable() {
+        // given
+        PendingCallTable<Long> table = new PendingCallTable<Long>();
+        //ids 1, 17, 33 and 49 have the same slot, each one pending when next one is added
+        List<Long> colliding = new ArrayList<Long>();
+        long id = 0;
+        while (colliding.size() < 4) {
+            id = table.add(id + 1);
+            if ((id - 1) % CAPACITY == 0) {
+                colliding.add(id);
+            } else {
+                Assert.assertEquals(Long.valueOf(id), table.remove(id));
+            }
+        }
+        //call pending in slot where colliding calls probed to
+        long neighbour = table.add(id + 1);
+
+        // when
+        Assert.assertEquals(colliding.get(1), table.remove(colliding.get(1)));
+        Assert.assertEquals(colliding.get(0), table.remove(colliding.get(0)));
+
+        // then
+        Assert.assertNull(table.get(colliding.get(0)));
+        Assert.assertNull(table.get(colliding.get(1)));
+        Assert.assertEquals(colliding.get(2), table.get(colliding.get(2)));
+        Assert.assertEquals(colliding.get(3), table.get(colliding.get(3)));
+        Assert.assertEquals(Long.valueOf(neighbour), table.get(neighbour));
+        Assert.assertEquals(3, table.size());
+    }
+
+    @Test
+    public void behavesLikeMap() {
+        // given
+        Random random = new Random(1);
+        PendingCallTable<Long> table = new PendingCallTable<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        List<Long> pending = new ArrayList<Long>();
+
+        // when
+        for (int i = 0; i < 200000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 5 || pending.isEmpty()) {
+                long value = random.nextLong();
+                long id = table.add(value);
+                Assert.assertTrue(id != 0);
+                Assert.assertNull(expected.put(id, value));
+                pending.add(id);
+            } else if (operation < 9) {
+                //mostly oldest call is answered, sometimes any
+                long id = pending.remove(random.nextInt(4) == 0 ? random.nextInt(pending.size()) : 0);
+                Assert.assertEquals(expected.remove(id), table.remove(id));
+            } else {
+                Assert.assertNull(table.remove(-random.nextInt(1000) - 1));
+            }
+        }
+
+        // then
+        Assert.assertEquals(expected.size(), table.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            Assert.assertEquals(entry.getValue(), table.get(entry.getKey()));
+        }
+        Assert.assertEquals(expected.size(), table.removeAll().size());
+        Assert.assertEquals(0, table.size());
+    }
+}
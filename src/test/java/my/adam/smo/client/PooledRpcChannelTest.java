@@ -0,0 +1,257 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.SocketServer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import javax.inject.Inject;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class PooledRpcChannelTest {
+    private final List<RpcCallback<TestServices.Out>> held =
+            Collections.synchronizedList(new ArrayList<RpcCallback<TestServices.Out>>());
+
+    private SocketClient socketClient;
+    private RecordingServer socketServer;
+    private PooledRpcChannel pool;
+
+    @Before
+    public void init() {
+        //not set in app.properties, so system properties are used
+        System.setProperty("connection_pool_max_size", "3");
+        System.setProperty("connection_pool_grow_threshold", "2");
+        System.setProperty("connection_pool_idle_timeout", "1");
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+
+        socketClient = clientContext.getBean(SocketClient.class);
+        socketServer = serverContext.getAutowireCapableBeanFactory().createBean(RecordingServer.class);
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        //answered when test releases it
+                        held.add(done);
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(null);
+                    }
+                }));
+        socketServer.start(new InetSocketAddress(8101));
+
+        pool = (PooledRpcChannel) socketClient.connect(new InetSocketAddress(8101));
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        socketServer.stop();
+        System.clearProperty("connection_pool_max_size");
+        System.clearProperty("connection_pool_grow_threshold");
+        System.clearProperty("connection_pool_idle_timeout");
+    }
+
+    @Test
+    public void poolGrowsUpToMaxSizeWhenConnectionsAreBusy() throws InterruptedException {
+        // given
+        Assert.assertEquals(1, pool.getSize());
+
+        // when
+        int calls = growToMaxSize();
+        call(20);
+        awaitHeld(calls + 20);
+
+        // then
+        Assert.assertEquals(3, pool.getSize());
+        Assert.assertEquals(3, socketServer.openChannels.get());
+        Assert.assertEquals(calls + 20, pool.getPendingCount());
+    }
+
+    @Test
+    public void callGoesToConnectionWithFewestPendingCalls() throws InterruptedException {
+        // given
+        growToMaxSize();
+        answerHeld();
+        socketServer.requestsPerChannel.clear();
+
+        // when
+        call(9);
+        awaitHeld(9);
+
+        // then
+        Assert.assertEquals(3, socketServer.requestsPerChannel.size());
+        for (AtomicInteger requests : socketServer.requestsPerChannel.values()) {
+            Assert.assertEquals(3, requests.get());
+        }
+    }
+
+    @Test
+    public void idlePoolShrinksWithoutAnyCall() throws InterruptedException {
+        // given
+        growToMaxSize();
+        answerHeld();
+
+        // when
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getSize() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        // then
+        Assert.assertEquals(1, pool.getSize());
+        while (socketServer.openChannels.get() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(1, socketServer.openChannels.get());
+        call(1);
+        awaitHeld(1);
+    }
+
+    /**
+     * makes calls that are not answered until every connection has grow threshold of them
+     *
+     * @return number of calls made
+     */
+    private int growToMaxSize() throws InterruptedException {
+        //calls made before first connection is open wait in its queue and do not grow pool
+        call(1);
+        awaitHeld(1);
+        int calls = 1;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getSize() < 3 && System.currentTimeMillis() < deadline) {
+            call(1);
+            calls++;
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, pool.getSize());
+        awaitHeld(calls);
+        return calls;
+    }
+
+    private void call(int count) {
+        for (int i = 0; i < count; i++) {
+            TestServices.NewUsefullTestService.newStub(pool).doGoodJob(new DummyRpcController(),
+                    TestServices.In.newBuilder().setOperand1(i).setOperand2(i).build(),
+                    new RpcCallback<TestServices.Out>() {
+                        @Override
+                        public void run(TestServices.Out parameter) {
+                        }
+                    });
+        }
+    }
+
+    private void awaitHeld(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (held.size() < count) {
+            Assert.assertTrue("only " + held.size() + " calls received", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void answerHeld() throws InterruptedException {
+        List<RpcCallback<TestServices.Out>> callbacks;
+        synchronized (held) {
+            callbacks = new ArrayList<RpcCallback<TestServices.Out>>(held);
+            held.clear();
+        }
+        for (RpcCallback<TestServices.Out> done : callbacks) {
+            done.run(TestServices.Out.newBuilder().setResult(0).build());
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getPendingCount() > 0) {
+            Assert.assertTrue("calls not answered", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * counts open connections and requests received on each of them
+     */
+    public static class RecordingServer extends SocketServer {
+        final AtomicInteger openChannels = new AtomicInteger();
+        final ConcurrentHashMap<Integer, AtomicInteger> requestsPerChannel =
+                new ConcurrentHashMap<Integer, AtomicInteger>();
+
+        @Inject
+        public RecordingServer(@Value("${server_worker_threads:10}") int workerCount) {
+            super(workerCount);
+            final ChannelPipelineFactory pipelineFactory = bootstrap.getPipelineFactory();
+            bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() throws Exception {
+                    ChannelPipeline p = pipelineFactory.getPipeline();
+                    p.addFirst("recorder", new SimpleChannelUpstreamHandler() {
+                        @Override
+                        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                            openChannels.incrementAndGet();
+                            super.channelOpen(ctx, e);
+                        }
+
+                        @Override
+                        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                            openChannels.decrementAndGet();
+                            super.channelClosed(ctx, e);
+                        }
+                    });
+                    p.addBefore("handler", "requestRecorder", new SimpleChannelUpstreamHandler() {
+                        @Override
+                        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                            Integer channel = e.getChannel().getId();
+                            requestsPerChannel.putIfAbsent(channel, new AtomicInteger());
+                            requestsPerChannel.get(channel).incrementAndGet();
+                            super.messageReceived(ctx, e);
+                        }
+                    });
+                    return p;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package my.adam.smo.client;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import javax.inject.Inject;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class ReconnectTest {
+    private RecordingClient socketClient;
+    private SocketServer socketServer;
+
+    @After
+    public void tearDown() {
+        if (socketClient != null) {
+            socketClient.disconnect();
+        }
+        if (socketServer != null) {
+            socketServer.stop();
+        }
+        System.clearProperty("reconnect_initial_delay_millis");
+    }
+
+    @Test
+    public void delayDoublesAfterEveryAttempt() {
+        // given
+        SocketClient client = newClient(100, 10, 0);
+
+        // then
+        Assert.assertEquals(100, client.getReconnectDelayMillis(0));
+        Assert.assertEquals(200, client.getReconnectDelayMillis(1));
+        Assert.assertEquals(400, client.getReconnectDelayMillis(2));
+        Assert.assertEquals(3200, client.getReconnectDelayMillis(5));
+    }
+
+    @Test
+    public void delayIsCappedByReconnectDelaySeconds() {
+        // given
+        SocketClient client = newClient(100, 10, 0);
+
+        // then
+        Assert.assertEquals(6400, client.getReconnectDelayMillis(6));
+        Assert.assertEquals(10000, client.getReconnectDelayMillis(7));
+        Assert.assertEquals(10000, client.getReconnectDelayMillis(40));
+        Assert.assertEquals(10000, client.getReconnectDelayMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void delayIsRandomizedWithinJitter() {
+        // given
+        SocketClient client = newClient(1000, 10, 0.2);
+
+        // then
+        for (int i = 0; i < 100; i++) {
+            long delay = client.getReconnectDelayMillis(0);
+            Assert.assertTrue("delay " + delay, delay >= 800 && delay <= 1200);
+        }
+    }
+
+    @Test
+    public void attemptsStartOverAfterSuccessfulConnect() throws InterruptedException {
+        // given
+        //not set in app.properties, so system property is used
+        System.setProperty("reconnect_initial_delay_millis", "10");
+        socketClient = newRecordingClient();
+        socketServer = newServer();
+
+        // when
+        //nothing listens yet, so client keeps trying with growing delay
+        RpcChannel channel = socketClient.connect(new InetSocketAddress(8100));
+        socketClient.awaitAttempts(4);
+        socketServer.start(new InetSocketAddress(8100));
+        Assert.assertEquals(3, call(channel));
+        //connection is lost, client counts attempts from the start again
+        socketServer.stop();
+        socketServer = null;
+        socketClient.awaitAttempts(socketClient.getAttempts().size() + 1);
+
+        // then
+        List<Integer> attempts = socketClient.getAttempts();
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), attempts.get(i));
+        }
+        int reset = attempts.lastIndexOf(0);
+        Assert.assertTrue("attempts " + attempts, reset >= 4);
+        for (int i = 1; i < reset; i++) {
+            Assert.assertEquals("attempts " + attempts, Integer.valueOf(i), attempts.get(i));
+        }
+    }
+
+    @Test
+    public void disconnectedClientDoesNotReconnect() throws InterruptedException {
+        // given
+        //not set in app.properties, so system property is used
+        System.setProperty("reconnect_initial_delay_millis", "10");
+        socketClient = newRecordingClient();
+        socketServer = newServer();
+        socketServer.start(new InetSocketAddress(8100));
+        RpcChannel channel = socketClient.connect(new InetSocketAddress(8100));
+        Assert.assertEquals(3, call(channel));
+
+        // when
+        //connection closed by disconnect is not lost, so it is not reconnected
+        socketClient.disconnect();
+        Thread.sleep(500);
+
+        // then
+        Assert.assertEquals("attempts " + socketClient.getAttempts(), 0, socketClient.getAttempts().size());
+    }
+
+    private static RecordingClient newRecordingClient() {
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        return clientContext.getAutowireCapableBeanFactory().createBean(RecordingClient.class);
+    }
+
+    private static SocketServer newServer() {
+        SocketServer server = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketServer.class);
+        server.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(null);
+                    }
+                }));
+        return server;
+    }
+
+    private static SocketClient newClient(int initialDelayMillis, int maxDelaySeconds, double jitter) {
+        SocketClient client = new SocketClient(1);
+        client.reconnectInitialDelayMillis = initialDelayMillis;
+        client.reconnect_delay = maxDelaySeconds;
+        client.reconnectJitter = jitter;
+        return client;
+    }
+
+    private static int call(RpcChannel channel) throws InterruptedException {
+        final AtomicReference<TestServices.Out> result = new AtomicReference<TestServices.Out>();
+        final CountDownLatch answered = new CountDownLatch(1);
+        TestServices.NewUsefullTestService.newStub(channel).doGoodJob(new DummyRpcController(),
+                TestServices.In.newBuilder().setOperand1(1).setOperand2(2).build(),
+                new RpcCallback<TestServices.Out>() {
+                    @Override
+                    public void run(TestServices.Out parameter) {
+                        result.set(parameter);
+                        answered.countDown();
+                    }
+                });
+        Assert.assertTrue("call not answered", answered.await(10, TimeUnit.SECONDS));
+        return result.get().getResult();
+    }
+
+    /**
+     * records attempt number of every scheduled reconnect
+     */
+    public static class RecordingClient extends SocketClient {
+        private final List<Integer> attempts = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Inject
+        public RecordingClient(@Value("${client_worker_threads:10}") int workerThreads) {
+            super(workerThreads);
+        }
+
+        @Override
+        protected long getReconnectDelayMillis(int attempt) {
+            attempts.add(attempt);
+            return super.getReconnectDelayMillis(attempt);
+        }
+
+        List<Integer> getAttempts() {
+            synchronized (attempts) {
+                return new ArrayList<Integer>(attempts);
+            }
+        }
+
+        void awaitAttempts(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (attempts.size() < count) {
+                Assert.assertTrue("only " + attempts + " attempts", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+}
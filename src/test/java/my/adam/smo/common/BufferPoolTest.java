@@ -0,0 +1,221 @@
+package my.adam.smo.common;
+
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class BufferPoolTest {
+    @Test
+    public void capacityIsRoundedUpToSizeClass() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 65536, 64, 1024);
+
+        // then
+        Assert.assertEquals(64, pool.acquire(1).capacity());
+        Assert.assertEquals(64, pool.acquire(64).capacity());
+        Assert.assertEquals(128, pool.acquire(65).capacity());
+        Assert.assertEquals(1024, pool.acquire(1000).capacity());
+        Assert.assertEquals(65536, pool.acquire(65536).capacity());
+    }
+
+    @Test
+    public void releasedBufferIsReusedEmpty() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 65536, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(100);
+        buffer.writeInt(7);
+        buffer.readByte();
+
+        // when
+        pool.release(buffer);
+        ChannelBuffer reused = pool.acquire(128);
+
+        // then
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.readerIndex());
+        Assert.assertEquals(0, reused.writerIndex());
+    }
+
+    @Test
+    public void bufferIsReusedOnlyForItsSizeClass() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 65536, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(100);
+
+        // when
+        pool.release(buffer);
+
+        // then
+        Assert.assertNotSame(buffer, pool.acquire(64));
+        Assert.assertNotSame(buffer, pool.acquire(200));
+        Assert.assertSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void bufferReleasedTwiceIsPooledOnce() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 65536, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(100);
+
+        // when
+        pool.release(buffer);
+        pool.release(buffer);
+
+        // then
+        Assert.assertSame(buffer, pool.acquire(100));
+        Assert.assertNotSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void sliceReleasesBufferUnderIt() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 65536, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(100);
+        buffer.writeLong(1);
+
+        // when
+        pool.release(buffer.slice(2, 4));
+
+        // then
+        Assert.assertSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void bufferOverThreadCacheGoesToSharedCache() throws InterruptedException {
+        // given
+        final BufferPool pool = new BufferPool(true, false, 65536, 1, 1024);
+        ChannelBuffer first = pool.acquire(100);
+        ChannelBuffer second = pool.acquire(100);
+        pool.release(first);
+        pool.release(second);
+
+        // when
+        final AtomicReference<ChannelBuffer> acquiredByOtherThread = new AtomicReference<ChannelBuffer>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquiredByOtherThread.set(pool.acquire(100));
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // then
+        Assert.assertSame(second, acquiredByOtherThread.get());
+        Assert.assertSame(first, pool.acquire(100));
+    }
+
+    @Test
+    public void threadCacheIsNotSharedWithOtherThreads() throws InterruptedException {
+        // given
+        final BufferPool pool = new BufferPool(true, false, 65536, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+
+        // when
+        final AtomicReference<ChannelBuffer> acquiredByOtherThread = new AtomicReference<ChannelBuffer>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquiredByOtherThread.set(pool.acquire(100));
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // then
+        Assert.assertNotSame(buffer, acquiredByOtherThread.get());
+        Assert.assertSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void bufferOverBothCachesIsDropped() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 65536, 1, 1);
+        ChannelBuffer first = pool.acquire(100);
+        ChannelBuffer second = pool.acquire(100);
+        ChannelBuffer third = pool.acquire(100);
+
+        // when
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        // then
+        Assert.assertSame(first, pool.acquire(100));
+        Assert.assertSame(second, pool.acquire(100));
+        ChannelBuffer next = pool.acquire(100);
+        Assert.assertNotSame(third, next);
+        Assert.assertEquals(128, next.capacity());
+    }
+
+    @Test
+    public void oversizeBufferIsNotPooled() {
+        // given
+        BufferPool pool = new BufferPool(true, false, 1024, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(1025);
+
+        // when
+        pool.release(buffer);
+
+        // then
+        Assert.assertEquals(1025, buffer.capacity());
+        Assert.assertNotSame(buffer, pool.acquire(1025));
+    }
+
+    @Test
+    public void disabledPoolAllocatesEveryBuffer() {
+        // given
+        BufferPool pool = new BufferPool(false, false, 65536, 64, 1024);
+        ChannelBuffer buffer = pool.acquire(100);
+
+        // when
+        pool.release(buffer);
+
+        // then
+        Assert.assertEquals(100, buffer.capacity());
+        Assert.assertNotSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void directPoolGivesBuffersNotBackedByArray() {
+        // given
+        BufferPool pool = new BufferPool(true, true, 1024, 64, 1024);
+
+        // when
+        ChannelBuffer pooled = pool.acquire(100);
+        ChannelBuffer oversize = pool.acquire(2048);
+
+        // then
+        Assert.assertFalse(pooled.hasArray());
+        Assert.assertTrue(pooled.isDirect());
+        Assert.assertTrue(oversize.isDirect());
+        pool.release(pooled);
+        Assert.assertSame(pooled, pool.acquire(100));
+    }
+}
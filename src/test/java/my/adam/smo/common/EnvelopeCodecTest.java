@@ -0,0 +1,208 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.ByteString;
+import junit.framework.Assert;
+import my.adam.smo.RPCommunication;
+import my.adam.smo.TestServices;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class EnvelopeCodecTest {
+    private static final int PAYLOAD_FIELD = RPCommunication.Request.METHODARGUMENT_FIELD_NUMBER;
+
+    private final TestServices.In payload = TestServices.In.newBuilder().setOperand1(3).setOperand2(4).build();
+    //priority follows payload in serialized request, so decoder has to take header from both sides of payload
+    private final RPCommunication.Request header = RPCommunication.Request.newBuilder()
+            .setRequestId(7)
+            .setServiceName("NewUsefullTestService")
+            .setMethodName("DoGoodJob")
+            .setPriority(-1)
+            .build();
+    private final RPCommunication.Request request = header.toBuilder()
+            .setMethodArgument(payload.toByteString())
+            .build();
+
+    private BufferPool bufferPool;
+
+    @Before
+    public void init() {
+        bufferPool = new BufferPool();
+        bufferPool.init();
+    }
+
+    @Test
+    public void encodedEnvelopeIsReadableAsOrdinaryRequest() throws Exception {
+        // given
+        EncoderEmbedder<ChannelBuffer> channel = new EncoderEmbedder<ChannelBuffer>(new EnvelopeEncoder(bufferPool));
+
+        // when
+        channel.offer(new OutboundEnvelope(header, PAYLOAD_FIELD, payload));
+
+        // then
+        ChannelBuffer frame = channel.poll();
+        Assert.assertEquals(request.getSerializedSize(), frame.readInt());
+        Assert.assertEquals(request, RPCommunication.Request.parseFrom(toBytes(frame)));
+    }
+
+    @Test
+    public void messageIsEncodedAsEnvelopeWithoutPayload() throws Exception {
+        // given
+        EncoderEmbedder<ChannelBuffer> channel = new EncoderEmbedder<ChannelBuffer>(new EnvelopeEncoder(bufferPool));
+
+        // when
+        channel.offer(request);
+
+        // then
+        ChannelBuffer frame = channel.poll();
+        Assert.assertEquals(request.getSerializedSize(), frame.readInt());
+        Assert.assertEquals(request, RPCommunication.Request.parseFrom(toBytes(frame)));
+    }
+
+    @Test
+    public void envelopeWrittenToDirectBufferIsSameAsToHeapBuffer() throws Exception {
+        // given
+        OutboundEnvelope envelope = new OutboundEnvelope(header, PAYLOAD_FIELD, payload);
+        ChannelBuffer heap = ChannelBuffers.buffer(envelope.getSerializedSize());
+        ChannelBuffer direct = ChannelBuffers.directBuffer(envelope.getSerializedSize());
+
+        // when
+        envelope.writeTo(heap);
+        envelope.writeTo(direct);
+
+        // then
+        Assert.assertFalse(direct.hasArray());
+        byte[] written = toBytes(heap);
+        Assert.assertEquals(ByteString.copyFrom(written), ByteString.copyFrom(toBytes(direct)));
+        Assert.assertEquals(request, RPCommunication.Request.parseFrom(written));
+    }
+
+    @Test
+    public void decoderSplitsArrayFrameIntoHeaderAndPayload() throws Exception {
+        // when
+        InboundEnvelope envelope = decode(ChannelBuffers.wrappedBuffer(request.toByteArray()));
+
+        // then
+        assertDecoded(envelope);
+    }
+
+    @Test
+    public void decoderSplitsFrameNotBackedByArrayIntoHeaderAndPayload() throws Exception {
+        // given
+        ChannelBuffer frame = ChannelBuffers.directBuffer(request.getSerializedSize());
+        frame.writeBytes(request.toByteArray());
+
+        // when
+        InboundEnvelope envelope = decode(frame);
+
+        // then
+        assertDecoded(envelope);
+    }
+
+    @Test
+    public void decoderReadsFrameAtOffsetOfSharedArray() throws Exception {
+        // given
+        byte[] bytes = request.toByteArray();
+        byte[] shared = new byte[bytes.length + 20];
+        System.arraycopy(bytes, 0, shared, 10, bytes.length);
+
+        // when
+        InboundEnvelope envelope = decode(ChannelBuffers.wrappedBuffer(shared, 10, bytes.length));
+
+        // then
+        assertDecoded(envelope);
+    }
+
+    @Test
+    public void envelopeWithoutPayloadHasEmptyPayload() throws Exception {
+        // given
+        ChannelBuffer frame = ChannelBuffers.directBuffer(header.getSerializedSize());
+        frame.writeBytes(header.toByteArray());
+
+        // when
+        InboundEnvelope arrayEnvelope = decode(ChannelBuffers.wrappedBuffer(header.toByteArray()));
+        InboundEnvelope directEnvelope = decode(frame);
+
+        // then
+        Assert.assertEquals(header, arrayEnvelope.getHeader());
+        Assert.assertEquals(0, arrayEnvelope.getPayloadLength());
+        Assert.assertEquals(ByteString.EMPTY, arrayEnvelope.getPayload());
+        Assert.assertEquals(header, directEnvelope.getHeader());
+        Assert.assertEquals(0, directEnvelope.getPayloadLength());
+        Assert.assertEquals(ByteString.EMPTY, directEnvelope.getPayload());
+    }
+
+    @Test
+    public void encodedFrameIsDecodedBack() throws Exception {
+        // given
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new EnvelopeEncoder(bufferPool));
+        encoder.offer(new OutboundEnvelope(header, PAYLOAD_FIELD, payload));
+        ChannelBuffer frame = encoder.poll();
+        frame.skipBytes(EnvelopeEncoder.LENGTH_FIELD_LENGTH);
+
+        // when
+        InboundEnvelope envelope = decode(frame);
+
+        // then
+        assertDecoded(envelope);
+    }
+
+    @Test(expected = CodecEmbedderException.class)
+    public void payloadLongerThanFrameIsRejected() {
+        // given
+        byte[] bytes = request.toByteArray();
+        ChannelBuffer frame = ChannelBuffers.directBuffer(bytes.length - 3);
+        frame.writeBytes(bytes, 0, bytes.length - 3);
+
+        // when
+        decode(frame);
+    }
+
+    private InboundEnvelope decode(ChannelBuffer frame) {
+        DecoderEmbedder<InboundEnvelope> channel = new DecoderEmbedder<InboundEnvelope>(
+                new EnvelopeDecoder(bufferPool, RPCommunication.Request.getDefaultInstance(), PAYLOAD_FIELD));
+        channel.offer(frame);
+        return channel.poll();
+    }
+
+    private void assertDecoded(InboundEnvelope envelope) throws Exception {
+        Assert.assertEquals(header, envelope.getHeader());
+        Assert.assertEquals(payload.getSerializedSize(), envelope.getPayloadLength());
+        Assert.assertEquals(payload.toByteString(), envelope.getPayload());
+        Assert.assertEquals(payload, envelope.parsePayload(TestServices.In.getDefaultInstance()));
+        envelope.release();
+    }
+
+    private static byte[] toBytes(ChannelBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,233 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.ByteString;
+import junit.framework.Assert;
+import my.adam.smo.RPCommunication;
+import my.adam.smo.TestServices;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class LengthPrefixedFrameDecoderTest {
+    private final BufferPool bufferPool = new BufferPool(true, false, 65536, 64, 1024);
+    private File spillDirectory;
+
+    @Before
+    public void init() throws IOException {
+        spillDirectory = File.createTempFile("spill", "");
+        Assert.assertTrue(spillDirectory.delete());
+        Assert.assertTrue(spillDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
+    }
+
+    @Test
+    public void frameSplitAcrossReadsIsReassembled() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024));
+        ChannelBuffer frame = frame(300, (byte) 7);
+
+        // when
+        while (frame.readable()) {
+            channel.offer(frame.readSlice(Math.min(3, frame.readableBytes())));
+            if (frame.readable()) {
+                Assert.assertNull(channel.peek());
+            }
+        }
+
+        // then
+        assertBody(channel.poll(), 300, (byte) 7);
+        Assert.assertNull(channel.poll());
+    }
+
+    @Test
+    public void framesOfOneReadAreSplit() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024));
+        ChannelBuffer first = frame(10, (byte) 1);
+        ChannelBuffer second = frame(20, (byte) 2);
+        ChannelBuffer third = frame(30, (byte) 3);
+
+        // when
+        channel.offer(ChannelBuffers.wrappedBuffer(first, second, third.readSlice(7)));
+        channel.offer(third);
+
+        // then
+        assertBody(channel.poll(), 10, (byte) 1);
+        assertBody(channel.poll(), 20, (byte) 2);
+        assertBody(channel.poll(), 30, (byte) 3);
+        Assert.assertNull(channel.poll());
+    }
+
+    @Test
+    public void emptyFrameIsPassed() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024));
+
+        // when
+        channel.offer(ChannelBuffers.wrappedBuffer(frame(0, (byte) 0), frame(5, (byte) 5)));
+
+        // then
+        Assert.assertEquals(0, channel.poll().readableBytes());
+        assertBody(channel.poll(), 5, (byte) 5);
+    }
+
+    @Test
+    public void frameOverMaxLengthIsRejected() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024));
+
+        // when
+        try {
+            channel.offer(frame(1025, (byte) 1));
+            Assert.fail("frame over max length was accepted");
+        } catch (CodecEmbedderException e) {
+            // then
+            Assert.assertTrue(e.getCause() instanceof TooLongFrameException);
+        }
+    }
+
+    @Test
+    public void frameBelowSpillThresholdIsKeptInMemory() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024 * 1024, 1000, spillDirectory));
+
+        // when
+        channel.offer(frame(999, (byte) 9));
+
+        // then
+        ChannelBuffer body = channel.poll();
+        Assert.assertFalse(body instanceof SpilledFrameBuffer);
+        assertBody(body, 999, (byte) 9);
+    }
+
+    @Test
+    public void frameAboveSpillThresholdIsSpilledWithoutFileLeft() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024 * 1024, 1000, spillDirectory));
+        ChannelBuffer frame = frame(100000, (byte) 5);
+
+        // when
+        channel.offer(frame.readSlice(5000));
+        //file is removed as soon as it is mapped, before frame is complete
+        Assert.assertEquals(0, spillDirectory.list().length);
+        channel.offer(frame);
+
+        // then
+        ChannelBuffer body = channel.poll();
+        Assert.assertTrue(body instanceof SpilledFrameBuffer);
+        Assert.assertFalse(body.hasArray());
+        assertBody(body, 100000, (byte) 5);
+        Assert.assertTrue("mapping not dropped", ((SpilledFrameBuffer) body).unmap());
+        Assert.assertEquals(0, spillDirectory.list().length);
+    }
+
+    @Test
+    public void spilledFrameOfClosedChannelIsReleased() {
+        // given
+        DecoderEmbedder<ChannelBuffer> channel = new DecoderEmbedder<ChannelBuffer>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024 * 1024, 1000, spillDirectory));
+        channel.offer(frame(100000, (byte) 5).readSlice(5000));
+
+        // when
+        channel.finish();
+
+        // then
+        Assert.assertNull(channel.poll());
+        Assert.assertEquals(0, spillDirectory.list().length);
+    }
+
+    @Test
+    public void payloadIsParsedFromSpilledFrame() throws Exception {
+        // given
+        DecoderEmbedder<InboundEnvelope> channel = new DecoderEmbedder<InboundEnvelope>(
+                new LengthPrefixedFrameDecoder(bufferPool, 1024 * 1024, 1000, spillDirectory),
+                new EnvelopeDecoder(bufferPool, RPCommunication.Request.getDefaultInstance(),
+                        RPCommunication.Request.METHODARGUMENT_FIELD_NUMBER));
+        TestServices.HighWeightRequest payload = TestServices.HighWeightRequest.newBuilder()
+                .setRequest(ByteString.copyFrom(new byte[50000]))
+                .setLoad(1)
+                .build();
+        RPCommunication.Request request = RPCommunication.Request.newBuilder()
+                .setRequestId(3)
+                .setMethodArgument(payload.toByteString())
+                .build();
+        ChannelBuffer frame = ChannelBuffers.buffer(EnvelopeEncoder.LENGTH_FIELD_LENGTH + request.getSerializedSize());
+        frame.writeInt(request.getSerializedSize());
+        frame.writeBytes(request.toByteArray());
+
+        // when
+        channel.offer(frame);
+
+        // then
+        InboundEnvelope envelope = channel.poll();
+        Assert.assertEquals(3, ((RPCommunication.Request) envelope.getHeader()).getRequestId());
+        Assert.assertEquals(payload, envelope.parsePayload(TestServices.HighWeightRequest.getDefaultInstance()));
+        envelope.release();
+    }
+
+    /**
+     * @return length field followed by body of given length filled with value
+     */
+    private static ChannelBuffer frame(int length, byte value) {
+        ChannelBuffer frame = ChannelBuffers.buffer(EnvelopeEncoder.LENGTH_FIELD_LENGTH + length);
+        frame.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            frame.writeByte(value);
+        }
+        return frame;
+    }
+
+    private static void assertBody(ChannelBuffer body, int length, byte value) {
+        Assert.assertEquals(length, body.readableBytes());
+        for (int i = 0; i < length; i++) {
+            Assert.assertEquals(value, body.getByte(body.readerIndex() + i));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.ByteString;
+import junit.framework.Assert;
+import my.adam.smo.RPCommunication;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class StreamKeyTest {
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+
+    @Before
+    public void init() {
+        socketServer = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketServer.class);
+        socketClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        socketServer.stop();
+    }
+
+    @Test
+    public void messagesOfStreamShareSecretAndAreDecrypted() {
+        // given
+        AbstractCommunicator.StreamKey key = socketServer.newStreamKey();
+
+        // when
+        RPCommunication.Response first = socketServer.getAsymEncryptedResponse(streamResponse("first"), key);
+        RPCommunication.Response second = socketServer.getAsymEncryptedResponse(streamResponse("second"), key);
+
+        // then
+        Assert.assertEquals(first.getSecret(), second.getSecret());
+        Assert.assertFalse(first.getResponse().equals(second.getResponse()));
+        Assert.assertEquals("first", socketClient.getAsymDecryptedResponse(first).getResponse().toStringUtf8());
+        Assert.assertEquals("second", socketClient.getAsymDecryptedResponse(second).getResponse().toStringUtf8());
+    }
+
+    @Test
+    public void responsesWithoutStreamKeyGetSecretOfTheirOwn() {
+        // given
+        RPCommunication.Response response = RPCommunication.Response.newBuilder()
+                .setRequestId(1)
+                .setResponse(ByteString.copyFromUtf8("response"))
+                .build();
+
+        // when
+        RPCommunication.Response first = socketServer.getAsymEncryptedResponse(response);
+        RPCommunication.Response second = socketServer.getAsymEncryptedResponse(response);
+
+        // then
+        Assert.assertFalse(first.getSecret().equals(second.getSecret()));
+        Assert.assertEquals("response", socketClient.getAsymDecryptedResponse(first).getResponse().toStringUtf8());
+        Assert.assertEquals("response", socketClient.getAsymDecryptedResponse(second).getResponse().toStringUtf8());
+    }
+
+    @Test
+    public void messagesOfClientStreamAreDecrypted() {
+        // given
+        AbstractCommunicator.StreamKey key = socketClient.newStreamKey();
+
+        // when
+        RPCommunication.Request first = socketClient.getAsymEncryptedRequest(streamRequest("first"), key);
+        RPCommunication.Request second = socketClient.getAsymEncryptedRequest(streamRequest("second"), key);
+
+        // then
+        Assert.assertEquals(first.getSecret(), second.getSecret());
+        Assert.assertEquals("first", socketServer.getAsymDecryptedRequest(first).getMethodArgument().toStringUtf8());
+        Assert.assertEquals("second", socketServer.getAsymDecryptedRequest(second).getMethodArgument().toStringUtf8());
+    }
+
+    private static RPCommunication.Response streamResponse(String payload) {
+        return RPCommunication.Response.newBuilder()
+                .setRequestId(1)
+                .setStreamMessage(true)
+                .setResponse(ByteString.copyFromUtf8(payload))
+                .build();
+    }
+
+    private static RPCommunication.Request streamRequest(String payload) {
+        return RPCommunication.Request.newBuilder()
+                .setRequestId(1)
+                .setStreamMessage(true)
+                .setMethodArgument(ByteString.copyFromUtf8(payload))
+                .build();
+    }
+}
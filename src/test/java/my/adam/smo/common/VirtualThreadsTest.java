@@ -0,0 +1,113 @@
+package my.adam.smo.common;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class VirtualThreadsTest {
+    private ExecutorService executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void supportIsDetectedFromRuntimeVersion() {
+        // given
+        String version = System.getProperty("java.specification.version");
+        boolean java21 = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+
+        // when
+        boolean supported = VirtualThreads.isSupported();
+
+        // then
+        Assert.assertEquals(java21, supported);
+    }
+
+    @Test
+    public void tasksRunOnVirtualThreadsWhenSupportedAndOnPlatformThreadsOtherwise() throws InterruptedException {
+        // given
+        executor = VirtualThreads.newThreadPerTaskExecutor();
+        final Thread[] thread = new Thread[1];
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        // when
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                thread[0] = Thread.currentThread();
+                ran.countDown();
+            }
+        });
+
+        // then
+        Assert.assertTrue("task not run", ran.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(VirtualThreads.isSupported(), VirtualThreads.isVirtual(thread[0]));
+        Assert.assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+
+    @Test
+    public void everyBlockedTaskGetsOwnThread() throws InterruptedException {
+        // given
+        executor = VirtualThreads.newThreadPerTaskExecutor();
+        int tasks = 200;
+        final CountDownLatch started = new CountDownLatch(tasks);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+
+        // when
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        // then
+        //tasks block until all of them started, so none of them waits for thread of other one
+        Assert.assertTrue("tasks waited for threads", started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        Assert.assertEquals(tasks, threads.size());
+    }
+}
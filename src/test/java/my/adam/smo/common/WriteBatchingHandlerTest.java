@@ -0,0 +1,151 @@
+package my.adam.smo.common;
+
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class WriteBatchingHandlerTest {
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void framesWrittenWithinWindowAreWrittenTogether() throws InterruptedException {
+        // given
+        EncoderEmbedder<ChannelBuffer> channel = new EncoderEmbedder<ChannelBuffer>(
+                new WriteBatchingHandler(1024, 50000, scheduler));
+
+        // when
+        channel.offer(frame(1, 10));
+        channel.offer(frame(2, 20));
+        channel.offer(frame(3, 30));
+        Assert.assertNull(channel.peek());
+        Thread.sleep(200);
+
+        // then
+        ChannelBuffer written = channel.poll();
+        Assert.assertNull(channel.poll());
+        Assert.assertEquals(60, written.readableBytes());
+        Assert.assertEquals(1, written.getByte(0));
+        Assert.assertEquals(2, written.getByte(10));
+        Assert.assertEquals(3, written.getByte(59));
+    }
+
+    @Test
+    public void batchOverByteLimitIsWrittenAtOnce() {
+        // given
+        EncoderEmbedder<ChannelBuffer> channel = new EncoderEmbedder<ChannelBuffer>(
+                new WriteBatchingHandler(100, 10000000, scheduler));
+
+        // when
+        channel.offer(frame(1, 60));
+        channel.offer(frame(2, 60));
+
+        // then
+        ChannelBuffer written = channel.poll();
+        Assert.assertNotNull(written);
+        Assert.assertEquals(120, written.readableBytes());
+    }
+
+    @Test
+    public void pendingFramesAreWrittenBeforeClose() {
+        // given
+        EncoderEmbedder<ChannelBuffer> channel = new EncoderEmbedder<ChannelBuffer>(
+                new WriteBatchingHandler(1024, 10000000, scheduler));
+        channel.offer(frame(1, 10));
+        channel.offer(frame(2, 10));
+
+        // when
+        channel.finish();
+
+        // then
+        ChannelBuffer written = channel.poll();
+        Assert.assertNotNull(written);
+        Assert.assertEquals(20, written.readableBytes());
+    }
+
+    @Test
+    public void framesAreQueuedWhileOtherThreadIsBlockedInWrite() throws InterruptedException {
+        // given
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final CountDownLatch releaseWrite = new CountDownLatch(1);
+        final EncoderEmbedder<ChannelBuffer> channel = new EncoderEmbedder<ChannelBuffer>(
+                new SimpleChannelDownstreamHandler() {
+                    @Override
+                    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                        //first write blocks as write of blocking transport (oio) does
+                        if (writeStarted.getCount() > 0) {
+                            writeStarted.countDown();
+                            releaseWrite.await(10, TimeUnit.SECONDS);
+                        }
+                        super.writeRequested(ctx, e);
+                    }
+                },
+                new WriteBatchingHandler(100, 10000000, scheduler));
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                channel.offer(frame(1, 150));
+            }
+        });
+        writer.start();
+        Assert.assertTrue("write not started", writeStarted.await(5, TimeUnit.SECONDS));
+
+        // when
+        long start = System.currentTimeMillis();
+        channel.offer(frame(2, 150));
+
+        // then
+        Assert.assertTrue("frame waited for blocked write", System.currentTimeMillis() - start < 1000);
+        releaseWrite.countDown();
+        writer.join(5000);
+        Assert.assertEquals(1, channel.poll().getByte(0));
+        Assert.assertEquals(2, channel.poll().getByte(0));
+        Assert.assertNull(channel.poll());
+    }
+
+    private static ChannelBuffer frame(int value, int length) {
+        ChannelBuffer frame = ChannelBuffers.buffer(length);
+        while (frame.writable()) {
+            frame.writeByte(value);
+        }
+        return frame;
+    }
+}
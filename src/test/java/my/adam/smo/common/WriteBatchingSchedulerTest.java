@@ -0,0 +1,114 @@
+package my.adam.smo.common;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class WriteBatchingSchedulerTest {
+    private static final int PORT = 8108;
+
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+
+    @Before
+    public void init() {
+        //not set in app.properties, so system properties are used
+        System.setProperty("write_batching_enabled", "true");
+        System.setProperty("write_batching_window_micros", "1000");
+        socketServer = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketServer.class);
+        socketClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(null);
+                    }
+                }));
+        socketServer.start(new InetSocketAddress(PORT));
+    }
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        socketServer.stop();
+        System.clearProperty("write_batching_enabled");
+        System.clearProperty("write_batching_window_micros");
+    }
+
+    @Test
+    public void clientDisconnectShutsDownScheduler() throws ServiceException {
+        // given
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(PORT));
+        Assert.assertEquals(3, call(channel, 1, 2));
+        ScheduledExecutorService scheduler = socketClient.getWriteBatchingScheduler();
+
+        // when
+        socketClient.disconnect();
+
+        // then
+        Assert.assertTrue(scheduler.isShutdown());
+    }
+
+    @Test
+    public void serverStopShutsDownScheduler() throws ServiceException {
+        // given
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(PORT));
+        Assert.assertEquals(3, call(channel, 1, 2));
+        ScheduledExecutorService scheduler = socketServer.getWriteBatchingScheduler();
+
+        // when
+        socketServer.stop();
+
+        // then
+        Assert.assertTrue(scheduler.isShutdown());
+    }
+
+    private static int call(BlockingRpcChannel channel, int operand1, int operand2) throws ServiceException {
+        return TestServices.NewUsefullTestService.newBlockingStub(channel).doGoodJob(new DummyRpcController(),
+                TestServices.In.newBuilder().setOperand1(operand1).setOperand2(operand2).build()).getResult();
+    }
+}
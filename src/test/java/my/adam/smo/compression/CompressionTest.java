@@ -0,0 +1,174 @@
+package my.adam.smo.compression;
+
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class CompressionTest {
+    private static final String TEXT = "{\"operand1\": 1, \"operand2\": 2, \"service\": \"NewUsefullTestService\"}, ";
+
+    private Random random = new Random(7);
+
+    @Test
+    public void lz4RoundTrip() throws IOException {
+        assertRoundTrips(new Lz4Codec(null));
+    }
+
+    @Test
+    public void lz4WithDictionaryRoundTrip() throws IOException {
+        assertRoundTrips(new Lz4Codec(text(100 * 1024)));
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        assertRoundTrips(new DeflateCodec(1, null));
+    }
+
+    @Test
+    public void deflateWithDictionaryRoundTrip() throws IOException {
+        assertRoundTrips(new DeflateCodec(6, text(100 * 1024)));
+    }
+
+    @Test
+    public void dictionaryShrinksSmallFrame() {
+        byte[] dictionary = text(4096);
+        byte[] frame = Arrays.copyOfRange(dictionary, 5, 5 + TEXT.length());
+
+        byte[] dst = new byte[frame.length];
+        Assert.assertEquals(-1, new Lz4Codec(null).compress(frame, 0, frame.length, dst, 0, frame.length / 2));
+        int compressed = new Lz4Codec(dictionary).compress(frame, 0, frame.length, dst, 0, frame.length / 2);
+        Assert.assertTrue(compressed > 0 && compressed < frame.length / 2);
+    }
+
+    @Test
+    public void incompressibleFrameIsNotCompressed() {
+        byte[] frame = randomBytes(4096);
+        byte[] dst = new byte[frame.length];
+
+        Assert.assertEquals(-1, new Lz4Codec(null).compress(frame, 0, frame.length, dst, 0, frame.length));
+        Assert.assertEquals(-1, new DeflateCodec(1, null).compress(frame, 0, frame.length, dst, 0, frame.length));
+    }
+
+    @Test
+    public void truncatedLz4FrameIsRejected() {
+        Lz4Codec codec = new Lz4Codec(null);
+        byte[] frame = text(4096);
+        byte[] dst = new byte[frame.length];
+        int compressed = codec.compress(frame, 0, frame.length, dst, 0, frame.length);
+
+        try {
+            codec.decompress(dst, 0, compressed / 2, new byte[frame.length], 0, frame.length);
+            Assert.fail("truncated frame decompressed");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void compressedFrameBody() throws IOException {
+        byte[] dictionary = text(8192);
+        Compression compression = Compression.create("lz4,deflate", 0, 1, dictionary);
+        Assert.assertEquals(4, compression.getNames().size());
+        Assert.assertEquals(compression.get(compression.getNames().get(0)),
+                compression.choose(compression.getNames()));
+        Assert.assertEquals(compression.get(Lz4Codec.NAME), compression.choose(Arrays.asList(Lz4Codec.NAME)));
+
+        for (String name : compression.getNames()) {
+            FrameCodec codec = compression.get(name);
+            byte[] body = text(10000);
+            ChannelBuffer compressed = ChannelBuffers.buffer(body.length);
+            Assert.assertTrue(compression.compress(codec, ChannelBuffers.wrappedBuffer(body), compressed));
+            Assert.assertTrue(Compression.isCompressed(compressed));
+            Assert.assertEquals(body.length, Compression.getDecompressedLength(compressed));
+
+            ChannelBuffer decompressed = ChannelBuffers.buffer(body.length);
+            compression.decompress(compressed, decompressed);
+            Assert.assertTrue(name, Arrays.equals(body, decompressed.array()));
+        }
+    }
+
+    /**
+     * frames of every kind and size, including frames bigger than dictionary window kept by thread,
+     * at nonzero offsets
+     */
+    private void assertRoundTrips(FrameCodec codec) throws IOException {
+        int[] lengths = {1, 16, 100, 4096, 65536, 70000, 300 * 1024};
+        for (int length : lengths) {
+            Assert.assertTrue(codec + " did not compress text", roundTrip(codec, text(length)) || length < 100);
+            roundTrip(codec, repeatedRuns(length));
+            roundTrip(codec, randomBytes(length));
+        }
+    }
+
+    /**
+     * @return false when data was not compressed
+     */
+    private boolean roundTrip(FrameCodec codec, byte[] data) throws IOException {
+        byte[] src = new byte[data.length + 7];
+        System.arraycopy(data, 0, src, 7, data.length);
+        byte[] dst = new byte[data.length + 9];
+        int compressed = codec.compress(src, 7, data.length, dst, 9, data.length);
+        if (compressed < 0) {
+            return false;
+        }
+        Assert.assertTrue(compressed < data.length);
+
+        byte[] out = new byte[data.length + 3];
+        codec.decompress(dst, 9, compressed, out, 3, data.length);
+        Assert.assertTrue(codec + " " + data.length, Arrays.equals(data, Arrays.copyOfRange(out, 3, out.length)));
+        return true;
+    }
+
+    private byte[] text(int length) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) TEXT.charAt(i % TEXT.length());
+        }
+        return text;
+    }
+
+    /**
+     * random bytes repeated at random distances, matches of every length and offset
+     */
+    private byte[] repeatedRuns(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = i > 64 && random.nextInt(8) > 0 ? data[i - 1 - random.nextInt(64)] : (byte) random.nextInt();
+        }
+        return data;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+}
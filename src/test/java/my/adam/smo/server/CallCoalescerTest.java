@@ -0,0 +1,158 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.common.ReferoRpcController;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class CallCoalescerTest {
+    private static final String METHOD = "NewUsefullTestService.DoGoodJob";
+    private static final ByteString ARGUMENT = ByteString.copyFromUtf8("argument");
+
+    private CallCoalescer coalescer = CallCoalescer.create(METHOD + ", NewUsefullTestService.DoHighWeightGoodJob");
+
+    @Test
+    public void onlyListedMethodsAreCoalesced() {
+        Assert.assertNull(CallCoalescer.create(""));
+        Assert.assertNull(CallCoalescer.create(" , "));
+        Assert.assertTrue(coalescer.isCoalesced(METHOD));
+        Assert.assertTrue(coalescer.isCoalesced("NewUsefullTestService.DoHighWeightGoodJob"));
+        Assert.assertFalse(coalescer.isCoalesced("UnregisteredTestService.DoGoodJob"));
+    }
+
+    @Test
+    public void overlappingCallsGetResponseOfExecutedOne() {
+        // given
+        List<Message> responses = new ArrayList<Message>();
+        RpcCallback<Message> executed = coalescer.join(METHOD, ARGUMENT, new ReferoRpcController(), collect(responses));
+        RpcCallback<Message> other = coalescer.join(METHOD, ByteString.copyFromUtf8("other"),
+                new ReferoRpcController(), collect(new ArrayList<Message>()));
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(coalescer.join(METHOD, ARGUMENT, new ReferoRpcController(), collect(responses)));
+        }
+        Message response = TestServices.Out.newBuilder().setResult(3).build();
+        executed.run(response);
+
+        // then
+        Assert.assertNotNull(executed);
+        Assert.assertNotNull(other);
+        Assert.assertEquals(4, responses.size());
+        for (Message received : responses) {
+            Assert.assertSame(response, received);
+        }
+        Assert.assertEquals(2, coalescer.getExecutedCalls());
+        Assert.assertEquals(3, coalescer.getJoinedCalls());
+    }
+
+    @Test
+    public void failureIsFannedOutToJoinedCalls() {
+        // given
+        List<Message> responses = new ArrayList<Message>();
+        ReferoRpcController executedController = new ReferoRpcController();
+        RpcCallback<Message> executed = coalescer.join(METHOD, ARGUMENT, executedController, collect(responses));
+        List<ReferoRpcController> joined = new ArrayList<ReferoRpcController>();
+        for (int i = 0; i < 3; i++) {
+            ReferoRpcController controller = new ReferoRpcController();
+            joined.add(controller);
+            Assert.assertNull(coalescer.join(METHOD, ARGUMENT, controller, collect(responses)));
+        }
+
+        // when
+        executedController.setFailed("service failure");
+        executed.run(null);
+
+        // then
+        Assert.assertEquals(4, responses.size());
+        for (Message received : responses) {
+            Assert.assertNull(received);
+        }
+        for (ReferoRpcController controller : joined) {
+            Assert.assertTrue(controller.failed());
+            Assert.assertEquals("service failure", controller.errorText());
+        }
+    }
+
+    @Test
+    public void failingCallbackDoesNotStopOtherCalls() {
+        // given
+        List<Message> responses = new ArrayList<Message>();
+        RpcCallback<Message> executed = coalescer.join(METHOD, ARGUMENT, new ReferoRpcController(),
+                new RpcCallback<Message>() {
+                    @Override
+                    public void run(Message parameter) {
+                        throw new IllegalStateException("callback failure");
+                    }
+                });
+        for (int i = 0; i < 3; i++) {
+            coalescer.join(METHOD, ARGUMENT, new ReferoRpcController(), collect(responses));
+        }
+
+        // when
+        try {
+            executed.run(TestServices.Out.getDefaultInstance());
+            Assert.fail("failure of callback was lost");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+
+        // then
+        Assert.assertEquals(3, responses.size());
+    }
+
+    @Test
+    public void callAfterResponseIsExecutedAgain() {
+        // given
+        RpcCallback<Message> first = coalescer.join(METHOD, ARGUMENT, new ReferoRpcController(),
+                collect(new ArrayList<Message>()));
+        first.run(TestServices.Out.getDefaultInstance());
+
+        // when
+        RpcCallback<Message> second = coalescer.join(METHOD, ARGUMENT, new ReferoRpcController(),
+                collect(new ArrayList<Message>()));
+
+        // then
+        Assert.assertNotNull(second);
+        Assert.assertEquals(2, coalescer.getExecutedCalls());
+        Assert.assertEquals(0, coalescer.getJoinedCalls());
+    }
+
+    private static RpcCallback<Message> collect(final List<Message> responses) {
+        return new RpcCallback<Message>() {
+            @Override
+            public void run(Message parameter) {
+                responses.add(parameter);
+            }
+        };
+    }
+}
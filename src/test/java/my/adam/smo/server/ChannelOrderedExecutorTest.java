@@ -0,0 +1,284 @@
+package my.adam.smo.server;
+
+import junit.framework.Assert;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class ChannelOrderedExecutorTest {
+    private final DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private ExecutorService pool;
+    private Channel first;
+    private Channel second;
+
+    @Before
+    public void init() {
+        pool = Executors.newFixedThreadPool(4);
+        first = channelFactory.newChannel(Channels.pipeline());
+        second = channelFactory.newChannel(Channels.pipeline());
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+        first.close();
+        second.close();
+        channelFactory.releaseExternalResources();
+    }
+
+    @Test
+    public void tasksOfOneChannelRunInOrderOneAtATime() throws InterruptedException {
+        // given
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(pool);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1000);
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            final int number = i;
+            executor.execute(new Task(first) {
+                @Override
+                protected void doRun() {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    order.add(number);
+                    Thread.yield();
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        // then
+        Assert.assertTrue("tasks not run", done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, overlaps.get());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void channelsRunConcurrently() throws InterruptedException {
+        // given
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(pool);
+        final CountDownLatch secondRan = new CountDownLatch(1);
+        final CountDownLatch firstDone = new CountDownLatch(1);
+
+        // when
+        executor.execute(new Task(first) {
+            @Override
+            protected void doRun() {
+                try {
+                    //waits for task of other channel, would never end if channels were serialized
+                    if (secondRan.await(10, TimeUnit.SECONDS)) {
+                        firstDone.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(new Task(second) {
+            @Override
+            protected void doRun() {
+                secondRan.countDown();
+            }
+        });
+
+        // then
+        Assert.assertTrue("channels did not run concurrently", firstDone.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void taskWaitsForPreviousTaskOfItsChannel() throws InterruptedException {
+        // given
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(pool);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        executor.execute(new Task(first) {
+            @Override
+            protected void doRun() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.add("blocking");
+                done.countDown();
+            }
+        });
+
+        // when
+        executor.execute(new NamedTask(first, "waiting", done));
+        Thread.sleep(200);
+
+        // then
+        Assert.assertTrue(ran.isEmpty());
+        release.countDown();
+        Assert.assertTrue("tasks not run", done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("blocking", "waiting"), ran);
+    }
+
+    @Test
+    public void taskWithoutChannelIsHandedToExecutor() {
+        // given
+        ManualExecutor manual = new ManualExecutor();
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(manual);
+
+        // when
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("plain");
+            }
+        });
+
+        // then
+        Assert.assertEquals(1, manual.tasks.size());
+        manual.runAll();
+        Assert.assertEquals(Arrays.asList("plain"), ran);
+    }
+
+    @Test
+    public void failedTaskDoesNotStopChannel() {
+        // given
+        ManualExecutor manual = new ManualExecutor();
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(manual);
+
+        // when
+        executor.execute(new NamedTask(first, "first", null));
+        executor.execute(new Task(first) {
+            @Override
+            protected void doRun() {
+                throw new IllegalStateException("task failure");
+            }
+        });
+        executor.execute(new NamedTask(first, "last", null));
+        manual.runAll();
+
+        // then
+        Assert.assertEquals(Arrays.asList("first", "last"), ran);
+    }
+
+    @Test
+    public void errorOfTaskDoesNotStallChannel() {
+        // given
+        ManualExecutor manual = new ManualExecutor();
+        ChannelOrderedExecutor executor = new ChannelOrderedExecutor(manual);
+        executor.execute(new Task(first) {
+            @Override
+            protected void doRun() {
+                throw new OutOfMemoryError("task error");
+            }
+        });
+        executor.execute(new NamedTask(first, "waiting", null));
+
+        // when
+        try {
+            manual.runNext();
+            Assert.fail("error of task was swallowed");
+        } catch (OutOfMemoryError e) {
+            Assert.assertEquals("task error", e.getMessage());
+        }
+        manual.runAll();
+        executor.execute(new NamedTask(first, "later", null));
+        manual.runAll();
+
+        // then
+        Assert.assertEquals(Arrays.asList("waiting", "later"), ran);
+    }
+
+    /**
+     * task of event received from channel, as handed by {@link org.jboss.netty.handler.execution.ExecutionHandler}
+     */
+    private abstract static class Task extends ChannelEventRunnable {
+        Task(Channel channel) {
+            super(null, new UpstreamMessageEvent(channel, "message", null), null);
+        }
+    }
+
+    private class NamedTask extends Task {
+        private final String name;
+        private final CountDownLatch done;
+
+        NamedTask(Channel channel, String name, CountDownLatch done) {
+            super(channel);
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        protected void doRun() {
+            ran.add(name);
+            if (done != null) {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * runs handed tasks only when test asks for it
+     */
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.poll().run();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.compression.Compression;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class CompressionNegotiationTest {
+    private final AtomicInteger framesReceived = new AtomicInteger();
+    private final AtomicInteger compressedFramesReceived = new AtomicInteger();
+
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+    private TestServices.NewUsefullTestService.BlockingInterface service;
+
+    @After
+    public void tearDown() {
+        socketClient.disconnect();
+        socketServer.stop();
+        System.clearProperty("compression");
+    }
+
+    /**
+     * starts server that counts compressed frames it receives and connects client to it,
+     * compression is negotiated only without encryption, so both use PlainContext.xml
+     *
+     * @param clientCompression compression offered by client
+     * @param serverCompression compression accepted by server
+     */
+    private void start(String clientCompression, String serverCompression) {
+        //not set in app.properties, so system property is used
+        System.setProperty("compression", clientCompression);
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("PlainContext.xml");
+        System.setProperty("compression", serverCompression);
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("PlainContext.xml");
+
+        socketServer = serverContext.getBean(SocketServer.class);
+        socketClient = clientContext.getBean(SocketClient.class);
+
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(TestServices.HighWeightResponse.newBuilder()
+                                .setResponse(request.getRequest())
+                                .build());
+                    }
+                }));
+        final ChannelPipelineFactory pipelineFactory = socketServer.bootstrap.getPipelineFactory();
+        socketServer.bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline p = pipelineFactory.getPipeline();
+                p.addAfter("frameDecoder", "recorder", new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                        framesReceived.incrementAndGet();
+                        if (Compression.isCompressed((ChannelBuffer) e.getMessage())) {
+                            compressedFramesReceived.incrementAndGet();
+                        }
+                        super.messageReceived(ctx, e);
+                    }
+                });
+                return p;
+            }
+        });
+        socketServer.start(new InetSocketAddress(8099));
+
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(8099));
+        service = TestServices.NewUsefullTestService.newBlockingStub(channel);
+    }
+
+    @Test
+    public void largeFramesAreCompressedBothWays() throws ServiceException {
+        // given
+        start("lz4", "lz4");
+        //client compresses only after response to handshake, which comes before response to first call
+        Assert.assertEquals(3, call(1, 2));
+        ByteString payload = ByteString.copyFrom(new byte[64 * 1024]);
+
+        // when
+        ByteString echoed = echo(payload);
+
+        // then
+        Assert.assertEquals(payload, echoed);
+        Assert.assertEquals(1, compressedFramesReceived.get());
+        Assert.assertEquals(1, socketServer.getCompression().getFramesDecompressed());
+        Assert.assertEquals(1, socketServer.getCompression().getFramesCompressed());
+        Assert.assertEquals(1, socketClient.getCompression().getFramesDecompressed());
+        Assert.assertTrue(socketServer.getCompression().getCompressionRatio() < 1);
+    }
+
+    @Test
+    public void smallFramesAreNotCompressed() throws ServiceException {
+        // given
+        start("lz4", "lz4");
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(2 * i, call(i, i));
+        }
+
+        // then
+        Assert.assertTrue(framesReceived.get() >= 10);
+        Assert.assertEquals(0, compressedFramesReceived.get());
+        Assert.assertEquals(0, socketServer.getCompression().getFramesCompressed());
+    }
+
+    @Test
+    public void serverPicksAlgorithmItHasEnabled() throws ServiceException {
+        // given
+        start("deflate,lz4", "lz4");
+        Assert.assertEquals(3, call(1, 2));
+        ByteString payload = ByteString.copyFrom(new byte[64 * 1024]);
+
+        // when
+        ByteString echoed = echo(payload);
+
+        // then
+        Assert.assertEquals(payload, echoed);
+        Assert.assertEquals(1, compressedFramesReceived.get());
+        Assert.assertEquals(1, socketClient.getCompression().getFramesDecompressed());
+    }
+
+    @Test
+    public void framesAreNotCompressedWhenServerHasCompressionOff() throws ServiceException {
+        // given
+        start("lz4", "none");
+        Assert.assertEquals(3, call(1, 2));
+        ByteString payload = ByteString.copyFrom(new byte[64 * 1024]);
+
+        // when
+        ByteString echoed = echo(payload);
+
+        // then
+        Assert.assertEquals(payload, echoed);
+        Assert.assertEquals(0, compressedFramesReceived.get());
+        Assert.assertNull(socketServer.getCompression());
+        Assert.assertEquals(0, socketClient.getCompression().getFramesCompressed());
+        Assert.assertEquals(0, socketClient.getCompression().getFramesDecompressed());
+    }
+
+    private int call(int operand1, int operand2) throws ServiceException {
+        return service.doGoodJob(new DummyRpcController(),
+                TestServices.In.newBuilder().setOperand1(operand1).setOperand2(operand2).build()).getResult();
+    }
+
+    private ByteString echo(ByteString payload) throws ServiceException {
+        return service.doHighWeightGoodJob(new DummyRpcController(),
+                TestServices.HighWeightRequest.newBuilder().setRequest(payload).setLoad(0).build()).getResponse();
+    }
+}
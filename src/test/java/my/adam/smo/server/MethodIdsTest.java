@@ -0,0 +1,230 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import junit.framework.Assert;
+import my.adam.smo.RPCommunication;
+import my.adam.smo.TestServices;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.common.InboundEnvelope;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class MethodIdsTest {
+    private final List<RPCommunication.Request> received =
+            Collections.synchronizedList(new ArrayList<RPCommunication.Request>());
+
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+    private RpcChannel channel;
+
+    @After
+    public void tearDown() {
+        //client would reconnect to server of next test and its requests would be recorded there
+        socketClient.disconnect();
+        socketServer.stop();
+        System.clearProperty("method_ids_enabled");
+    }
+
+    /**
+     * starts server that records every request it receives and connects client to it
+     *
+     * @param methodIds true to enable method ids on client, false to keep default
+     */
+    private TestServices.NewUsefullTestService start(boolean methodIds) {
+        if (methodIds) {
+            //not set in app.properties, so system property is used
+            System.setProperty("method_ids_enabled", "true");
+        }
+        ApplicationContext clientContext = new ClassPathXmlApplicationContext("Context.xml");
+        ApplicationContext serverContext = new ClassPathXmlApplicationContext("Context.xml");
+
+        socketServer = serverContext.getBean(SocketServer.class);
+        socketClient = clientContext.getBean(SocketClient.class);
+
+        socketServer.register(TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(null);
+                    }
+                }));
+        final ChannelPipelineFactory pipelineFactory = socketServer.bootstrap.getPipelineFactory();
+        socketServer.bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline p = pipelineFactory.getPipeline();
+                p.addBefore("handler", "recorder", new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                        received.add((RPCommunication.Request) ((InboundEnvelope) e.getMessage()).getHeader());
+                        super.messageReceived(ctx, e);
+                    }
+                });
+                return p;
+            }
+        });
+        socketServer.start(new InetSocketAddress(8096));
+
+        channel = socketClient.connect(new InetSocketAddress(8096));
+        return TestServices.NewUsefullTestService.newStub(channel);
+    }
+
+    @Test
+    public void methodIdsAreOffByDefault() throws InterruptedException {
+        // given
+        TestServices.NewUsefullTestService service = start(false);
+
+        // when
+        Assert.assertEquals(3, call(service, 1, 2));
+        Assert.assertEquals(7, call(service, 3, 4));
+
+        // then
+        Assert.assertEquals(2, received.size());
+        for (RPCommunication.Request request : received) {
+            Assert.assertFalse(request.getDescribeMethods());
+            Assert.assertFalse(request.hasMethodId());
+            Assert.assertEquals("NewUsefullTestService", request.getServiceName());
+            Assert.assertEquals("DoGoodJob", request.getMethodName());
+        }
+    }
+
+    @Test
+    public void clientAsksForMethodTableFirst() throws InterruptedException {
+        // given
+        TestServices.NewUsefullTestService service = start(true);
+
+        // when
+        Assert.assertEquals(3, call(service, 1, 2));
+
+        // then
+        RPCommunication.Request handshake = received.get(0);
+        Assert.assertTrue(handshake.getDescribeMethods());
+        Assert.assertEquals(0, handshake.getRequestId());
+        Assert.assertTrue(socketServer.getMethodTable().getMethodList()
+                .contains("NewUsefullTestService.DoGoodJob"));
+    }
+
+    @Test
+    public void callsAfterHandshakeCarryMethodId() throws InterruptedException {
+        // given
+        TestServices.NewUsefullTestService service = start(true);
+        //response to handshake comes before response to first call
+        Assert.assertEquals(3, call(service, 1, 2));
+
+        // when
+        Assert.assertEquals(7, call(service, 3, 4));
+
+        // then
+        RPCommunication.Request request = received.get(received.size() - 1);
+        Assert.assertTrue(request.hasMethodId());
+        Assert.assertFalse(request.hasServiceName());
+        Assert.assertEquals("NewUsefullTestService.DoGoodJob",
+                socketServer.getMethodTable().getMethod(request.getMethodId()));
+    }
+
+    @Test
+    public void methodMissingInTableIsCalledByName() throws InterruptedException {
+        // given
+        TestServices.NewUsefullTestService service = start(true);
+        Assert.assertEquals(3, call(service, 1, 2));
+        //registered after client got method table
+        socketServer.register(TestServices.UnregisteredTestService.newReflectiveService(
+                new TestServices.UnregisteredTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() * request.getOperand2())
+                                .build());
+                    }
+                }));
+        final AtomicReference<TestServices.Out> result = new AtomicReference<TestServices.Out>();
+        final CountDownLatch answered = new CountDownLatch(1);
+
+        // when
+        TestServices.UnregisteredTestService.newStub(channel).doGoodJob(new DummyRpcController(),
+                TestServices.In.newBuilder().setOperand1(3).setOperand2(4).build(),
+                new RpcCallback<TestServices.Out>() {
+                    @Override
+                    public void run(TestServices.Out parameter) {
+                        result.set(parameter);
+                        answered.countDown();
+                    }
+                });
+
+        // then
+        Assert.assertTrue("call not answered", answered.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(12, result.get().getResult());
+        RPCommunication.Request request = received.get(received.size() - 1);
+        Assert.assertFalse(request.hasMethodId());
+        Assert.assertEquals("UnregisteredTestService", request.getServiceName());
+        Assert.assertEquals("DoGoodJob", request.getMethodName());
+    }
+
+    private int call(TestServices.NewUsefullTestService service, int operand1, int operand2)
+            throws InterruptedException {
+        final AtomicReference<TestServices.Out> result = new AtomicReference<TestServices.Out>();
+        final CountDownLatch answered = new CountDownLatch(1);
+        service.doGoodJob(new DummyRpcController(),
+                TestServices.In.newBuilder().setOperand1(operand1).setOperand2(operand2).build(),
+                new RpcCallback<TestServices.Out>() {
+                    @Override
+                    public void run(TestServices.Out parameter) {
+                        result.set(parameter);
+                        answered.countDown();
+                    }
+                });
+        Assert.assertTrue("call not answered", answered.await(5, TimeUnit.SECONDS));
+        return result.get().getResult();
+    }
+}
@@ -0,0 +1,198 @@
+package my.adam.smo.server;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class PriorityLaneExecutorTest {
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<String> ran = new ArrayList<String>();
+
+    @Test
+    public void strictPolicyTakesMostImportantLaneFirst() {
+        // given
+        PriorityLaneExecutor lanes = new LaneExecutor(executor, 1, null);
+
+        // when
+        lanes.execute(new Task(2, "bulk1"));
+        lanes.execute(new Task(2, "bulk2"));
+        lanes.execute(new Task(1, "normal"));
+        lanes.execute(new Task(0, "important"));
+        executor.runAll();
+
+        // then
+        Assert.assertEquals(Arrays.asList("important", "normal", "bulk1", "bulk2"), ran);
+    }
+
+    @Test
+    public void weightedPolicyDoesNotStarveLessImportantLanes() {
+        // given
+        PriorityLaneExecutor lanes = new LaneExecutor(executor, 1, new int[]{2, 1, 1});
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            lanes.execute(new Task(0, "a" + i));
+            lanes.execute(new Task(2, "c" + i));
+        }
+        executor.runAll();
+
+        // then
+        Assert.assertEquals(Arrays.asList("a0", "a1", "c0", "a2", "a3", "c1", "c2", "c3"), ran);
+    }
+
+    @Test
+    public void importantTaskOvertakesQueuedBulkTasks() {
+        // given
+        PriorityLaneExecutor lanes = new LaneExecutor(executor, 1, new int[]{8, 4, 1});
+        for (int i = 0; i < 1000; i++) {
+            lanes.execute(new Task(2, "bulk"));
+        }
+
+        // when
+        lanes.execute(new Task(0, "important"));
+        executor.runAll();
+
+        // then
+        Assert.assertEquals(1001, ran.size());
+        Assert.assertEquals("important", ran.get(0));
+    }
+
+    @Test
+    public void atMostConcurrencyTasksAreHandedToExecutor() {
+        // given
+        PriorityLaneExecutor lanes = new LaneExecutor(executor, 2, null);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            lanes.execute(new Task(1, "task" + i));
+        }
+
+        // then
+        Assert.assertEquals(2, executor.tasks.size());
+        executor.runAll();
+        Assert.assertEquals(10, ran.size());
+    }
+
+    @Test
+    public void failedTaskDoesNotStopLane() {
+        // given
+        PriorityLaneExecutor lanes = new LaneExecutor(executor, 1, null);
+
+        // when
+        lanes.execute(new Task(0, "first"));
+        lanes.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("task failure");
+            }
+        });
+        lanes.execute(new Task(0, "last"));
+        executor.runAll();
+
+        // then
+        Assert.assertEquals(Arrays.asList("first", "last"), ran);
+    }
+
+    @Test
+    public void errorOfTaskDoesNotStallLane() {
+        // given
+        PriorityLaneExecutor lanes = new LaneExecutor(executor, 1, null);
+        lanes.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new OutOfMemoryError("task error");
+            }
+        });
+        lanes.execute(new Task(0, "waiting"));
+
+        // when
+        try {
+            executor.runNext();
+            Assert.fail("error of task was swallowed");
+        } catch (OutOfMemoryError e) {
+            Assert.assertEquals("task error", e.getMessage());
+        }
+        executor.runAll();
+        lanes.execute(new Task(0, "later"));
+        executor.runAll();
+
+        // then
+        Assert.assertEquals(Arrays.asList("waiting", "later"), ran);
+    }
+
+    private class Task implements Runnable {
+        private final int lane;
+        private final String name;
+
+        Task(int lane, String name) {
+            this.lane = lane;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+        }
+    }
+
+    private static class LaneExecutor extends PriorityLaneExecutor {
+        LaneExecutor(Executor executor, int concurrency, int[] weights) {
+            super(executor, concurrency, 3, weights);
+        }
+
+        @Override
+        protected int getLane(Runnable task) {
+            return task instanceof Task ? ((Task) task).lane : 0;
+        }
+    }
+
+    /**
+     * runs handed tasks only when test asks for it
+     */
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.poll().run();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package my.adam.smo.server;
+
+import com.google.protobuf.ByteString;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class ResponseCacheTest {
+    private static final String METHOD = "my.Service.Method";
+    private static final String OTHER = "my.Service.Other";
+
+    @Test
+    public void responseExpiresAfterTimeToLive() throws InterruptedException {
+        // given
+        ResponseCache cache = ResponseCache.create(METHOD + ":100, " + OTHER + ":0", 100);
+        cache.put(METHOD, bytes(1), bytes(11));
+        cache.put(OTHER, bytes(1), bytes(12));
+
+        // when
+        ByteString fresh = cache.get(METHOD, bytes(1));
+        Thread.sleep(150);
+
+        // then
+        Assert.assertEquals(bytes(11), fresh);
+        Assert.assertNull(cache.get(METHOD, bytes(1)));
+        Assert.assertEquals(bytes(12), cache.get(OTHER, bytes(1)));
+        Assert.assertNull(cache.get(OTHER, bytes(2)));
+        Assert.assertEquals(1, cache.getStats().get(METHOD).getHits());
+        Assert.assertEquals(1, cache.getStats().get(METHOD).getMisses());
+        Assert.assertEquals(0, cache.getStats().get(METHOD).getEvictions());
+    }
+
+    @Test
+    public void onlyListedMethodsAreCached() {
+        Assert.assertNull(ResponseCache.create("", 100));
+        Assert.assertNull(ResponseCache.create(" , ", 100));
+        Assert.assertNull(ResponseCache.create(METHOD + ":0", 0));
+
+        ResponseCache cache = ResponseCache.create(METHOD + ":0", 100);
+        Assert.assertTrue(cache.isCached(METHOD));
+        Assert.assertFalse(cache.isCached(OTHER));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void methodWithoutTimeToLiveIsRejected() {
+        ResponseCache.create(METHOD + ":0," + OTHER, 100);
+    }
+
+    @Test
+    public void scanDoesNotEvictFrequentResponses() {
+        // given
+        int maxEntries = 1000;
+        int hotEntries = 500;
+        ResponseCache cache = ResponseCache.create(METHOD + ":0", maxEntries);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < hotEntries; i++) {
+                getOrPut(cache, i);
+            }
+        }
+
+        // when
+        //one time requests, hot ones are still requested meanwhile
+        for (int i = 0; i < 100 * maxEntries; i++) {
+            getOrPut(cache, hotEntries + i);
+            if (i % 4 == 0) {
+                getOrPut(cache, (i / 4) % hotEntries);
+            }
+        }
+
+        // then
+        Assert.assertTrue(cache.size() <= maxEntries);
+        int kept = 0;
+        for (int i = 0; i < hotEntries; i++) {
+            if (cache.get(METHOD, bytes(i)) != null) {
+                kept++;
+            }
+        }
+        Assert.assertTrue("hot responses kept " + kept, kept > hotEntries * 8 / 10);
+        Assert.assertTrue(cache.getStats().get(METHOD).getEvictions() > 90 * maxEntries);
+    }
+
+    private static void getOrPut(ResponseCache cache, int request) {
+        if (cache.get(METHOD, bytes(request)) == null) {
+            cache.put(METHOD, bytes(request), bytes(request));
+        }
+    }
+
+    private static ByteString bytes(int value) {
+        return ByteString.copyFromUtf8("value " + value);
+    }
+}
@@ -0,0 +1,271 @@
+package my.adam.smo.transport;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import com.google.protobuf.ServiceException;
+import junit.framework.Assert;
+import my.adam.smo.TestServices;
+import my.adam.smo.client.SocketClient;
+import my.adam.smo.common.DummyRpcController;
+import my.adam.smo.server.SocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class SharedMemoryRpcTest {
+    private static final int PORT = 9094;
+
+    private File directory;
+    private SocketServer socketServer;
+    private SocketClient socketClient;
+    private Process serverProcess;
+
+    @Before
+    public void init() throws IOException {
+        directory = File.createTempFile("shm", "rpc");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+        //not set in app.properties, so system properties are used
+        System.setProperty("transport", "shm");
+        System.setProperty("shm_directory", directory.getAbsolutePath());
+        System.setProperty("shm_ring_size", "65536");
+        socketClient = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketClient.class);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        socketClient.disconnect();
+        if (socketServer != null) {
+            socketServer.stop();
+        }
+        if (serverProcess != null) {
+            serverProcess.destroy();
+            serverProcess.waitFor();
+        }
+        System.clearProperty("transport");
+        System.clearProperty("shm_directory");
+        System.clearProperty("shm_ring_size");
+        delete(directory);
+    }
+
+    @Test
+    public void callsAreAnsweredOverSharedMemory() throws ServiceException {
+        // given
+        socketServer = newServer();
+        socketServer.start(new InetSocketAddress(PORT));
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(PORT));
+
+        // when
+        int result = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in(1, 2)).getResult();
+
+        // then
+        Assert.assertEquals(3, result);
+    }
+
+    @Test
+    public void payloadLargerThanRingIsEchoed() throws ServiceException {
+        // given
+        socketServer = newServer();
+        socketServer.start(new InetSocketAddress(PORT));
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(PORT));
+        byte[] bytes = new byte[1024 * 1024];
+        new Random(5).nextBytes(bytes);
+        ByteString payload = ByteString.copyFrom(bytes);
+
+        // when
+        ByteString response = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doHighWeightGoodJob(new DummyRpcController(), TestServices.HighWeightRequest.newBuilder()
+                        .setRequest(payload)
+                        .setLoad(0)
+                        .build()).getResponse();
+
+        // then
+        Assert.assertEquals(payload, response);
+    }
+
+    @Test
+    public void callFailsAfterServerClosedConnection() throws ServiceException {
+        // given
+        socketServer = newServer();
+        socketServer.start(new InetSocketAddress(PORT));
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(PORT));
+        Assert.assertEquals(3, TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in(1, 2)).getResult());
+
+        // when
+        socketServer.stop();
+        socketServer = null;
+
+        // then
+        try {
+            TestServices.NewUsefullTestService.newBlockingStub(channel).doGoodJob(new DummyRpcController(), in(1, 2));
+            Assert.fail("call answered by stopped server");
+        } catch (ServiceException e) {
+            //expected
+        }
+        Assert.assertEquals(0, new File(directory, String.valueOf(PORT)).list(new RingFilter()).length);
+    }
+
+    @Test
+    public void callsAreAnsweredByServerInOtherProcess() throws Exception {
+        // given
+        serverProcess = startServerProcess();
+        BlockingRpcChannel channel = socketClient.blockingConnect(new InetSocketAddress(PORT));
+
+        // when
+        int result = TestServices.NewUsefullTestService.newBlockingStub(channel)
+                .doGoodJob(new DummyRpcController(), in(4, 5)).getResult();
+        //server process stops when its input is closed
+        serverProcess.getOutputStream().close();
+
+        // then
+        Assert.assertEquals(9, result);
+        Assert.assertEquals(0, serverProcess.waitFor());
+        serverProcess = null;
+        try {
+            TestServices.NewUsefullTestService.newBlockingStub(channel).doGoodJob(new DummyRpcController(), in(4, 5));
+            Assert.fail("call answered by stopped server process");
+        } catch (ServiceException e) {
+            //expected
+        }
+    }
+
+    private Process startServerProcess() throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(Arrays.asList(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-Dtransport=shm",
+                "-Dshm_directory=" + directory.getAbsolutePath(),
+                "-Dshm_ring_size=65536",
+                ServerProcess.class.getName(), String.valueOf(PORT)));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (line.equals(ServerProcess.STARTED)) {
+                //rest of output is drained so process never blocks on full pipe
+                Thread drain = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (output.readLine() != null) {
+                                //ignored
+                            }
+                        } catch (IOException e) {
+                            //process is gone
+                        }
+                    }
+                });
+                drain.setDaemon(true);
+                drain.start();
+                return process;
+            }
+        }
+        Assert.fail("server process exited with " + process.waitFor());
+        return null;
+    }
+
+    private static SocketServer newServer() {
+        SocketServer server = new ClassPathXmlApplicationContext("Context.xml").getBean(SocketServer.class);
+        server.register(newService());
+        return server;
+    }
+
+    private static Service newService() {
+        return TestServices.NewUsefullTestService.newReflectiveService(
+                new TestServices.NewUsefullTestService.Interface() {
+                    @Override
+                    public void doGoodJob(RpcController controller, TestServices.In request,
+                                          RpcCallback<TestServices.Out> done) {
+                        done.run(TestServices.Out.newBuilder()
+                                .setResult(request.getOperand1() + request.getOperand2())
+                                .build());
+                    }
+
+                    @Override
+                    public void doHighWeightGoodJob(RpcController controller, TestServices.HighWeightRequest request,
+                                                    RpcCallback<TestServices.HighWeightResponse> done) {
+                        done.run(TestServices.HighWeightResponse.newBuilder()
+                                .setResponse(request.getRequest())
+                                .build());
+                    }
+                });
+    }
+
+    private static TestServices.In in(int operand1, int operand2) {
+        return TestServices.In.newBuilder().setOperand1(operand1).setOperand2(operand2).build();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class RingFilter implements FilenameFilter {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(SharedMemoryFile.SUFFIX);
+        }
+    }
+
+    /**
+     * socket server over shared memory in its own process, serves until its input is closed
+     */
+    public static class ServerProcess {
+        static final String STARTED = "server started";
+
+        public static void main(String[] args) throws IOException {
+            SocketServer server = newServer();
+            server.start(new InetSocketAddress(Integer.parseInt(args[0])));
+            System.out.println(STARTED);
+            System.out.flush();
+            while (System.in.read() != -1) {
+                //waits for end of input
+            }
+            server.stop();
+            System.exit(0);
+        }
+    }
+}
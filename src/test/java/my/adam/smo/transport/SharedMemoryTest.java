@@ -0,0 +1,174 @@
+package my.adam.smo.transport;
+
+import junit.framework.Assert;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * The MIT License
+ * <p/>
+ * Copyright (c) 2013 Adam Smolarek
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+public class SharedMemoryTest {
+    private static final int CAPACITY = 64;
+
+    private File directory;
+    private Random random = new Random(3);
+
+    @Before
+    public void init() throws IOException {
+        directory = File.createTempFile("shm", "test");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void ringWrapsAround() throws IOException {
+        //producer and consumer have their own mappings as in different processes
+        SharedMemoryFile client = SharedMemoryFile.create(directory, CAPACITY);
+        SharedMemoryRing producer = client.getOut();
+        SharedMemoryRing consumer = SharedMemoryFile.open(client.getFile()).getIn();
+
+        int written = 0;
+        int read = 0;
+        while (read < 1000 * CAPACITY) {
+            int length = 1 + random.nextInt(CAPACITY + CAPACITY / 2);
+            ChannelBuffer src = ChannelBuffers.buffer(length);
+            for (int i = 0; i < length; i++) {
+                src.writeByte(written + i);
+            }
+            int accepted = producer.write(src);
+            Assert.assertEquals(accepted, length - src.readableBytes());
+            written += accepted;
+            Assert.assertTrue(written - read <= CAPACITY);
+
+            ChannelBuffer dst = consumer.read(HeapChannelBufferFactory.getInstance(), 1 + random.nextInt(CAPACITY));
+            if (dst == null) {
+                Assert.assertEquals(read, written);
+                continue;
+            }
+            while (dst.readable()) {
+                Assert.assertEquals((byte) read++, dst.readByte());
+            }
+        }
+    }
+
+    @Test
+    public void fullRingTakesOnlyFreeSpace() throws IOException {
+        SharedMemoryRing ring = SharedMemoryFile.create(directory, CAPACITY).getOut();
+        Assert.assertTrue(ring.isEmpty());
+        Assert.assertNull(ring.read(HeapChannelBufferFactory.getInstance(), CAPACITY));
+
+        ChannelBuffer src = ChannelBuffers.wrappedBuffer(new byte[CAPACITY + 10]);
+        Assert.assertEquals(CAPACITY, ring.write(src));
+        Assert.assertEquals(10, src.readableBytes());
+        Assert.assertEquals(0, ring.write(src));
+
+        Assert.assertEquals(7, ring.read(HeapChannelBufferFactory.getInstance(), 7).readableBytes());
+        Assert.assertEquals(7, ring.write(src));
+        Assert.assertEquals(CAPACITY, ring.read(HeapChannelBufferFactory.getInstance(), 2 * CAPACITY).readableBytes());
+        Assert.assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void peerSeesAcceptAndCloseWithDataWrittenBefore() throws IOException {
+        // given
+        SharedMemoryFile client = SharedMemoryFile.create(directory, CAPACITY);
+        SharedMemoryFile server = SharedMemoryFile.open(client.getFile());
+        Assert.assertFalse(client.isAccepted());
+        server.setAccepted();
+        Assert.assertTrue(client.isAccepted());
+
+        // when
+        Assert.assertEquals(3, server.getOut().write(ChannelBuffers.wrappedBuffer(new byte[]{1, 2, 3})));
+        server.close();
+
+        // then
+        Assert.assertTrue(client.isPeerClosed());
+        Assert.assertFalse(server.isPeerClosed());
+        Assert.assertFalse(client.getFile().exists());
+        ChannelBuffer received = client.getIn().read(HeapChannelBufferFactory.getInstance(), CAPACITY);
+        Assert.assertEquals(ChannelBuffers.wrappedBuffer(new byte[]{1, 2, 3}), received);
+        client.close();
+        Assert.assertTrue(server.isPeerClosed());
+    }
+
+    @Test
+    public void failedBindReleasesPort() {
+        SharedMemoryTransport transport = new SharedMemoryTransport(directory, 4096,
+                SharedMemoryTransport.WAIT_PARK, 1000);
+        InetSocketAddress address = new InetSocketAddress(9093);
+        //lock file can not be opened
+        File lockFile = new File(transport.getDirectory(address), "server.lock");
+        Assert.assertTrue(lockFile.mkdirs());
+
+        ChannelFactory factory = transport.newServerChannelFactory(1, 1);
+        ServerBootstrap bootstrap = new ServerBootstrap(factory);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline();
+            }
+        });
+        try {
+            bootstrap.bind(address);
+            Assert.fail("bound without lock file");
+        } catch (ChannelException e) {
+            //expected
+        }
+
+        Assert.assertTrue(lockFile.delete());
+        Channel channel = bootstrap.bind(address);
+        Assert.assertTrue(channel.isBound());
+        channel.close().awaitUninterruptibly();
+        factory.releaseExternalResources();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}